@@ -72,8 +72,16 @@ public final class ExchangeApi {
             ringBuffer.publishEvent(NEW_ORDER_TRANSLATOR, (ApiPlaceOrder) cmd);
         } else if (cmd instanceof ApiCancelOrder) {
             ringBuffer.publishEvent(CANCEL_ORDER_TRANSLATOR, (ApiCancelOrder) cmd);
+        } else if (cmd instanceof ApiMassCancel) {
+            ringBuffer.publishEvent(MASS_CANCEL_TRANSLATOR, (ApiMassCancel) cmd);
+        } else if (cmd instanceof ApiQuote) {
+            ringBuffer.publishEvent(QUOTE_TRANSLATOR, (ApiQuote) cmd);
         } else if (cmd instanceof ApiOrderBookRequest) {
             ringBuffer.publishEvent(ORDER_BOOK_REQUEST_TRANSLATOR, (ApiOrderBookRequest) cmd);
+        } else if (cmd instanceof ApiStartAuction) {
+            ringBuffer.publishEvent(START_AUCTION_TRANSLATOR, (ApiStartAuction) cmd);
+        } else if (cmd instanceof ApiUncross) {
+            ringBuffer.publishEvent(UNCROSS_TRANSLATOR, (ApiUncross) cmd);
         } else if (cmd instanceof ApiAddUser) {
             ringBuffer.publishEvent(ADD_USER_TRANSLATOR, (ApiAddUser) cmd);
         } else if (cmd instanceof ApiAdjustUserBalance) {
@@ -216,6 +224,9 @@ public final class ExchangeApi {
         cmd.timestamp = api.timestamp;
         cmd.action = api.action;
         cmd.orderType = api.orderType;
+        cmd.budget = api.budget;
+        cmd.stopPrice = api.stopPrice;
+        cmd.expireTime = api.expireTime;
         cmd.symbol = api.symbol;
         cmd.uid = api.uid;
         cmd.resultCode = CommandResultCode.NEW;
@@ -243,6 +254,34 @@ public final class ExchangeApi {
         cmd.resultCode = CommandResultCode.NEW;
     };
 
+    private static final EventTranslatorOneArg<OrderCommand, ApiMassCancel> MASS_CANCEL_TRANSLATOR = (cmd, seq, api) -> {
+        cmd.command = OrderCommandType.MASS_CANCEL;
+        cmd.orderId = -1;
+        cmd.price = -1;
+        cmd.size = -1;
+        cmd.symbol = api.symbol;
+        cmd.uid = api.uid;
+        cmd.timestamp = api.timestamp;
+        cmd.resultCode = CommandResultCode.NEW;
+    };
+
+    private static final EventTranslatorOneArg<OrderCommand, ApiQuote> QUOTE_TRANSLATOR = (cmd, seq, api) -> {
+        cmd.command = OrderCommandType.QUOTE;
+        cmd.orderId = api.bidId;
+        cmd.price = api.bidPrice;
+        cmd.reserveBidPrice = api.bidReservePrice;
+        cmd.size = api.bidSize;
+        cmd.askOrderId = api.askId;
+        cmd.askPrice = api.askPrice;
+        cmd.askSize = api.askSize;
+        cmd.action = OrderAction.BID;
+        cmd.orderType = OrderType.GTC;
+        cmd.symbol = api.symbol;
+        cmd.uid = api.uid;
+        cmd.timestamp = api.timestamp;
+        cmd.resultCode = CommandResultCode.NEW;
+    };
+
     private static final EventTranslatorOneArg<OrderCommand, ApiOrderBookRequest> ORDER_BOOK_REQUEST_TRANSLATOR = (cmd, seq, api) -> {
         cmd.command = OrderCommandType.ORDER_BOOK_REQUEST;
         cmd.orderId = -1;
@@ -253,6 +292,24 @@ public final class ExchangeApi {
         cmd.resultCode = CommandResultCode.NEW;
     };
 
+    private static final EventTranslatorOneArg<OrderCommand, ApiStartAuction> START_AUCTION_TRANSLATOR = (cmd, seq, api) -> {
+        cmd.command = OrderCommandType.START_AUCTION;
+        cmd.orderId = -1;
+        cmd.symbol = api.symbol;
+        cmd.uid = -1;
+        cmd.timestamp = api.timestamp;
+        cmd.resultCode = CommandResultCode.NEW;
+    };
+
+    private static final EventTranslatorOneArg<OrderCommand, ApiUncross> UNCROSS_TRANSLATOR = (cmd, seq, api) -> {
+        cmd.command = OrderCommandType.UNCROSS;
+        cmd.orderId = -1;
+        cmd.symbol = api.symbol;
+        cmd.uid = -1;
+        cmd.timestamp = api.timestamp;
+        cmd.resultCode = CommandResultCode.NEW;
+    };
+
     private static final EventTranslatorOneArg<OrderCommand, ApiAddUser> ADD_USER_TRANSLATOR = (cmd, seq, api) -> {
         cmd.command = OrderCommandType.ADD_USER;
         cmd.orderId = -1;
@@ -397,6 +454,24 @@ public final class ExchangeApi {
         });
     }
 
+    public void massCancel(
+            int symbol,
+            long uid,
+            Consumer<OrderCommand> callback) {
+
+        ringBuffer.publishEvent((cmd, seq) -> {
+            cmd.command = OrderCommandType.MASS_CANCEL;
+            cmd.resultCode = CommandResultCode.NEW;
+
+            cmd.orderId = -1;
+            cmd.timestamp = System.currentTimeMillis();
+            cmd.symbol = symbol;
+            cmd.uid = uid;
+
+            promises.put(seq, callback);
+        });
+    }
+
     public void cancelOrder(
             long orderId,
             int symbol,
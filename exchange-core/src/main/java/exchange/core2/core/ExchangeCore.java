@@ -26,6 +26,8 @@ import exchange.core2.core.processors.TwoStepMasterProcessor;
 import exchange.core2.core.processors.TwoStepSlaveProcessor;
 import exchange.core2.core.common.CoreSymbolSpecification;
 import exchange.core2.core.common.CoreWaitStrategy;
+import exchange.core2.core.common.HashUserAccounts;
+import exchange.core2.core.common.IUserAccounts;
 import exchange.core2.core.common.cmd.CommandResultCode;
 import exchange.core2.core.common.cmd.OrderCommand;
 import exchange.core2.core.common.cmd.OrderCommandType;
@@ -40,10 +42,13 @@ import lombok.Builder;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.lang3.ArrayUtils;
 
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.function.Function;
 import java.util.function.ObjLongConsumer;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 
@@ -54,6 +59,8 @@ public final class ExchangeCore {
 
     private final ExchangeApi api;
 
+    private final List<RiskEngine> riskEngines;
+
     // core can be started and stopped only once
     private boolean started = false;
     private boolean stopped = false;
@@ -69,6 +76,10 @@ public final class ExchangeCore {
                         final UnsafeUtils.ThreadAffinityMode threadAffinityMode,
                         final CoreWaitStrategy waitStrategy,
                         final Function<CoreSymbolSpecification, IOrderBook> orderBookFactory,
+                        final Supplier<IUserAccounts> userAccountsFactory,
+                        final String userProfilesStoreFolder,
+                        final int userProfilesHotLimit,
+                        final long userProfilesIdleTimeout,
                         final Long loadStateId) {
 
         this.disruptor = new Disruptor<>(
@@ -98,9 +109,15 @@ public final class ExchangeCore {
                 })
                 .toArray(ExchangeCore::newEventHandlersArray);
 
+        // currency accounts implementation (hash maps by default)
+        final Supplier<IUserAccounts> accountsFactory = userAccountsFactory != null ? userAccountsFactory : HashUserAccounts::new;
+
+        // user profiles are kept on heap unless folder for memory-mapped cold profiles store is specified
+        final Path profilesStoreFolder = userProfilesStoreFolder != null ? Paths.get(userProfilesStoreFolder) : null;
+
         // creating risk engines array // TODO parallel deserialization
-        final List<RiskEngine> riskEngines = IntStream.range(0, riskEnginesNum)
-                .mapToObj(shardId -> new RiskEngine(shardId, riskEnginesNum, serializationProcessor, loadStateId))
+        this.riskEngines = IntStream.range(0, riskEnginesNum)
+                .mapToObj(shardId -> new RiskEngine(shardId, riskEnginesNum, serializationProcessor, loadStateId, accountsFactory, profilesStoreFolder, userProfilesHotLimit, userProfilesIdleTimeout))
                 .collect(Collectors.toList());
 
         final List<TwoStepMasterProcessor> procR1 = new ArrayList<>(riskEnginesNum);
@@ -171,6 +188,7 @@ public final class ExchangeCore {
             disruptor.getRingBuffer().publishEvent(SHUTDOWN_SIGNAL_TRANSLATOR);
             disruptor.shutdown();
             log.info("Disruptor stopped");
+            riskEngines.forEach(RiskEngine::close);
         }
     }
 
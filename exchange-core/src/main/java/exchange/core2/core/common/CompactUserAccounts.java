@@ -0,0 +1,122 @@
+/*
+ * Copyright 2019 Maksim Zheravin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package exchange.core2.core.common;
+
+import org.eclipse.collections.api.block.procedure.primitive.IntLongProcedure;
+
+import java.util.Arrays;
+
+/**
+ * Compact accounts implementation - two exactly sized arrays sorted by currency.
+ * <p>
+ * Typical user has only few accounts, so binary search over couple of elements is as fast as hash lookup,
+ * while memory footprint is several times smaller than hash map (empty instance has no arrays at all).
+ * Adding new currency re-allocates arrays, that is rare operation.
+ */
+public final class CompactUserAccounts implements IUserAccounts {
+
+    private static final int[] EMPTY_CURRENCIES = new int[0];
+    private static final long[] EMPTY_BALANCES = new long[0];
+
+    // sorted currency codes
+    private int[] currencies = EMPTY_CURRENCIES;
+
+    // balances (same index as currency)
+    private long[] balances = EMPTY_BALANCES;
+
+    @Override
+    public long get(final int currency) {
+        final int idx = Arrays.binarySearch(currencies, currency);
+        return idx >= 0 ? balances[idx] : 0L;
+    }
+
+    @Override
+    public long addToValue(final int currency, final long amount) {
+        final int idx = Arrays.binarySearch(currencies, currency);
+        if (idx >= 0) {
+            return balances[idx] += amount;
+        }
+
+        // insert new account
+        final int pos = -idx - 1;
+        final int size = currencies.length;
+        final int[] newCurrencies = new int[size + 1];
+        final long[] newBalances = new long[size + 1];
+        System.arraycopy(currencies, 0, newCurrencies, 0, pos);
+        System.arraycopy(balances, 0, newBalances, 0, pos);
+        System.arraycopy(currencies, pos, newCurrencies, pos + 1, size - pos);
+        System.arraycopy(balances, pos, newBalances, pos + 1, size - pos);
+        newCurrencies[pos] = currency;
+        newBalances[pos] = amount;
+        currencies = newCurrencies;
+        balances = newBalances;
+        return amount;
+    }
+
+    @Override
+    public void forEachKeyValue(final IntLongProcedure procedure) {
+        for (int i = 0; i < currencies.length; i++) {
+            procedure.value(currencies[i], balances[i]);
+        }
+    }
+
+    @Override
+    public int size() {
+        return currencies.length;
+    }
+
+    @Override
+    public void clear() {
+        currencies = EMPTY_CURRENCIES;
+        balances = EMPTY_BALANCES;
+    }
+
+    /**
+     * Same as IntLongHashMap.hashCode
+     */
+    @Override
+    public int hashCode() {
+        int result = 0;
+        for (int i = 0; i < currencies.length; i++) {
+            result += currencies[i] ^ Long.hashCode(balances[i]);
+        }
+        return result;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof CompactUserAccounts)) {
+            return false;
+        }
+        final CompactUserAccounts other = (CompactUserAccounts) obj;
+        return Arrays.equals(currencies, other.currencies) && Arrays.equals(balances, other.balances);
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder("{");
+        for (int i = 0; i < currencies.length; i++) {
+            if (i != 0) {
+                sb.append(", ");
+            }
+            sb.append(currencies[i]).append('=').append(balances[i]);
+        }
+        return sb.append('}').toString();
+    }
+}
@@ -48,6 +48,9 @@ public final class CoreSymbolSpecification implements WriteBytesMarshallable, St
     public final long marginBuy;   // buy margin (quote currency)
     public final long marginSell;  // sell margin (quote currency)
 
+    // attach aggregated taker fills (TradesSummary) to commands, in addition to individual trade events
+    public final boolean aggregateTrades;
+
     public CoreSymbolSpecification(BytesIn bytes) {
         this.symbolId = bytes.readInt();
         this.type = SymbolType.of(bytes.readByte());
@@ -59,6 +62,7 @@ public final class CoreSymbolSpecification implements WriteBytesMarshallable, St
         this.makerFee = bytes.readLong();
         this.marginBuy = bytes.readLong();
         this.marginSell = bytes.readLong();
+        this.aggregateTrades = bytes.readBoolean();
     }
 
 /* NOT SUPPORTED YET:
@@ -87,6 +91,7 @@ public final class CoreSymbolSpecification implements WriteBytesMarshallable, St
         bytes.writeLong(makerFee);
         bytes.writeLong(marginBuy);
         bytes.writeLong(marginSell);
+        bytes.writeBoolean(aggregateTrades);
     }
 
     @Override
@@ -101,6 +106,7 @@ public final class CoreSymbolSpecification implements WriteBytesMarshallable, St
                 takerFee,
                 makerFee,
                 marginBuy,
-                marginSell);
+                marginSell,
+                aggregateTrades);
     }
 }
@@ -0,0 +1,49 @@
+/*
+ * Copyright 2019 Maksim Zheravin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package exchange.core2.core.common;
+
+import org.eclipse.collections.api.block.procedure.primitive.IntLongProcedure;
+
+/**
+ * Currency balances of single user: currency -> amount.
+ * <p>
+ * Implementation is selected on exchange core creation (see ExchangeCore.userAccountsFactory).
+ * Implementations should be hash-compatible so state hash does not depend on selected implementation.
+ */
+public interface IUserAccounts {
+
+    /**
+     * @param currency - currency code
+     * @return balance or 0 if no account for the currency
+     */
+    long get(int currency);
+
+    /**
+     * Add amount to balance, creating account if required
+     *
+     * @param currency - currency code
+     * @param amount   - amount to add (can be negative)
+     * @return new balance
+     */
+    long addToValue(int currency, long amount);
+
+    void forEachKeyValue(IntLongProcedure procedure);
+
+    int size();
+
+    void clear();
+
+}
@@ -62,6 +62,23 @@ public final class L2MarketData {
         this.bidVolumes = new long[bidSize];
     }
 
+    /**
+     * Extend arrays if they are shorter than required (existing data is not preserved)
+     *
+     * @param asksCapacity - required number of ask records
+     * @param bidsCapacity - required number of bid records
+     */
+    public void ensureCapacity(int asksCapacity, int bidsCapacity) {
+        if (askPrices.length < asksCapacity) {
+            askPrices = new long[asksCapacity];
+            askVolumes = new long[asksCapacity];
+        }
+        if (bidPrices.length < bidsCapacity) {
+            bidPrices = new long[bidsCapacity];
+            bidVolumes = new long[bidsCapacity];
+        }
+    }
+
     public long[] getAskPricesCopy() {
         return Arrays.copyOf(askPrices, askSize);
     }
@@ -116,11 +133,14 @@ public final class L2MarketData {
     }
 
     public L2MarketData copy() {
-        return new L2MarketData(
+        final L2MarketData copy = new L2MarketData(
                 getAskPricesCopy(),
                 getAskVolumesCopy(),
                 getBidPricesCopy(),
                 getBidVolumesCopy());
+        copy.timestamp = timestamp;
+        copy.referenceSeq = referenceSeq;
+        return copy;
     }
 
     @Override
@@ -0,0 +1,124 @@
+/*
+ * Copyright 2019 Maksim Zheravin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package exchange.core2.core.common;
+
+import lombok.ToString;
+
+import java.util.Arrays;
+
+/**
+ * L2 Market Data incremental update carrier object - price levels changed by single command (in order of changes).
+ * <p>
+ * Volume is the new total volume of the level, 0 means level is removed.
+ * Sequence is per-symbol and increments by 1 for every command changing the order book,
+ * L2MarketData.referenceSeq of the snapshot is the sequence of the last applied change.
+ * So consumer can rebuild the book from a snapshot plus deltas with following sequences, and detect a gap.
+ * <p>
+ * NOTE: Can have dirty data, size is important!
+ */
+@ToString
+public final class L2MarketDataDelta {
+
+    public static final int INITIAL_SIZE = 16;
+
+    public int size;
+
+    public OrderAction[] actions;
+    public long[] prices;
+    public long[] volumes;
+
+    public long sequence;
+
+    public L2MarketDataDelta() {
+        this(INITIAL_SIZE);
+    }
+
+    public L2MarketDataDelta(int capacity) {
+        this.actions = new OrderAction[capacity];
+        this.prices = new long[capacity];
+        this.volumes = new long[capacity];
+    }
+
+    /**
+     * Record new volume of the price level.
+     * Consecutive changes of the same level are merged.
+     *
+     * @param action - side
+     * @param price  - price level
+     * @param volume - new total volume (0 - level removed)
+     */
+    public void addLevel(OrderAction action, long price, long volume) {
+        if (size != 0 && prices[size - 1] == price && actions[size - 1] == action) {
+            volumes[size - 1] = volume;
+            return;
+        }
+        if (size == prices.length) {
+            final int newCapacity = size * 2;
+            actions = Arrays.copyOf(actions, newCapacity);
+            prices = Arrays.copyOf(prices, newCapacity);
+            volumes = Arrays.copyOf(volumes, newCapacity);
+        }
+        actions[size] = action;
+        prices[size] = price;
+        volumes[size] = volume;
+        size++;
+    }
+
+    public void clear() {
+        size = 0;
+        sequence = 0;
+    }
+
+    public L2MarketDataDelta copy() {
+        final L2MarketDataDelta copy = new L2MarketDataDelta(Math.max(size, 1));
+        System.arraycopy(actions, 0, copy.actions, 0, size);
+        System.arraycopy(prices, 0, copy.prices, 0, size);
+        System.arraycopy(volumes, 0, copy.volumes, 0, size);
+        copy.size = size;
+        copy.sequence = sequence;
+        return copy;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (!(obj instanceof L2MarketDataDelta)) {
+            return false;
+        }
+        final L2MarketDataDelta o = (L2MarketDataDelta) obj;
+
+        if (size != o.size || sequence != o.sequence) {
+            return false;
+        }
+
+        for (int i = 0; i < size; i++) {
+            if (actions[i] != o.actions[i] || prices[i] != o.prices[i] || volumes[i] != o.volumes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public int hashCode() {
+        int result = Long.hashCode(sequence);
+        for (int i = 0; i < size; i++) {
+            result = 31 * result + actions[i].ordinal();
+            result = 31 * result + Long.hashCode(prices[i]);
+            result = 31 * result + Long.hashCode(volumes[i]);
+        }
+        return result;
+    }
+}
@@ -20,7 +20,12 @@ import lombok.Getter;
 @Getter
 public enum OrderType {
     GTC(0), // Good till Cancel - equivalent to regular limit order
-    IOC(1); // Immediate or Cancel - equivalent to strict-risk market order
+    IOC(1), // Immediate or Cancel - equivalent to strict-risk market order
+    FOK(2), // Fill or Kill - executed completely or rejected without any trades
+    IOC_BUDGET(3), // Immediate or Cancel limited by amount of quote currency (exchange mode BID only) - market buy for specified amount
+    STOP(4), // placed as IOC when last trade price reaches stop price (limit price is a protection price)
+    STOP_LIMIT(5), // placed as GTC when last trade price reaches stop price
+    GTD(6); // Good till Date - same as GTC, but automatically cancelled when expiration time is reached
 
     private byte code;
 
@@ -34,6 +39,16 @@ public enum OrderType {
                 return GTC;
             case 1:
                 return IOC;
+            case 2:
+                return FOK;
+            case 3:
+                return IOC_BUDGET;
+            case 4:
+                return STOP;
+            case 5:
+                return STOP_LIMIT;
+            case 6:
+                return GTD;
             default:
                 throw new IllegalArgumentException("unknown OrderType:" + code);
         }
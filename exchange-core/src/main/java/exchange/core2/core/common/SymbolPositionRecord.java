@@ -44,6 +44,12 @@ public final class SymbolPositionRecord implements WriteBytesMarshallable, State
     public long pendingSellSize = 0;
     public long pendingBuySize = 0;
 
+    // derived state (not serialized, maintained by risk engine):
+    // estimated profit at last cached price minus required margin, included into UserProfile.freeFuturesMargin
+    public long cachedFreeMargin = 0;
+    // last price epoch of the risk engine when cachedFreeMargin was calculated
+    public long cachedPriceEpoch = 0;
+
     public SymbolPositionRecord(long uid, int symbol, int currency) {
         this.uid = uid;
 
@@ -0,0 +1,154 @@
+/*
+ * Copyright 2019 Maksim Zheravin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package exchange.core2.core.common;
+
+import lombok.ToString;
+
+import java.util.Arrays;
+
+/**
+ * Aggregated taker fills of single command - one entry per taker order per price level (in order of execution).
+ * <p>
+ * Attached only for symbols with aggregateTrades option, in addition to individual TRADE events
+ * (which are still required by risk engine for every maker).
+ * So consumers not interested in makers (gateway, tick charts, market data) can skip walking the events chain.
+ * <p>
+ * NOTE: Can have dirty data, size is important!
+ */
+@ToString
+public final class TradesSummary {
+
+    public static final int INITIAL_SIZE = 8;
+
+    public int size;
+
+    public long[] takerOrderIds;
+    public long[] takerUids;
+    public OrderAction[] takerActions;
+    public long[] prices;
+    public long[] volumes;
+    public int[] makersNum;
+
+    public TradesSummary() {
+        this(INITIAL_SIZE);
+    }
+
+    public TradesSummary(int capacity) {
+        this.takerOrderIds = new long[capacity];
+        this.takerUids = new long[capacity];
+        this.takerActions = new OrderAction[capacity];
+        this.prices = new long[capacity];
+        this.volumes = new long[capacity];
+        this.makersNum = new int[capacity];
+    }
+
+    /**
+     * Record single trade.
+     * Consecutive trades of the same taker order at the same price are merged.
+     *
+     * @param takerOrderId - active order id
+     * @param takerUid     - active order owner
+     * @param takerAction  - active order side
+     * @param price        - trade price
+     * @param volume       - trade size
+     */
+    public void addTrade(long takerOrderId, long takerUid, OrderAction takerAction, long price, long volume) {
+        final int last = size - 1;
+        if (size != 0 && prices[last] == price && takerOrderIds[last] == takerOrderId && takerUids[last] == takerUid) {
+            volumes[last] += volume;
+            makersNum[last]++;
+            return;
+        }
+        if (size == prices.length) {
+            final int newCapacity = size * 2;
+            takerOrderIds = Arrays.copyOf(takerOrderIds, newCapacity);
+            takerUids = Arrays.copyOf(takerUids, newCapacity);
+            takerActions = Arrays.copyOf(takerActions, newCapacity);
+            prices = Arrays.copyOf(prices, newCapacity);
+            volumes = Arrays.copyOf(volumes, newCapacity);
+            makersNum = Arrays.copyOf(makersNum, newCapacity);
+        }
+        takerOrderIds[size] = takerOrderId;
+        takerUids[size] = takerUid;
+        takerActions[size] = takerAction;
+        prices[size] = price;
+        volumes[size] = volume;
+        makersNum[size] = 1;
+        size++;
+    }
+
+    public long totalVolume() {
+        long total = 0;
+        for (int i = 0; i < size; i++) {
+            total += volumes[i];
+        }
+        return total;
+    }
+
+    public void clear() {
+        size = 0;
+    }
+
+    public TradesSummary copy() {
+        final TradesSummary copy = new TradesSummary(Math.max(size, 1));
+        System.arraycopy(takerOrderIds, 0, copy.takerOrderIds, 0, size);
+        System.arraycopy(takerUids, 0, copy.takerUids, 0, size);
+        System.arraycopy(takerActions, 0, copy.takerActions, 0, size);
+        System.arraycopy(prices, 0, copy.prices, 0, size);
+        System.arraycopy(volumes, 0, copy.volumes, 0, size);
+        System.arraycopy(makersNum, 0, copy.makersNum, 0, size);
+        copy.size = size;
+        return copy;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (!(obj instanceof TradesSummary)) {
+            return false;
+        }
+        final TradesSummary o = (TradesSummary) obj;
+
+        if (size != o.size) {
+            return false;
+        }
+
+        for (int i = 0; i < size; i++) {
+            if (takerOrderIds[i] != o.takerOrderIds[i]
+                    || takerUids[i] != o.takerUids[i]
+                    || takerActions[i] != o.takerActions[i]
+                    || prices[i] != o.prices[i]
+                    || volumes[i] != o.volumes[i]
+                    || makersNum[i] != o.makersNum[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public int hashCode() {
+        int result = size;
+        for (int i = 0; i < size; i++) {
+            result = 31 * result + Long.hashCode(takerOrderIds[i]);
+            result = 31 * result + Long.hashCode(takerUids[i]);
+            result = 31 * result + takerActions[i].ordinal();
+            result = 31 * result + Long.hashCode(prices[i]);
+            result = 31 * result + Long.hashCode(volumes[i]);
+            result = 31 * result + makersNum[i];
+        }
+        return result;
+    }
+}
@@ -21,11 +21,11 @@ import lombok.extern.slf4j.Slf4j;
 import net.openhft.chronicle.bytes.BytesIn;
 import net.openhft.chronicle.bytes.BytesOut;
 import net.openhft.chronicle.bytes.WriteBytesMarshallable;
-import org.eclipse.collections.impl.map.mutable.primitive.IntLongHashMap;
 import org.eclipse.collections.impl.map.mutable.primitive.IntObjectHashMap;
 import org.eclipse.collections.impl.set.mutable.primitive.LongHashSet;
 
 import java.util.Objects;
+import java.util.function.Supplier;
 
 @Slf4j
 public final class UserProfile implements WriteBytesMarshallable, StateHash {
@@ -42,19 +42,45 @@ public final class UserProfile implements WriteBytesMarshallable, StateHash {
 
     // currency accounts
     // currency -> balance
-    public final IntLongHashMap accounts;
+    public final IUserAccounts accounts;
+
+    // derived state (not serialized, maintained by risk engine):
+    // currency -> sum of cachedFreeMargin of all positions quoted in this currency
+    public final IUserAccounts freeFuturesMargin;
+    // last price epoch of the risk engine when positions were checked for price changes
+    public long freeMarginEpoch = 0L;
 
     public long commandsCounter = 0L;
 
+    // incremental state hash support (not serialized, maintained by UserProfileService):
+    // contribution of this profile into service hash, and flag that profile could be modified since it was calculated
+    public long stateHashContribution = 0L;
+    public boolean stateHashDirty = false;
+
+    // tiered storage support (not serialized, maintained by UserProfileService):
+    // time of last access and neighbours in access order list
+    public long lastAccessTime = 0L;
+    public UserProfile lruPrev = null;
+    public UserProfile lruNext = null;
+
     public UserProfile(long uid) {
+        this(uid, HashUserAccounts::new);
+    }
+
+    public UserProfile(long uid, Supplier<IUserAccounts> accountsFactory) {
         //log.debug("New {}", uid);
         this.uid = uid;
         this.positions = new IntObjectHashMap<>();
         this.externalTransactions = new LongHashSet();
-        this.accounts = new IntLongHashMap();
+        this.accounts = accountsFactory.get();
+        this.freeFuturesMargin = accountsFactory.get();
     }
 
     public UserProfile(BytesIn bytesIn) {
+        this(bytesIn, HashUserAccounts::new);
+    }
+
+    public UserProfile(BytesIn bytesIn, Supplier<IUserAccounts> accountsFactory) {
 
         this.uid = bytesIn.readLong();
 
@@ -65,7 +91,9 @@ public final class UserProfile implements WriteBytesMarshallable, StateHash {
         this.externalTransactions = SerializationUtils.readLongHashSet(bytesIn);
 
         // account balances
-        this.accounts = SerializationUtils.readIntLongHashMap(bytesIn);
+        this.accounts = SerializationUtils.readUserAccounts(bytesIn, accountsFactory);
+
+        this.freeFuturesMargin = accountsFactory.get();
     }
 
     public SymbolPositionRecord getOrCreatePositionRecord(CoreSymbolSpecification spec) {
@@ -105,7 +133,7 @@ public final class UserProfile implements WriteBytesMarshallable, StateHash {
         SerializationUtils.marshallLongHashSet(externalTransactions, bytes);
 
         // account balances
-        SerializationUtils.marshallIntLongHashMap(accounts, bytes);
+        SerializationUtils.marshallUserAccounts(accounts, bytes);
     }
 
 
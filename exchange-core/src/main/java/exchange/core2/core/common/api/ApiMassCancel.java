@@ -0,0 +1,35 @@
+/*
+ * Copyright 2019 Maksim Zheravin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package exchange.core2.core.common.api;
+
+
+import lombok.Builder;
+
+/**
+ * Cancel all orders of the user for specific symbol in one command.
+ * uid=0 - cancel orders of all users, symbol=-1 - cancel orders for all symbols.
+ */
+@Builder
+public final class ApiMassCancel extends ApiCommand {
+
+    public final long uid;
+    public final int symbol;
+
+    @Override
+    public String toString() {
+        return "[MASS_CANCEL u" + uid + " s" + symbol + "]";
+    }
+}
@@ -34,13 +34,25 @@ public final class ApiPlaceOrder extends ApiCommand {
 
     final public long reservePrice;
 
+    // IOC_BUDGET orders only
+    final public long budget;
+
+    // STOP and STOP_LIMIT orders only
+    final public long stopPrice;
+
+    // GTD orders only
+    final public long expireTime;
+
     // options
 
     @Override
     public String toString() {
         return "[ADD " + id + " u" + uid + " " + (action == OrderAction.ASK ? 'A' : 'B')
-                + ":" + (orderType == OrderType.IOC ? "IOC" : "GTC")
-                + ":" + price + ":" + size + "]";
+                + ":" + orderType
+                + ":" + price + ":" + size
+                + (orderType == OrderType.IOC_BUDGET ? (":B" + budget) : "")
+                + (orderType == OrderType.STOP || orderType == OrderType.STOP_LIMIT ? (":S" + stopPrice) : "")
+                + (orderType == OrderType.GTD ? (":E" + expireTime) : "") + "]";
         //(reservePrice != 0 ? ("(R" + reservePrice + ")") : "") +
     }
 }
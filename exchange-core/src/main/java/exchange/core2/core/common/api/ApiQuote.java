@@ -0,0 +1,46 @@
+/*
+ * Copyright 2019 Maksim Zheravin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package exchange.core2.core.common.api;
+
+
+import lombok.Builder;
+
+/**
+ * Two-sided quote - replaces previous bid and ask orders of the user (same order ids) in one command.
+ * Both sides are placed as GTC orders, side with size=0 is only cancelled.
+ */
+@Builder
+public final class ApiQuote extends ApiCommand {
+
+    public final long bidId;
+    public final long bidPrice;
+    public final long bidReservePrice;
+    public final long bidSize;
+
+    public final long askId;
+    public final long askPrice;
+    public final long askSize;
+
+    public final long uid;
+    public final int symbol;
+
+    @Override
+    public String toString() {
+        return "[QUOTE u" + uid + " s" + symbol
+                + " B" + bidId + ":" + bidPrice + ":" + bidSize
+                + " A" + askId + ":" + askPrice + ":" + askSize + "]";
+    }
+}
@@ -38,6 +38,7 @@ public enum CommandResultCode {
     MATCHING_UNSUPPORTED_COMMAND(-3004),
     MATCHING_INVALID_ORDER_BOOK_ID(-3005),
     MATCHING_ORDER_BOOK_ALREADY_EXISTS(-3006),
+    MATCHING_INVALID_ORDER_SIZE(-3007),
 //    MATCHING_MOVE_REJECTED_DIFFERENT_PRICE(-3040),
     MATCHING_MOVE_FAILED_PRICE_OVER_RISK_LIMIT(-3041),
 
@@ -29,6 +29,9 @@ import java.util.function.Consumer;
 @ToString
 public final class OrderCommand implements IOrder {
 
+    // max number of recycled events kept per ring buffer slot
+    public static final int EVENTS_POOL_MAX_SIZE = 1024;
+
     public OrderCommandType command;
 
     @Getter
@@ -52,6 +55,20 @@ public final class OrderCommand implements IOrder {
 
     public OrderType orderType;
 
+    // required for IOC_BUDGET orders only - amount of quote currency can be spent (including taker fee)
+    public long budget;
+
+    // required for STOP and STOP_LIMIT orders only - order is activated when last trade price reaches this price
+    public long stopPrice;
+
+    // required for GTD orders only - expiration time (same clock as timestamp, milliseconds)
+    public long expireTime;
+
+    // required for QUOTE only - ask side (bid side is orderId/price/reserveBidPrice/size)
+    public long askOrderId;
+    public long askPrice;
+    public long askSize;
+
     @Getter
     public long uid;
 
@@ -71,9 +88,33 @@ public final class OrderCommand implements IOrder {
     // trade events chain
     public MatcherTradeEvent matcherEvent;
 
-    // optional market data
+    // optional market data (can refer to reusable slot buffer - use L2MarketData.copy() to retain it)
     public L2MarketData marketData;
 
+    // reusable market data object of this ring buffer slot
+    @ToString.Exclude
+    private L2MarketData marketDataBuffer;
+
+    // optional price levels changed by this command (can refer to reusable slot buffer - use L2MarketDataDelta.copy() to retain it)
+    public L2MarketDataDelta marketDataDelta;
+
+    // reusable market data delta object of this ring buffer slot
+    @ToString.Exclude
+    private L2MarketDataDelta marketDataDeltaBuffer;
+
+    // optional aggregated taker fills, for symbols with aggregateTrades option (can refer to reusable slot buffer - use TradesSummary.copy() to retain it)
+    public TradesSummary tradesSummary;
+
+    // reusable trades summary object of this ring buffer slot
+    @ToString.Exclude
+    private TradesSummary tradesSummaryBuffer;
+
+    // recycled events of previous commands in the same ring buffer slot (linked through nextEvent)
+    @ToString.Exclude
+    private MatcherTradeEvent eventsPool;
+    @ToString.Exclude
+    private int eventsPoolSize;
+
     // sequence of last available for this command
     //public long matcherEventSequence;
     // ---- potential false sharing section ------
@@ -101,6 +142,33 @@ public final class OrderCommand implements IOrder {
         return cmd;
     }
 
+    public static OrderCommand massCancel(int uid) {
+        OrderCommand cmd = new OrderCommand();
+        cmd.command = OrderCommandType.MASS_CANCEL;
+        cmd.orderId = -1;
+        cmd.uid = uid;
+        cmd.resultCode = CommandResultCode.VALID_FOR_MATCHING_ENGINE;
+        return cmd;
+    }
+
+    public static OrderCommand quote(long bidOrderId, long bidPrice, long reserveBidPrice, long bidSize,
+                                     long askOrderId, long askPrice, long askSize, int uid) {
+        OrderCommand cmd = new OrderCommand();
+        cmd.command = OrderCommandType.QUOTE;
+        cmd.orderId = bidOrderId;
+        cmd.price = bidPrice;
+        cmd.reserveBidPrice = reserveBidPrice;
+        cmd.size = bidSize;
+        cmd.askOrderId = askOrderId;
+        cmd.askPrice = askPrice;
+        cmd.askSize = askSize;
+        cmd.uid = uid;
+        cmd.action = OrderAction.BID;
+        cmd.orderType = OrderType.GTC;
+        cmd.resultCode = CommandResultCode.VALID_FOR_MATCHING_ENGINE;
+        return cmd;
+    }
+
     public static OrderCommand update(long orderId, int uid, long price) {
         OrderCommand cmd = new OrderCommand();
         cmd.command = OrderCommandType.MOVE_ORDER;
@@ -124,6 +192,94 @@ public final class OrderCommand implements IOrder {
         }
     }
 
+    /**
+     * Reusable L2 market data object of this ring buffer slot (created on first request).
+     * Content is overwritten when the slot is re-used, so consumers should copy data they need to retain.
+     *
+     * @return market data object
+     */
+    public L2MarketData getMarketDataBuffer() {
+        if (marketDataBuffer == null) {
+            marketDataBuffer = new L2MarketData(L2MarketData.L2_SIZE, L2MarketData.L2_SIZE);
+        }
+        return marketDataBuffer;
+    }
+
+    /**
+     * Attach empty L2 market data delta (reusable object of this ring buffer slot), if not attached yet.
+     * Content is overwritten when the slot is re-used, so consumers should copy data they need to retain.
+     *
+     * @return attached market data delta
+     */
+    public L2MarketDataDelta attachMarketDataDelta() {
+        if (marketDataDelta == null) {
+            if (marketDataDeltaBuffer == null) {
+                marketDataDeltaBuffer = new L2MarketDataDelta();
+            }
+            marketDataDeltaBuffer.clear();
+            marketDataDelta = marketDataDeltaBuffer;
+        }
+        return marketDataDelta;
+    }
+
+    /**
+     * Attach empty trades summary (reusable object of this ring buffer slot), if not attached yet.
+     * Content is overwritten when the slot is re-used, so consumers should copy data they need to retain.
+     *
+     * @return attached trades summary
+     */
+    public TradesSummary attachTradesSummary() {
+        if (tradesSummary == null) {
+            if (tradesSummaryBuffer == null) {
+                tradesSummaryBuffer = new TradesSummary();
+            }
+            tradesSummaryBuffer.clear();
+            tradesSummary = tradesSummaryBuffer;
+        }
+        return tradesSummary;
+    }
+
+    /**
+     * Take event object from the pool of this ring buffer slot, or create new one if pool is empty.
+     * Returned event can contain values from previous usage, so all fields should be set by caller.
+     * Only single thread (processing the command) can call this method.
+     *
+     * @return event object
+     */
+    public MatcherTradeEvent takeEventFromPool() {
+        final MatcherTradeEvent event = eventsPool;
+        if (event == null) {
+            return new MatcherTradeEvent();
+        }
+        eventsPool = event.nextEvent;
+        eventsPoolSize--;
+        return event;
+    }
+
+    /**
+     * Move attached events chain into the pool of this ring buffer slot, so next commands can re-use event objects.
+     * Should be called only when all handlers finished processing the command (grouping processor is re-using the slot).
+     * Pool size is limited - tail of very long chains is left for GC.
+     */
+    public void recycleMatcherEvents() {
+        final MatcherTradeEvent head = this.matcherEvent;
+        this.matcherEvent = null;
+        if (head == null || eventsPoolSize >= EVENTS_POOL_MAX_SIZE) {
+            return;
+        }
+
+        MatcherTradeEvent tail = head;
+        int size = eventsPoolSize + 1;
+        while (tail.nextEvent != null && size < EVENTS_POOL_MAX_SIZE) {
+            tail = tail.nextEvent;
+            size++;
+        }
+
+        tail.nextEvent = eventsPool;
+        eventsPool = head;
+        eventsPoolSize = size;
+    }
+
     /**
      * Produces garbage
      * For testing only !!!
@@ -166,6 +322,12 @@ public final class OrderCommand implements IOrder {
         cmd2.size = this.size;
         cmd2.action = this.action;
         cmd2.orderType = this.orderType;
+        cmd2.budget = this.budget;
+        cmd2.stopPrice = this.stopPrice;
+        cmd2.expireTime = this.expireTime;
+        cmd2.askOrderId = this.askOrderId;
+        cmd2.askPrice = this.askPrice;
+        cmd2.askSize = this.askSize;
     }
 
     public OrderCommand copy() {
@@ -188,6 +350,14 @@ public final class OrderCommand implements IOrder {
             newCmd.marketData = marketData.copy();
         }
 
+        if (marketDataDelta != null) {
+            newCmd.marketDataDelta = marketDataDelta.copy();
+        }
+
+        if (tradesSummary != null) {
+            newCmd.tradesSummary = tradesSummary.copy();
+        }
+
 //        System.out.println(">>> newCmd: " + newCmd);
         return newCmd;
     }
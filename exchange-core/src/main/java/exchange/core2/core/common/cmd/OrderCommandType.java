@@ -22,9 +22,14 @@ public enum OrderCommandType {
     PLACE_ORDER(1),
     CANCEL_ORDER(2),
     MOVE_ORDER(3),
+    MASS_CANCEL(4),
+    QUOTE(5),
 
     ORDER_BOOK_REQUEST(6),
 
+    START_AUCTION(7),
+    UNCROSS(8),
+
     ADD_USER(10),
     BALANCE_ADJUSTMENT(11),
 
@@ -0,0 +1,55 @@
+/*
+ * Copyright 2019 Maksim Zheravin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package exchange.core2.core.orderbook;
+
+import lombok.Builder;
+import lombok.Getter;
+import lombok.ToString;
+
+/**
+ * Snapshot of order buckets queues occupancy of {@link OrderBookFastImpl}
+ */
+@Builder
+@Getter
+@ToString
+public final class BucketsStats {
+
+    private final int symbolId;
+
+    // active buckets (price levels)
+    private final int buckets;
+    private final int orders;
+
+    // empty queue slots between head and tail of active buckets (left by cancelled orders)
+    private final int holes;
+
+    // allocated queue slots of active and pooled buckets
+    private final int queueCapacity;
+    private final int pooledBuckets;
+    private final int pooledQueueCapacity;
+
+    // queues re-packed because of holes (active and pooled buckets), pooled buckets with released buffers
+    private final int compactions;
+    private final int shrinks;
+
+    /**
+     * @return ratio of holes in queues of active buckets, or 0.0 if there are no orders
+     */
+    public double getHoleRatio() {
+        final int slots = orders + holes;
+        return slots == 0 ? 0.0 : (double) holes / slots;
+    }
+}
@@ -0,0 +1,680 @@
+/*
+ * Copyright 2019 Maksim Zheravin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package exchange.core2.core.orderbook;
+
+import exchange.core2.core.common.Order;
+import exchange.core2.core.common.OrderAction;
+import exchange.core2.core.common.OrderType;
+import exchange.core2.core.common.StateHash;
+import exchange.core2.core.common.cmd.CommandResultCode;
+import exchange.core2.core.common.cmd.OrderCommand;
+import exchange.core2.core.utils.LongAvlTreeMap;
+import lombok.Getter;
+import net.openhft.chronicle.bytes.BytesIn;
+import net.openhft.chronicle.bytes.BytesOut;
+import net.openhft.chronicle.bytes.WriteBytesMarshallable;
+import org.eclipse.collections.api.block.procedure.primitive.LongObjectProcedure;
+import org.eclipse.collections.impl.list.mutable.primitive.IntArrayList;
+import org.eclipse.collections.impl.map.mutable.primitive.LongIntHashMap;
+import org.eclipse.collections.impl.map.mutable.primitive.LongObjectHashMap;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+import java.util.function.Consumer;
+
+/**
+ * Call auction (batch uncross) phase of one symbol.
+ * <p>
+ * While auction is active, limit orders are collected without matching (book can be crossed).
+ * Uncross computes equilibrium price with a single ascending pass over cumulative volumes:
+ * price maximizing executable volume, then minimizing surplus, then closest to reference price, then the lowest one.
+ * All fills are executed at equilibrium price in price-time priority.
+ * Taker is the order placed later (same as for continuous matching).
+ * Own orders never trade with each other: before uncross, later placed one of crossing bid and ask of the same user is cancelled.
+ * <p>
+ * Order fields are kept in parallel primitive arrays (slots), recycled through the free list.
+ * <p>
+ * Not thread safe.
+ */
+public final class CallAuction implements WriteBytesMarshallable, StateHash {
+
+    private static final int NIL = -1;
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    // slots
+    private long[] orderIds;
+    private long[] uids;
+    private long[] prices;
+    private long[] sizes;
+    private long[] reserveBidPrices;
+    private long[] timestamps;
+    private long[] seqs;
+    private byte[] actions;
+
+    // FIFO links within price level (next is also used for free slots list)
+    private int[] next;
+    private int[] prev;
+
+    private int freeHead = NIL;
+    private int allocated = 0;
+
+    // orderId -> slot
+    private final LongIntHashMap slotById = new LongIntHashMap();
+
+    // price -> level
+    private final LongAvlTreeMap<PriceLevel> bids = new LongAvlTreeMap<>();
+    private final LongAvlTreeMap<PriceLevel> asks = new LongAvlTreeMap<>();
+
+    private final ArrayDeque<PriceLevel> levelsPool = new ArrayDeque<>();
+
+    @Getter
+    private boolean active = false;
+
+    // placement sequence (defines taker)
+    private long lastSeq = 0;
+
+    // incrementally maintained sum of orders hashes
+    private long ordersHash = 0;
+
+    public CallAuction() {
+        allocateArrays(INITIAL_CAPACITY);
+    }
+
+    public CallAuction(final BytesIn bytes) {
+        this();
+        this.active = bytes.readBoolean();
+        final int count = bytes.readInt();
+        for (int i = 0; i < count; i++) {
+            add(bytes.readLong(), bytes.readLong(), OrderAction.of(bytes.readByte()),
+                    bytes.readLong(), bytes.readLong(), bytes.readLong(), bytes.readLong());
+        }
+    }
+
+    private static final class PriceLevel {
+        long price;
+        long volume;
+        int head;
+        int tail;
+    }
+
+    public void start() {
+        active = true;
+    }
+
+    public int size() {
+        return slotById.size();
+    }
+
+    public boolean isEmpty() {
+        return slotById.isEmpty();
+    }
+
+    public boolean contains(final long orderId) {
+        return slotById.containsKey(orderId);
+    }
+
+    /**
+     * @return true if order with specified id is collected and belongs to the user
+     */
+    public boolean contains(final long orderId, final long uid) {
+        final int slot = slotById.getIfAbsent(orderId, NIL);
+        return slot != NIL && uids[slot] == uid;
+    }
+
+    /**
+     * Add order (orderId should be checked for duplicates by caller)
+     *
+     * @param cmd - GTC or GTD order command
+     */
+    public void add(final OrderCommand cmd) {
+        add(cmd.orderId, cmd.uid, cmd.action, cmd.price, cmd.size, cmd.reserveBidPrice, cmd.timestamp);
+    }
+
+    public void add(final long orderId, final long uid, final OrderAction action,
+                    final long price, final long size, final long reserveBidPrice, final long timestamp) {
+
+        final int slot = allocateSlot();
+        orderIds[slot] = orderId;
+        uids[slot] = uid;
+        actions[slot] = action.getCode();
+        prices[slot] = price;
+        sizes[slot] = size;
+        reserveBidPrices[slot] = reserveBidPrice;
+        timestamps[slot] = timestamp;
+
+        enqueue(slot);
+
+        slotById.put(orderId, slot);
+        ordersHash += slotHash(slot);
+    }
+
+    /**
+     * Cancel order, CANCEL event is attached to the command
+     *
+     * @return false if order was not found or belongs to another user
+     */
+    public boolean cancel(final long orderId, final long uid, final OrderCommand cmd) {
+        final int slot = slotById.getIfAbsent(orderId, NIL);
+        if (slot == NIL || uids[slot] != uid) {
+            return false;
+        }
+        sendCancelEvent(cmd, slot);
+        remove(slot);
+        return true;
+    }
+
+    /**
+     * Cancel all orders of the user (uid=0 - orders of all users), CANCEL events are attached to the command
+     *
+     * @return number of cancelled orders
+     */
+    public int cancelUserOrders(final long uid, final OrderCommand cmd) {
+        int cancelled = 0;
+        for (int slot = 0; slot < allocated && !slotById.isEmpty(); slot++) {
+            // free slots have zero size
+            if (sizes[slot] != 0 && (uid == 0 || uids[slot] == uid)) {
+                sendCancelEvent(cmd, slot);
+                remove(slot);
+                cancelled++;
+            }
+        }
+        return cancelled;
+    }
+
+    /**
+     * Move order to the new price (order loses its priority)
+     *
+     * @param checkReserve - true if new price of BID order can not exceed reserved price (exchange mode)
+     */
+    public CommandResultCode move(final long orderId, final long uid, final long newPrice, final boolean checkReserve) {
+        final int slot = slotById.getIfAbsent(orderId, NIL);
+        if (slot == NIL || uids[slot] != uid) {
+            return CommandResultCode.MATCHING_UNKNOWN_ORDER_ID;
+        }
+        if (checkReserve && actions[slot] == OrderAction.BID.getCode() && newPrice > reserveBidPrices[slot]) {
+            return CommandResultCode.MATCHING_MOVE_FAILED_PRICE_OVER_RISK_LIMIT;
+        }
+        ordersHash -= slotHash(slot);
+        dequeue(slot);
+        prices[slot] = newPrice;
+        enqueue(slot);
+        ordersHash += slotHash(slot);
+        return CommandResultCode.SUCCESS;
+    }
+
+    /**
+     * Execute all crossing orders at equilibrium price, TRADE events are attached to the command.
+     * Auction phase remains active - remaining orders should be polled by caller (see {@link #pollRemaining}).
+     *
+     * @param cmd            - uncross command
+     * @param referencePrice - last trade price (-1 if unknown), used for breaking ties
+     * @return equilibrium price, or -1 if there is no crossing
+     */
+    public long uncross(final OrderCommand cmd, final long referencePrice) {
+
+        cancelSelfCrossingOrders(cmd);
+
+        final long price = findEquilibriumPrice(referencePrice);
+        if (price == -1) {
+            return -1;
+        }
+
+        PriceLevel bidLevel = bids.lastValue();
+        PriceLevel askLevel = asks.firstValue();
+        while (bidLevel != null && askLevel != null && bidLevel.price >= price && askLevel.price <= price) {
+
+            final int bid = bidLevel.head;
+            final int ask = askLevel.head;
+            final long volume = Math.min(sizes[bid], sizes[ask]);
+            final boolean bidCompleted = fill(bid, bidLevel, volume);
+            final boolean askCompleted = fill(ask, askLevel, volume);
+
+            final int active = seqs[bid] > seqs[ask] ? bid : ask;
+            final int matched = active == bid ? ask : bid;
+            OrderBookEventsHelper.sendTradeEvent(cmd,
+                    orderIds[active], uids[active], OrderAction.of(actions[active]), active == bid ? bidCompleted : askCompleted,
+                    orderIds[matched], uids[matched], active == bid ? askCompleted : bidCompleted,
+                    reserveBidPrices[bid], price, volume, cmd.timestamp);
+
+            if (bidCompleted) {
+                remove(bid);
+                bidLevel = bids.isEmpty() ? null : bids.lastValue();
+            }
+            if (askCompleted) {
+                remove(ask);
+                askLevel = asks.isEmpty() ? null : asks.firstValue();
+            }
+        }
+
+        return price;
+    }
+
+    /**
+     * Self-trade prevention, same as for continuous matching own orders are not matched.
+     * While the best remaining bid and ask of a user are crossing each other, the later placed one (taker) is cancelled,
+     * CANCEL event is attached to the command. So own volume is not counted by equilibrium price search and can not be paired.
+     * Only crossing price range is visited, produces garbage.
+     */
+    private void cancelSelfCrossingOrders(final OrderCommand cmd) {
+
+        if (bids.isEmpty() || asks.isEmpty() || bids.lastKey() < asks.firstKey()) {
+            return;
+        }
+        final long maxBid = bids.lastKey();
+        final long minAsk = asks.firstKey();
+
+        // crossing asks of each user, best first
+        final LongObjectHashMap<IntArrayList> userAsks = new LongObjectHashMap<>();
+        for (PriceLevel level = asks.firstValue(); level != null && level.price <= maxBid; level = asks.higherValue(level.price)) {
+            for (int slot = level.head; slot != NIL; slot = next[slot]) {
+                userAsks.getIfAbsentPut(uids[slot], IntArrayList::new).add(slot);
+            }
+        }
+
+        // crossing bids, best first
+        final IntArrayList crossingBids = new IntArrayList();
+        for (PriceLevel level = bids.lastValue(); level != null && level.price >= minAsk; level = bids.lowerValue(level.price)) {
+            for (int slot = level.head; slot != NIL; slot = next[slot]) {
+                crossingBids.add(slot);
+            }
+        }
+
+        // number of already cancelled asks of each user
+        final LongIntHashMap cancelledAsks = new LongIntHashMap();
+        for (int i = 0; i < crossingBids.size(); i++) {
+            final int bid = crossingBids.get(i);
+            final long uid = uids[bid];
+            final IntArrayList ownAsks = userAsks.get(uid);
+            if (ownAsks == null) {
+                continue;
+            }
+            int idx = cancelledAsks.get(uid);
+            while (idx < ownAsks.size() && prices[ownAsks.get(idx)] <= prices[bid]) {
+                final int ask = ownAsks.get(idx);
+                if (seqs[bid] > seqs[ask]) {
+                    sendCancelEvent(cmd, bid);
+                    remove(bid);
+                    break;
+                }
+                sendCancelEvent(cmd, ask);
+                remove(ask);
+                idx++;
+            }
+            cancelledAsks.put(uid, idx);
+        }
+    }
+
+    /**
+     * Equilibrium price search - single ascending pass over prices between the best ask and the best bid.
+     * Demand at price P is total volume of bids with price &gt;= P, supply - total volume of asks with price &lt;= P.
+     */
+    private long findEquilibriumPrice(final long referencePrice) {
+
+        if (bids.isEmpty() || asks.isEmpty()) {
+            return -1;
+        }
+        final long maxBid = bids.lastKey();
+        final long minAsk = asks.firstKey();
+        if (maxBid < minAsk) {
+            return -1;
+        }
+
+        long demand = 0;
+        for (PriceLevel level = bids.ceilingValue(minAsk); level != null; level = bids.higherValue(level.price)) {
+            demand += level.volume;
+        }
+        long supply = 0;
+
+        long bestPrice = -1;
+        long bestVolume = 0;
+        long bestSurplus = 0;
+
+        long price = minAsk;
+        while (price <= maxBid) {
+
+            final PriceLevel askLevel = asks.get(price);
+            if (askLevel != null) {
+                supply += askLevel.volume;
+            }
+
+            final long volume = Math.min(demand, supply);
+            final long surplus = Math.abs(demand - supply);
+            if (volume > bestVolume
+                    || (volume == bestVolume && surplus < bestSurplus)
+                    || (volume == bestVolume && surplus == bestSurplus && referencePrice != -1
+                    && Math.abs(price - referencePrice) < Math.abs(bestPrice - referencePrice))) {
+                bestPrice = price;
+                bestVolume = volume;
+                bestSurplus = surplus;
+            }
+
+            final PriceLevel bidLevel = bids.get(price);
+            if (bidLevel != null) {
+                demand -= bidLevel.volume;
+            }
+
+            // next price having any orders
+            final PriceLevel nextAsk = asks.higherValue(price);
+            final PriceLevel nextBid = bids.higherValue(price);
+            if (nextAsk == null && nextBid == null) {
+                break;
+            }
+            price = Math.min(
+                    nextAsk != null ? nextAsk.price : Long.MAX_VALUE,
+                    nextBid != null ? nextBid.price : Long.MAX_VALUE);
+        }
+
+        return bestPrice;
+    }
+
+    /**
+     * Remove next remaining order (bids first, then asks, best price first) and write its fields into the command:
+     * orderId, uid, action, price, size, reserveBidPrice, timestamp, and GTC order type.
+     * Auction phase is finished when there are no more orders.
+     *
+     * @param cmd - command to write order fields into
+     * @return false if there are no more orders
+     */
+    public boolean pollRemaining(final OrderCommand cmd) {
+
+        final int slot;
+        if (!bids.isEmpty()) {
+            slot = bids.lastValue().head;
+        } else if (!asks.isEmpty()) {
+            slot = asks.firstValue().head;
+        } else {
+            active = false;
+            lastSeq = 0;
+            return false;
+        }
+
+        cmd.orderId = orderIds[slot];
+        cmd.uid = uids[slot];
+        cmd.action = OrderAction.of(actions[slot]);
+        cmd.orderType = OrderType.GTC;
+        cmd.price = prices[slot];
+        cmd.size = sizes[slot];
+        cmd.reserveBidPrice = reserveBidPrices[slot];
+        cmd.timestamp = timestamps[slot];
+
+        remove(slot);
+        return true;
+    }
+
+    /**
+     * @return true if order is completed
+     */
+    private boolean fill(final int slot, final PriceLevel level, final long volume) {
+        ordersHash -= slotHash(slot);
+        sizes[slot] -= volume;
+        level.volume -= volume;
+        if (sizes[slot] == 0) {
+            return true;
+        }
+        ordersHash += slotHash(slot);
+        return false;
+    }
+
+    private void enqueue(final int slot) {
+        seqs[slot] = ++lastSeq;
+
+        final long price = prices[slot];
+        final LongAvlTreeMap<PriceLevel> levels = levelsFor(actions[slot]);
+        PriceLevel level = levels.get(price);
+        if (level == null) {
+            level = levelsPool.pollLast();
+            if (level == null) {
+                level = new PriceLevel();
+            }
+            level.price = price;
+            level.volume = 0;
+            level.head = slot;
+            level.tail = slot;
+            prev[slot] = NIL;
+            levels.put(price, level);
+        } else {
+            next[level.tail] = slot;
+            prev[slot] = level.tail;
+            level.tail = slot;
+        }
+        next[slot] = NIL;
+        level.volume += sizes[slot];
+    }
+
+    private void dequeue(final int slot) {
+        final LongAvlTreeMap<PriceLevel> levels = levelsFor(actions[slot]);
+        final long price = prices[slot];
+        final PriceLevel level = levels.get(price);
+        final int p = prev[slot];
+        final int n = next[slot];
+        if (p == NIL) {
+            level.head = n;
+        } else {
+            next[p] = n;
+        }
+        if (n == NIL) {
+            level.tail = p;
+        } else {
+            prev[n] = p;
+        }
+        level.volume -= sizes[slot];
+        if (level.head == NIL) {
+            levels.remove(price);
+            levelsPool.addLast(level);
+        }
+    }
+
+    // filled orders are already excluded from hash
+    private void remove(final int slot) {
+
+        if (sizes[slot] != 0) {
+            ordersHash -= slotHash(slot);
+        }
+        slotById.remove(orderIds[slot]);
+        dequeue(slot);
+
+        sizes[slot] = 0;
+        next[slot] = freeHead;
+        freeHead = slot;
+    }
+
+    private LongAvlTreeMap<PriceLevel> levelsFor(final byte action) {
+        return action == OrderAction.BID.getCode() ? bids : asks;
+    }
+
+    private void sendCancelEvent(final OrderCommand cmd, final int slot) {
+        OrderBookEventsHelper.sendCancelEvent(cmd, orderIds[slot], uids[slot], OrderAction.of(actions[slot]),
+                prices[slot], sizes[slot], reserveBidPrices[slot]);
+    }
+
+    private int allocateSlot() {
+        if (freeHead != NIL) {
+            final int slot = freeHead;
+            freeHead = next[slot];
+            return slot;
+        }
+        if (allocated == orderIds.length) {
+            growArrays(allocated * 2);
+        }
+        return allocated++;
+    }
+
+    private void allocateArrays(final int length) {
+        orderIds = new long[length];
+        uids = new long[length];
+        prices = new long[length];
+        sizes = new long[length];
+        reserveBidPrices = new long[length];
+        timestamps = new long[length];
+        seqs = new long[length];
+        actions = new byte[length];
+        next = new int[length];
+        prev = new int[length];
+    }
+
+    private void growArrays(final int length) {
+        orderIds = Arrays.copyOf(orderIds, length);
+        uids = Arrays.copyOf(uids, length);
+        prices = Arrays.copyOf(prices, length);
+        sizes = Arrays.copyOf(sizes, length);
+        reserveBidPrices = Arrays.copyOf(reserveBidPrices, length);
+        timestamps = Arrays.copyOf(timestamps, length);
+        seqs = Arrays.copyOf(seqs, length);
+        actions = Arrays.copyOf(actions, length);
+        next = Arrays.copyOf(next, length);
+        prev = Arrays.copyOf(prev, length);
+    }
+
+    private long slotHash(final int slot) {
+        return IOrderBook.orderHash(orderIds[slot], uids[slot], OrderAction.of(actions[slot]), prices[slot],
+                sizes[slot], 0, reserveBidPrices[slot], timestamps[slot]);
+    }
+
+    /**
+     * Slots in placement order. Produces garbage.
+     */
+    private IntArrayList slotsInPlacementOrder() {
+        // sequence is reset when auction is finished, so it fits into high half of sorting key
+        final long[] keys = new long[size()];
+        final int[] i = {0};
+        slotById.forEachValue(slot -> keys[i[0]++] = (seqs[slot] << 32) | slot);
+        Arrays.sort(keys);
+        final IntArrayList slots = new IntArrayList(keys.length);
+        for (final long key : keys) {
+            slots.add((int) key);
+        }
+        return slots;
+    }
+
+    /**
+     * Visit orders as regular orders - for reports only, produces garbage.
+     */
+    public void forEachOrder(final Consumer<Order> consumer) {
+        slotsInPlacementOrder().forEach(slot -> consumer.accept(toOrder(slot)));
+    }
+
+    /**
+     * Produces garbage, for reports only.
+     */
+    public List<Order> findUserOrders(final long uid) {
+        final List<Order> list = new ArrayList<>();
+        slotsInPlacementOrder().forEach(slot -> {
+            if (uids[slot] == uid) {
+                list.add(toOrder(slot));
+            }
+        });
+        return list;
+    }
+
+    private Order toOrder(final int slot) {
+        return new Order(orderIds[slot], prices[slot], sizes[slot], 0, reserveBidPrices[slot],
+                OrderAction.of(actions[slot]), uids[slot], timestamps[slot]);
+    }
+
+    // testing only
+    public void validate() {
+        if (!active && !isEmpty()) {
+            throw new IllegalStateException("auction is not active, but has " + size() + " orders");
+        }
+        final long[] hash = {0};
+        final int[] count = {0};
+        final LongObjectProcedure<PriceLevel> levelValidator = (price, level) -> {
+            long volume = 0;
+            int p = NIL;
+            for (int slot = level.head; slot != NIL; slot = next[slot]) {
+                if (prices[slot] != price || prev[slot] != p || slotById.getIfAbsent(orderIds[slot], NIL) != slot) {
+                    throw new IllegalStateException("broken auction order " + orderIds[slot]);
+                }
+                volume += sizes[slot];
+                hash[0] += slotHash(slot);
+                count[0]++;
+                p = slot;
+            }
+            if (level.price != price || level.tail != p || level.volume != volume) {
+                throw new IllegalStateException("broken auction price level " + price);
+            }
+        };
+        bids.forEach(levelValidator);
+        asks.forEach(levelValidator);
+        if (count[0] != slotById.size()) {
+            throw new IllegalStateException("found " + count[0] + " auction orders in price levels, but there are " + slotById.size() + " in index");
+        }
+        if (hash[0] != ordersHash) {
+            throw new IllegalStateException("incremental auction orders hash " + ordersHash + " differs from calculated " + hash[0]);
+        }
+    }
+
+    /**
+     * Orders are written in placement order, so reading restores the same priorities
+     */
+    @Override
+    public void writeMarshallable(final BytesOut bytes) {
+        bytes.writeBoolean(active);
+        final IntArrayList slots = slotsInPlacementOrder();
+        bytes.writeInt(slots.size());
+        slots.forEach(slot -> {
+            bytes.writeLong(orderIds[slot]);
+            bytes.writeLong(uids[slot]);
+            bytes.writeByte(actions[slot]);
+            bytes.writeLong(prices[slot]);
+            bytes.writeLong(sizes[slot]);
+            bytes.writeLong(reserveBidPrices[slot]);
+            bytes.writeLong(timestamps[slot]);
+        });
+    }
+
+    @Override
+    public int stateHash() {
+        return Objects.hash(Long.hashCode(ordersHash), active);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(size(), active);
+    }
+
+    /**
+     * Timestamps are not compared (same as for orders)
+     */
+    @Override
+    public boolean equals(final Object o) {
+        if (o == this) return true;
+        if (!(o instanceof CallAuction)) return false;
+        final CallAuction other = (CallAuction) o;
+        if (active != other.active || size() != other.size()) {
+            return false;
+        }
+        final IntArrayList slots = slotsInPlacementOrder();
+        final IntArrayList otherSlots = other.slotsInPlacementOrder();
+        for (int i = 0; i < slots.size(); i++) {
+            final int s1 = slots.get(i);
+            final int s2 = otherSlots.get(i);
+            if (orderIds[s1] != other.orderIds[s2]
+                    || uids[s1] != other.uids[s2]
+                    || actions[s1] != other.actions[s2]
+                    || prices[s1] != other.prices[s2]
+                    || sizes[s1] != other.sizes[s2]
+                    || reserveBidPrices[s1] != other.reserveBidPrices[s2]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
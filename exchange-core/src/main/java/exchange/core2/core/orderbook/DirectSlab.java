@@ -0,0 +1,130 @@
+/*
+ * Copyright 2019 Maksim Zheravin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package exchange.core2.core.orderbook;
+
+import net.openhft.chronicle.bytes.NativeBytesStore;
+
+/**
+ * Off-heap storage of fixed size records, addressed by int index.
+ * <p>
+ * Index 0 is reserved and means 'no record' (NIL).
+ * Released records are linked into free list (through first int of the record) and re-used.
+ * When all records are taken, storage is re-allocated with double capacity.
+ * <p>
+ * Native memory is freed by cleaner when slab is garbage-collected, or explicitly by release(). Not thread safe.
+ */
+final class DirectSlab {
+
+    static final int NIL = 0;
+
+    private final int recordSize;
+
+    private NativeBytesStore<Void> store;
+    private int capacity;
+
+    // records [1..allocated) were taken at least once
+    private int allocated = 1;
+    private int freeHead = NIL;
+    private int size = 0;
+
+    DirectSlab(final int recordSize, final int initialCapacity) {
+        if (recordSize < 4 || (recordSize & 7) != 0) {
+            throw new IllegalArgumentException("record size must be aligned by 8: " + recordSize);
+        }
+        this.recordSize = recordSize;
+        this.capacity = Math.max(initialCapacity, 2);
+        this.store = NativeBytesStore.nativeStoreWithFixedCapacity((long) capacity * recordSize);
+    }
+
+    /**
+     * Take a record. Record can contain data of previous usage, so all fields should be set by caller.
+     *
+     * @return record index
+     */
+    int allocate() {
+        final int idx;
+        if (freeHead != NIL) {
+            idx = freeHead;
+            freeHead = getInt(idx, 0);
+        } else {
+            if (allocated == capacity) {
+                grow();
+            }
+            idx = allocated++;
+        }
+        size++;
+        return idx;
+    }
+
+    void free(final int idx) {
+        setInt(idx, 0, freeHead);
+        freeHead = idx;
+        size--;
+    }
+
+    /**
+     * @return number of taken records
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * @return allocated native memory (bytes)
+     */
+    long memoryUsed() {
+        return store.capacity();
+    }
+
+    long getLong(final int idx, final int offset) {
+        return store.readLong(address(idx, offset));
+    }
+
+    void setLong(final int idx, final int offset, final long value) {
+        store.writeLong(address(idx, offset), value);
+    }
+
+    int getInt(final int idx, final int offset) {
+        return store.readInt(address(idx, offset));
+    }
+
+    void setInt(final int idx, final int offset, final int value) {
+        store.writeInt(address(idx, offset), value);
+    }
+
+    void clear() {
+        allocated = 1;
+        freeHead = NIL;
+        size = 0;
+    }
+
+    void release() {
+        store.release();
+    }
+
+    private long address(final int idx, final int offset) {
+        return (long) idx * recordSize + offset;
+    }
+
+    private void grow() {
+        final int newCapacity = capacity * 2;
+        final NativeBytesStore<Void> newStore = NativeBytesStore.nativeStoreWithFixedCapacity((long) newCapacity * recordSize);
+        newStore.write(0, store, 0, (long) allocated * recordSize);
+        store.release();
+        store = newStore;
+        capacity = newCapacity;
+    }
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright 2019 Maksim Zheravin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package exchange.core2.core.orderbook;
+
+import lombok.AllArgsConstructor;
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+import lombok.ToString;
+
+/**
+ * Snapshot of hot window state and bucket lookup statistics of {@link OrderBookFastImpl}
+ */
+@AllArgsConstructor
+@EqualsAndHashCode
+@Getter
+@ToString
+public final class HotWindowStats {
+
+    private final int symbolId;
+
+    // current hot window width and base price (-1 if not defined yet)
+    private final int hotPricesRange;
+    private final long basePrice;
+
+    // bucket lookups resolved in hot section (bitset/hashmap) and in far section (tree)
+    private final long hotLookups;
+    private final long farLookups;
+
+    private final int resizes;
+
+    private final int hotBuckets;
+    private final int farBuckets;
+
+    /**
+     * @return ratio of bucket lookups resolved in the hot section, or 1.0 if there were no lookups yet
+     */
+    public double getHotHitRatio() {
+        final long total = hotLookups + farLookups;
+        return total == 0 ? 1.0 : (double) hotLookups / total;
+    }
+}
@@ -17,19 +17,27 @@ package exchange.core2.core.orderbook;
 
 import exchange.core2.core.common.CoreSymbolSpecification;
 import exchange.core2.core.common.L2MarketData;
+import exchange.core2.core.common.MatcherEventType;
+import exchange.core2.core.common.MatcherTradeEvent;
 import exchange.core2.core.common.Order;
+import exchange.core2.core.common.OrderAction;
+import exchange.core2.core.common.OrderType;
 import exchange.core2.core.common.StateHash;
+import exchange.core2.core.common.SymbolType;
 import exchange.core2.core.common.cmd.CommandResultCode;
 import exchange.core2.core.common.cmd.OrderCommand;
 import exchange.core2.core.common.cmd.OrderCommandType;
+import exchange.core2.core.utils.HashingUtils;
 import lombok.Getter;
 import net.openhft.chronicle.bytes.BytesIn;
 import net.openhft.chronicle.bytes.WriteBytesMarshallable;
+import org.eclipse.collections.impl.list.mutable.primitive.LongArrayList;
 
 import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Objects;
+import java.util.function.Consumer;
 import java.util.stream.Stream;
 
 public interface IOrderBook extends WriteBytesMarshallable, StateHash {
@@ -41,6 +49,10 @@ public interface IOrderBook extends WriteBytesMarshallable, StateHash {
      * In case of remaining volume (order was not matched completely):
      * IOC - reject it as partially filled.
      * GTC - place as a new limit order into th order book.
+     * GTD - same as GTC, expiration is tracked by matching engine router (see {@link exchange.core2.core.processors.ExpirationTimerWheel}).
+     * FOK order is matched only if the whole size can be filled (excluding own orders of the same user),
+     * otherwise it is rejected completely without any trades.
+     * STOP and STOP_LIMIT orders are handled by {@link IOrderBook#processCommand} (see {@link StopOrdersIndex}).
      *
      * @param cmd - order to match/place
      * @return command code (success, or rejection reason)
@@ -67,6 +79,35 @@ public interface IOrderBook extends WriteBytesMarshallable, StateHash {
      */
     CommandResultCode moveOrder(OrderCommand cmd);
 
+    /**
+     * Cancel all orders of the user (uid=0 - orders of all users).
+     * CANCEL event is attached for each cancelled order.
+     * <p>
+     * uid - user id, or 0
+     *
+     * @return number of cancelled orders
+     */
+    int massCancel(OrderCommand cmd);
+
+    /**
+     * Replace two-sided quote of the user.
+     * <p>
+     * Replacement is atomic: sizes and order ids of both sides are validated before anything is changed.
+     * If validation fails, both sides are rejected (REJECTION events release risk holds) and previous quote stays in the book.
+     * Otherwise orders of the previous quote (tracked by {@link QuotesIndex}) are cancelled first (so new quote never matches old one),
+     * then both sides are placed as GTC orders. All events are attached to the same command.
+     * Side with zero size is not placed.
+     * <p>
+     * orderId/price/reserveBidPrice/size - bid side
+     * askOrderId/askPrice/askSize - ask side
+     *
+     * @param cmd - quote command
+     * @return command code (success, or rejection reason)
+     */
+    default CommandResultCode quote(final OrderCommand cmd) {
+        return replaceQuote(this, cmd, false);
+    }
+
 
     int getOrdersNum();
 
@@ -83,7 +124,7 @@ public interface IOrderBook extends WriteBytesMarshallable, StateHash {
 
     /**
      * Search for all orders for specified user.<br/>
-     * Slow, because order book do not maintain uid->order index.<br/>
+     * Uses uid->orders index, so only user's own orders are visited.<br/>
      * Produces garbage.<br/>
      * Orders must be processed before doing any other mutable call.<br/>
      *
@@ -94,23 +135,106 @@ public interface IOrderBook extends WriteBytesMarshallable, StateHash {
 
     CoreSymbolSpecification getSymbolSpec();
 
+    /**
+     * @return pending stop orders of this order book
+     */
+    StopOrdersIndex getStopOrders();
+
+    /**
+     * @return call auction phase state of this order book
+     */
+    CallAuction getCallAuction();
+
+    /**
+     * @return current two-sided quotes of users
+     */
+    QuotesIndex getQuotes();
+
     Stream<Order> askOrdersStream(boolean sorted);
 
     Stream<Order> bidOrdersStream(boolean sorted);
 
+    /**
+     * Visit all orders of one side without building intermediate collections.<br/>
+     * Orders must not be modified, and order book must not be mutated during iteration.
+     * Implementation can pass same Order object for each order (off-heap books), so consumer should copy fields it needs to keep.
+     *
+     * @param side     - ASK or BID
+     * @param sorted   - if true, orders are visited best price first (execution queue order within price level)
+     * @param consumer - orders consumer
+     */
+    default void forEachOrder(OrderAction side, boolean sorted, Consumer<Order> consumer) {
+        (side == OrderAction.ASK ? askOrdersStream(sorted) : bidOrdersStream(sorted)).forEach(consumer);
+    }
+
     /**
      * State hash for order books is implementation-agnostic
      * Look {@link IOrderBook#validateInternalState} for complete state validation for de-serialized objects
+     * <p>
+     * Default implementation calculates orders hash from scratch,
+     * implementations are maintaining it incrementally (see {@link IOrderBook#orderHash}).
      */
     @Override
     default int stateHash() {
-        return hashCode();
+        return stateHash(ordersHash(Stream.concat(askOrdersStream(false), bidOrdersStream(false))), getStopOrders(), getCallAuction(), getQuotes(), getSymbolSpec());
+    }
+
+    // filled size is a linear term of order hash
+    long FILLED_HASH_FACTOR = 0x9E3779B97F4A7C15L;
+
+    /**
+     * Contribution of resting order into the order book state hash.<br/>
+     * Orders hash is a sum of contributions of all resting orders, so it does not depend on orders sequence
+     * and can be updated on each mutation: placing order adds its contribution, removing subtracts it,
+     * matching volume V against resting orders adds V * FILLED_HASH_FACTOR.
+     * Note: position of order within the price level queue is not reflected.
+     */
+    static long orderHash(final long orderId, final long uid, final OrderAction action, final long price,
+                          final long size, final long filled, final long reserveBidPrice, final long timestamp) {
+        long h = HashingUtils.mix64(orderId);
+        h = HashingUtils.mix64(h ^ uid);
+        h = HashingUtils.mix64(h ^ price ^ ((long) action.getCode() << 62));
+        h = HashingUtils.mix64(h ^ size);
+        h = HashingUtils.mix64(h ^ reserveBidPrice);
+        h = HashingUtils.mix64(h ^ timestamp);
+        return h + filled * FILLED_HASH_FACTOR;
+    }
+
+    static long orderHash(final Order order) {
+        return orderHash(order.orderId, order.uid, order.action, order.price, order.size, order.filled, order.reserveBidPrice, order.timestamp);
+    }
+
+    static long ordersHash(final Stream<Order> orders) {
+        return orders.mapToLong(IOrderBook::orderHash).sum();
+    }
+
+    static int stateHash(final long ordersHash, final StopOrdersIndex stopOrders, final CallAuction callAuction,
+                         final QuotesIndex quotes, final CoreSymbolSpecification symbolSpec) {
+        return Objects.hash(Long.hashCode(ordersHash), stopOrders.stateHash(), callAuction.stateHash(), quotes.stateHash(), symbolSpec.stateHash());
+    }
+
+    /**
+     * Validates incrementally maintained orders hash
+     */
+    static void validateOrdersHash(final IOrderBook orderBook, final long ordersHash) {
+        final long expected = ordersHash(Stream.concat(orderBook.askOrdersStream(false), orderBook.bidOrdersStream(false)));
+        if (expected != ordersHash) {
+            throw new IllegalStateException("incremental orders hash " + ordersHash + " differs from calculated " + expected);
+        }
     }
 
     static int hash(final IOrdersBucket[] askBuckets, final IOrdersBucket[] bidBuckets, final CoreSymbolSpecification symbolSpec) {
-        final int a = Arrays.hashCode(askBuckets);
-        final int b = Arrays.hashCode(bidBuckets);
-        return Objects.hash(a, b, symbolSpec.stateHash());
+        return hash(Arrays.hashCode(askBuckets), Arrays.hashCode(bidBuckets), symbolSpec);
+    }
+
+    /**
+     * @param askBucketsHash - same as Arrays.hashCode of ask buckets (best price first)
+     * @param bidBucketsHash - same as Arrays.hashCode of bid buckets (best price first)
+     * @param symbolSpec     - symbol specification
+     * @return order book hash
+     */
+    static int hash(final int askBucketsHash, final int bidBucketsHash, final CoreSymbolSpecification symbolSpec) {
+        return Objects.hash(askBucketsHash, bidBucketsHash, symbolSpec.stateHash());
     }
 
     static boolean equals(IOrderBook me, Object o) {
@@ -119,7 +243,10 @@ public interface IOrderBook extends WriteBytesMarshallable, StateHash {
         if (!(o instanceof IOrderBook)) return false;
         IOrderBook other = (IOrderBook) o;
         return checkStreamsEqual(me.askOrdersStream(true), other.askOrdersStream(true)) &&
-                checkStreamsEqual(me.bidOrdersStream(true), other.bidOrdersStream(true));
+                checkStreamsEqual(me.bidOrdersStream(true), other.bidOrdersStream(true)) &&
+                me.getStopOrders().equals(other.getStopOrders()) &&
+                me.getCallAuction().equals(other.getCallAuction()) &&
+                me.getQuotes().equals(other.getQuotes());
     }
 
     static boolean checkStreamsEqual(final Stream<?> s1, final Stream<?> s2) {
@@ -144,6 +271,18 @@ public interface IOrderBook extends WriteBytesMarshallable, StateHash {
      * @return L2 Market Data snapshot
      */
     default L2MarketData getL2MarketDataSnapshot(int size) {
+        final L2MarketData data = new L2MarketData(0, 0);
+        fillL2MarketData(size, data);
+        return data;
+    }
+
+    /**
+     * Fill existing L2 Market Data object, arrays are extended only if they are too short
+     *
+     * @param size max size for each part (ask, bid), if negative - all records filled
+     * @param data - reusable object
+     */
+    default void fillL2MarketData(int size, L2MarketData data) {
         int asksSize = getTotalAskBuckets();
         int bidsSize = getTotalBidBuckets();
         if (size >= 0) {
@@ -151,10 +290,9 @@ public interface IOrderBook extends WriteBytesMarshallable, StateHash {
             asksSize = Math.min(asksSize, size);
             bidsSize = Math.min(bidsSize, size);
         }
-        L2MarketData data = new L2MarketData(asksSize, bidsSize);
+        data.ensureCapacity(asksSize, bidsSize);
         fillAsks(asksSize, data);
         fillBids(bidsSize, data);
-        return data;
     }
 
     /**
@@ -163,9 +301,7 @@ public interface IOrderBook extends WriteBytesMarshallable, StateHash {
      * @param data - pre-allocated object from ring buffer
      */
     default void publishL2MarketDataSnapshot(L2MarketData data) {
-        int size = L2MarketData.L2_SIZE;
-        fillAsks(size, data);
-        fillBids(size, data);
+        fillL2MarketData(L2MarketData.L2_SIZE, data);
     }
 
     void fillAsks(final int size, L2MarketData data);
@@ -177,34 +313,503 @@ public interface IOrderBook extends WriteBytesMarshallable, StateHash {
     int getTotalBidBuckets();
 
 
+    /**
+     * Process matching command.
+     * New volumes of all changed price levels are recorded into cmd.marketDataDelta (in order of changes).
+     * Stop orders triggered by trades of the command are activated within the same command (see {@link #activateStopOrders}).
+     * While call auction is active, commands are processed by {@link #processAuctionCommand}.
+     *
+     * @param orderBook - order book
+     * @param cmd       - command
+     * @return command code (success, or rejection reason)
+     */
     static CommandResultCode processCommand(final IOrderBook orderBook, final OrderCommand cmd) {
 
+        final MatcherTradeEvent eventsBefore = cmd.matcherEvent;
+        final CommandResultCode result = processMatchingCommand(orderBook, cmd);
+        if (cmd.command != OrderCommandType.QUOTE) {
+            // quote command updates quotes index itself
+            forgetCompletedQuoteOrders(orderBook.getQuotes(), cmd, eventsBefore);
+        }
+        return result;
+    }
+
+    static CommandResultCode processMatchingCommand(final IOrderBook orderBook, final OrderCommand cmd) {
+
+        final OrderCommandType commandType = cmd.command;
+
+        if (commandType == OrderCommandType.ORDER_BOOK_REQUEST) {
+
+            final L2MarketData marketData = cmd.getMarketDataBuffer();
+            orderBook.fillL2MarketData((int) cmd.size, marketData);
+            cmd.marketData = marketData;
+            return CommandResultCode.SUCCESS;
+
+        } else if (orderBook.getCallAuction().isActive()) {
+
+            return processAuctionCommand(orderBook, cmd);
+
+        } else if (commandType == OrderCommandType.MOVE_ORDER) {
+
+            final MatcherTradeEvent eventsBefore = cmd.matcherEvent;
+            final CommandResultCode result = orderBook.moveOrder(cmd);
+            activateStopOrders(orderBook, cmd, eventsBefore);
+            return result;
+
+        } else if (commandType == OrderCommandType.CANCEL_ORDER) {
+
+            boolean isCancelled = orderBook.cancelOrder(cmd) || orderBook.getStopOrders().cancel(cmd.orderId, cmd.uid, cmd);
+            return isCancelled ? CommandResultCode.SUCCESS : CommandResultCode.MATCHING_UNKNOWN_ORDER_ID;
+
+        } else if (commandType == OrderCommandType.MASS_CANCEL) {
+
+            orderBook.massCancel(cmd);
+            orderBook.getStopOrders().cancelUserOrders(cmd.uid, cmd);
+            return CommandResultCode.SUCCESS;
+
+        } else if (commandType == OrderCommandType.QUOTE) {
+
+            if (cmd.resultCode != CommandResultCode.VALID_FOR_MATCHING_ENGINE) {
+                return cmd.resultCode; // no change
+            }
+            final MatcherTradeEvent eventsBefore = cmd.matcherEvent;
+            final CommandResultCode result = orderBook.quote(cmd);
+            final MatcherTradeEvent eventsAfterQuote = cmd.matcherEvent;
+            activateStopOrders(orderBook, cmd, eventsBefore);
+            forgetCompletedQuoteOrders(orderBook.getQuotes(), cmd, eventsAfterQuote);
+            return result;
+
+        } else if (commandType == OrderCommandType.PLACE_ORDER) {
+
+            if (cmd.resultCode != CommandResultCode.VALID_FOR_MATCHING_ENGINE) {
+                return cmd.resultCode; // no change
+            }
+            final MatcherTradeEvent eventsBefore = cmd.matcherEvent;
+            final CommandResultCode result = StopOrdersIndex.isStopOrderType(cmd.orderType)
+                    ? placeStopOrder(orderBook, cmd)
+                    : orderBook.newOrder(cmd);
+            activateStopOrders(orderBook, cmd, eventsBefore);
+            return result;
+
+        } else if (commandType == OrderCommandType.START_AUCTION) {
+
+            startAuction(orderBook, cmd);
+            return CommandResultCode.SUCCESS;
+
+        } else {
+            return CommandResultCode.MATCHING_UNSUPPORTED_COMMAND;
+        }
+
+    }
+
+    /**
+     * Process matching command while call auction is active - orders are collected without matching.
+     * Market orders (IOC, FOK, IOC_BUDGET) are rejected completely, because there is no liquidity until uncross.
+     * Stop orders are not activated until uncross.
+     */
+    static CommandResultCode processAuctionCommand(final IOrderBook orderBook, final OrderCommand cmd) {
+
         final OrderCommandType commandType = cmd.command;
+        final CallAuction auction = orderBook.getCallAuction();
 
         if (commandType == OrderCommandType.MOVE_ORDER) {
 
-            return orderBook.moveOrder(cmd);
+            return auction.move(cmd.orderId, cmd.uid, cmd.price, orderBook.getSymbolSpec().type == SymbolType.CURRENCY_EXCHANGE_PAIR);
 
         } else if (commandType == OrderCommandType.CANCEL_ORDER) {
 
-            boolean isCancelled = orderBook.cancelOrder(cmd);
+            boolean isCancelled = auction.cancel(cmd.orderId, cmd.uid, cmd) || orderBook.getStopOrders().cancel(cmd.orderId, cmd.uid, cmd);
             return isCancelled ? CommandResultCode.SUCCESS : CommandResultCode.MATCHING_UNKNOWN_ORDER_ID;
 
+        } else if (commandType == OrderCommandType.MASS_CANCEL) {
+
+            auction.cancelUserOrders(cmd.uid, cmd);
+            orderBook.getStopOrders().cancelUserOrders(cmd.uid, cmd);
+            return CommandResultCode.SUCCESS;
+
+        } else if (commandType == OrderCommandType.QUOTE) {
+
+            if (cmd.resultCode != CommandResultCode.VALID_FOR_MATCHING_ENGINE) {
+                return cmd.resultCode; // no change
+            }
+            return quoteIntoAuction(orderBook, cmd);
+
         } else if (commandType == OrderCommandType.PLACE_ORDER) {
 
-            return (cmd.resultCode == CommandResultCode.VALID_FOR_MATCHING_ENGINE)
-                    ? orderBook.newOrder(cmd)
-                    : cmd.resultCode; // no change
+            if (cmd.resultCode != CommandResultCode.VALID_FOR_MATCHING_ENGINE) {
+                return cmd.resultCode; // no change
+            }
+            return placeIntoAuction(orderBook, cmd);
 
-        } else if (commandType == OrderCommandType.ORDER_BOOK_REQUEST) {
+        } else if (commandType == OrderCommandType.UNCROSS) {
 
-            cmd.marketData = orderBook.getL2MarketDataSnapshot((int) cmd.size);
+            uncross(orderBook, cmd);
             return CommandResultCode.SUCCESS;
 
         } else {
             return CommandResultCode.MATCHING_UNSUPPORTED_COMMAND;
         }
+    }
+
+    /**
+     * Start call auction phase: all resting orders are moved from the order book into the auction (in price-time priority).
+     * CANCEL events of moved orders are dropped, so risk holds are not released.
+     * Removed price levels are recorded into cmd.marketDataDelta.
+     */
+    static void startAuction(final IOrderBook orderBook, final OrderCommand cmd) {
+
+        final CallAuction auction = orderBook.getCallAuction();
+        final LongArrayList orderIds = new LongArrayList();
+        final LongArrayList uids = new LongArrayList();
+        final Consumer<Order> collector = order -> {
+            auction.add(order.orderId, order.uid, order.action, order.price, order.size - order.filled, order.reserveBidPrice, order.timestamp);
+            orderIds.add(order.orderId);
+            uids.add(order.uid);
+        };
+        orderBook.forEachOrder(OrderAction.BID, true, collector);
+        orderBook.forEachOrder(OrderAction.ASK, true, collector);
+        auction.start();
+
+        final long orderId = cmd.orderId;
+        final long uid = cmd.uid;
+        final MatcherTradeEvent eventsBefore = cmd.matcherEvent;
+        for (int i = 0; i < orderIds.size(); i++) {
+            cmd.orderId = orderIds.get(i);
+            cmd.uid = uids.get(i);
+            orderBook.cancelOrder(cmd);
+        }
+        cmd.matcherEvent = eventsBefore;
+        cmd.orderId = orderId;
+        cmd.uid = uid;
+    }
+
+    /**
+     * Finish call auction phase: crossing orders are executed at equilibrium price (see {@link CallAuction#uncross}),
+     * remaining orders are placed back into the order book as GTC orders (in price-time priority),
+     * then triggered stop orders are activated.
+     * <p>
+     * Command fields are temporarily switched to the placed orders and restored afterwards.
+     */
+    static void uncross(final IOrderBook orderBook, final OrderCommand cmd) {
+
+        final CallAuction auction = orderBook.getCallAuction();
+        final MatcherTradeEvent eventsBefore = cmd.matcherEvent;
+        auction.uncross(cmd, orderBook.getStopOrders().getLastTradePrice());
+
+        final long orderId = cmd.orderId;
+        final long uid = cmd.uid;
+        final OrderAction action = cmd.action;
+        final OrderType orderType = cmd.orderType;
+        final long price = cmd.price;
+        final long size = cmd.size;
+        final long reserveBidPrice = cmd.reserveBidPrice;
+        final long timestamp = cmd.timestamp;
+
+        while (auction.pollRemaining(cmd)) {
+            orderBook.newOrder(cmd);
+        }
+
+        cmd.orderId = orderId;
+        cmd.uid = uid;
+        cmd.action = action;
+        cmd.orderType = orderType;
+        cmd.price = price;
+        cmd.size = size;
+        cmd.reserveBidPrice = reserveBidPrice;
+        cmd.timestamp = timestamp;
+
+        activateStopOrders(orderBook, cmd, eventsBefore);
+    }
+
+    static CommandResultCode placeIntoAuction(final IOrderBook orderBook, final OrderCommand cmd) {
+
+        final OrderType orderType = cmd.orderType;
+        if (orderType != OrderType.GTC && orderType != OrderType.GTD && !StopOrdersIndex.isStopOrderType(orderType)) {
+            OrderBookEventsHelper.attachRejectEvent(cmd, cmd.size);
+            return CommandResultCode.SUCCESS;
+        }
+
+        if (containsOrder(orderBook, cmd.orderId)) {
+            OrderBookEventsHelper.attachRejectEvent(cmd, cmd.size);
+            return CommandResultCode.MATCHING_DUPLICATE_ORDER_ID;
+        }
+
+        if (StopOrdersIndex.isStopOrderType(orderType)) {
+            orderBook.getStopOrders().add(cmd);
+        } else {
+            orderBook.getCallAuction().add(cmd);
+        }
+        return CommandResultCode.SUCCESS;
+    }
+
+    /**
+     * Same as {@link IOrderBook#quote}, but both sides are collected into call auction
+     */
+    static CommandResultCode quoteIntoAuction(final IOrderBook orderBook, final OrderCommand cmd) {
+        return replaceQuote(orderBook, cmd, true);
+    }
+
+    /**
+     * Command fields are temporarily switched to the ask side and restored afterwards.
+     *
+     * @param orderBook - order book
+     * @param cmd       - quote command
+     * @param auction   - if true, orders are cancelled from and placed into call auction
+     * @return command code (success, or rejection reason)
+     */
+    static CommandResultCode replaceQuote(final IOrderBook orderBook, final OrderCommand cmd, final boolean auction) {
+
+        final QuotesIndex quotes = orderBook.getQuotes();
+        final long uid = cmd.uid;
+        final long prevBidOrderId = quotes.getBidOrderId(uid);
+        final long prevAskOrderId = quotes.getAskOrderId(uid);
+
+        final long bidOrderId = cmd.orderId;
+        final long bidPrice = cmd.price;
+        final long bidSize = cmd.size;
+        final long askSize = cmd.askSize;
+
+        cmd.orderType = OrderType.GTC;
+
+        final CommandResultCode validationResult = validateQuote(orderBook, cmd, prevBidOrderId, prevAskOrderId, auction);
+        if (validationResult != CommandResultCode.SUCCESS) {
+            if (bidSize > 0) {
+                OrderBookEventsHelper.attachRejectEvent(cmd, bidSize);
+            }
+            if (askSize > 0) {
+                switchToQuoteAskSide(cmd);
+                OrderBookEventsHelper.attachRejectEvent(cmd, askSize);
+                switchToQuoteBidSide(cmd, bidOrderId, bidPrice, bidSize);
+            }
+            return validationResult;
+        }
+
+        // cancel previous quote
+        cancelQuoteOrder(orderBook, cmd, prevBidOrderId, auction);
+        cancelQuoteOrder(orderBook, cmd, prevAskOrderId, auction);
+
+        // new orders are tracked from now, cancel events of previous orders (can have the same ids) are not applied
+        quotes.set(uid, (bidSize > 0) ? bidOrderId : 0, (askSize > 0) ? cmd.askOrderId : 0);
+        final MatcherTradeEvent eventsBefore = cmd.matcherEvent;
+
+        // place ask side
+        if (askSize > 0) {
+            switchToQuoteAskSide(cmd);
+            placeQuoteOrder(orderBook, cmd, auction);
+        }
+
+        // restore bid side and place it
+        switchToQuoteBidSide(cmd, bidOrderId, bidPrice, bidSize);
+        if (bidSize > 0) {
+            placeQuoteOrder(orderBook, cmd, auction);
+        }
+
+        // quote orders completed instantly are not resting
+        forgetCompletedQuoteOrders(quotes, cmd, eventsBefore);
+        return CommandResultCode.SUCCESS;
+    }
+
+    /**
+     * Checks if both sides of the quote can be placed after previous quote is cancelled
+     */
+    static CommandResultCode validateQuote(final IOrderBook orderBook,
+                                           final OrderCommand cmd,
+                                           final long prevBidOrderId,
+                                           final long prevAskOrderId,
+                                           final boolean auction) {
+
+        final long bidSize = cmd.size;
+        final long askSize = cmd.askSize;
+
+        if (bidSize < 0 || askSize < 0) {
+            return CommandResultCode.MATCHING_INVALID_ORDER_SIZE;
+        }
+
+        if (bidSize > 0 && askSize > 0 && cmd.orderId == cmd.askOrderId) {
+            return CommandResultCode.MATCHING_DUPLICATE_ORDER_ID;
+        }
+
+        if ((bidSize > 0 && !isQuoteOrderIdAvailable(orderBook, cmd.orderId, cmd.uid, prevBidOrderId, prevAskOrderId, auction))
+                || (askSize > 0 && !isQuoteOrderIdAvailable(orderBook, cmd.askOrderId, cmd.uid, prevBidOrderId, prevAskOrderId, auction))) {
+            return CommandResultCode.MATCHING_DUPLICATE_ORDER_ID;
+        }
+
+        return CommandResultCode.SUCCESS;
+    }
+
+    /**
+     * @return true if order id is not used, or used by the previous quote order of the same user (going to be cancelled)
+     */
+    static boolean isQuoteOrderIdAvailable(final IOrderBook orderBook,
+                                           final long orderId,
+                                           final long uid,
+                                           final long prevBidOrderId,
+                                           final long prevAskOrderId,
+                                           final boolean auction) {
+
+        if (!containsOrder(orderBook, orderId)) {
+            return true;
+        }
+        if (orderId != prevBidOrderId && orderId != prevAskOrderId) {
+            return false;
+        }
+        if (auction) {
+            return orderBook.getCallAuction().contains(orderId, uid);
+        }
+        final Order order = orderBook.getOrderById(orderId);
+        return order != null && order.uid == uid;
+    }
+
+    static void cancelQuoteOrder(final IOrderBook orderBook, final OrderCommand cmd, final long orderId, final boolean auction) {
+        if (orderId == 0) {
+            return;
+        }
+        if (auction) {
+            orderBook.getCallAuction().cancel(orderId, cmd.uid, cmd);
+        } else {
+            cmd.orderId = orderId;
+            orderBook.cancelOrder(cmd);
+        }
+    }
+
+    static void placeQuoteOrder(final IOrderBook orderBook, final OrderCommand cmd, final boolean auction) {
+        if (auction) {
+            orderBook.getCallAuction().add(cmd);
+        } else {
+            orderBook.newOrder(cmd);
+        }
+    }
+
+    static void switchToQuoteAskSide(final OrderCommand cmd) {
+        cmd.orderId = cmd.askOrderId;
+        cmd.price = cmd.askPrice;
+        cmd.size = cmd.askSize;
+        cmd.action = OrderAction.ASK;
+    }
+
+    static void switchToQuoteBidSide(final OrderCommand cmd, final long bidOrderId, final long bidPrice, final long bidSize) {
+        cmd.orderId = bidOrderId;
+        cmd.price = bidPrice;
+        cmd.size = bidSize;
+        cmd.action = OrderAction.BID;
+    }
+
+    /**
+     * @return true if order with specified id is resting in the order book, collected by call auction, or pending as stop order
+     */
+    static boolean containsOrder(final IOrderBook orderBook, final long orderId) {
+        return orderBook.getCallAuction().contains(orderId)
+                || orderBook.getStopOrders().contains(orderId)
+                || orderBook.getOrderById(orderId) != null;
+    }
+
+    /**
+     * Place STOP or STOP_LIMIT order into stop orders index.
+     * If stop price is already reached by the last trade, order is activated immediately.
+     */
+    static CommandResultCode placeStopOrder(final IOrderBook orderBook, final OrderCommand cmd) {
+
+        final StopOrdersIndex stopOrders = orderBook.getStopOrders();
+        final OrderType orderType = cmd.orderType;
+
+        if (stopOrders.isTriggered(cmd.action, cmd.stopPrice)) {
+            cmd.orderType = StopOrdersIndex.activatedOrderType(orderType);
+            final CommandResultCode result = orderBook.newOrder(cmd);
+            cmd.orderType = orderType;
+            return result;
+        }
+
+        if (containsOrder(orderBook, cmd.orderId)) {
+            OrderBookEventsHelper.attachRejectEvent(cmd, cmd.size);
+            return CommandResultCode.MATCHING_DUPLICATE_ORDER_ID;
+        }
+
+        stopOrders.add(cmd);
+        return CommandResultCode.SUCCESS;
+    }
+
+    /**
+     * Update last trade price from the events attached by the command,
+     * then activate triggered stop orders one by one (each activated order can trigger more stop orders).
+     * Every iteration removes one stop order from the index, so cascading is bounded by number of pending stop orders.
+     * <p>
+     * Command fields are temporarily switched to the activated order and restored afterwards,
+     * so all events are attached to the same command (activated orders are identified by activeOrderId/activeOrderUid).
+     *
+     * @param orderBook    - order book
+     * @param cmd          - command that was just processed
+     * @param eventsBefore - head of events chain before the command was processed
+     */
+    static void activateStopOrders(final IOrderBook orderBook, final OrderCommand cmd, final MatcherTradeEvent eventsBefore) {
+
+        final StopOrdersIndex stopOrders = orderBook.getStopOrders();
+        MatcherTradeEvent seen = updateLastTradePrice(stopOrders, cmd, eventsBefore);
+
+        if (stopOrders.isEmpty()) {
+            return;
+        }
+
+        final long orderId = cmd.orderId;
+        final long uid = cmd.uid;
+        final OrderAction action = cmd.action;
+        final OrderType orderType = cmd.orderType;
+        final long price = cmd.price;
+        final long size = cmd.size;
+        final long reserveBidPrice = cmd.reserveBidPrice;
+
+        boolean activated = false;
+        while (stopOrders.pollTriggered(cmd)) {
+            activated = true;
+            orderBook.newOrder(cmd);
+            seen = updateLastTradePrice(stopOrders, cmd, seen);
+        }
+
+        if (activated) {
+            cmd.orderId = orderId;
+            cmd.uid = uid;
+            cmd.action = action;
+            cmd.orderType = orderType;
+            cmd.price = price;
+            cmd.size = size;
+            cmd.reserveBidPrice = reserveBidPrice;
+        }
+    }
+
+    /**
+     * Events are prepended, so the latest trade is the first TRADE event found before reaching already seen events.
+     *
+     * @return new head of events chain
+     */
+    /**
+     * Remove quote orders completed by trades or cancelled (events attached after {@code seen}) from the quotes index.
+     * Cancel events dropped by the command (e.g. when orders are moved into call auction) are not visible here.
+     */
+    static void forgetCompletedQuoteOrders(final QuotesIndex quotes, final OrderCommand cmd, final MatcherTradeEvent seen) {
+        if (quotes.isEmpty()) {
+            return;
+        }
+        for (MatcherTradeEvent ev = cmd.matcherEvent; ev != seen && ev != null; ev = ev.nextEvent) {
+            if (ev.eventType == MatcherEventType.TRADE) {
+                if (ev.activeOrderCompleted) {
+                    quotes.remove(ev.activeOrderUid, ev.activeOrderId);
+                }
+                if (ev.matchedOrderCompleted) {
+                    quotes.remove(ev.matchedOrderUid, ev.matchedOrderId);
+                }
+            } else if (ev.eventType == MatcherEventType.CANCEL) {
+                quotes.remove(ev.activeOrderUid, ev.activeOrderId);
+            }
+        }
+    }
 
+    static MatcherTradeEvent updateLastTradePrice(final StopOrdersIndex stopOrders, final OrderCommand cmd, final MatcherTradeEvent seen) {
+        for (MatcherTradeEvent ev = cmd.matcherEvent; ev != seen && ev != null; ev = ev.nextEvent) {
+            if (ev.eventType == MatcherEventType.TRADE) {
+                stopOrders.updateLastTradePrice(ev.price);
+                break;
+            }
+        }
+        return cmd.matcherEvent;
     }
 
     static IOrderBook create(BytesIn bytes) {
@@ -213,6 +818,8 @@ public interface IOrderBook extends WriteBytesMarshallable, StateHash {
                 return new OrderBookNaiveImpl(bytes);
             case FAST:
                 return new OrderBookFastImpl(bytes);
+            case DIRECT:
+                return new OrderBookDirectImpl(bytes);
             default:
                 throw new IllegalArgumentException();
         }
@@ -221,7 +828,8 @@ public interface IOrderBook extends WriteBytesMarshallable, StateHash {
     @Getter
     enum OrderBookImplType {
         NAIVE(0),
-        FAST(1);
+        FAST(1),
+        DIRECT(2);
 
         private byte code;
 
@@ -235,6 +843,8 @@ public interface IOrderBook extends WriteBytesMarshallable, StateHash {
                     return NAIVE;
                 case 1:
                     return FAST;
+                case 2:
+                    return DIRECT;
                 default:
                     throw new IllegalArgumentException("unknown OrderBookImplType:" + code);
             }
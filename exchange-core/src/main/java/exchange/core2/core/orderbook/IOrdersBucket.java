@@ -111,12 +111,47 @@ public interface IOrdersBucket extends Comparable<IOrdersBucket>, WriteBytesMars
      */
     OrderBucketImplType getImplementationType();
 
+    /**
+     * Number of empty queue slots (left by removed orders) between head and tail, matching has to skip them.
+     *
+     * @return number of holes
+     */
+    default int getHolesNum() {
+        return 0;
+    }
+
+    /**
+     * @return allocated queue capacity (number of slots)
+     */
+    default int getQueueCapacity() {
+        return getNumOrders();
+    }
+
+    /**
+     * @return number of times queue was re-packed because of too many holes
+     */
+    default int getCompactionsNum() {
+        return 0;
+    }
+
+    /**
+     * Called for empty bucket when it is returned into pool of reusable buckets,
+     * so oversized buffers left after a spike are not kept forever.
+     *
+     * @return true if buffers were shrunk
+     */
+    default boolean recycle() {
+        return false;
+    }
+
     static IOrdersBucket create(OrderBucketImplType type) {
         switch (type) {
             case NAIVE:
                 return new OrdersBucketNaiveImpl();
             case FAST:
                 return new OrdersBucketFastImpl();
+            case SOA:
+                return new OrdersBucketSoaImpl();
             default:
                 throw new IllegalArgumentException();
         }
@@ -128,6 +163,8 @@ public interface IOrdersBucket extends Comparable<IOrdersBucket>, WriteBytesMars
                 return new OrdersBucketNaiveImpl(bytes);
             case FAST:
                 return new OrdersBucketFastImpl(bytes);
+            case SOA:
+                return new OrdersBucketSoaImpl(bytes);
             default:
                 throw new IllegalArgumentException();
         }
@@ -136,7 +173,8 @@ public interface IOrdersBucket extends Comparable<IOrdersBucket>, WriteBytesMars
     @Getter
     enum OrderBucketImplType {
         NAIVE(0),
-        FAST(1);
+        FAST(1),
+        SOA(2);
 
         private byte code;
 
@@ -150,6 +188,8 @@ public interface IOrdersBucket extends Comparable<IOrdersBucket>, WriteBytesMars
                     return NAIVE;
                 case 1:
                     return FAST;
+                case 2:
+                    return SOA;
                 default:
                     throw new IllegalArgumentException("unknown OrderBucketImplType:" + code);
             }
@@ -0,0 +1,887 @@
+/*
+ * Copyright 2019 Maksim Zheravin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package exchange.core2.core.orderbook;
+
+import exchange.core2.core.common.*;
+import exchange.core2.core.common.cmd.CommandResultCode;
+import exchange.core2.core.common.cmd.OrderCommand;
+import exchange.core2.core.utils.CoreArithmeticUtils;
+import lombok.extern.slf4j.Slf4j;
+import net.openhft.chronicle.bytes.BytesIn;
+import net.openhft.chronicle.bytes.BytesOut;
+import org.eclipse.collections.impl.map.mutable.primitive.LongIntHashMap;
+
+import java.util.*;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Order book keeping orders and price levels in off-heap records (see {@link DirectSlab}).
+ * <p>
+ * Orders of the same price level are linked into FIFO queue, orders of the same user - into separate list.
+ * Indexes (orderId->order, uid->orders, price->level) are primitive, so the number of heap objects
+ * does not depend on the number of resting orders and GC does not have to mark them.
+ * <p>
+ * Order objects are created only for reporting (findUserOrders, getOrderById, streams) - produce garbage.
+ */
+@Slf4j
+public final class OrderBookDirectImpl implements IOrderBook {
+
+    public static final int DEFAULT_ORDERS_CAPACITY = 1024;
+
+    private static final int NIL = DirectSlab.NIL;
+
+    // order record
+    private static final int ORDER_ID = 0;
+    private static final int ORDER_PRICE = 8;
+    private static final int ORDER_SIZE = 16;
+    private static final int ORDER_FILLED = 24;
+    private static final int ORDER_RESERVE_BID_PRICE = 32;
+    private static final int ORDER_UID = 40;
+    private static final int ORDER_TIMESTAMP = 48;
+    private static final int ORDER_PREV = 56; // price level queue
+    private static final int ORDER_NEXT = 60;
+    private static final int ORDER_USER_PREV = 64; // user orders list
+    private static final int ORDER_USER_NEXT = 68;
+    private static final int ORDER_LEVEL = 72;
+    private static final int ORDER_ACTION = 76;
+    private static final int ORDER_RECORD_SIZE = 80;
+
+    // price level record
+    private static final int LEVEL_PRICE = 0;
+    private static final int LEVEL_VOLUME = 8;
+    private static final int LEVEL_NUM_ORDERS = 16;
+    private static final int LEVEL_HEAD = 20;
+    private static final int LEVEL_TAIL = 24;
+    private static final int LEVEL_RECORD_SIZE = 32;
+
+    private final CoreSymbolSpecification symbolSpec;
+
+    private final DirectSlab orders;
+    private final DirectSlab levels;
+
+    private final PriceLevelsIndex askLevels;
+    private final PriceLevelsIndex bidLevels;
+
+    // orderId -> order record
+    private final LongIntHashMap orderIdIndex;
+
+    // uid -> most recently added order record
+    private final LongIntHashMap userHeads = new LongIntHashMap();
+
+    // incrementally maintained sum of resting orders hashes (see IOrderBook.orderHash)
+    private long ordersHash = 0;
+
+    // pending stop orders
+    private StopOrdersIndex stopOrders = new StopOrdersIndex();
+    private CallAuction callAuction = new CallAuction();
+    private QuotesIndex quotes = new QuotesIndex();
+
+    // reusable objects for passing resting orders into events helper
+    private final Order matchingOrder = new Order();
+    private final Order movingOrder = new Order();
+
+    // reusable object for visiting resting orders (see forEachOrder)
+    private final Order visitedOrder = new Order();
+
+    public OrderBookDirectImpl(final CoreSymbolSpecification symbolSpec) {
+        this(symbolSpec, DEFAULT_ORDERS_CAPACITY);
+    }
+
+    public OrderBookDirectImpl(final CoreSymbolSpecification symbolSpec, final int ordersCapacity) {
+        this.symbolSpec = symbolSpec;
+        this.orders = new DirectSlab(ORDER_RECORD_SIZE, ordersCapacity);
+        this.levels = new DirectSlab(LEVEL_RECORD_SIZE, Math.max(ordersCapacity / 8, 16));
+        this.askLevels = new PriceLevelsIndex(true, 256);
+        this.bidLevels = new PriceLevelsIndex(false, 256);
+        this.orderIdIndex = new LongIntHashMap(ordersCapacity);
+    }
+
+    public OrderBookDirectImpl(final BytesIn bytes) {
+        this(new CoreSymbolSpecification(bytes), Math.max(bytes.readInt(), DEFAULT_ORDERS_CAPACITY));
+        readLevels(bytes, askLevels);
+        readLevels(bytes, bidLevels);
+        this.stopOrders = new StopOrdersIndex(bytes);
+        this.callAuction = new CallAuction(bytes);
+        this.quotes = new QuotesIndex(bytes);
+    }
+
+    @Override
+    public CommandResultCode newOrder(OrderCommand cmd) {
+
+        final long size = cmd.size;
+
+        if (cmd.orderType == OrderType.IOC_BUDGET) {
+            matchBudgetOrder(cmd);
+            return CommandResultCode.SUCCESS;
+        }
+
+        // FOK order is rejected without matching if there is not enough liquidity within its limit price
+        if (cmd.orderType == OrderType.FOK && availableVolume(cmd, size) < size) {
+            OrderBookEventsHelper.attachRejectEvent(cmd, size);
+            return CommandResultCode.SUCCESS;
+        }
+
+        // check if order is marketable there are matching orders
+        final long filledSize = tryMatchInstantly(cmd, 0, cmd);
+        if (filledSize == size) {
+            // fully matched as marketable before actually place - can just return
+            return CommandResultCode.SUCCESS;
+        }
+
+        if (cmd.orderType != OrderType.GTC && cmd.orderType != OrderType.GTD) {
+            OrderBookEventsHelper.attachRejectEvent(cmd, size - filledSize);
+            return CommandResultCode.SUCCESS;
+        }
+
+        final long orderId = cmd.orderId;
+        if (orderIdIndex.containsKey(orderId)) {
+            // duplicate order id - can match, but can not place
+            OrderBookEventsHelper.attachRejectEvent(cmd, size - filledSize);
+            return CommandResultCode.MATCHING_DUPLICATE_ORDER_ID;
+        }
+
+        final int order = orders.allocate();
+        orders.setLong(order, ORDER_ID, orderId);
+        orders.setLong(order, ORDER_PRICE, cmd.price);
+        orders.setLong(order, ORDER_SIZE, size);
+        orders.setLong(order, ORDER_FILLED, filledSize);
+        orders.setLong(order, ORDER_RESERVE_BID_PRICE, cmd.reserveBidPrice);
+        orders.setLong(order, ORDER_UID, cmd.uid);
+        orders.setLong(order, ORDER_TIMESTAMP, cmd.timestamp);
+        orders.setInt(order, ORDER_ACTION, cmd.action.getCode());
+
+        addToLevel(cmd, order, cmd.action, cmd.price);
+        orderIdIndex.put(orderId, order);
+        addToUserList(order, cmd.uid);
+
+        return CommandResultCode.SUCCESS;
+    }
+
+    /**
+     * Match budget order (BID only): each price level is matched up to the volume affordable for the remaining budget.
+     * Unmatched size is rejected only if liquidity within limit price is exhausted before the budget.
+     */
+    private void matchBudgetOrder(final OrderCommand cmd) {
+
+        final long size = cmd.size;
+        if (cmd.action != OrderAction.BID) {
+            OrderBookEventsHelper.attachRejectEvent(cmd, size);
+            return;
+        }
+
+        long budget = cmd.budget;
+        long filled = 0;
+        boolean budgetSpent = false;
+
+        int pos = 0;
+        while (filled < size && pos < askLevels.size()) {
+
+            final long price = askLevels.priceAt(pos);
+            if (price > cmd.price) {
+                break;
+            }
+
+            final long affordable = CoreArithmeticUtils.calculateBudgetSize(budget, price, symbolSpec);
+            if (affordable == 0) {
+                budgetSpent = true;
+                break;
+            }
+
+            final int level = askLevels.levelAt(pos);
+            final long matched = matchLevel(level, price, Math.min(size - filled, affordable), cmd, cmd);
+            filled += matched;
+            budget -= CoreArithmeticUtils.calculateAmountBidTakerFee(matched, price, symbolSpec);
+
+            OrderBookEventsHelper.attachL2Delta(cmd, OrderAction.ASK, price, levels.getLong(level, LEVEL_VOLUME));
+
+            if (levels.getInt(level, LEVEL_NUM_ORDERS) == 0) {
+                askLevels.remove(price);
+                levels.free(level);
+            } else {
+                pos++;
+            }
+            if (matched == affordable) {
+                // remaining budget is not enough for one more lot even at this price
+                budgetSpent = true;
+                break;
+            }
+        }
+
+        final boolean completed = budgetSpent || filled == size;
+        OrderBookEventsHelper.completeBudgetOrderEvents(cmd, completed);
+        if (!completed) {
+            OrderBookEventsHelper.attachRejectEvent(cmd, size - filled);
+        }
+    }
+
+    /**
+     * Scans opposite price levels within limit price, own orders of the user are excluded
+     *
+     * @return volume that can be matched, scanning stops when requiredSize is reached
+     */
+    private long availableVolume(final OrderCommand cmd, final long requiredSize) {
+        final OrderAction levelsAction = cmd.action.opposite();
+        final boolean bid = cmd.action == OrderAction.BID;
+        final long limitPrice = cmd.price;
+
+        long ownVolume = 0;
+        for (int order = userHeads.getIfAbsent(cmd.uid, NIL); order != NIL; order = orders.getInt(order, ORDER_USER_NEXT)) {
+            final long price = orders.getLong(order, ORDER_PRICE);
+            if (getAction(order) == levelsAction && (bid ? price <= limitPrice : price >= limitPrice)) {
+                ownVolume += remainingSize(order);
+            }
+        }
+
+        final PriceLevelsIndex side = getLevelsByAction(levelsAction);
+        long volume = 0;
+        for (int pos = 0; pos < side.size() && volume - ownVolume < requiredSize; pos++) {
+            final long price = side.priceAt(pos);
+            if (bid ? price > limitPrice : price < limitPrice) {
+                break;
+            }
+            volume += levels.getLong(side.levelAt(pos), LEVEL_VOLUME);
+        }
+        return volume - ownVolume;
+    }
+
+    /**
+     * Match the active order instantly to opposite price levels.
+     * Fully matched resting orders are removed, empty levels are removed.
+     *
+     * @param activeOrder - GTC or IOC order to match
+     * @param filled      - current filled value of the activeOrder
+     * @param triggerCmd  - command to attach events to
+     * @return new filled size
+     */
+    private long tryMatchInstantly(final IOrder activeOrder, long filled, final OrderCommand triggerCmd) {
+
+        final OrderAction action = activeOrder.getAction();
+        final long limitPrice = activeOrder.getPrice();
+        final long size = activeOrder.getSize();
+
+        final OrderAction levelsAction = action.opposite();
+        final PriceLevelsIndex side = getLevelsByAction(levelsAction);
+
+        int pos = 0;
+        while (filled < size && pos < side.size()) {
+
+            final long price = side.priceAt(pos);
+            if (action == OrderAction.BID ? price > limitPrice : price < limitPrice) {
+                break;
+            }
+
+            final int level = side.levelAt(pos);
+            filled += matchLevel(level, price, size - filled, activeOrder, triggerCmd);
+
+            OrderBookEventsHelper.attachL2Delta(triggerCmd, levelsAction, price, levels.getLong(level, LEVEL_VOLUME));
+
+            if (levels.getInt(level, LEVEL_NUM_ORDERS) == 0) {
+                side.remove(price);
+                levels.free(level);
+            } else {
+                // only own orders left (or active order is filled)
+                pos++;
+            }
+        }
+        return filled;
+    }
+
+    /**
+     * Match orders of the level starting from eldest ones, ignoring orders of the same user.
+     * Completely matching orders are removed, partially matched order kept in the level.
+     *
+     * @return total matched volume
+     */
+    private long matchLevel(final int level, final long price, long volumeToCollect, final IOrder activeOrder, final OrderCommand triggerCmd) {
+
+        final long ignoreUid = activeOrder.getUid();
+        long totalMatchingVolume = 0;
+
+        int order = levels.getInt(level, LEVEL_HEAD);
+        while (order != NIL && volumeToCollect > 0) {
+            final int next = orders.getInt(order, ORDER_NEXT);
+
+            if (orders.getLong(order, ORDER_UID) == ignoreUid) {
+                order = next;
+                continue;
+            }
+
+            final long orderSize = orders.getLong(order, ORDER_SIZE);
+            final long orderFilled = orders.getLong(order, ORDER_FILLED);
+            final long v = Math.min(volumeToCollect, orderSize - orderFilled);
+            totalMatchingVolume += v;
+            volumeToCollect -= v;
+
+            orders.setLong(order, ORDER_FILLED, orderFilled + v);
+
+            final boolean fullMatch = orderSize == orderFilled + v;
+
+            OrderBookEventsHelper.sendTradeEvent(triggerCmd, activeOrder, readOrder(order, matchingOrder), fullMatch, volumeToCollect == 0, price, v);
+
+            if (fullMatch) {
+                unlinkFromLevel(level, order);
+                ordersHash -= orderHash(order);
+                removeOrder(order);
+            }
+
+            order = next;
+        }
+
+        levels.setLong(level, LEVEL_VOLUME, levels.getLong(level, LEVEL_VOLUME) - totalMatchingVolume);
+        ordersHash += totalMatchingVolume * FILLED_HASH_FACTOR;
+        return totalMatchingVolume;
+    }
+
+    @Override
+    public boolean cancelOrder(OrderCommand cmd) {
+
+        final int order = orderIdIndex.getIfAbsent(cmd.orderId, NIL);
+        if (order == NIL || orders.getLong(order, ORDER_UID) != cmd.uid) {
+            // order already matched and removed from order book previously, or uid is different
+            return false;
+        }
+
+        cancelRestingOrder(cmd, order);
+        return true;
+    }
+
+    @Override
+    public int massCancel(OrderCommand cmd) {
+        final int ordersBefore = orderIdIndex.size();
+        if (cmd.uid != 0) {
+            int order = userHeads.getIfAbsent(cmd.uid, NIL);
+            while (order != NIL) {
+                final int next = orders.getInt(order, ORDER_USER_NEXT);
+                cancelRestingOrder(cmd, order);
+                order = next;
+            }
+        } else {
+            cancelAllOrders(cmd, askLevels);
+            cancelAllOrders(cmd, bidLevels);
+        }
+        return ordersBefore - orderIdIndex.size();
+    }
+
+    private void cancelAllOrders(final OrderCommand cmd, final PriceLevelsIndex side) {
+        // empty best level is removed after cancelling its last order
+        while (side.size() != 0) {
+            cancelRestingOrder(cmd, levels.getInt(side.levelAt(0), LEVEL_HEAD));
+        }
+    }
+
+    private void cancelRestingOrder(final OrderCommand cmd, final int order) {
+        removeFromLevel(cmd, order, getAction(order));
+
+        // send cancel event
+        OrderBookEventsHelper.sendCancelEvent(cmd, readOrder(order, matchingOrder));
+
+        removeOrder(order);
+    }
+
+    @Override
+    public CommandResultCode moveOrder(OrderCommand cmd) {
+
+        final int order = orderIdIndex.getIfAbsent(cmd.orderId, NIL);
+        if (order == NIL || orders.getLong(order, ORDER_UID) != cmd.uid) {
+            return CommandResultCode.MATCHING_UNKNOWN_ORDER_ID;
+        }
+
+        final OrderAction action = getAction(order);
+
+        // optimistic risk check mode for exchange bids
+        if (symbolSpec.type == SymbolType.CURRENCY_EXCHANGE_PAIR && action == OrderAction.BID && cmd.price > orders.getLong(order, ORDER_RESERVE_BID_PRICE)) {
+            // order goes to the end of queue (same as other implementations)
+            final int level = orders.getInt(order, ORDER_LEVEL);
+            unlinkFromLevel(level, order);
+            linkToLevelTail(level, order);
+            return CommandResultCode.MATCHING_MOVE_FAILED_PRICE_OVER_RISK_LIMIT;
+        }
+
+        removeFromLevel(cmd, order, action);
+
+        final long newPrice = cmd.price;
+        orders.setLong(order, ORDER_PRICE, newPrice);
+
+        // try match with new price
+        final long filled = tryMatchInstantly(readOrder(order, movingOrder), orders.getLong(order, ORDER_FILLED), cmd);
+        if (filled == orders.getLong(order, ORDER_SIZE)) {
+            // order was fully matched (100% marketable) - removing from order book
+            removeOrder(order);
+        } else {
+            // if not filled completely - put it into corresponding level
+            orders.setLong(order, ORDER_FILLED, filled);
+            addToLevel(cmd, order, action, newPrice);
+        }
+        return CommandResultCode.SUCCESS;
+    }
+
+    /**
+     * Add order to the tail of the level queue (level is created if not exists)
+     */
+    private void addToLevel(final OrderCommand cmd, final int order, final OrderAction action, final long price) {
+        final PriceLevelsIndex side = getLevelsByAction(action);
+        int level = side.get(price);
+        if (level == NIL) {
+            level = levels.allocate();
+            levels.setLong(level, LEVEL_PRICE, price);
+            levels.setLong(level, LEVEL_VOLUME, 0);
+            levels.setInt(level, LEVEL_NUM_ORDERS, 0);
+            levels.setInt(level, LEVEL_HEAD, NIL);
+            levels.setInt(level, LEVEL_TAIL, NIL);
+            side.put(price, level);
+        }
+
+        linkToLevelTail(level, order);
+        ordersHash += orderHash(order);
+
+        final long volume = levels.getLong(level, LEVEL_VOLUME) + remainingSize(order);
+        levels.setLong(level, LEVEL_VOLUME, volume);
+        OrderBookEventsHelper.attachL2Delta(cmd, action, price, volume);
+    }
+
+    /**
+     * Remove order from its level queue (level is removed if empty)
+     */
+    private void removeFromLevel(final OrderCommand cmd, final int order, final OrderAction action) {
+        final int level = orders.getInt(order, ORDER_LEVEL);
+        final long price = levels.getLong(level, LEVEL_PRICE);
+
+        unlinkFromLevel(level, order);
+        ordersHash -= orderHash(order);
+
+        final long volume = levels.getLong(level, LEVEL_VOLUME) - remainingSize(order);
+        levels.setLong(level, LEVEL_VOLUME, volume);
+        OrderBookEventsHelper.attachL2Delta(cmd, action, price, volume);
+
+        if (levels.getInt(level, LEVEL_NUM_ORDERS) == 0) {
+            getLevelsByAction(action).remove(price);
+            levels.free(level);
+        }
+    }
+
+    private void linkToLevelTail(final int level, final int order) {
+        final int tail = levels.getInt(level, LEVEL_TAIL);
+        orders.setInt(order, ORDER_PREV, tail);
+        orders.setInt(order, ORDER_NEXT, NIL);
+        orders.setInt(order, ORDER_LEVEL, level);
+        if (tail == NIL) {
+            levels.setInt(level, LEVEL_HEAD, order);
+        } else {
+            orders.setInt(tail, ORDER_NEXT, order);
+        }
+        levels.setInt(level, LEVEL_TAIL, order);
+        levels.setInt(level, LEVEL_NUM_ORDERS, levels.getInt(level, LEVEL_NUM_ORDERS) + 1);
+    }
+
+    // volume is not changed
+    private void unlinkFromLevel(final int level, final int order) {
+        final int prev = orders.getInt(order, ORDER_PREV);
+        final int next = orders.getInt(order, ORDER_NEXT);
+        if (prev == NIL) {
+            levels.setInt(level, LEVEL_HEAD, next);
+        } else {
+            orders.setInt(prev, ORDER_NEXT, next);
+        }
+        if (next == NIL) {
+            levels.setInt(level, LEVEL_TAIL, prev);
+        } else {
+            orders.setInt(next, ORDER_PREV, prev);
+        }
+        levels.setInt(level, LEVEL_NUM_ORDERS, levels.getInt(level, LEVEL_NUM_ORDERS) - 1);
+    }
+
+    /**
+     * Remove order (already unlinked from level) from indexes and free the record
+     */
+    private void removeOrder(final int order) {
+        orderIdIndex.remove(orders.getLong(order, ORDER_ID));
+        removeFromUserList(order);
+        orders.free(order);
+    }
+
+    private void addToUserList(final int order, final long uid) {
+        final int head = userHeads.getIfAbsent(uid, NIL);
+        orders.setInt(order, ORDER_USER_PREV, NIL);
+        orders.setInt(order, ORDER_USER_NEXT, head);
+        if (head != NIL) {
+            orders.setInt(head, ORDER_USER_PREV, order);
+        }
+        userHeads.put(uid, order);
+    }
+
+    private void removeFromUserList(final int order) {
+        final int prev = orders.getInt(order, ORDER_USER_PREV);
+        final int next = orders.getInt(order, ORDER_USER_NEXT);
+        if (prev != NIL) {
+            orders.setInt(prev, ORDER_USER_NEXT, next);
+        } else if (next != NIL) {
+            userHeads.put(orders.getLong(order, ORDER_UID), next);
+        } else {
+            userHeads.remove(orders.getLong(order, ORDER_UID));
+        }
+        if (next != NIL) {
+            orders.setInt(next, ORDER_USER_PREV, prev);
+        }
+    }
+
+    private long orderHash(final int order) {
+        return IOrderBook.orderHash(
+                orders.getLong(order, ORDER_ID),
+                orders.getLong(order, ORDER_UID),
+                getAction(order),
+                orders.getLong(order, ORDER_PRICE),
+                orders.getLong(order, ORDER_SIZE),
+                orders.getLong(order, ORDER_FILLED),
+                orders.getLong(order, ORDER_RESERVE_BID_PRICE),
+                orders.getLong(order, ORDER_TIMESTAMP));
+    }
+
+    private long remainingSize(final int order) {
+        return orders.getLong(order, ORDER_SIZE) - orders.getLong(order, ORDER_FILLED);
+    }
+
+    private OrderAction getAction(final int order) {
+        return OrderAction.of((byte) orders.getInt(order, ORDER_ACTION));
+    }
+
+    private PriceLevelsIndex getLevelsByAction(final OrderAction action) {
+        return action == OrderAction.ASK ? askLevels : bidLevels;
+    }
+
+    private Order readOrder(final int order, final Order target) {
+        target.orderId = orders.getLong(order, ORDER_ID);
+        target.price = orders.getLong(order, ORDER_PRICE);
+        target.size = orders.getLong(order, ORDER_SIZE);
+        target.filled = orders.getLong(order, ORDER_FILLED);
+        target.reserveBidPrice = orders.getLong(order, ORDER_RESERVE_BID_PRICE);
+        target.action = getAction(order);
+        target.uid = orders.getLong(order, ORDER_UID);
+        target.timestamp = orders.getLong(order, ORDER_TIMESTAMP);
+        return target;
+    }
+
+    @Override
+    public Order getOrderById(long orderId) {
+        final int order = orderIdIndex.getIfAbsent(orderId, NIL);
+        return order == NIL ? null : readOrder(order, new Order());
+    }
+
+    @Override
+    public void fillAsks(final int size, L2MarketData data) {
+        data.askSize = fillLevels(askLevels, size, data.askPrices, data.askVolumes);
+    }
+
+    @Override
+    public void fillBids(final int size, L2MarketData data) {
+        data.bidSize = fillLevels(bidLevels, size, data.bidPrices, data.bidVolumes);
+    }
+
+    private int fillLevels(final PriceLevelsIndex side, final int size, final long[] prices, final long[] volumes) {
+        final int n = Math.min(size, side.size());
+        for (int i = 0; i < n; i++) {
+            prices[i] = side.priceAt(i);
+            volumes[i] = levels.getLong(side.levelAt(i), LEVEL_VOLUME);
+        }
+        return n;
+    }
+
+    @Override
+    public int getTotalAskBuckets() {
+        return askLevels.size();
+    }
+
+    @Override
+    public int getTotalBidBuckets() {
+        return bidLevels.size();
+    }
+
+    @Override
+    public int getOrdersNum() {
+        return orderIdIndex.size();
+    }
+
+    @Override
+    public void validateInternalState() {
+
+        final int ordersNum = validateLevels(askLevels, OrderAction.ASK) + validateLevels(bidLevels, OrderAction.BID);
+        if (ordersNum != orderIdIndex.size() || ordersNum != orders.size()) {
+            throw new IllegalStateException(String.format("orders in levels %d, index %d, records %d", ordersNum, orderIdIndex.size(), orders.size()));
+        }
+        if (levels.size() != askLevels.size() + bidLevels.size()) {
+            throw new IllegalStateException(String.format("level records %d != %d + %d", levels.size(), askLevels.size(), bidLevels.size()));
+        }
+
+        orderIdIndex.forEachKeyValue((orderId, order) -> {
+            if (orders.getLong(order, ORDER_ID) != orderId) {
+                throw new IllegalStateException("orderId index points to wrong record for order " + orderId);
+            }
+        });
+
+        final int[] counter = {0};
+        userHeads.forEachKeyValue((uid, head) -> {
+            int prev = NIL;
+            for (int order = head; order != NIL; order = orders.getInt(order, ORDER_USER_NEXT)) {
+                if (orders.getLong(order, ORDER_UID) != uid || orders.getInt(order, ORDER_USER_PREV) != prev) {
+                    throw new IllegalStateException("broken user orders list for uid=" + uid + " at order " + orders.getLong(order, ORDER_ID));
+                }
+                prev = order;
+                counter[0]++;
+            }
+        });
+        if (counter[0] != ordersNum) {
+            throw new IllegalStateException(String.format("user lists orders %d != %d", counter[0], ordersNum));
+        }
+
+        IOrderBook.validateOrdersHash(this, ordersHash);
+        stopOrders.validate();
+        callAuction.validate();
+        quotes.validate();
+    }
+
+    @Override
+    public int stateHash() {
+        return IOrderBook.stateHash(ordersHash, stopOrders, callAuction, quotes, symbolSpec);
+    }
+
+    private int validateLevels(final PriceLevelsIndex side, final OrderAction action) {
+        side.validate();
+        int total = 0;
+        for (int pos = 0; pos < side.size(); pos++) {
+            final int level = side.levelAt(pos);
+            final long price = side.priceAt(pos);
+            if (levels.getLong(level, LEVEL_PRICE) != price) {
+                throw new IllegalStateException(String.format("Level price %d not the same as index key %d", levels.getLong(level, LEVEL_PRICE), price));
+            }
+
+            long volume = 0;
+            int num = 0;
+            int prev = NIL;
+            for (int order = levels.getInt(level, LEVEL_HEAD); order != NIL; order = orders.getInt(order, ORDER_NEXT)) {
+                if (orders.getInt(order, ORDER_PREV) != prev || orders.getInt(order, ORDER_LEVEL) != level
+                        || orders.getLong(order, ORDER_PRICE) != price || getAction(order) != action || remainingSize(order) <= 0) {
+                    throw new IllegalStateException("inconsistent order " + orders.getLong(order, ORDER_ID) + " in level " + price);
+                }
+                volume += remainingSize(order);
+                num++;
+                prev = order;
+            }
+
+            if (num == 0 || levels.getInt(level, LEVEL_TAIL) != prev || levels.getInt(level, LEVEL_NUM_ORDERS) != num || levels.getLong(level, LEVEL_VOLUME) != volume) {
+                throw new IllegalStateException(String.format("inconsistent level %d: num=%d volume=%d", price, num, volume));
+            }
+            total += num;
+        }
+        return total;
+    }
+
+    @Override
+    public OrderBookImplType getImplementationType() {
+        return OrderBookImplType.DIRECT;
+    }
+
+    @Override
+    public List<Order> findUserOrders(final long uid) {
+        final List<Order> list = new ArrayList<>();
+        for (int order = userHeads.getIfAbsent(uid, NIL); order != NIL; order = orders.getInt(order, ORDER_USER_NEXT)) {
+            list.add(readOrder(order, new Order()));
+        }
+        return list;
+    }
+
+    @Override
+    public CoreSymbolSpecification getSymbolSpec() {
+        return symbolSpec;
+    }
+
+    @Override
+    public StopOrdersIndex getStopOrders() {
+        return stopOrders;
+    }
+
+    @Override
+    public CallAuction getCallAuction() {
+        return callAuction;
+    }
+
+    @Override
+    public QuotesIndex getQuotes() {
+        return quotes;
+    }
+
+    @Override
+    public Stream<Order> askOrdersStream(final boolean sorted) {
+        return levelsOrdersStream(askLevels);
+    }
+
+    @Override
+    public Stream<Order> bidOrdersStream(final boolean sorted) {
+        return levelsOrdersStream(bidLevels);
+    }
+
+    /**
+     * Garbage-free, orders are always visited in price order.
+     * Same Order object is passed for each order (valid only inside consumer call).
+     */
+    @Override
+    public void forEachOrder(final OrderAction side, final boolean sorted, final Consumer<Order> consumer) {
+        final PriceLevelsIndex levelsIndex = getLevelsByAction(side);
+        for (int pos = 0; pos < levelsIndex.size(); pos++) {
+            for (int order = levels.getInt(levelsIndex.levelAt(pos), LEVEL_HEAD); order != NIL; order = orders.getInt(order, ORDER_NEXT)) {
+                consumer.accept(readOrder(order, visitedOrder));
+            }
+        }
+    }
+
+    /**
+     * Lazy stream of orders, best price first.
+     * Slab records are read one by one while stream is consumed (no intermediate list is made),
+     * new Order object is created for each order as stream elements can be collected.
+     */
+    private Stream<Order> levelsOrdersStream(final PriceLevelsIndex side) {
+        final Iterator<Order> iterator = new Iterator<Order>() {
+            private int pos = 0;
+            private int next = side.size() == 0 ? NIL : levels.getInt(side.levelAt(0), LEVEL_HEAD);
+
+            @Override
+            public boolean hasNext() {
+                return next != NIL;
+            }
+
+            @Override
+            public Order next() {
+                if (next == NIL) {
+                    throw new NoSuchElementException();
+                }
+                final Order order = readOrder(next, new Order());
+                next = orders.getInt(next, ORDER_NEXT);
+                while (next == NIL && ++pos < side.size()) {
+                    next = levels.getInt(side.levelAt(pos), LEVEL_HEAD);
+                }
+                return order;
+            }
+        };
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(iterator, Spliterator.ORDERED | Spliterator.NONNULL), false);
+    }
+
+    /**
+     * Levels are written from the worst price to the best, so reading appends each level to the end of price index.
+     * Orders are written in the same format as Order.
+     */
+    @Override
+    public void writeMarshallable(BytesOut bytes) {
+        bytes.writeByte(getImplementationType().getCode());
+        symbolSpec.writeMarshallable(bytes);
+        bytes.writeInt(orderIdIndex.size());
+        writeLevels(bytes, askLevels);
+        writeLevels(bytes, bidLevels);
+        stopOrders.writeMarshallable(bytes);
+        callAuction.writeMarshallable(bytes);
+        quotes.writeMarshallable(bytes);
+    }
+
+    private void writeLevels(final BytesOut bytes, final PriceLevelsIndex side) {
+        bytes.writeInt(side.size());
+        for (int pos = side.size() - 1; pos >= 0; pos--) {
+            final int level = side.levelAt(pos);
+            bytes.writeLong(levels.getLong(level, LEVEL_PRICE));
+            bytes.writeInt(levels.getInt(level, LEVEL_NUM_ORDERS));
+            for (int order = levels.getInt(level, LEVEL_HEAD); order != NIL; order = orders.getInt(order, ORDER_NEXT)) {
+                bytes.writeLong(orders.getLong(order, ORDER_ID));
+                bytes.writeLong(orders.getLong(order, ORDER_PRICE));
+                bytes.writeLong(orders.getLong(order, ORDER_SIZE));
+                bytes.writeLong(orders.getLong(order, ORDER_FILLED));
+                bytes.writeLong(orders.getLong(order, ORDER_RESERVE_BID_PRICE));
+                bytes.writeByte((byte) orders.getInt(order, ORDER_ACTION));
+                bytes.writeLong(orders.getLong(order, ORDER_UID));
+                bytes.writeLong(orders.getLong(order, ORDER_TIMESTAMP));
+            }
+        }
+    }
+
+    private void readLevels(final BytesIn bytes, final PriceLevelsIndex side) {
+        final int levelsNum = bytes.readInt();
+        for (int i = 0; i < levelsNum; i++) {
+            final long price = bytes.readLong();
+            final int ordersNum = bytes.readInt();
+
+            final int level = levels.allocate();
+            levels.setLong(level, LEVEL_PRICE, price);
+            levels.setInt(level, LEVEL_NUM_ORDERS, 0);
+            levels.setInt(level, LEVEL_HEAD, NIL);
+            levels.setInt(level, LEVEL_TAIL, NIL);
+
+            long volume = 0;
+            for (int j = 0; j < ordersNum; j++) {
+                final int order = orders.allocate();
+                final long orderId = bytes.readLong();
+                orders.setLong(order, ORDER_ID, orderId);
+                orders.setLong(order, ORDER_PRICE, bytes.readLong());
+                orders.setLong(order, ORDER_SIZE, bytes.readLong());
+                orders.setLong(order, ORDER_FILLED, bytes.readLong());
+                orders.setLong(order, ORDER_RESERVE_BID_PRICE, bytes.readLong());
+                orders.setInt(order, ORDER_ACTION, bytes.readByte());
+                final long uid = bytes.readLong();
+                orders.setLong(order, ORDER_UID, uid);
+                orders.setLong(order, ORDER_TIMESTAMP, bytes.readLong());
+
+                linkToLevelTail(level, order);
+                ordersHash += orderHash(order);
+                volume += remainingSize(order);
+                orderIdIndex.put(orderId, order);
+                addToUserList(order, uid);
+            }
+            levels.setLong(level, LEVEL_VOLUME, volume);
+            side.put(price, level);
+        }
+    }
+
+    /**
+     * Produces garbage - same hash as other implementations
+     */
+    @Override
+    public int hashCode() {
+        return IOrderBook.hash(levelsHash(askLevels), levelsHash(bidLevels), symbolSpec);
+    }
+
+    // same as Arrays.hashCode(IOrdersBucket[])
+    private int levelsHash(final PriceLevelsIndex side) {
+        int result = 1;
+        for (int pos = 0; pos < side.size(); pos++) {
+            final int level = side.levelAt(pos);
+            final Order[] levelOrders = new Order[levels.getInt(level, LEVEL_NUM_ORDERS)];
+            int i = 0;
+            for (int order = levels.getInt(level, LEVEL_HEAD); order != NIL; order = orders.getInt(order, ORDER_NEXT)) {
+                levelOrders[i++] = readOrder(order, new Order());
+            }
+            result = 31 * result + IOrdersBucket.hash(side.priceAt(pos), levelOrders);
+        }
+        return result;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return IOrderBook.equals(this, o);
+    }
+
+    @Override
+    public String toString() {
+        return "OrderBookDirectImpl{symbol=" + symbolSpec.symbolId + ", orders=" + orderIdIndex.size()
+                + ", asks=" + askLevels.size() + ", bids=" + bidLevels.size()
+                + ", memory=" + (orders.memoryUsed() + levels.memoryUsed()) + '}';
+    }
+}
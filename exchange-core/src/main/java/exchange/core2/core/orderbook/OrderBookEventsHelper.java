@@ -35,67 +35,129 @@ public final class OrderBookEventsHelper {
     //private OrderCommand currentCmd;
 
     public static void sendTradeEvent(OrderCommand cmd, IOrder activeOrder, Order matchingOrder, boolean fm, boolean fma, long price, long v) {
+        sendTradeEvent(cmd, activeOrder, matchingOrder.orderId, matchingOrder.uid, matchingOrder.reserveBidPrice, fm, fma, price, v);
+    }
+
+    /**
+     * Same as sendTradeEvent for matching order fields, for buckets not keeping order fields in Order objects
+     */
+    public static void sendTradeEvent(OrderCommand cmd, IOrder activeOrder, long matchingOrderId, long matchingOrderUid,
+                                      long matchingReserveBidPrice, boolean fm, boolean fma, long price, long v) {
 
 //        log.debug("** sendTradeEvent: active id:{} matched id:{}", activeOrder.orderId, matchingOrder.orderId);
 //        log.debug("** sendTradeEvent: price:{} v:{}", price, v);
 
-        final MatcherTradeEvent event = newMatcherEvent();
+        // set order reserved price for correct released EBids
+        final long bidderHoldPrice = activeOrder.getAction() == OrderAction.BID ? activeOrder.getReserveBidPrice() : matchingReserveBidPrice;
+
+        sendTradeEvent(cmd, activeOrder.getOrderId(), activeOrder.getUid(), activeOrder.getAction(), fma,
+                matchingOrderId, matchingOrderUid, fm, bidderHoldPrice, price, v, activeOrder.getTimestamp());
+    }
+
+    /**
+     * Same as sendTradeEvent for both orders fields passed as primitives (call auction uncross)
+     */
+    public static void sendTradeEvent(OrderCommand cmd, long activeOrderId, long activeOrderUid, OrderAction activeOrderAction, boolean fma,
+                                      long matchingOrderId, long matchingOrderUid, boolean fm,
+                                      long bidderHoldPrice, long price, long v, long timestamp) {
+
+        final MatcherTradeEvent event = cmd.takeEventFromPool();
 
         event.eventType = MatcherEventType.TRADE;
 
-        event.activeOrderId = activeOrder.getOrderId();
-        event.activeOrderUid = activeOrder.getUid();
+        event.activeOrderId = activeOrderId;
+        event.activeOrderUid = activeOrderUid;
         event.activeOrderCompleted = fma;
-        event.activeOrderAction = activeOrder.getAction();
+        event.activeOrderAction = activeOrderAction;
 //        event.activeOrderSeq = activeOrder.seq;
 
-        event.matchedOrderId = matchingOrder.orderId;
-        event.matchedOrderUid = matchingOrder.uid;
+        event.matchedOrderId = matchingOrderId;
+        event.matchedOrderUid = matchingOrderUid;
         event.matchedOrderCompleted = fm;
 
         event.price = price;
         event.size = v;
-        event.timestamp = activeOrder.getTimestamp();
+        event.timestamp = timestamp;
         event.symbol = cmd.symbol;
 
-        // set order reserved price for correct released EBids
-        event.bidderHoldPrice = activeOrder.getAction() == OrderAction.BID ? activeOrder.getReserveBidPrice() : matchingOrder.reserveBidPrice;
+        event.bidderHoldPrice = bidderHoldPrice;
 
         event.nextEvent = cmd.matcherEvent;
         cmd.matcherEvent = event;
 
+        // attached by matching engine router for symbols with aggregateTrades option
+        final TradesSummary tradesSummary = cmd.tradesSummary;
+        if (tradesSummary != null) {
+            tradesSummary.addTrade(activeOrderId, activeOrderUid, activeOrderAction, price, v);
+        }
+
 //        log.debug(" currentCmd.matcherEvent={}", currentCmd.matcherEvent);
     }
 
+    /**
+     * Record new total volume of the price level into L2 market data delta of the command
+     *
+     * @param cmd    - command changed the level
+     * @param action - side
+     * @param price  - price level
+     * @param volume - new total volume (0 - level removed)
+     */
+    public static void attachL2Delta(OrderCommand cmd, OrderAction action, long price, long volume) {
+        cmd.attachMarketDataDelta().addLevel(action, price, volume);
+    }
+
     public static void sendCancelEvent(OrderCommand cmd, Order order) {
+        sendCancelEvent(cmd, order.orderId, order.uid, order.action, order.price, order.size - order.filled, order.reserveBidPrice);
+    }
+
+    public static void sendCancelEvent(OrderCommand cmd, long orderId, long uid, OrderAction action, long price, long remainingSize, long reserveBidPrice) {
 //        log.debug("Cancel ");
-        final MatcherTradeEvent event = newMatcherEvent();
+        final MatcherTradeEvent event = cmd.takeEventFromPool();
         event.eventType = MatcherEventType.CANCEL;
-        event.activeOrderId = order.orderId;
-        event.activeOrderUid = order.uid;
+        event.activeOrderId = orderId;
+        event.activeOrderUid = uid;
         event.activeOrderCompleted = false;
-        event.activeOrderAction = order.action;
+        event.activeOrderAction = action;
 //        event.activeOrderSeq = order.seq;
         event.matchedOrderId = 0;
+        event.matchedOrderUid = 0;
         event.matchedOrderCompleted = false;
-        event.price = order.price;
-        event.size = order.size - order.filled;
+        event.price = price;
+        event.size = remainingSize;
         event.timestamp = cmd.timestamp;
         event.symbol = cmd.symbol;
 
-        event.bidderHoldPrice = order.reserveBidPrice; // set order reserved price for correct released EBids
+        event.bidderHoldPrice = reserveBidPrice; // set order reserved price for correct released EBids
 
         event.nextEvent = cmd.matcherEvent;
         cmd.matcherEvent = event;
     }
 
 
+    /**
+     * Budget order has no reserved price - each trade is paid at its own price (no hold price correction for taker).
+     * Also active order completion is known only after all price levels are matched.
+     *
+     * @param cmd       - budget order command with trade events attached
+     * @param completed - true if order is completed (budget is spent or size is filled)
+     */
+    public static void completeBudgetOrderEvents(OrderCommand cmd, boolean completed) {
+        for (MatcherTradeEvent event = cmd.matcherEvent; event != null; event = event.nextEvent) {
+            event.bidderHoldPrice = event.price;
+            event.activeOrderCompleted = false;
+        }
+        if (completed && cmd.matcherEvent != null) {
+            // latest event goes first
+            cmd.matcherEvent.activeOrderCompleted = true;
+        }
+    }
+
     public static void attachRejectEvent(OrderCommand cmd, long rejectedSize) {
 
 //        log.debug("Rejected {}", cmd.orderId);
 //        log.debug("\n{}", getL2MarketDataSnapshot(10).dumpOrderBook());
 
-        final MatcherTradeEvent event = newMatcherEvent();
+        final MatcherTradeEvent event = cmd.takeEventFromPool();
 
         event.eventType = MatcherEventType.REJECTION;
 
@@ -106,6 +168,7 @@ public final class OrderBookEventsHelper {
 //        event.activeOrderSeq = cmd.seq;
 
         event.matchedOrderId = 0;
+        event.matchedOrderUid = 0;
         event.matchedOrderCompleted = false;
 
         event.price = cmd.price;
@@ -19,6 +19,11 @@ import com.google.common.collect.ObjectArrays;
 import exchange.core2.core.common.*;
 import exchange.core2.core.common.cmd.CommandResultCode;
 import exchange.core2.core.common.cmd.OrderCommand;
+import exchange.core2.core.orderbook.IOrdersBucket.OrderBucketImplType;
+import exchange.core2.core.utils.CoreArithmeticUtils;
+import exchange.core2.core.utils.LongAvlTreeMap;
+import exchange.core2.core.utils.LongSumTreeMap;
+import exchange.core2.core.utils.RollingBitSet;
 import exchange.core2.core.utils.SerializationUtils;
 import lombok.extern.slf4j.Slf4j;
 import net.openhft.chronicle.bytes.BytesIn;
@@ -30,18 +35,34 @@ import java.util.*;
 import java.util.function.Consumer;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 @Slf4j
 public final class OrderBookFastImpl implements IOrderBook {
 
     public static final int DEFAULT_HOT_WIDTH = 32768;
 
+    // bounds for adaptive hot window width
+    public static final int MIN_HOT_WIDTH = 1024;
+    public static final int MAX_HOT_WIDTH = 1 << 20;
+
+    // number of bucket lookups between hot window adaptation checks
+    static final int HOT_WINDOW_ADAPT_PERIOD = 8192;
+
+    public static final int L2_CACHE_DEPTH = L2MarketData.L2_SIZE;
+
     private final CoreSymbolSpecification symbolSpec;
 
-    private final int hotPricesRange;
+    // implementation of newly created price buckets
+    private final OrderBucketImplType bucketImplType;
+
+    // hot window width, can be changed within [minHotPricesRange, maxHotPricesRange]
+    private int hotPricesRange;
+    private final int minHotPricesRange;
+    private final int maxHotPricesRange;
 
-    private BitSet hotAskBitSet;
-    private BitSet hotBidBitSet;
+    private RollingBitSet hotAskBitSet;
+    private RollingBitSet hotBidBitSet;
     private final LongObjectHashMap<IOrdersBucket> hotAskBuckets;
     private final LongObjectHashMap<IOrdersBucket> hotBidBuckets;
     private long minAskPrice = Long.MAX_VALUE;
@@ -53,40 +74,134 @@ public final class OrderBookFastImpl implements IOrderBook {
     private long rebalanceThresholdLow = -1;
     private long rebalanceThresholdHigh = -1;
 
-    // TODO garbage-free navigable map implementation
-    private final NavigableMap<Long, IOrdersBucket> farAskBuckets;
-    private final NavigableMap<Long, IOrdersBucket> farBidBuckets;
+    // garbage-free sorted maps, both in ascending price order
+    private final LongAvlTreeMap<IOrdersBucket> farAskBuckets;
+    private final LongAvlTreeMap<IOrdersBucket> farBidBuckets;
 
     // Hashtable for fast (cached) resolving OrderId -> Bucket
     private final LongObjectHashMap<IOrdersBucket> idMapToBucket = new LongObjectHashMap<>();
 
+    // uid -> orders index
+    private final UserOrdersIndex userOrdersIndex = new UserOrdersIndex();
+
+    // price -> total volume of the bucket (both hot and far sections), cumulative volume queries for FOK orders
+    private final LongSumTreeMap askVolumes = new LongSumTreeMap();
+    private final LongSumTreeMap bidVolumes = new LongSumTreeMap();
+
+    // incrementally maintained sum of resting orders hashes (see IOrderBook.orderHash)
+    private long ordersHash = 0;
+
+    // pending stop orders
+    private final StopOrdersIndex stopOrders;
+
+    private final CallAuction callAuction;
+
+    // current quotes of users
+    private final QuotesIndex quotes;
+
+    // Incrementally maintained top price levels of both sides (L2 cache).
+    // Volume changes of cached levels are applied in place,
+    // appearing/disappearing levels within cached range mark the side as dirty (rebuilt on next request).
+    private final L2MarketData l2Cache = new L2MarketData(L2_CACHE_DEPTH, L2_CACHE_DEPTH);
+    private boolean askCacheDirty = true;
+    private boolean bidCacheDirty = true;
+
     // Object pools
     private final ArrayDeque<Order> ordersPool = new ArrayDeque<>(16384);
     private final ArrayDeque<IOrdersBucket> bucketsPool = new ArrayDeque<>(16384);
 
+    // hot window statistics: bucket lookups resolved in hot/far sections
+    // (serialized - period counters drive adaptation, so restored book resizes at the same points)
+    private long hotLookups = 0;
+    private long farLookups = 0;
+    private int periodHotLookups = 0;
+    private int periodFarLookups = 0;
+    private int hotWindowResizes = 0;
+
+    // pooled buckets statistics (not serialized): oversized buffers released on recycling
+    private int bucketShrinks = 0;
+
+    /**
+     * Order book with fixed hot window width
+     */
     public OrderBookFastImpl(final int hotPricesRange, final CoreSymbolSpecification symbolSpec) {
+        this(hotPricesRange, hotPricesRange, hotPricesRange, symbolSpec);
+    }
+
+    /**
+     * Order book with fixed hot window width and specified implementation of price buckets (FAST or SOA)
+     */
+    public OrderBookFastImpl(final int hotPricesRange, final CoreSymbolSpecification symbolSpec, final OrderBucketImplType bucketImplType) {
+        this(hotPricesRange, hotPricesRange, hotPricesRange, symbolSpec, bucketImplType);
+    }
+
+    /**
+     * Order book with adaptive hot window, initial width is hotPricesRange, bounded by MIN_HOT_WIDTH and MAX_HOT_WIDTH
+     */
+    public static OrderBookFastImpl adaptive(final int hotPricesRange, final CoreSymbolSpecification symbolSpec) {
+        return new OrderBookFastImpl(Math.min(MIN_HOT_WIDTH, hotPricesRange), hotPricesRange, Math.max(MAX_HOT_WIDTH, hotPricesRange), symbolSpec);
+    }
+
+    /**
+     * @param minHotPricesRange - minimal hot window width
+     * @param hotPricesRange    - initial hot window width
+     * @param maxHotPricesRange - maximal hot window width (same as minimal - fixed width)
+     * @param symbolSpec        - symbol specification
+     */
+    public OrderBookFastImpl(final int minHotPricesRange,
+                             final int hotPricesRange,
+                             final int maxHotPricesRange,
+                             final CoreSymbolSpecification symbolSpec) {
+        this(minHotPricesRange, hotPricesRange, maxHotPricesRange, symbolSpec, OrderBucketImplType.FAST);
+    }
+
+    /**
+     * @param minHotPricesRange - minimal hot window width
+     * @param hotPricesRange    - initial hot window width
+     * @param maxHotPricesRange - maximal hot window width (same as minimal - fixed width)
+     * @param symbolSpec        - symbol specification
+     * @param bucketImplType    - implementation of newly created price buckets (FAST or SOA)
+     */
+    public OrderBookFastImpl(final int minHotPricesRange,
+                             final int hotPricesRange,
+                             final int maxHotPricesRange,
+                             final CoreSymbolSpecification symbolSpec,
+                             final OrderBucketImplType bucketImplType) {
         // must be aligned by 64 bit, can not be lower than 1024
-        if ((hotPricesRange & 63) != 0 || hotPricesRange < 1024) {
-            throw new IllegalArgumentException("invalid hotPricesRange=" + hotPricesRange);
+        checkHotPricesRange(minHotPricesRange);
+        checkHotPricesRange(hotPricesRange);
+        checkHotPricesRange(maxHotPricesRange);
+        if (hotPricesRange < minHotPricesRange || hotPricesRange > maxHotPricesRange) {
+            throw new IllegalArgumentException("hotPricesRange=" + hotPricesRange + " is out of bounds ["
+                    + minHotPricesRange + "," + maxHotPricesRange + "]");
         }
         this.symbolSpec = symbolSpec;
+        this.bucketImplType = bucketImplType;
         this.hotPricesRange = hotPricesRange;
-        this.hotAskBitSet = new BitSet(hotPricesRange);
-        this.hotBidBitSet = new BitSet(hotPricesRange);
+        this.minHotPricesRange = minHotPricesRange;
+        this.maxHotPricesRange = maxHotPricesRange;
+        this.hotAskBitSet = new RollingBitSet(hotPricesRange);
+        this.hotBidBitSet = new RollingBitSet(hotPricesRange);
         this.hotAskBuckets = new LongObjectHashMap<>();
         this.hotBidBuckets = new LongObjectHashMap<>();
-        this.farAskBuckets = new TreeMap<>();
-        this.farBidBuckets = new TreeMap<>(Collections.reverseOrder());
+        this.farAskBuckets = new LongAvlTreeMap<>();
+        this.farBidBuckets = new LongAvlTreeMap<>();
+        this.stopOrders = new StopOrdersIndex();
+        this.callAuction = new CallAuction();
+        this.quotes = new QuotesIndex();
     }
 
     public OrderBookFastImpl(final BytesIn bytes) {
 
         this.symbolSpec = new CoreSymbolSpecification(bytes);
+        this.bucketImplType = OrderBucketImplType.of(bytes.readByte());
 
         this.hotPricesRange = bytes.readInt();
+        this.minHotPricesRange = bytes.readInt();
+        this.maxHotPricesRange = bytes.readInt();
 
-        this.hotAskBitSet = SerializationUtils.readBitSet(bytes);
-        this.hotBidBitSet = SerializationUtils.readBitSet(bytes);
+        this.hotAskBitSet = SerializationUtils.readRollingBitSet(bytes, hotPricesRange);
+        this.hotBidBitSet = SerializationUtils.readRollingBitSet(bytes, hotPricesRange);
 
         this.hotAskBuckets = SerializationUtils.readLongHashMap(bytes, IOrdersBucket::create);
         this.hotBidBuckets = SerializationUtils.readLongHashMap(bytes, IOrdersBucket::create);
@@ -98,19 +213,49 @@ public final class OrderBookFastImpl implements IOrderBook {
         this.rebalanceThresholdLow = bytes.readLong();
         this.rebalanceThresholdHigh = bytes.readLong();
 
-        this.farAskBuckets = SerializationUtils.readLongMap(bytes, TreeMap::new, IOrdersBucket::create);
-        this.farBidBuckets = SerializationUtils.readLongMap(bytes, () -> new TreeMap<>(Collections.reverseOrder()), IOrdersBucket::create);
+        this.farAskBuckets = SerializationUtils.readLongAvlTreeMap(bytes, IOrdersBucket::create);
+        this.farBidBuckets = SerializationUtils.readLongAvlTreeMap(bytes, IOrdersBucket::create);
+
+        this.hotLookups = bytes.readLong();
+        this.farLookups = bytes.readLong();
+        this.periodHotLookups = bytes.readInt();
+        this.periodFarLookups = bytes.readInt();
+        this.hotWindowResizes = bytes.readInt();
+
+        this.stopOrders = new StopOrdersIndex(bytes);
+        this.callAuction = new CallAuction(bytes);
+        this.quotes = new QuotesIndex(bytes);
 
         // reconstruct ordersId-> Bucket cache
         // TODO check resulting performance
-        hotAskBuckets.forEach(bucket -> bucket.forEachOrder(order -> idMapToBucket.put(order.orderId, bucket)));
-        hotBidBuckets.forEach(bucket -> bucket.forEachOrder(order -> idMapToBucket.put(order.orderId, bucket)));
-        farAskBuckets.values().forEach(bucket -> bucket.forEachOrder(order -> idMapToBucket.put(order.orderId, bucket)));
-        farBidBuckets.values().forEach(bucket -> bucket.forEachOrder(order -> idMapToBucket.put(order.orderId, bucket)));
+        hotAskBuckets.forEach(this::indexBucketOrders);
+        hotBidBuckets.forEach(this::indexBucketOrders);
+        farAskBuckets.forEach((price, bucket) -> indexBucketOrders(bucket));
+        farBidBuckets.forEach((price, bucket) -> indexBucketOrders(bucket));
+
+        // reconstruct price levels volumes
+        hotAskBuckets.forEachValue(bucket -> askVolumes.put(bucket.getPrice(), bucket.getTotalVolume()));
+        hotBidBuckets.forEachValue(bucket -> bidVolumes.put(bucket.getPrice(), bucket.getTotalVolume()));
+        farAskBuckets.forEach((price, bucket) -> askVolumes.put(price, bucket.getTotalVolume()));
+        farBidBuckets.forEach((price, bucket) -> bidVolumes.put(price, bucket.getTotalVolume()));
 
         //validateInternalState();
     }
 
+    private static void checkHotPricesRange(final int range) {
+        if ((range & 63) != 0 || range < 1024) {
+            throw new IllegalArgumentException("invalid hotPricesRange=" + range);
+        }
+    }
+
+    private void indexBucketOrders(final IOrdersBucket bucket) {
+        bucket.forEachOrder(order -> {
+            idMapToBucket.put(order.orderId, bucket);
+            userOrdersIndex.add(order);
+            ordersHash += IOrderBook.orderHash(order);
+        });
+    }
+
     private int priceToIndex(long price) {
         long idx = price - basePrice;
         if (idx < Integer.MIN_VALUE) {
@@ -131,6 +276,22 @@ public final class OrderBookFastImpl implements IOrderBook {
         final OrderType orderType = cmd.orderType;
         final long size = cmd.size;
 
+        // adapting hot window between commands only
+        if (periodHotLookups + periodFarLookups >= HOT_WINDOW_ADAPT_PERIOD) {
+            adaptHotWindow();
+        }
+
+        if (orderType == OrderType.IOC_BUDGET) {
+            matchBudgetOrder(cmd);
+            return CommandResultCode.SUCCESS;
+        }
+
+        // FOK order is rejected before touching any bucket if there is not enough liquidity within its limit price
+        if (orderType == OrderType.FOK && availableVolume(cmd.action, cmd.price, cmd.uid) < size) {
+            OrderBookEventsHelper.attachRejectEvent(cmd, size);
+            return CommandResultCode.SUCCESS;
+        }
+
         // check if order is marketable there are matching orders
         final long filledSize = tryMatchInstantly(cmd, 0, cmd);
         if (filledSize == size) {
@@ -138,7 +299,7 @@ public final class OrderBookFastImpl implements IOrderBook {
             return CommandResultCode.SUCCESS;
         }
 
-        if (orderType == OrderType.IOC) {
+        if (orderType != OrderType.GTC && orderType != OrderType.GTD) {
             OrderBookEventsHelper.attachRejectEvent(cmd, size - filledSize);
             return CommandResultCode.SUCCESS;
         }
@@ -174,11 +335,31 @@ public final class OrderBookFastImpl implements IOrderBook {
 
         final IOrdersBucket bucket = cmd.action == OrderAction.ASK ? getOrCreateNewBucketAck(price) : getOrCreateNewBucketBid(price);
         bucket.put(orderRecord);
+        updateL2Cache(cmd, cmd.action, bucket);
         idMapToBucket.put(orderId, bucket);
+        userOrdersIndex.add(orderRecord);
+        ordersHash += IOrderBook.orderHash(orderRecord);
 
         return CommandResultCode.SUCCESS;
     }
 
+    /**
+     * Volume that can be matched by an order, O(log n) + number of user's own orders in the order book.
+     * Own orders of the user are excluded, because they are skipped by matching procedure.
+     *
+     * @param action     - taker order action
+     * @param limitPrice - taker order limit price
+     * @param uid        - taker user id
+     * @return volume of opposite orders at or better than limitPrice
+     */
+    private long availableVolume(final OrderAction action, final long limitPrice, final long uid) {
+        final long volume = (action == OrderAction.BID) ? askVolumes.sumUpTo(limitPrice) : bidVolumes.sumFrom(limitPrice);
+        if (volume == 0 || !userOrdersIndex.hasOrders(uid)) {
+            return volume;
+        }
+        return volume - userOrdersIndex.remainingVolumeWithinLimit(uid, action.opposite(), limitPrice);
+    }
+
     /**
      * Calculate base price so the given price would be in the center of the hotPricesRange range.<br/>
      * Will also do the 'long' alignment for faster bitset shift operations.
@@ -212,6 +393,7 @@ public final class OrderBookFastImpl implements IOrderBook {
 
         int idx = priceToIndex(price);
         boolean far = (idx >= hotPricesRange);
+        countLookup(far);
 
 //        log.debug("{} idx={} FAR={}", price, idx, far);
         IOrdersBucket ordersBucket = far ? farAskBuckets.get(price) : hotAskBuckets.get(price);
@@ -223,8 +405,7 @@ public final class OrderBookFastImpl implements IOrderBook {
 
         ordersBucket = bucketsPool.pollLast();
         if (ordersBucket == null) {
-            ordersBucket = new OrdersBucketFastImpl();
-//            ordersBucket = new OrdersBucketNaiveImpl();
+            ordersBucket = IOrdersBucket.create(bucketImplType);
         }
 
         ordersBucket.setPrice(price);
@@ -249,6 +430,7 @@ public final class OrderBookFastImpl implements IOrderBook {
 
         int idx = priceToIndex(price);
         boolean far = idx < 0;
+        countLookup(far);
 
 //        log.debug("{} idx={} FAR={}", price, idx, far);
         IOrdersBucket ordersBucket = far ? farBidBuckets.get(price) : hotBidBuckets.get(price);
@@ -259,8 +441,7 @@ public final class OrderBookFastImpl implements IOrderBook {
 
         ordersBucket = bucketsPool.pollLast();
         if (ordersBucket == null) {
-            ordersBucket = new OrdersBucketFastImpl();
-//            ordersBucket = new OrdersBucketNaiveImpl();
+            ordersBucket = IOrdersBucket.create(bucketImplType);
         }
 
         ordersBucket.setPrice(price);
@@ -324,7 +505,10 @@ public final class OrderBookFastImpl implements IOrderBook {
             // matching orders within bucket
             final long sizeLeft = activeOrder.getSize() - filled;
             // log.debug("bucket {} match size: {}", bucket.getPrice(), sizeLeft);
-            filled += bucket.match(sizeLeft, activeOrder, triggerCmd, this::removeFullyMatchedOrder);
+            final long matched = bucket.match(sizeLeft, activeOrder, triggerCmd, this::removeFullyMatchedOrder);
+            filled += matched;
+            ordersHash += matched * FILLED_HASH_FACTOR;
+            updateL2Cache(triggerCmd, action.opposite(), bucket);
 
             // remove bucket if its empty
             if (bucket.getTotalVolume() == 0) {
@@ -334,9 +518,68 @@ public final class OrderBookFastImpl implements IOrderBook {
         return filled;
     }
 
+    /**
+     * Match budget order (BID only): each price level is matched up to the volume affordable for the remaining budget.
+     * Matching stops when next lot is not affordable, size is filled, or limit price is reached.
+     * Unmatched size is rejected only if liquidity within limit price is exhausted before the budget.
+     */
+    private void matchBudgetOrder(final OrderCommand cmd) {
+
+        final long size = cmd.size;
+        if (cmd.action != OrderAction.BID) {
+            OrderBookEventsHelper.attachRejectEvent(cmd, size);
+            return;
+        }
+
+        long budget = cmd.budget;
+        long filled = 0;
+        boolean budgetSpent = false;
+        long nextPrice = minAskPrice;
+
+        while (filled < size && nextPrice <= cmd.price) {
+
+            final IOrdersBucket bucket = nextAvailableBucketAsk(nextPrice, cmd.price);
+            if (bucket == null) {
+                break;
+            }
+
+            final long tradePrice = bucket.getPrice();
+            final long affordable = CoreArithmeticUtils.calculateBudgetSize(budget, tradePrice, symbolSpec);
+            if (affordable == 0) {
+                // prices are only growing
+                budgetSpent = true;
+                break;
+            }
+
+            final long matched = bucket.match(Math.min(size - filled, affordable), cmd, cmd, this::removeFullyMatchedOrder);
+            filled += matched;
+            budget -= CoreArithmeticUtils.calculateAmountBidTakerFee(matched, tradePrice, symbolSpec);
+            ordersHash += matched * FILLED_HASH_FACTOR;
+            updateL2Cache(cmd, OrderAction.ASK, bucket);
+
+            if (bucket.getTotalVolume() == 0) {
+                removeBucket(OrderAction.ASK, tradePrice);
+            }
+            if (matched == affordable) {
+                // remaining budget is not enough for one more lot even at this price
+                budgetSpent = true;
+                break;
+            }
+            nextPrice = tradePrice + 1;
+        }
+
+        final boolean completed = budgetSpent || filled == size;
+        OrderBookEventsHelper.completeBudgetOrderEvents(cmd, completed);
+        if (!completed) {
+            OrderBookEventsHelper.attachRejectEvent(cmd, size - filled);
+        }
+    }
+
     private void removeFullyMatchedOrder(Order mOrder) {
         // forget if fully matched
         idMapToBucket.remove(mOrder.orderId);
+        userOrdersIndex.remove(mOrder);
+        ordersHash -= IOrderBook.orderHash(mOrder);
         // saving free object back to pool
         ordersPool.addLast(mOrder);
     }
@@ -357,14 +600,20 @@ public final class OrderBookFastImpl implements IOrderBook {
             if (nextIdx != -1) {
                 // found a bucket, but if limit is reached - no need to check far orders, just return null
                 long nextPrice = nextIdx + basePrice;
+                countLookup(false);
                 return nextPrice <= lastPrice ? hotAskBuckets.get(nextPrice) : null;
             }
         }
 
         // TODO independent searching can be slower comparing to processing a subtree (NLogN vs N) for superorders, though it's easier to remove buckets
         // nothing yet found and limit also not reached yet, therefore trying to search far buckets
-        Map.Entry<Long, IOrdersBucket> entry = farAskBuckets.ceilingEntry(currentPrice);
-        return (entry != null && entry.getKey() <= lastPrice) ? entry.getValue() : null;
+        final IOrdersBucket bucket = farAskBuckets.ceilingValue(currentPrice);
+        if (bucket != null && bucket.getPrice() <= lastPrice) {
+            // only lookups actually resolved in far section are counted
+            countLookup(true);
+            return bucket;
+        }
+        return null;
     }
 
     /**
@@ -383,15 +632,20 @@ public final class OrderBookFastImpl implements IOrderBook {
             if (nextIdx >= 0) {
                 // found a bucket, but if limit is reached - no need to check far orders, just return null
                 long nextPrice = nextIdx + basePrice;
+                countLookup(false);
                 return (nextPrice >= lastPrice) ? hotBidBuckets.get(nextPrice) : null;
             }
         }
 
         // TODO independent searching can be slower comparing to processing a subtree (NLogN vs N) for superorders
         // nothing yet found and limit also not reached yet, therefore trying to search far buckets
-        // note: bid far buckets tree order is reversed, so searching ceiling key like for asks
-        Map.Entry<Long, IOrdersBucket> entry = farBidBuckets.ceilingEntry(currentPrice);
-        return (entry != null && entry.getKey() >= lastPrice) ? entry.getValue() : null;
+        final IOrdersBucket bucket = farBidBuckets.floorValue(currentPrice);
+        if (bucket != null && bucket.getPrice() >= lastPrice) {
+            // only lookups actually resolved in far section are counted
+            countLookup(true);
+            return bucket;
+        }
+        return null;
     }
 
 
@@ -419,8 +673,40 @@ public final class OrderBookFastImpl implements IOrderBook {
             return false;
         }
 
-        // remove from map
-        idMapToBucket.remove(cmd.orderId);
+        completeCancel(cmd, ordersBucket, removedOrder);
+        return true;
+    }
+
+    @Override
+    public int massCancel(OrderCommand cmd) {
+        final int ordersBefore = idMapToBucket.size();
+        if (cmd.uid != 0) {
+            // only user's orders are visited
+            userOrdersIndex.forEachUserOrder(cmd.uid, order -> cancelRestingOrder(cmd, order));
+        } else {
+            // all orders - rare operation, can produce garbage
+            final List<Order> orders = Stream.concat(askOrdersStream(false), bidOrdersStream(false)).collect(Collectors.toList());
+            orders.forEach(order -> cancelRestingOrder(cmd, order));
+        }
+        return ordersBefore - idMapToBucket.size();
+    }
+
+    private void cancelRestingOrder(OrderCommand cmd, Order order) {
+        final IOrdersBucket ordersBucket = idMapToBucket.get(order.orderId);
+        ordersBucket.remove(order.orderId, order.uid);
+        completeCancel(cmd, ordersBucket, order);
+    }
+
+    /**
+     * Remove already extracted order from indexes, remove bucket if empty, send cancel event
+     */
+    private void completeCancel(OrderCommand cmd, IOrdersBucket ordersBucket, Order removedOrder) {
+
+        // remove from maps
+        idMapToBucket.remove(removedOrder.orderId);
+        userOrdersIndex.remove(removedOrder);
+        ordersHash -= IOrderBook.orderHash(removedOrder);
+        updateL2Cache(cmd, removedOrder.action, ordersBucket);
 
         // remove bucket if cancelled order was the last one in the bucket
         if (ordersBucket.getTotalVolume() == 0) {
@@ -432,8 +718,6 @@ public final class OrderBookFastImpl implements IOrderBook {
 
         // saving free object back to the pool
         ordersPool.addLast(removedOrder);
-
-        return true;
     }
 
 
@@ -480,6 +764,9 @@ public final class OrderBookFastImpl implements IOrderBook {
             return CommandResultCode.MATCHING_MOVE_FAILED_PRICE_OVER_RISK_LIMIT;
         }
 
+        ordersHash -= IOrderBook.orderHash(order);
+        updateL2Cache(cmd, order.action, bucket);
+
         // remove bucket if moved order was the last one in the bucket
         if (bucket.getTotalVolume() == 0) {
             removeBucket(order.action, bucket.getPrice());
@@ -493,6 +780,7 @@ public final class OrderBookFastImpl implements IOrderBook {
         if (filled == order.size) {
             // order was fully matched (100% marketable) - removing from order book
             idMapToBucket.remove(orderId);
+            userOrdersIndex.remove(order);
             // saving free object back to pool
             ordersPool.addLast(order);
         } else {
@@ -501,6 +789,8 @@ public final class OrderBookFastImpl implements IOrderBook {
             // if not filled completely - put it into corresponding bucket
             final IOrdersBucket otherBucket = (order.action == OrderAction.ASK) ? getOrCreateNewBucketAck(newPrice) : getOrCreateNewBucketBid(newPrice);
             otherBucket.put(order);
+            ordersHash += IOrderBook.orderHash(order);
+            updateL2Cache(cmd, order.action, otherBucket);
             // override cache record
             idMapToBucket.put(orderId, otherBucket);
         }
@@ -522,16 +812,23 @@ public final class OrderBookFastImpl implements IOrderBook {
         }
     }
 
+    private void recycleBucket(IOrdersBucket bucket) {
+        if (bucket.recycle()) {
+            bucketShrinks++;
+        }
+        bucketsPool.addLast(bucket);
+    }
+
     private void removeAskBucket(long price) {
         int idx = priceToIndex(price);
 
         if (idx < hotPricesRange) {
             // in hot area
             hotAskBitSet.clear(idx);
-            bucketsPool.addLast(hotAskBuckets.remove(price));
+            recycleBucket(hotAskBuckets.remove(price));
         } else {
             // in far area
-            bucketsPool.addLast(farAskBuckets.remove(price));
+            recycleBucket(farAskBuckets.remove(price));
         }
 
         if (minAskPrice != price) {
@@ -557,8 +854,8 @@ public final class OrderBookFastImpl implements IOrderBook {
     }
 
     private void updateMinAskPriceFar(long price) {
-        Long p = farAskBuckets.higherKey(price);
-        minAskPrice = (p != null) ? p : Long.MAX_VALUE;
+        final IOrdersBucket bucket = farAskBuckets.higherValue(price);
+        minAskPrice = (bucket != null) ? bucket.getPrice() : Long.MAX_VALUE;
     }
 
     private void removeBidBucket(long price) {
@@ -567,10 +864,10 @@ public final class OrderBookFastImpl implements IOrderBook {
         if (idx >= 0) {
             // in hot area
             hotBidBitSet.clear(idx);
-            bucketsPool.addLast(hotBidBuckets.remove(price));
+            recycleBucket(hotBidBuckets.remove(price));
         } else {
             // in far area
-            bucketsPool.addLast(farBidBuckets.remove(price));
+            recycleBucket(farBidBuckets.remove(price));
         }
 
         if (maxBidPrice != price) {
@@ -599,8 +896,8 @@ public final class OrderBookFastImpl implements IOrderBook {
     }
 
     private void updateMaxBidPriceFar(long price) {
-        Long p = farBidBuckets.higherKey(price); // higherKey() instead of lowerKey() - because of opposite sort order
-        maxBidPrice = (p != null) ? p : 0;
+        final IOrdersBucket bucket = farBidBuckets.lowerValue(price);
+        maxBidPrice = (bucket != null) ? bucket.getPrice() : 0;
     }
 
     /**
@@ -612,17 +909,15 @@ public final class OrderBookFastImpl implements IOrderBook {
      * @param newBasePrice new base price
      */
     private void decreaseBasePrice(long newBasePrice) {
-        int shift = (int) (basePrice - newBasePrice);
+        // shifting by hotPricesRange or more just clears bitset
+        int shift = (int) Math.min(basePrice - newBasePrice, hotPricesRange);
         //log.debug("decrease base price {}->{}", basePrice, newBasePrice);
         if (maxBidPrice != 0) {
             // shift hot bids bitset (base price lower -> index is higher for the same price)
-            hotBidBitSet = shiftBitSetUp(hotBidBitSet, shift);
+            hotBidBitSet.shiftUp(shift);
 
             // BID buckets from the FAR section need to be moved to the HOT section where price >= newBasePrice
-            NavigableMap<Long, IOrdersBucket> toHotBuckets = farBidBuckets.headMap(newBasePrice, true);
-
-            //log.debug("toHotBuckets={}", toHotBuckets);
-            moveBucketsToHot(toHotBuckets, hotBidBuckets, hotBidBitSet, newBasePrice);
+            moveBucketsToHot(farBidBuckets, newBasePrice, Long.MAX_VALUE, hotBidBuckets, hotBidBitSet, newBasePrice);
         }
 
         if (minAskPrice != Long.MAX_VALUE) {
@@ -635,7 +930,7 @@ public final class OrderBookFastImpl implements IOrderBook {
             }
 
             // shift up and clear asks BitSet
-            hotAskBitSet = shiftBitSetUp(hotAskBitSet, shift);
+            hotAskBitSet.shiftUp(shift);
         }
 
         setBasePrice(newBasePrice);
@@ -650,15 +945,15 @@ public final class OrderBookFastImpl implements IOrderBook {
      * @param newBasePrice new base price
      */
     private void increaseBasePrice(long newBasePrice) {
-        int shift = (int) (newBasePrice - basePrice);
+        // shifting by hotPricesRange or more just clears bitset
+        int shift = (int) Math.min(newBasePrice - basePrice, hotPricesRange);
 //        log.debug("increase base price {}->{}", basePrice, newBasePrice);
         if (minAskPrice != Long.MAX_VALUE) {
             // shift hot asks bitset
-            hotAskBitSet = shiftBitSetDown(hotAskBitSet, shift);
+            hotAskBitSet.shiftDown(shift);
 
             // moving ASK buckets from the FAR section to the HOT section where price < newBasePrice + hotPricesRange
-            NavigableMap<Long, IOrdersBucket> toHotBuckets = farAskBuckets.headMap(newBasePrice + hotPricesRange, false);
-            moveBucketsToHot(toHotBuckets, hotAskBuckets, hotAskBitSet, newBasePrice);
+            moveBucketsToHot(farAskBuckets, Long.MIN_VALUE, newBasePrice + hotPricesRange - 1, hotAskBuckets, hotAskBitSet, newBasePrice);
         }
 
         if (maxBidPrice != 0) {
@@ -672,49 +967,203 @@ public final class OrderBookFastImpl implements IOrderBook {
             }
 
             // shift down and clear bids BitSet
-            hotBidBitSet = shiftBitSetDown(hotBidBitSet, shift);
+            hotBidBitSet.shiftDown(shift);
         }
 
         setBasePrice(newBasePrice);
     }
 
-    // TODO slow - implement rolling bitset (extending BitSet)
-    private BitSet shiftBitSetDown(BitSet bitSet, int shift) {
-        int shiftLongs = shift >> 6;
-        long[] src = bitSet.toLongArray();
-        long[] dst = new long[hotPricesRange >> 6];
-        int lengthCopy = src.length - shiftLongs;
-        if (lengthCopy > 0) {
-            System.arraycopy(src, shiftLongs, dst, 0, lengthCopy);
+    private void countLookup(final boolean far) {
+        if (far) {
+            periodFarLookups++;
+        } else {
+            periodHotLookups++;
+        }
+    }
+
+    /**
+     * Re-sizes hot window according to the hot/far lookups statistics of the last period:<br/>
+     * - widening if more than 10% of lookups went to the far trees (wide spread, fast moving prices);<br/>
+     * - narrowing if almost all lookups were hot and resting hot buckets occupy less than quarter of the window (illiquid or tight symbol).<br/>
+     * Re-centering is still done by thresholds in getOrCreateNewBucket methods.
+     */
+    private void adaptHotWindow() {
+        final int hot = periodHotLookups;
+        final int far = periodFarLookups;
+        hotLookups += hot;
+        farLookups += far;
+        periodHotLookups = 0;
+        periodFarLookups = 0;
+
+        if (far * 10 > hot + far) {
+            if (hotPricesRange < maxHotPricesRange) {
+                resizeHotWindow(Math.min(hotPricesRange * 2, maxHotPricesRange));
+            }
+        } else if (far * 100 < hot + far && hotPricesRange > minHotPricesRange) {
+            final int occupied = hotOccupiedWidth();
+            if (occupied != -1 && occupied * 4 <= hotPricesRange) {
+                resizeHotWindow(Math.max((hotPricesRange / 2) & ~63, minHotPricesRange));
+            }
         }
-        return BitSet.valueOf(dst);
     }
 
-    private BitSet shiftBitSetUp(BitSet bitSet, int shift) {
-        int shiftLongs = shift >> 6;
-        long[] src = bitSet.toLongArray();
-        long[] dst = new long[hotPricesRange >> 6];
-        int lengthCopy = Math.min(src.length, dst.length - shiftLongs);
-        if (lengthCopy > 0) {
-            System.arraycopy(src, 0, dst, shiftLongs, lengthCopy);
+    /**
+     * @return distance between lowest and highest hot buckets of both sides, or -1 if hot section is empty
+     */
+    private int hotOccupiedWidth() {
+        final int lowAsk = hotAskBitSet.nextSetBit(0);
+        final int lowBid = hotBidBitSet.nextSetBit(0);
+        if (lowAsk == -1 && lowBid == -1) {
+            return -1;
         }
-        return BitSet.valueOf(dst);
+        final int low = (lowAsk == -1) ? lowBid : (lowBid == -1) ? lowAsk : Math.min(lowAsk, lowBid);
+        final int high = Math.max(hotAskBitSet.previousSetBit(hotPricesRange - 1), hotBidBitSet.previousSetBit(hotPricesRange - 1));
+        return high - low;
     }
 
     /**
-     * Moves buckets from FAR subtree into HOT hashmap and update bitset according the new base price
+     * Re-builds HOT/FAR parts for the new hot window width, centered between best prices.
+     * Hot buckets remaining within new window stay in place (only bitsets are re-built),
+     * hot buckets outside of it are moved to the far trees, then far buckets within new window are moved to hot section.<br/>
+     * Called from newOrder, costs O(W/64 + H + K*log(F)), where W - old window width, H - hot buckets number,
+     * K - number of buckets crossing sections, F - far buckets number.
+     * Adaptation check runs once per HOT_WINDOW_ADAPT_PERIOD lookups, so this cost is amortized over at least that many lookups.
      *
-     * @param fromFar
-     * @param toHot
-     * @param newBitSet
-     * @param newBasePrice
+     * @param newRange - new hot window width
      */
-    private void moveBucketsToHot(SortedMap<Long, IOrdersBucket> fromFar, LongObjectHashMap<IOrdersBucket> toHot, BitSet newBitSet, long newBasePrice) {
-        Iterator<IOrdersBucket> iterator = fromFar.values().iterator();
-        while (iterator.hasNext()) {
-            IOrdersBucket next = iterator.next();
-            iterator.remove();
+    private void resizeHotWindow(final int newRange) {
+
+        log.debug("symbol {}: resizing hot window {}->{} (hot:{} far:{})",
+                symbolSpec.symbolId, hotPricesRange, newRange, hotLookups, farLookups);
+
+        final long oldBasePrice = basePrice;
+        final RollingBitSet oldAskBitSet = hotAskBitSet;
+        final RollingBitSet oldBidBitSet = hotBidBitSet;
+        final int oldRange = hotPricesRange;
+
+        hotPricesRange = newRange;
+        hotAskBitSet = new RollingBitSet(newRange);
+        hotBidBitSet = new RollingBitSet(newRange);
+        hotWindowResizes++;
+
+        final boolean hasAsks = minAskPrice != Long.MAX_VALUE;
+        final boolean hasBids = maxBidPrice != 0;
+        if (!hasAsks && !hasBids) {
+            // next GTC order will define the base price
+            hotAskBuckets.forEachValue(bucket -> farAskBuckets.put(bucket.getPrice(), bucket));
+            hotBidBuckets.forEachValue(bucket -> farBidBuckets.put(bucket.getPrice(), bucket));
+            hotAskBuckets.clear();
+            hotBidBuckets.clear();
+            basePrice = -1;
+            rebalanceThresholdLow = -1;
+            rebalanceThresholdHigh = -1;
+            return;
+        }
+
+        final long centerPrice = (hasAsks && hasBids) ? (minAskPrice + maxBidPrice) / 2 : (hasAsks ? minAskPrice : maxBidPrice);
+        setBasePrice(calculateBasePrice(centerPrice));
+        final long lastHotPrice = basePrice + newRange - 1;
+
+        retainHotBuckets(oldAskBitSet, oldRange, oldBasePrice, hotAskBuckets, farAskBuckets, hotAskBitSet, lastHotPrice);
+        retainHotBuckets(oldBidBitSet, oldRange, oldBasePrice, hotBidBuckets, farBidBuckets, hotBidBitSet, lastHotPrice);
+
+        moveBucketsToHot(farAskBuckets, basePrice, lastHotPrice, hotAskBuckets, hotAskBitSet, basePrice);
+        moveBucketsToHot(farBidBuckets, basePrice, lastHotPrice, hotBidBuckets, hotBidBitSet, basePrice);
+    }
+
+    /**
+     * Walks through hot buckets of one side (using old bitset), marks buckets within new window in new bitset,
+     * moves remaining buckets to the far tree.
+     */
+    private void retainHotBuckets(final RollingBitSet oldBitSet,
+                                  final int oldRange,
+                                  final long oldBasePrice,
+                                  final LongObjectHashMap<IOrdersBucket> hot,
+                                  final LongAvlTreeMap<IOrdersBucket> far,
+                                  final RollingBitSet newBitSet,
+                                  final long lastHotPrice) {
+        int idx = oldBitSet.nextSetBit(0);
+        while (idx != -1) {
+            final long price = oldBasePrice + idx;
+            if (price >= basePrice && price <= lastHotPrice) {
+                newBitSet.set((int) (price - basePrice));
+            } else {
+                far.put(price, hot.remove(price));
+            }
+            idx = (idx + 1 < oldRange) ? oldBitSet.nextSetBit(idx + 1) : -1;
+        }
+    }
+
+    /**
+     * @return hot window statistics snapshot (lookups of the current adaptation period are included)
+     */
+    public HotWindowStats getHotWindowStats() {
+        return new HotWindowStats(
+                symbolSpec.symbolId,
+                hotPricesRange,
+                basePrice,
+                hotLookups + periodHotLookups,
+                farLookups + periodFarLookups,
+                hotWindowResizes,
+                hotAskBuckets.size() + hotBidBuckets.size(),
+                farAskBuckets.size() + farBidBuckets.size());
+    }
+
+    /**
+     * Walks through all buckets (including pooled ones) - not for the hot path.
+     *
+     * @return queues occupancy statistics snapshot
+     */
+    public BucketsStats getBucketsStats() {
+        final BucketsStats.BucketsStatsBuilder builder = BucketsStats.builder()
+                .symbolId(symbolSpec.symbolId)
+                .pooledBuckets(bucketsPool.size())
+                .shrinks(bucketShrinks);
+
+        final int[] counters = new int[5];
+        final Consumer<IOrdersBucket> collector = bucket -> {
+            counters[0]++;
+            counters[1] += bucket.getNumOrders();
+            counters[2] += bucket.getHolesNum();
+            counters[3] += bucket.getQueueCapacity();
+            counters[4] += bucket.getCompactionsNum();
+        };
+        hotAskBuckets.forEach(collector::accept);
+        hotBidBuckets.forEach(collector::accept);
+        farAskBuckets.forEach((price, bucket) -> collector.accept(bucket));
+        farBidBuckets.forEach((price, bucket) -> collector.accept(bucket));
+
+        int pooledCapacity = 0;
+        for (final IOrdersBucket bucket : bucketsPool) {
+            pooledCapacity += bucket.getQueueCapacity();
+            counters[4] += bucket.getCompactionsNum();
+        }
+
+        return builder
+                .buckets(counters[0])
+                .orders(counters[1])
+                .holes(counters[2])
+                .queueCapacity(counters[3])
+                .pooledQueueCapacity(pooledCapacity)
+                .compactions(counters[4])
+                .build();
+    }
+
+    /**
+     * Moves buckets within price range from FAR tree into HOT hashmap and update bitset according the new base price
+     *
+     * @param fromFar      - far buckets tree
+     * @param fromPrice    - lowest price to move (inclusive)
+     * @param toPrice      - highest price to move (inclusive)
+     * @param toHot        - hot buckets hashmap
+     * @param newBitSet    - hot bitset (already shifted)
+     * @param newBasePrice - new base price
+     */
+    private void moveBucketsToHot(LongAvlTreeMap<IOrdersBucket> fromFar, long fromPrice, long toPrice, LongObjectHashMap<IOrdersBucket> toHot, RollingBitSet newBitSet, long newBasePrice) {
+        IOrdersBucket next;
+        while ((next = fromFar.ceilingValue(fromPrice)) != null && next.getPrice() <= toPrice) {
             long price = next.getPrice();
+            fromFar.remove(price);
             toHot.put(price, next);
             int idx = (int) (price - newBasePrice);
             //log.debug("move to hot:{}  idx-set:{}", price, idx);
@@ -735,8 +1184,93 @@ public final class OrderBookFastImpl implements IOrderBook {
         return (bucket != null) ? bucket.findOrder(orderId) : null;
     }
 
+    /**
+     * Apply bucket volume change to L2 cache (or mark corresponding side as dirty) and to L2 delta of the command
+     *
+     * @param cmd    - command changed the bucket
+     * @param action - bucket side
+     * @param bucket - changed bucket (volume is 0 if bucket is going to be removed)
+     */
+    private void updateL2Cache(final OrderCommand cmd, final OrderAction action, final IOrdersBucket bucket) {
+        OrderBookEventsHelper.attachL2Delta(cmd, action, bucket.getPrice(), bucket.getTotalVolume());
+        // volumes index is updated on every bucket volume change (zero volume removes price level)
+        (action == OrderAction.ASK ? askVolumes : bidVolumes).put(bucket.getPrice(), bucket.getTotalVolume());
+        if (action == OrderAction.ASK) {
+            if (!askCacheDirty) {
+                askCacheDirty = !updateCachedLevel(l2Cache.askPrices, l2Cache.askVolumes, l2Cache.askSize, bucket.getPrice(), bucket.getTotalVolume(), false);
+            }
+        } else {
+            if (!bidCacheDirty) {
+                bidCacheDirty = !updateCachedLevel(l2Cache.bidPrices, l2Cache.bidVolumes, l2Cache.bidSize, bucket.getPrice(), bucket.getTotalVolume(), true);
+            }
+        }
+    }
+
+    /**
+     * @return false if cached levels can not be updated in place (cache has to be rebuilt)
+     */
+    private static boolean updateCachedLevel(final long[] prices,
+                                             final long[] volumes,
+                                             final int size,
+                                             final long price,
+                                             final long volume,
+                                             final boolean descending) {
+        int low = 0;
+        int high = size - 1;
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+            final long p = prices[mid];
+            if (p == price) {
+                if (volume == 0) {
+                    // level removed
+                    return false;
+                }
+                volumes[mid] = volume;
+                return true;
+            } else if ((p < price) != descending) {
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+
+        // level is not cached - fine if it is behind the last level of completely filled cache
+        return volume == 0 || (size == prices.length && (descending ? price < prices[size - 1] : price > prices[size - 1]));
+    }
+
     @Override
     public void fillAsks(final int size, L2MarketData data) {
+        if (size > L2_CACHE_DEPTH) {
+            fillAsksFromBuckets(size, data);
+            return;
+        }
+        if (askCacheDirty) {
+            fillAsksFromBuckets(L2_CACHE_DEPTH, l2Cache);
+            askCacheDirty = false;
+        }
+        final int n = Math.min(size, l2Cache.askSize);
+        System.arraycopy(l2Cache.askPrices, 0, data.askPrices, 0, n);
+        System.arraycopy(l2Cache.askVolumes, 0, data.askVolumes, 0, n);
+        data.askSize = n;
+    }
+
+    @Override
+    public void fillBids(final int size, L2MarketData data) {
+        if (size > L2_CACHE_DEPTH) {
+            fillBidsFromBuckets(size, data);
+            return;
+        }
+        if (bidCacheDirty) {
+            fillBidsFromBuckets(L2_CACHE_DEPTH, l2Cache);
+            bidCacheDirty = false;
+        }
+        final int n = Math.min(size, l2Cache.bidSize);
+        System.arraycopy(l2Cache.bidPrices, 0, data.bidPrices, 0, n);
+        System.arraycopy(l2Cache.bidVolumes, 0, data.bidVolumes, 0, n);
+        data.bidSize = n;
+    }
+
+    private void fillAsksFromBuckets(final int size, L2MarketData data) {
         if (minAskPrice == Long.MAX_VALUE || size == 0) {
             data.askSize = 0;
             return;
@@ -759,21 +1293,22 @@ public final class OrderBookFastImpl implements IOrderBook {
         }
 
         // extracting buckets from far trees
-        for (IOrdersBucket bucket : farAskBuckets.values()) {
+        IOrdersBucket bucket = farAskBuckets.firstValue();
+        while (bucket != null) {
             data.askPrices[i] = bucket.getPrice();
             data.askVolumes[i] = bucket.getTotalVolume();
             if (++i == size) {
                 data.askSize = size;
                 return;
             }
+            bucket = farAskBuckets.higherValue(bucket.getPrice());
         }
 
         // not filled completely
         data.askSize = i;
     }
 
-    @Override
-    public void fillBids(final int size, L2MarketData data) {
+    private void fillBidsFromBuckets(final int size, L2MarketData data) {
 
         if (maxBidPrice == 0 || size == 0) {
             data.bidSize = 0;
@@ -797,15 +1332,16 @@ public final class OrderBookFastImpl implements IOrderBook {
             }
         }
 
-        // extracting buckets from far trees
-        // note: farBidBuckets is in reversed order
-        for (IOrdersBucket bucket : farBidBuckets.values()) {
+        // extracting buckets from far trees (descending order for bids)
+        IOrdersBucket bucket = farBidBuckets.lastValue();
+        while (bucket != null) {
             data.bidPrices[i] = bucket.getPrice();
             data.bidVolumes[i] = bucket.getTotalVolume();
             if (++i == size) {
                 data.bidSize = size;
                 return;
             }
+            bucket = farBidBuckets.lowerValue(bucket.getPrice());
         }
 
         // not filled completely
@@ -877,10 +1413,10 @@ public final class OrderBookFastImpl implements IOrderBook {
         }
 
         if (!farBidBuckets.isEmpty()) {
-            if (farBidBuckets.firstKey() >= basePrice) {
+            if (farBidBuckets.lastKey() >= basePrice) {
                 throw new IllegalStateException("Far bid bucket price is inside hot area!");
             }
-            if (hotBidBuckets.isEmpty() && farBidBuckets.firstKey() != maxBidPrice) {
+            if (hotBidBuckets.isEmpty() && farBidBuckets.lastKey() != maxBidPrice) {
                 throw new IllegalStateException("incorrect maxBidPrice (expected inside far area)!");
             }
         }
@@ -904,13 +1440,57 @@ public final class OrderBookFastImpl implements IOrderBook {
             throw new IllegalStateException(String.format("AH:%d + AF:%d + BH:%d + BF:%d != knownOrders %d ", ah, af, bh, bf, idMapToBucket.size()));
         }
 
+        userOrdersIndex.validate(idMapToBucket.size());
+
         // validateInternalState each bucket
         hotAskBuckets.stream().forEach(IOrdersBucket::validate);
         hotBidBuckets.stream().forEach(IOrdersBucket::validate);
 
+        farAskBuckets.validate();
+        farBidBuckets.validate();
+
+        // all buckets (including pooled ones) are created with configured implementation
+        Stream.of(hotAskBuckets.stream(), hotBidBuckets.stream(), farAskBuckets.values().stream(),
+                farBidBuckets.values().stream(), bucketsPool.stream())
+                .flatMap(s -> s)
+                .filter(bucket -> bucket.getImplementationType() != bucketImplType)
+                .findAny()
+                .ifPresent(bucket -> {
+                    throw new IllegalStateException("expected " + bucketImplType + " bucket implementation: " + bucket);
+                });
+
+        // check price levels volumes index
+        askVolumes.validate();
+        bidVolumes.validate();
+        checkVolumesIndex(askVolumes, hotAskBuckets.values(), farAskBuckets.values());
+        checkVolumesIndex(bidVolumes, hotBidBuckets.values(), farBidBuckets.values());
+
+        // check L2 cache is consistent with buckets
+        final L2MarketData actual = new L2MarketData(L2_CACHE_DEPTH, L2_CACHE_DEPTH);
+        fillAsksFromBuckets(L2_CACHE_DEPTH, actual);
+        fillBidsFromBuckets(L2_CACHE_DEPTH, actual);
+        if (!askCacheDirty && (!Arrays.equals(l2Cache.getAskPricesCopy(), actual.getAskPricesCopy())
+                || !Arrays.equals(l2Cache.getAskVolumesCopy(), actual.getAskVolumesCopy()))) {
+            throw new IllegalStateException("ASK L2 cache differs from buckets");
+        }
+        if (!bidCacheDirty && (!Arrays.equals(l2Cache.getBidPricesCopy(), actual.getBidPricesCopy())
+                || !Arrays.equals(l2Cache.getBidVolumesCopy(), actual.getBidVolumesCopy()))) {
+            throw new IllegalStateException("BID L2 cache differs from buckets");
+        }
+
+        IOrderBook.validateOrdersHash(this, ordersHash);
+        stopOrders.validate();
+        callAuction.validate();
+        quotes.validate();
+
         // TODO validateInternalState - orderid maps
     }
 
+    @Override
+    public int stateHash() {
+        return IOrderBook.stateHash(ordersHash, stopOrders, callAuction, quotes, symbolSpec);
+    }
+
     @Override
     public OrderBookImplType getImplementationType() {
         return OrderBookImplType.FAST;
@@ -918,17 +1498,7 @@ public final class OrderBookFastImpl implements IOrderBook {
 
     @Override
     public List<Order> findUserOrders(final long uid) {
-        List<Order> list = new ArrayList<>();
-        Consumer<IOrdersBucket> bucketConsumer = bucket -> bucket.forEachOrder(order -> {
-            if (order.uid == uid) {
-                list.add(order);
-            }
-        });
-        hotAskBuckets.stream().forEach(bucketConsumer);
-        hotBidBuckets.stream().forEach(bucketConsumer);
-        farAskBuckets.values().forEach(bucketConsumer);
-        farBidBuckets.values().forEach(bucketConsumer);
-        return list;
+        return userOrdersIndex.findUserOrders(uid);
     }
 
     private void checkNoSameOrdersInHotAndFar(Set<Long> hot, Set<Long> far) {
@@ -953,6 +1523,19 @@ public final class OrderBookFastImpl implements IOrderBook {
         }).collect(Collectors.joining());
     }
 
+    private static void checkVolumesIndex(final LongSumTreeMap volumes,
+                                          final Collection<IOrdersBucket> hotBuckets,
+                                          final Collection<IOrdersBucket> farBuckets) {
+        if (volumes.size() != hotBuckets.size() + farBuckets.size()) {
+            throw new IllegalStateException("volumes index size " + volumes.size() + " differs from buckets number");
+        }
+        Stream.concat(hotBuckets.stream(), farBuckets.stream()).forEach(bucket -> {
+            if (volumes.get(bucket.getPrice()) != bucket.getTotalVolume()) {
+                throw new IllegalStateException("volumes index differs from bucket " + bucket);
+            }
+        });
+    }
+
     private Set<Long> dumpAllOrdersIds(Collection<IOrdersBucket> buckets) {
         List<Long> asList = buckets.stream()
                 .flatMap(bucket -> bucket.getAllOrders().stream())
@@ -971,20 +1554,115 @@ public final class OrderBookFastImpl implements IOrderBook {
         return symbolSpec;
     }
 
+    @Override
+    public StopOrdersIndex getStopOrders() {
+        return stopOrders;
+    }
+
+    @Override
+    public CallAuction getCallAuction() {
+        return callAuction;
+    }
+
+    @Override
+    public QuotesIndex getQuotes() {
+        return quotes;
+    }
+
     @Override
     public Stream<Order> askOrdersStream(final boolean sorted) {
-        // TODO sorted version is slow
-        final Stream<IOrdersBucket> hotStream = sorted ? hotAskBuckets.toSortedList().stream() : hotAskBuckets.stream();
-        return Stream.concat(hotStream, farAskBuckets.values().stream())
-                .flatMap(bucket -> bucket.getAllOrders().stream());
+        final Stream<IOrdersBucket> buckets = sorted
+                ? sortedBucketsStream(true)
+                : Stream.concat(hotAskBuckets.stream(), farAskBuckets.values().stream());
+        return buckets.flatMap(bucket -> bucket.getAllOrders().stream());
     }
 
     @Override
     public Stream<Order> bidOrdersStream(final boolean sorted) {
-        // TODO sorted version is slow
-        final Stream<IOrdersBucket> hotStream = sorted ? hotBidBuckets.toSortedList().reverseThis().stream() : hotBidBuckets.stream();
-        return Stream.concat(hotStream, farBidBuckets.values().stream())
-                .flatMap(bucket -> bucket.getAllOrders().stream());
+        final Stream<IOrdersBucket> buckets = sorted
+                ? sortedBucketsStream(false)
+                : Stream.concat(hotBidBuckets.stream(), farBidBuckets.values().stream());
+        return buckets.flatMap(bucket -> bucket.getAllOrders().stream());
+    }
+
+    /**
+     * Garbage-free, buckets are visited one by one (no sorted copies)
+     */
+    @Override
+    public void forEachOrder(final OrderAction side, final boolean sorted, final Consumer<Order> consumer) {
+        final boolean ask = side == OrderAction.ASK;
+        if (sorted) {
+            for (IOrdersBucket bucket = nextSortedBucket(ask, null); bucket != null; bucket = nextSortedBucket(ask, bucket)) {
+                bucket.forEachOrder(consumer);
+            }
+        } else if (ask) {
+            hotAskBuckets.forEachValue(bucket -> bucket.forEachOrder(consumer));
+            farAskBuckets.forEach((price, bucket) -> bucket.forEachOrder(consumer));
+        } else {
+            hotBidBuckets.forEachValue(bucket -> bucket.forEachOrder(consumer));
+            farBidBuckets.forEach((price, bucket) -> bucket.forEachOrder(consumer));
+        }
+    }
+
+    /**
+     * Lazy stream of buckets, best price first.
+     * Each step is a search in hot bitset and far tree, so no sorted copies of hot/far sections are made.
+     */
+    private Stream<IOrdersBucket> sortedBucketsStream(final boolean ask) {
+        final Iterator<IOrdersBucket> iterator = new Iterator<IOrdersBucket>() {
+            private IOrdersBucket next = nextSortedBucket(ask, null);
+
+            @Override
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            @Override
+            public IOrdersBucket next() {
+                if (next == null) {
+                    throw new NoSuchElementException();
+                }
+                final IOrdersBucket bucket = next;
+                next = nextSortedBucket(ask, bucket);
+                return bucket;
+            }
+        };
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(iterator, Spliterator.ORDERED | Spliterator.NONNULL), false);
+    }
+
+    /**
+     * Finds bucket following specified one in price priority order (ascending for asks, descending for bids).
+     * Does not rely on any specific layout of hot and far sections, both are searched.
+     * Does not count lookup statistics.
+     *
+     * @param ask      - side
+     * @param previous - previous bucket, or null to get the best one
+     * @return next bucket or null if there are no more buckets
+     */
+    private IOrdersBucket nextSortedBucket(final boolean ask, final IOrdersBucket previous) {
+        if (ask) {
+            final long after = previous == null ? Long.MIN_VALUE : previous.getPrice();
+            final IOrdersBucket far = farAskBuckets.higherValue(after);
+            IOrdersBucket hot = null;
+            if (basePrice != -1 && after < basePrice + hotPricesRange - 1) {
+                final int idx = hotAskBitSet.nextSetBit(after < basePrice ? 0 : priceToIndex(after) + 1);
+                if (idx != -1) {
+                    hot = hotAskBuckets.get(indexToPrice(idx));
+                }
+            }
+            return (far == null || (hot != null && hot.getPrice() < far.getPrice())) ? hot : far;
+        } else {
+            final long before = previous == null ? Long.MAX_VALUE : previous.getPrice();
+            final IOrdersBucket far = farBidBuckets.lowerValue(before);
+            IOrdersBucket hot = null;
+            if (basePrice != -1 && before > basePrice) {
+                final int idx = hotBidBitSet.previousSetBit(priceToIndex(before) - 1);
+                if (idx != -1) {
+                    hot = hotBidBuckets.get(indexToPrice(idx));
+                }
+            }
+            return (far == null || (hot != null && hot.getPrice() > far.getPrice())) ? hot : far;
+        }
     }
 
 
@@ -1008,7 +1686,7 @@ public final class OrderBookFastImpl implements IOrderBook {
     }
 
     private IOrdersBucket[] getBidsAsArray() {
-        final IOrdersBucket[] farBids = farBidBuckets.values().toArray(new IOrdersBucket[0]);
+        final IOrdersBucket[] farBids = farBidBuckets.descendingValues().toArray(new IOrdersBucket[0]);
         final IOrdersBucket[] hotBids = hotBidBuckets.toSortedMap(k -> k, v -> v).values().toArray(new IOrdersBucket[hotBidBuckets.size()]);
         ArrayUtils.reverse(hotBids);
         return ObjectArrays.concat(hotBids, farBids, IOrdersBucket.class);
@@ -1024,10 +1702,13 @@ public final class OrderBookFastImpl implements IOrderBook {
     public void writeMarshallable(BytesOut bytes) {
         bytes.writeByte(getImplementationType().getCode());
         symbolSpec.writeMarshallable(bytes);
+        bytes.writeByte(bucketImplType.getCode());
         bytes.writeInt(hotPricesRange);
+        bytes.writeInt(minHotPricesRange);
+        bytes.writeInt(maxHotPricesRange);
 
-        SerializationUtils.marshallBitSet(hotAskBitSet, bytes);
-        SerializationUtils.marshallBitSet(hotBidBitSet, bytes);
+        SerializationUtils.marshallRollingBitSet(hotAskBitSet, bytes);
+        SerializationUtils.marshallRollingBitSet(hotBidBitSet, bytes);
 
         SerializationUtils.marshallLongHashMap(hotAskBuckets, bytes);
         SerializationUtils.marshallLongHashMap(hotBidBuckets, bytes);
@@ -1039,8 +1720,18 @@ public final class OrderBookFastImpl implements IOrderBook {
         bytes.writeLong(rebalanceThresholdLow);
         bytes.writeLong(rebalanceThresholdHigh);
 
-        SerializationUtils.marshallLongMap(farAskBuckets, bytes);
-        SerializationUtils.marshallLongMap(farBidBuckets, bytes);
+        SerializationUtils.marshallLongAvlTreeMap(farAskBuckets, bytes);
+        SerializationUtils.marshallLongAvlTreeMap(farBidBuckets, bytes);
+
+        bytes.writeLong(hotLookups);
+        bytes.writeLong(farLookups);
+        bytes.writeInt(periodHotLookups);
+        bytes.writeInt(periodFarLookups);
+        bytes.writeInt(hotWindowResizes);
+
+        stopOrders.writeMarshallable(bytes);
+        callAuction.writeMarshallable(bytes);
+        quotes.writeMarshallable(bytes);
     }
 
     @Override
@@ -18,6 +18,7 @@ package exchange.core2.core.orderbook;
 import exchange.core2.core.common.*;
 import exchange.core2.core.common.cmd.CommandResultCode;
 import exchange.core2.core.common.cmd.OrderCommand;
+import exchange.core2.core.utils.CoreArithmeticUtils;
 import exchange.core2.core.utils.SerializationUtils;
 import lombok.extern.slf4j.Slf4j;
 import net.openhft.chronicle.bytes.BytesIn;
@@ -26,6 +27,7 @@ import org.eclipse.collections.impl.map.mutable.primitive.LongObjectHashMap;
 
 import java.util.*;
 import java.util.function.Consumer;
+import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 @Slf4j
@@ -38,25 +40,48 @@ public final class OrderBookNaiveImpl implements IOrderBook {
 
     private final LongObjectHashMap<Order> idMap = new LongObjectHashMap<>();
 
+    // uid -> orders index
+    private final UserOrdersIndex userOrdersIndex = new UserOrdersIndex();
+
+    // incrementally maintained sum of resting orders hashes (see IOrderBook.orderHash)
+    private long ordersHash = 0;
+
+    // pending stop orders
+    private final StopOrdersIndex stopOrders;
+    private final CallAuction callAuction;
+    private final QuotesIndex quotes;
+
     public OrderBookNaiveImpl(final CoreSymbolSpecification symbolSpec) {
         this.symbolSpec = symbolSpec;
         this.askBuckets = new TreeMap<>();
         this.bidBuckets = new TreeMap<>(Collections.reverseOrder());
+        this.stopOrders = new StopOrdersIndex();
+        this.callAuction = new CallAuction();
+        this.quotes = new QuotesIndex();
     }
 
     public OrderBookNaiveImpl(final BytesIn bytes) {
         this.symbolSpec = new CoreSymbolSpecification(bytes);
         this.askBuckets = SerializationUtils.readLongMap(bytes, TreeMap::new, IOrdersBucket::create);
         this.bidBuckets = SerializationUtils.readLongMap(bytes, () -> new TreeMap<>(Collections.reverseOrder()), IOrdersBucket::create);
+        this.stopOrders = new StopOrdersIndex(bytes);
+        this.callAuction = new CallAuction(bytes);
+        this.quotes = new QuotesIndex(bytes);
 
         // reconstruct ordersId-> Order cache
         // TODO check resulting performance
-        askBuckets.values().forEach(bucket -> bucket.forEachOrder(order -> idMap.put(order.orderId, order)));
-        bidBuckets.values().forEach(bucket -> bucket.forEachOrder(order -> idMap.put(order.orderId, order)));
+        askBuckets.values().forEach(bucket -> bucket.forEachOrder(this::indexOrder));
+        bidBuckets.values().forEach(bucket -> bucket.forEachOrder(this::indexOrder));
 
         //validateInternalState();
     }
 
+    private void indexOrder(final Order order) {
+        idMap.put(order.orderId, order);
+        userOrdersIndex.add(order);
+        ordersHash += IOrderBook.orderHash(order);
+    }
+
     @Override
     public CommandResultCode newOrder(OrderCommand cmd) {
 
@@ -65,6 +90,17 @@ public final class OrderBookNaiveImpl implements IOrderBook {
         final long price = cmd.price;
         final long size = cmd.size;
 
+        if (orderType == OrderType.IOC_BUDGET) {
+            matchBudgetOrder(cmd);
+            return CommandResultCode.SUCCESS;
+        }
+
+        // FOK order is rejected without matching if there is not enough liquidity within its limit price
+        if (orderType == OrderType.FOK && availableVolume(cmd, size) < size) {
+            OrderBookEventsHelper.attachRejectEvent(cmd, size);
+            return CommandResultCode.SUCCESS;
+        }
+
         // check if order is marketable (if there are opposite matching orders)
         long filledSize = tryMatchInstantly(cmd, subtreeForMatching(action, price), 0, cmd);
         if (filledSize == size) {
@@ -73,7 +109,7 @@ public final class OrderBookNaiveImpl implements IOrderBook {
 
         }
 
-        if (orderType == OrderType.IOC) {
+        if (orderType != OrderType.GTC && orderType != OrderType.GTD) {
             OrderBookEventsHelper.attachRejectEvent(cmd, cmd.size - filledSize);
             return CommandResultCode.SUCCESS;
         }
@@ -106,12 +142,83 @@ public final class OrderBookNaiveImpl implements IOrderBook {
                     return b;
                 });
         bucket.put(orderRecord);
+        OrderBookEventsHelper.attachL2Delta(cmd, action, price, bucket.getTotalVolume());
 
-        idMap.put(newOrderId, orderRecord);
+        indexOrder(orderRecord);
 
         return CommandResultCode.SUCCESS;
     }
 
+    /**
+     * Match budget order (BID only): each price level is matched up to the volume affordable for the remaining budget.
+     * Unmatched size is rejected only if liquidity within limit price is exhausted before the budget.
+     */
+    private void matchBudgetOrder(final OrderCommand cmd) {
+
+        final long size = cmd.size;
+        if (cmd.action != OrderAction.BID) {
+            OrderBookEventsHelper.attachRejectEvent(cmd, size);
+            return;
+        }
+
+        long budget = cmd.budget;
+        long filled = 0;
+        boolean budgetSpent = false;
+
+        final SortedMap<Long, IOrdersBucket> matchingBuckets = subtreeForMatching(cmd.action, cmd.price);
+        final List<Long> emptyBuckets = new ArrayList<>();
+        for (final IOrdersBucket bucket : matchingBuckets.values()) {
+
+            final long affordable = CoreArithmeticUtils.calculateBudgetSize(budget, bucket.getPrice(), symbolSpec);
+            if (affordable == 0) {
+                budgetSpent = true;
+                break;
+            }
+
+            final long matched = bucket.match(Math.min(size - filled, affordable), cmd, cmd, this::removeFullyMatchedOrder);
+            filled += matched;
+            budget -= CoreArithmeticUtils.calculateAmountBidTakerFee(matched, bucket.getPrice(), symbolSpec);
+            ordersHash += matched * FILLED_HASH_FACTOR;
+            OrderBookEventsHelper.attachL2Delta(cmd, OrderAction.ASK, bucket.getPrice(), bucket.getTotalVolume());
+
+            if (bucket.getTotalVolume() == 0) {
+                emptyBuckets.add(bucket.getPrice());
+            }
+            if (matched == affordable) {
+                // remaining budget is not enough for one more lot even at this price
+                budgetSpent = true;
+                break;
+            }
+            if (filled == size) {
+                break;
+            }
+        }
+        emptyBuckets.forEach(matchingBuckets::remove);
+
+        final boolean completed = budgetSpent || filled == size;
+        OrderBookEventsHelper.completeBudgetOrderEvents(cmd, completed);
+        if (!completed) {
+            OrderBookEventsHelper.attachRejectEvent(cmd, size - filled);
+        }
+    }
+
+    /**
+     * Scans opposite buckets within limit price, own orders of the user are excluded
+     *
+     * @return volume that can be matched, scanning stops when requiredSize is reached
+     */
+    private long availableVolume(final OrderCommand cmd, final long requiredSize) {
+        final long ownVolume = userOrdersIndex.remainingVolumeWithinLimit(cmd.uid, cmd.action.opposite(), cmd.price);
+        long volume = 0;
+        for (final IOrdersBucket bucket : subtreeForMatching(cmd.action, cmd.price).values()) {
+            volume += bucket.getTotalVolume();
+            if (volume - ownVolume >= requiredSize) {
+                break;
+            }
+        }
+        return volume - ownVolume;
+    }
+
     private SortedMap<Long, IOrdersBucket> subtreeForMatching(OrderAction action, long price) {
         return (action == OrderAction.ASK ? bidBuckets : askBuckets)
                 .headMap(price, true);
@@ -152,7 +259,10 @@ public final class OrderBookNaiveImpl implements IOrderBook {
 
             final long sizeLeft = orderSize - filled;
 
-            filled += bucket.match(sizeLeft, activeOrder, triggerCmd, this::removeFullyMatchedOrder);
+            final long matched = bucket.match(sizeLeft, activeOrder, triggerCmd, this::removeFullyMatchedOrder);
+            filled += matched;
+            ordersHash += matched * FILLED_HASH_FACTOR;
+            OrderBookEventsHelper.attachL2Delta(triggerCmd, activeOrder.getAction().opposite(), bucket.getPrice(), bucket.getTotalVolume());
 
 //            log.debug("Matching orders: {}", matchingOrders);
 //            log.debug("order.filled: {}", activeOrder.filled);
@@ -182,6 +292,8 @@ public final class OrderBookNaiveImpl implements IOrderBook {
 
     private void removeFullyMatchedOrder(Order mOrder) {
         idMap.remove(mOrder.orderId);
+        userOrdersIndex.remove(mOrder);
+        ordersHash -= IOrderBook.orderHash(mOrder);
     }
 
     /**
@@ -200,8 +312,26 @@ public final class OrderBookNaiveImpl implements IOrderBook {
             return false;
         }
 
+        cancelRestingOrder(cmd, order);
+        return true;
+    }
+
+    @Override
+    public int massCancel(OrderCommand cmd) {
+        final List<Order> orders = (cmd.uid != 0)
+                ? userOrdersIndex.findUserOrders(cmd.uid)
+                : Stream.concat(askOrdersStream(false), bidOrdersStream(false)).collect(Collectors.toList());
+        orders.forEach(order -> cancelRestingOrder(cmd, order));
+        return orders.size();
+    }
+
+    private void cancelRestingOrder(OrderCommand cmd, Order order) {
+        final long orderId = order.orderId;
+
         // now can remove it
         idMap.remove(orderId);
+        userOrdersIndex.remove(order);
+        ordersHash -= IOrderBook.orderHash(order);
 
         NavigableMap<Long, IOrdersBucket> buckets = getBucketsByAction(order.action);
         long price = order.price;
@@ -212,15 +342,14 @@ public final class OrderBookNaiveImpl implements IOrderBook {
         }
 
         // remove order and whole bucket if its empty
-        ordersBucket.remove(orderId, cmd.uid);
+        ordersBucket.remove(orderId, order.uid);
+        OrderBookEventsHelper.attachL2Delta(cmd, order.action, price, ordersBucket.getTotalVolume());
         if (ordersBucket.getTotalVolume() == 0) {
             buckets.remove(price);
         }
 
         // send cancel event
         OrderBookEventsHelper.sendCancelEvent(cmd, order);
-
-        return true;
     }
 
     @Override
@@ -254,6 +383,8 @@ public final class OrderBookNaiveImpl implements IOrderBook {
 
         // take order out of the original bucket and clean bucket if its empty
         bucket.remove(orderId, cmd.uid);
+        ordersHash -= IOrderBook.orderHash(order);
+        OrderBookEventsHelper.attachL2Delta(cmd, order.action, price, bucket.getTotalVolume());
         if (bucket.getTotalVolume() == 0) {
             buckets.remove(price);
         }
@@ -266,6 +397,7 @@ public final class OrderBookNaiveImpl implements IOrderBook {
         if (filled == order.size) {
             // order was fully matched (100% marketable) - removing from order book
             idMap.remove(orderId);
+            userOrdersIndex.remove(order);
             return CommandResultCode.SUCCESS;
         }
         order.filled = filled;
@@ -277,6 +409,8 @@ public final class OrderBookNaiveImpl implements IOrderBook {
             return b;
         });
         anotherBucket.put(order);
+        ordersHash += IOrderBook.orderHash(order);
+        OrderBookEventsHelper.attachL2Delta(cmd, order.action, newPrice, anotherBucket.getTotalVolume());
 
         return CommandResultCode.SUCCESS;
     }
@@ -353,6 +487,16 @@ public final class OrderBookNaiveImpl implements IOrderBook {
     public void validateInternalState() {
         askBuckets.values().forEach(IOrdersBucket::validate);
         bidBuckets.values().forEach(IOrdersBucket::validate);
+        userOrdersIndex.validate(idMap.size());
+        IOrderBook.validateOrdersHash(this, ordersHash);
+        stopOrders.validate();
+        callAuction.validate();
+        quotes.validate();
+    }
+
+    @Override
+    public int stateHash() {
+        return IOrderBook.stateHash(ordersHash, stopOrders, callAuction, quotes, symbolSpec);
     }
 
     @Override
@@ -362,15 +506,7 @@ public final class OrderBookNaiveImpl implements IOrderBook {
 
     @Override
     public List<Order> findUserOrders(final long uid) {
-        List<Order> list = new ArrayList<>();
-        Consumer<IOrdersBucket> bucketConsumer = bucket -> bucket.forEachOrder(order -> {
-            if (order.uid == uid) {
-                list.add(order);
-            }
-        });
-        askBuckets.values().forEach(bucketConsumer);
-        bidBuckets.values().forEach(bucketConsumer);
-        return list;
+        return userOrdersIndex.findUserOrders(uid);
     }
 
     @Override
@@ -378,6 +514,21 @@ public final class OrderBookNaiveImpl implements IOrderBook {
         return symbolSpec;
     }
 
+    @Override
+    public StopOrdersIndex getStopOrders() {
+        return stopOrders;
+    }
+
+    @Override
+    public CallAuction getCallAuction() {
+        return callAuction;
+    }
+
+    @Override
+    public QuotesIndex getQuotes() {
+        return quotes;
+    }
+
     @Override
     public Stream<Order> askOrdersStream(final boolean sorted) {
         return askBuckets.values().stream().flatMap(bucket -> bucket.getAllOrders().stream());
@@ -388,6 +539,12 @@ public final class OrderBookNaiveImpl implements IOrderBook {
         return bidBuckets.values().stream().flatMap(bucket -> bucket.getAllOrders().stream());
     }
 
+    @Override
+    public void forEachOrder(final OrderAction side, final boolean sorted, final Consumer<Order> consumer) {
+        // buckets maps are always sorted
+        (side == OrderAction.ASK ? askBuckets : bidBuckets).values().forEach(bucket -> bucket.forEachOrder(consumer));
+    }
+
     // for testing only
     @Override
     public int getOrdersNum() {
@@ -408,6 +565,9 @@ public final class OrderBookNaiveImpl implements IOrderBook {
         symbolSpec.writeMarshallable(bytes);
         SerializationUtils.marshallLongMap(askBuckets, bytes);
         SerializationUtils.marshallLongMap(bidBuckets, bytes);
+        stopOrders.writeMarshallable(bytes);
+        callAuction.writeMarshallable(bytes);
+        quotes.writeMarshallable(bytes);
     }
 
     @Override
@@ -27,7 +27,6 @@ import net.openhft.chronicle.bytes.BytesIn;
 import net.openhft.chronicle.bytes.BytesOut;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.builder.EqualsBuilder;
-import org.eclipse.collections.api.map.primitive.MutableLongIntMap;
 import org.eclipse.collections.impl.map.mutable.primitive.LongIntHashMap;
 
 import java.util.Arrays;
@@ -42,6 +41,10 @@ import java.util.function.Consumer;
  * <p>
  * Orders are stored in resizable queue array.<br/>
  * Queue is indexed by hashmap for fast cancel/update operations.<br/>
+ * <p>
+ * Cancelled orders leave holes (nulls) in the queue. Holes at the head are skipped immediately,
+ * and queue is re-packed into a smaller dense buffer when holes are more than a half of it.
+ * Buffers of recycled (empty) buckets are shrunk back to initial size.
  */
 @Slf4j
 @ToString
@@ -49,11 +52,17 @@ public final class OrdersBucketFastImpl implements IOrdersBucket {
 
     private static final int INITIAL_QUEUE_SIZE = 4;
 
+    // smaller queues are not compacted (holes are cheap to skip)
+    static final int COMPACTION_MIN_QUEUE_SIZE = 32;
+
+    // larger buffers are not kept by recycled buckets
+    static final int RECYCLE_MAX_QUEUE_LENGTH = 64;
+
     @Getter
     @Setter
     private long price;
 
-    private final MutableLongIntMap positions;
+    private final LongIntHashMap positions;
 
     private Order[] queue;
 
@@ -65,6 +74,11 @@ public final class OrdersBucketFastImpl implements IOrdersBucket {
     @Getter
     private long totalVolume = 0;
 
+    // statistics only (not serialized)
+    @Getter
+    @ToString.Exclude
+    private int compactionsNum = 0;
+
     public OrdersBucketFastImpl() {
         this.positions = new LongIntHashMap();
         this.queue = new Order[INITIAL_QUEUE_SIZE];
@@ -118,8 +132,16 @@ public final class OrdersBucketFastImpl implements IOrdersBucket {
     }
 
     private void upsizeBuffer() {
-        int oldLength = queue.length;
-        Order[] array2 = new Order[oldLength * 2];
+        resizeBuffer(queue.length * 2);
+    }
+
+    /**
+     * Move all orders into new buffer (starting from position 0, without holes)
+     *
+     * @param newLength - new buffer length, should be greater than number of orders
+     */
+    private void resizeBuffer(int newLength) {
+        Order[] array2 = new Order[newLength];
         int tail2 = 0;
         int left = realSize;
 
@@ -143,7 +165,18 @@ public final class OrdersBucketFastImpl implements IOrdersBucket {
         queue = array2;
         head = 0;
         tail = tail2;
+        queueSize = realSize;
+    }
 
+    /**
+     * Re-pack queue if more than a half of it is holes,
+     * new buffer is 2-4 times larger than number of orders (not larger than existing buffer).
+     */
+    private void compactIfSparse() {
+        if (queueSize >= COMPACTION_MIN_QUEUE_SIZE && queueSize - realSize > realSize) {
+            resizeBuffer(Math.min(queue.length, Math.max(INITIAL_QUEUE_SIZE, Integer.highestOneBit(realSize) << 2)));
+            compactionsNum++;
+        }
     }
 
 
@@ -178,6 +211,14 @@ public final class OrdersBucketFastImpl implements IOrdersBucket {
 //        assert totalVolume >= 0;
         realSize--;
 
+        // skip holes at the head
+        while (queueSize > 0 && queue[head] == null) {
+            head = inc(head);
+            queueSize--;
+        }
+
+        compactIfSparse();
+
         //validate();
         return order;
     }
@@ -263,6 +304,11 @@ public final class OrdersBucketFastImpl implements IOrdersBucket {
             queueSize += queue.length;
         }
 
+        // holes can be left behind own orders
+        if (ownOrderBarrier != -1) {
+            compactIfSparse();
+        }
+
         //validate();
 
         return totalMatchingVolume;
@@ -342,6 +388,29 @@ public final class OrdersBucketFastImpl implements IOrdersBucket {
         return OrderBucketImplType.FAST;
     }
 
+    @Override
+    public int getHolesNum() {
+        return queueSize - realSize;
+    }
+
+    @Override
+    public int getQueueCapacity() {
+        return queue.length;
+    }
+
+    @Override
+    public boolean recycle() {
+        head = 0;
+        tail = 0;
+        queueSize = 0;
+        if (queue.length > RECYCLE_MAX_QUEUE_LENGTH) {
+            queue = new Order[INITIAL_QUEUE_SIZE];
+            positions.compact();
+            return true;
+        }
+        return false;
+    }
+
     private void printSchema() {
         StringBuilder s = new StringBuilder();
         for (Order order : queue) {
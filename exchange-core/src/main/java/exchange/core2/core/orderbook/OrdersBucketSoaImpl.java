@@ -0,0 +1,489 @@
+/*
+ * Copyright 2019 Maksim Zheravin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package exchange.core2.core.orderbook;
+
+import exchange.core2.core.common.IOrder;
+import exchange.core2.core.common.Order;
+import exchange.core2.core.common.cmd.OrderCommand;
+import exchange.core2.core.utils.SerializationUtils;
+import lombok.Getter;
+import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
+import net.openhft.chronicle.bytes.BytesIn;
+import net.openhft.chronicle.bytes.BytesOut;
+import org.apache.commons.lang3.builder.EqualsBuilder;
+import org.eclipse.collections.impl.map.mutable.primitive.LongIntHashMap;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Struct-of-arrays version of Order Bucket.<br/>
+ * Same resizable queue and positions index as in {@link OrdersBucketFastImpl},
+ * but order fields used by matching (orderId, uid, size, filled, reserveBidPrice)
+ * are kept in parallel primitive arrays, so matching loop scans contiguous memory.<br/>
+ * <p>
+ * Order objects are still referenced (owned by order book, linked into user index),
+ * so matching fields are duplicated: each queue slot costs 48 bytes (reference + 5 longs)
+ * instead of 8 bytes in {@link OrdersBucketFastImpl}, on top of the Order object itself.<br/>
+ * Matching loop touches Order object only when order is fully matched (before removal)
+ * and once for the last partially filled order, so order fields are in sync with arrays between calls.
+ * <p>
+ * Holes compaction and recycled buffers shrinking policies are the same as in {@link OrdersBucketFastImpl}.
+ */
+@Slf4j
+public final class OrdersBucketSoaImpl implements IOrdersBucket {
+
+    private static final int INITIAL_QUEUE_SIZE = 4;
+
+    @Getter
+    @Setter
+    private long price;
+
+    private final LongIntHashMap positions;
+
+    private Order[] orders;
+    private long[] orderIds;
+    private long[] uids;
+    private long[] sizes;
+    private long[] filled;
+    private long[] reserveBidPrices;
+
+    private int tail = 0;
+    private int head = 0;
+    private int queueSize = 0;
+    private int realSize = 0;
+
+    @Getter
+    private long totalVolume = 0;
+
+    // statistics only (not serialized)
+    @Getter
+    private int compactionsNum = 0;
+
+    public OrdersBucketSoaImpl() {
+        this.positions = new LongIntHashMap();
+        allocateArrays(INITIAL_QUEUE_SIZE);
+    }
+
+    public OrdersBucketSoaImpl(BytesIn bytes) {
+
+        this.price = bytes.readLong();
+        this.positions = SerializationUtils.readLongIntHashMap(bytes);
+
+        int length = bytes.readInt();
+        int count = bytes.readInt();
+
+        allocateArrays(length);
+        for (int i = 0; i < count; i++) {
+            int pos = bytes.readInt();
+            setSlot(pos, new Order(bytes));
+        }
+
+        this.tail = bytes.readInt();
+        this.head = bytes.readInt();
+        this.queueSize = bytes.readInt();
+        this.realSize = bytes.readInt();
+        this.totalVolume = bytes.readLong();
+    }
+
+    private void allocateArrays(int length) {
+        orders = new Order[length];
+        orderIds = new long[length];
+        uids = new long[length];
+        sizes = new long[length];
+        filled = new long[length];
+        reserveBidPrices = new long[length];
+    }
+
+    private void setSlot(int pos, Order order) {
+        orders[pos] = order;
+        orderIds[pos] = order.orderId;
+        uids[pos] = order.uid;
+        sizes[pos] = order.size;
+        filled[pos] = order.filled;
+        reserveBidPrices[pos] = order.reserveBidPrice;
+    }
+
+    @Override
+    public void put(Order order) {
+
+        totalVolume += (order.size - order.filled);
+
+        setSlot(tail, order);
+        queueSize++;
+        realSize++;
+        tail++;
+        positions.put(order.orderId, tail); // always put actual value+1 (null=0 specifics)
+        if (tail == orders.length) {
+            tail = 0;
+        }
+
+        // check if no space left
+        if (queueSize == orders.length) {
+            upsizeBuffer();
+        }
+    }
+
+    private void upsizeBuffer() {
+        resizeBuffer(orders.length * 2);
+    }
+
+    /**
+     * Move all orders into new arrays (starting from position 0, without holes)
+     *
+     * @param newLength - new arrays length, should be greater than number of orders
+     */
+    private void resizeBuffer(int newLength) {
+        final Order[] orders0 = orders;
+        final long[] orderIds0 = orderIds;
+        final long[] uids0 = uids;
+        final long[] sizes0 = sizes;
+        final long[] filled0 = filled;
+        final long[] reserveBidPrices0 = reserveBidPrices;
+
+        allocateArrays(newLength);
+
+        int tail2 = 0;
+        int left = realSize;
+        while (left > 0) {
+            while (orders0[head] == null) {
+                head = inc(head, orders0.length);
+                queueSize--;
+            }
+            orders[tail2] = orders0[head];
+            orderIds[tail2] = orderIds0[head];
+            uids[tail2] = uids0[head];
+            sizes[tail2] = sizes0[head];
+            filled[tail2] = filled0[head];
+            reserveBidPrices[tail2] = reserveBidPrices0[head];
+            tail2++;
+            positions.put(orderIds0[head], tail2);
+            head = inc(head, orders0.length);
+            left--;
+        }
+
+        head = 0;
+        tail = tail2;
+        queueSize = realSize;
+    }
+
+    /**
+     * Re-pack queue if more than a half of it is holes,
+     * new arrays are 2-4 times larger than number of orders (not larger than existing ones).
+     */
+    private void compactIfSparse() {
+        if (queueSize >= OrdersBucketFastImpl.COMPACTION_MIN_QUEUE_SIZE && queueSize - realSize > realSize) {
+            resizeBuffer(Math.min(orders.length, Math.max(INITIAL_QUEUE_SIZE, Integer.highestOneBit(realSize) << 2)));
+            compactionsNum++;
+        }
+    }
+
+    /**
+     * Remove order
+     *
+     * @param orderId
+     * @return
+     */
+    @Override
+    public Order remove(long orderId, long uid) {
+
+        int pos = positions.get(orderId);
+        if (pos == 0) {
+            return null;
+        }
+        pos--;
+
+        if (uids[pos] != uid) {
+            // can not remove other user's order
+            return null;
+        }
+
+        positions.remove(orderId);
+
+        final Order order = orders[pos];
+        orders[pos] = null;
+        totalVolume -= (sizes[pos] - filled[pos]);
+        realSize--;
+
+        // skip holes at the head
+        while (queueSize > 0 && orders[head] == null) {
+            head = inc(head, orders.length);
+            queueSize--;
+        }
+
+        compactIfSparse();
+
+        return order;
+    }
+
+    /**
+     * Collect a list of matching orders starting from eldest records
+     * Completely matching orders will be removed, partially matched order kept in the bucked.
+     */
+    @Override
+    public long match(long volumeToCollect, IOrder activeOrder, OrderCommand triggerCmd, Consumer<Order> removeOrderCallback) {
+
+        long totalMatchingVolume = 0;
+
+        final int length = orders.length;
+        int ptr = head;
+        int numOrdersToScan = realSize;
+        int ownOrderBarrier = -1;
+        int partiallyFilledPtr = -1;
+        final long ignoreUid = activeOrder.getUid();
+
+        while (numOrdersToScan > 0 && volumeToCollect > 0) {
+            // fast-forward head pointer until non-empty element found
+            // (assume if realSize>0 then at least one order will be found)
+            while (orders[ptr] == null) {
+                ptr = inc(ptr, length);
+            }
+
+            // ignoring own orders
+            if (uids[ptr] == ignoreUid) {
+                numOrdersToScan--;
+
+                // set own order barrier - after matching procedure set head there
+                // so next matching will start with this order
+                if (ownOrderBarrier == -1) {
+                    ownOrderBarrier = ptr;
+                }
+
+                ptr = inc(ptr, length);
+                continue;
+            }
+
+            // calculate exact volume can fill for this order
+            final long size = sizes[ptr];
+            final long v = Math.min(volumeToCollect, size - filled[ptr]);
+            totalMatchingVolume += v;
+
+            final long newFilled = filled[ptr] + v;
+            filled[ptr] = newFilled;
+            volumeToCollect -= v;
+            totalVolume -= v;
+
+            // remove from order book filled orders
+            final boolean fullMatch = size == newFilled;
+
+            OrderBookEventsHelper.sendTradeEvent(triggerCmd, activeOrder, orderIds[ptr], uids[ptr], reserveBidPrices[ptr],
+                    fullMatch, volumeToCollect == 0, price, v);
+
+            if (fullMatch) {
+
+                // order object is touched only when it leaves the bucket
+                final Order order = orders[ptr];
+                order.filled = newFilled;
+                removeOrderCallback.accept(order);
+
+                // remove head
+                positions.remove(orderIds[ptr]);
+                orders[ptr] = null;
+                ptr = inc(ptr, length);
+                realSize--;
+                numOrdersToScan--;
+            } else {
+                // partial fill can happen only once - for the last matched order
+                partiallyFilledPtr = ptr;
+            }
+        }
+
+        if (partiallyFilledPtr != -1) {
+            orders[partiallyFilledPtr].filled = filled[partiallyFilledPtr];
+        }
+
+        head = (ownOrderBarrier == -1) ? ptr : ownOrderBarrier;
+        queueSize = tail - head;
+        if (queueSize < 0) {
+            queueSize += length;
+        }
+
+        // holes can be left behind own orders
+        if (ownOrderBarrier != -1) {
+            compactIfSparse();
+        }
+
+        return totalMatchingVolume;
+    }
+
+    @Override
+    public void validate() {
+
+        int c = 0;
+        for (int i = 0; i < orders.length; i++) {
+            final Order order = orders[i];
+            if (order != null) {
+                c++;
+                int positionFromHashtable = positions.get(order.orderId);
+                if (positionFromHashtable != i + 1) {
+                    throw new IllegalStateException("positionFromHashtable=" + positionFromHashtable
+                            + " positionInQueue=" + (i + 1) + " order:" + order);
+                }
+                if (order.orderId != orderIds[i] || order.uid != uids[i] || order.size != sizes[i] || order.filled != filled[i]
+                        || order.reserveBidPrice != reserveBidPrices[i]) {
+                    throw new IllegalStateException("order fields are not in sync with arrays, pos=" + i + " order:" + order);
+                }
+            }
+        }
+
+        if (positions.size() != c) {
+            String msg = String.format("%d: Found %d orders in queue, but there are %d in hash table", price, c, positions.size());
+            throw new IllegalStateException(msg);
+        }
+
+        if (positions.size() != realSize) {
+            throw new IllegalStateException();
+        }
+
+        int expectedSize = tail - head;
+        if (expectedSize < 0) {
+            expectedSize += orders.length;
+        }
+        if (expectedSize != queueSize) {
+            String msg = String.format("tail=%d head=%d queueSize=%d expectedSize=%d", tail, head, queueSize, expectedSize);
+            throw new IllegalStateException(msg);
+        }
+    }
+
+    @Override
+    public Order findOrder(long orderId) {
+        int pos = positions.get(orderId);
+        if (pos == 0) {
+            return null;
+        }
+        return orders[pos - 1];
+    }
+
+    @Override
+    public List<Order> getAllOrders() {
+        return Arrays.asList(asOrdersArray());
+    }
+
+    @Override
+    public void forEachOrder(Consumer<Order> consumer) {
+        int ptr = head;
+        for (int i = 0; i < realSize; i++) {
+            while (orders[ptr] == null) {
+                ptr = inc(ptr, orders.length);
+            }
+            consumer.accept(orders[ptr]);
+            ptr = inc(ptr, orders.length);
+        }
+    }
+
+    @Override
+    public OrderBucketImplType getImplementationType() {
+        return OrderBucketImplType.SOA;
+    }
+
+    @Override
+    public int getHolesNum() {
+        return queueSize - realSize;
+    }
+
+    @Override
+    public int getQueueCapacity() {
+        return orders.length;
+    }
+
+    @Override
+    public boolean recycle() {
+        head = 0;
+        tail = 0;
+        queueSize = 0;
+        if (orders.length > OrdersBucketFastImpl.RECYCLE_MAX_QUEUE_LENGTH) {
+            allocateArrays(INITIAL_QUEUE_SIZE);
+            positions.compact();
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public int getNumOrders() {
+        return realSize;
+    }
+
+    /**
+     * Same layout as {@link OrdersBucketFastImpl}, orders are written in standard Order format
+     */
+    @Override
+    public void writeMarshallable(BytesOut bytes) {
+        bytes.writeByte(getImplementationType().getCode());
+        bytes.writeLong(price);
+        SerializationUtils.marshallLongIntHashMap(positions, bytes);
+
+        // NOTE: orders saved not in execution order, just dumping buffer as-is
+        bytes.writeInt(orders.length);
+        bytes.writeInt(realSize);
+        for (int i = 0; i < orders.length; i++) {
+            Order order = orders[i];
+            if (order != null) {
+                bytes.writeInt(i);
+                order.writeMarshallable(bytes);
+            }
+        }
+
+        bytes.writeInt(tail);
+        bytes.writeInt(head);
+        bytes.writeInt(queueSize);
+        bytes.writeInt(realSize);
+
+        bytes.writeLong(totalVolume);
+    }
+
+    @Override
+    public int hashCode() {
+        return IOrdersBucket.hash(price, asOrdersArray());
+    }
+
+    private Order[] asOrdersArray() {
+        int ptr = head;
+        Order[] result = new Order[realSize];
+        for (int i = 0; i < realSize; i++) {
+            while (orders[ptr] == null) {
+                ptr = inc(ptr, orders.length);
+            }
+            result[i] = orders[ptr];
+            ptr = inc(ptr, orders.length);
+        }
+        return result;
+    }
+
+    private static int inc(int p, int length) {
+        p++;
+        return (p == length) ? 0 : p;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (o == this) return true;
+        if (o == null) return false;
+        if (!(o instanceof IOrdersBucket)) return false;
+        IOrdersBucket other = (IOrdersBucket) o;
+        return new EqualsBuilder()
+                .append(price, other.getPrice())
+                .append(getAllOrders(), other.getAllOrders())
+                .isEquals();
+    }
+
+    @Override
+    public String toString() {
+        return "OrdersBucketSoaImpl(price=" + price + ", numOrders=" + realSize + ", totalVolume=" + totalVolume + ")";
+    }
+}
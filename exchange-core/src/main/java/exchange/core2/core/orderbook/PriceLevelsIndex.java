@@ -0,0 +1,116 @@
+/*
+ * Copyright 2019 Maksim Zheravin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package exchange.core2.core.orderbook;
+
+import java.util.Arrays;
+
+/**
+ * Sorted price -> level index map for one side of the order book, backed by primitive arrays.
+ * <p>
+ * Keys are stored in ascending order with the best price in the end of arrays (ask prices are negated),
+ * so levels are normally added and removed near the top of the book by shifting only few elements.
+ * Position 0 in accessors means the best price, 1 - next one, etc.
+ */
+final class PriceLevelsIndex {
+
+    private final boolean ask;
+
+    private long[] keys;
+    private int[] levels;
+    private int size = 0;
+
+    PriceLevelsIndex(final boolean ask, final int initialCapacity) {
+        this.ask = ask;
+        this.keys = new long[initialCapacity];
+        this.levels = new int[initialCapacity];
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * @param price price
+     * @return level index, or NIL if not found
+     */
+    int get(final long price) {
+        final int i = Arrays.binarySearch(keys, 0, size, key(price));
+        return i >= 0 ? levels[i] : DirectSlab.NIL;
+    }
+
+    void put(final long price, final int level) {
+        final long key = key(price);
+        int i = Arrays.binarySearch(keys, 0, size, key);
+        if (i >= 0) {
+            levels[i] = level;
+            return;
+        }
+        i = -i - 1;
+        if (size == keys.length) {
+            keys = Arrays.copyOf(keys, size * 2);
+            levels = Arrays.copyOf(levels, size * 2);
+        }
+        System.arraycopy(keys, i, keys, i + 1, size - i);
+        System.arraycopy(levels, i, levels, i + 1, size - i);
+        keys[i] = key;
+        levels[i] = level;
+        size++;
+    }
+
+    void remove(final long price) {
+        final int i = Arrays.binarySearch(keys, 0, size, key(price));
+        if (i < 0) {
+            throw new IllegalStateException("price level not found: " + price);
+        }
+        System.arraycopy(keys, i + 1, keys, i, size - i - 1);
+        System.arraycopy(levels, i + 1, levels, i, size - i - 1);
+        size--;
+    }
+
+    /**
+     * @param pos position from the best price
+     * @return price
+     */
+    long priceAt(final int pos) {
+        final long key = keys[size - 1 - pos];
+        return ask ? -key : key;
+    }
+
+    /**
+     * @param pos position from the best price
+     * @return level index
+     */
+    int levelAt(final int pos) {
+        return levels[size - 1 - pos];
+    }
+
+    void clear() {
+        size = 0;
+    }
+
+    // testing only
+    void validate() {
+        for (int i = 1; i < size; i++) {
+            if (keys[i - 1] >= keys[i]) {
+                throw new IllegalStateException("price levels are not sorted at position " + i);
+            }
+        }
+    }
+
+    private long key(final long price) {
+        return ask ? -price : price;
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright 2019 Maksim Zheravin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package exchange.core2.core.orderbook;
+
+import exchange.core2.core.common.StateHash;
+import net.openhft.chronicle.bytes.BytesIn;
+import net.openhft.chronicle.bytes.BytesOut;
+import net.openhft.chronicle.bytes.WriteBytesMarshallable;
+import org.eclipse.collections.impl.map.mutable.primitive.LongLongHashMap;
+
+import java.util.Objects;
+
+/**
+ * Order ids of the current two-sided quote of each user (one symbol).
+ * <p>
+ * Next QUOTE command of the user cancels these orders, so client does not need to reuse order ids.
+ * Only resting quote orders are tracked: id is removed when quote order is completed by trade or cancelled
+ * (see {@link IOrderBook#forgetCompletedQuoteOrders}), so regular order re-using that id is not affected by the next quote.
+ * <p>
+ * Not thread safe.
+ */
+public final class QuotesIndex implements WriteBytesMarshallable, StateHash {
+
+    // uid -> order id (0 - no order)
+    private final LongLongHashMap bidOrderIds;
+    private final LongLongHashMap askOrderIds;
+
+    public QuotesIndex() {
+        this.bidOrderIds = new LongLongHashMap();
+        this.askOrderIds = new LongLongHashMap();
+    }
+
+    public QuotesIndex(final BytesIn bytes) {
+        this();
+        final int count = bytes.readInt();
+        for (int i = 0; i < count; i++) {
+            set(bytes.readLong(), bytes.readLong(), bytes.readLong());
+        }
+    }
+
+    public long getBidOrderId(final long uid) {
+        return bidOrderIds.get(uid);
+    }
+
+    public long getAskOrderId(final long uid) {
+        return askOrderIds.get(uid);
+    }
+
+    /**
+     * @param uid        - user id
+     * @param bidOrderId - bid order id, or 0 if there is no bid side
+     * @param askOrderId - ask order id, or 0 if there is no ask side
+     */
+    public void set(final long uid, final long bidOrderId, final long askOrderId) {
+        if (bidOrderId != 0 || askOrderId != 0) {
+            bidOrderIds.put(uid, bidOrderId);
+            askOrderIds.put(uid, askOrderId);
+        } else {
+            bidOrderIds.remove(uid);
+            askOrderIds.remove(uid);
+        }
+    }
+
+    /**
+     * Forget quote order (if it is tracked)
+     *
+     * @param uid     - user id
+     * @param orderId - completed or cancelled order id
+     */
+    public void remove(final long uid, final long orderId) {
+        final long bidOrderId = bidOrderIds.get(uid);
+        final long askOrderId = askOrderIds.get(uid);
+        if (orderId == bidOrderId && orderId != 0) {
+            set(uid, 0, askOrderId);
+        } else if (orderId == askOrderId && orderId != 0) {
+            set(uid, bidOrderId, 0);
+        }
+    }
+
+    public boolean isEmpty() {
+        return bidOrderIds.isEmpty();
+    }
+
+    public int size() {
+        return bidOrderIds.size();
+    }
+
+    public void validate() {
+        if (bidOrderIds.size() != askOrderIds.size()) {
+            throw new IllegalStateException("bid quotes " + bidOrderIds.size() + " != ask quotes " + askOrderIds.size());
+        }
+        bidOrderIds.forEachKeyValue((uid, bidOrderId) -> {
+            if (!askOrderIds.containsKey(uid) || (bidOrderId == 0 && askOrderIds.get(uid) == 0)) {
+                throw new IllegalStateException("inconsistent quote of uid " + uid);
+            }
+        });
+    }
+
+    @Override
+    public void writeMarshallable(final BytesOut bytes) {
+        bytes.writeInt(bidOrderIds.size());
+        bidOrderIds.forEachKeyValue((uid, bidOrderId) -> {
+            bytes.writeLong(uid);
+            bytes.writeLong(bidOrderId);
+            bytes.writeLong(askOrderIds.get(uid));
+        });
+    }
+
+    @Override
+    public int stateHash() {
+        return Objects.hash(bidOrderIds.hashCode(), askOrderIds.hashCode());
+    }
+
+    @Override
+    public int hashCode() {
+        return stateHash();
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+        if (o == this) return true;
+        if (!(o instanceof QuotesIndex)) return false;
+        final QuotesIndex other = (QuotesIndex) o;
+        return bidOrderIds.equals(other.bidOrderIds) && askOrderIds.equals(other.askOrderIds);
+    }
+}
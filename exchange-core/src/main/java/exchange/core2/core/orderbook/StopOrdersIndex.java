@@ -0,0 +1,468 @@
+/*
+ * Copyright 2019 Maksim Zheravin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package exchange.core2.core.orderbook;
+
+import exchange.core2.core.common.Order;
+import exchange.core2.core.common.OrderAction;
+import exchange.core2.core.common.OrderType;
+import exchange.core2.core.common.StateHash;
+import exchange.core2.core.common.cmd.OrderCommand;
+import exchange.core2.core.utils.HashingUtils;
+import exchange.core2.core.utils.LongAvlTreeMap;
+import lombok.Getter;
+import net.openhft.chronicle.bytes.BytesIn;
+import net.openhft.chronicle.bytes.BytesOut;
+import net.openhft.chronicle.bytes.WriteBytesMarshallable;
+import org.eclipse.collections.impl.list.mutable.primitive.IntArrayList;
+import org.eclipse.collections.impl.map.mutable.primitive.LongIntHashMap;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+import java.util.function.Consumer;
+
+/**
+ * Pending STOP and STOP_LIMIT orders of one symbol, indexed by trigger (stop) price.
+ * <p>
+ * BID stops are triggered when last trade price rises to stop price or above,
+ * ASK stops - when last trade price falls to stop price or below.
+ * Orders with the same stop price are triggered in placement order.
+ * <p>
+ * Order fields are kept in parallel primitive arrays (slots), recycled through the free list.
+ * Trigger price levels are pooled, so placing, cancelling and triggering stop orders is not producing garbage.
+ * <p>
+ * Not thread safe.
+ */
+public final class StopOrdersIndex implements WriteBytesMarshallable, StateHash {
+
+    private static final int NIL = -1;
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    // slots
+    private long[] orderIds;
+    private long[] uids;
+    private long[] prices;
+    private long[] stopPrices;
+    private long[] sizes;
+    private long[] reserveBidPrices;
+    private long[] timestamps;
+    private byte[] actions;
+    private byte[] orderTypes;
+
+    // FIFO links within trigger level (next is also used for free slots list)
+    private int[] next;
+    private int[] prev;
+
+    private int freeHead = NIL;
+    private int allocated = 0;
+
+    // orderId -> slot
+    private final LongIntHashMap slotById = new LongIntHashMap();
+
+    // stop price -> level
+    private final LongAvlTreeMap<TriggerLevel> bidTriggers = new LongAvlTreeMap<>();
+    private final LongAvlTreeMap<TriggerLevel> askTriggers = new LongAvlTreeMap<>();
+
+    private final ArrayDeque<TriggerLevel> levelsPool = new ArrayDeque<>();
+
+    // -1 if there were no trades yet
+    @Getter
+    private long lastTradePrice = -1;
+
+    // incrementally maintained sum of stop orders hashes
+    private long ordersHash = 0;
+
+    public StopOrdersIndex() {
+        allocateArrays(INITIAL_CAPACITY);
+    }
+
+    public StopOrdersIndex(final BytesIn bytes) {
+        this();
+        this.lastTradePrice = bytes.readLong();
+        final int count = bytes.readInt();
+        for (int i = 0; i < count; i++) {
+            add(bytes.readLong(), bytes.readLong(), OrderAction.of(bytes.readByte()), OrderType.of(bytes.readByte()),
+                    bytes.readLong(), bytes.readLong(), bytes.readLong(), bytes.readLong(), bytes.readLong());
+        }
+    }
+
+    private static final class TriggerLevel {
+        int head;
+        int tail;
+    }
+
+    public static boolean isStopOrderType(final OrderType orderType) {
+        return orderType == OrderType.STOP || orderType == OrderType.STOP_LIMIT;
+    }
+
+    /**
+     * @param orderType - STOP or STOP_LIMIT
+     * @return type of the order placed when stop order is triggered (IOC or GTC)
+     */
+    public static OrderType activatedOrderType(final OrderType orderType) {
+        return orderType == OrderType.STOP ? OrderType.IOC : OrderType.GTC;
+    }
+
+    public int size() {
+        return slotById.size();
+    }
+
+    public boolean isEmpty() {
+        return slotById.isEmpty();
+    }
+
+    public boolean contains(final long orderId) {
+        return slotById.containsKey(orderId);
+    }
+
+    /**
+     * @return true if stop order with specified action and stop price would be triggered by the last trade
+     */
+    public boolean isTriggered(final OrderAction action, final long stopPrice) {
+        if (lastTradePrice == -1) {
+            return false;
+        }
+        return action == OrderAction.BID ? lastTradePrice >= stopPrice : lastTradePrice <= stopPrice;
+    }
+
+    public void updateLastTradePrice(final long price) {
+        lastTradePrice = price;
+    }
+
+    /**
+     * Add stop order (orderId should be checked for duplicates by caller)
+     *
+     * @param cmd - STOP or STOP_LIMIT order command
+     */
+    public void add(final OrderCommand cmd) {
+        add(cmd.orderId, cmd.uid, cmd.action, cmd.orderType, cmd.price, cmd.stopPrice, cmd.size, cmd.reserveBidPrice, cmd.timestamp);
+    }
+
+    private void add(final long orderId, final long uid, final OrderAction action, final OrderType orderType,
+                     final long price, final long stopPrice, final long size, final long reserveBidPrice, final long timestamp) {
+
+        final int slot = allocateSlot();
+        orderIds[slot] = orderId;
+        uids[slot] = uid;
+        actions[slot] = action.getCode();
+        orderTypes[slot] = orderType.getCode();
+        prices[slot] = price;
+        stopPrices[slot] = stopPrice;
+        sizes[slot] = size;
+        reserveBidPrices[slot] = reserveBidPrice;
+        timestamps[slot] = timestamp;
+
+        final LongAvlTreeMap<TriggerLevel> triggers = triggersFor(action);
+        TriggerLevel level = triggers.get(stopPrice);
+        if (level == null) {
+            level = levelsPool.pollLast();
+            if (level == null) {
+                level = new TriggerLevel();
+            }
+            level.head = slot;
+            level.tail = slot;
+            prev[slot] = NIL;
+            triggers.put(stopPrice, level);
+        } else {
+            next[level.tail] = slot;
+            prev[slot] = level.tail;
+            level.tail = slot;
+        }
+        next[slot] = NIL;
+
+        slotById.put(orderId, slot);
+        ordersHash += slotHash(slot);
+    }
+
+    /**
+     * Cancel stop order, CANCEL event is attached to the command
+     *
+     * @return false if order was not found or belongs to another user
+     */
+    public boolean cancel(final long orderId, final long uid, final OrderCommand cmd) {
+        final int slot = slotById.getIfAbsent(orderId, NIL);
+        if (slot == NIL || uids[slot] != uid) {
+            return false;
+        }
+        sendCancelEvent(cmd, slot);
+        remove(slot);
+        return true;
+    }
+
+    /**
+     * Cancel all stop orders of the user (uid=0 - stop orders of all users), CANCEL events are attached to the command
+     *
+     * @return number of cancelled orders
+     */
+    public int cancelUserOrders(final long uid, final OrderCommand cmd) {
+        int cancelled = 0;
+        for (int slot = 0; slot < allocated && !slotById.isEmpty(); slot++) {
+            // free slots have zero size
+            if (sizes[slot] != 0 && (uid == 0 || uids[slot] == uid)) {
+                sendCancelEvent(cmd, slot);
+                remove(slot);
+                cancelled++;
+            }
+        }
+        return cancelled;
+    }
+
+    /**
+     * Remove next stop order triggered by the last trade price and write its fields into the command:
+     * orderId, uid, action, price, size, reserveBidPrice, and activated order type (see {@link #activatedOrderType}).
+     * BID stops are triggered first (lowest stop price first), then ASK stops (highest stop price first).
+     *
+     * @param cmd - command to write order fields into
+     * @return false if there are no triggered stop orders
+     */
+    public boolean pollTriggered(final OrderCommand cmd) {
+
+        int slot = NIL;
+        if (lastTradePrice != -1) {
+            if (!bidTriggers.isEmpty() && bidTriggers.firstKey() <= lastTradePrice) {
+                slot = bidTriggers.firstValue().head;
+            } else if (!askTriggers.isEmpty() && askTriggers.lastKey() >= lastTradePrice) {
+                slot = askTriggers.lastValue().head;
+            }
+        }
+
+        if (slot == NIL) {
+            return false;
+        }
+
+        cmd.orderId = orderIds[slot];
+        cmd.uid = uids[slot];
+        cmd.action = OrderAction.of(actions[slot]);
+        cmd.orderType = activatedOrderType(OrderType.of(orderTypes[slot]));
+        cmd.price = prices[slot];
+        cmd.size = sizes[slot];
+        cmd.reserveBidPrice = reserveBidPrices[slot];
+
+        remove(slot);
+        return true;
+    }
+
+    private void remove(final int slot) {
+
+        ordersHash -= slotHash(slot);
+        slotById.remove(orderIds[slot]);
+
+        final LongAvlTreeMap<TriggerLevel> triggers = triggersFor(OrderAction.of(actions[slot]));
+        final long stopPrice = stopPrices[slot];
+        final TriggerLevel level = triggers.get(stopPrice);
+        final int p = prev[slot];
+        final int n = next[slot];
+        if (p == NIL) {
+            level.head = n;
+        } else {
+            next[p] = n;
+        }
+        if (n == NIL) {
+            level.tail = p;
+        } else {
+            prev[n] = p;
+        }
+        if (level.head == NIL) {
+            triggers.remove(stopPrice);
+            levelsPool.addLast(level);
+        }
+
+        sizes[slot] = 0;
+        next[slot] = freeHead;
+        freeHead = slot;
+    }
+
+    private LongAvlTreeMap<TriggerLevel> triggersFor(final OrderAction action) {
+        return action == OrderAction.BID ? bidTriggers : askTriggers;
+    }
+
+    private void sendCancelEvent(final OrderCommand cmd, final int slot) {
+        OrderBookEventsHelper.sendCancelEvent(cmd, orderIds[slot], uids[slot], OrderAction.of(actions[slot]),
+                prices[slot], sizes[slot], reserveBidPrices[slot]);
+    }
+
+    private int allocateSlot() {
+        if (freeHead != NIL) {
+            final int slot = freeHead;
+            freeHead = next[slot];
+            return slot;
+        }
+        if (allocated == orderIds.length) {
+            growArrays(allocated * 2);
+        }
+        return allocated++;
+    }
+
+    private void allocateArrays(final int length) {
+        orderIds = new long[length];
+        uids = new long[length];
+        prices = new long[length];
+        stopPrices = new long[length];
+        sizes = new long[length];
+        reserveBidPrices = new long[length];
+        timestamps = new long[length];
+        actions = new byte[length];
+        orderTypes = new byte[length];
+        next = new int[length];
+        prev = new int[length];
+    }
+
+    private void growArrays(final int length) {
+        orderIds = Arrays.copyOf(orderIds, length);
+        uids = Arrays.copyOf(uids, length);
+        prices = Arrays.copyOf(prices, length);
+        stopPrices = Arrays.copyOf(stopPrices, length);
+        sizes = Arrays.copyOf(sizes, length);
+        reserveBidPrices = Arrays.copyOf(reserveBidPrices, length);
+        timestamps = Arrays.copyOf(timestamps, length);
+        actions = Arrays.copyOf(actions, length);
+        orderTypes = Arrays.copyOf(orderTypes, length);
+        next = Arrays.copyOf(next, length);
+        prev = Arrays.copyOf(prev, length);
+    }
+
+    private long slotHash(final int slot) {
+        final long h = IOrderBook.orderHash(orderIds[slot], uids[slot], OrderAction.of(actions[slot]), prices[slot],
+                sizes[slot], 0, reserveBidPrices[slot], timestamps[slot]);
+        return HashingUtils.mix64(h ^ stopPrices[slot] ^ ((long) orderTypes[slot] << 56));
+    }
+
+    /**
+     * Slots in triggering order: BID stops from the lowest stop price, then ASK stops from the highest stop price.
+     * Produces garbage.
+     */
+    private IntArrayList slotsInTriggeringOrder() {
+        final IntArrayList slots = new IntArrayList(size());
+        bidTriggers.forEach((price, level) -> {
+            for (int slot = level.head; slot != NIL; slot = next[slot]) {
+                slots.add(slot);
+            }
+        });
+        askTriggers.forEachDescending((price, level) -> {
+            for (int slot = level.head; slot != NIL; slot = next[slot]) {
+                slots.add(slot);
+            }
+        });
+        return slots;
+    }
+
+    /**
+     * Visit stop orders as regular orders (limit price, size, reserveBidPrice) - for reports only, produces garbage.
+     */
+    public void forEachOrder(final Consumer<Order> consumer) {
+        slotsInTriggeringOrder().forEach(slot -> consumer.accept(toOrder(slot)));
+    }
+
+    /**
+     * Produces garbage, for reports only.
+     */
+    public List<Order> findUserOrders(final long uid) {
+        final List<Order> list = new ArrayList<>();
+        slotsInTriggeringOrder().forEach(slot -> {
+            if (uids[slot] == uid) {
+                list.add(toOrder(slot));
+            }
+        });
+        return list;
+    }
+
+    private Order toOrder(final int slot) {
+        return new Order(orderIds[slot], prices[slot], sizes[slot], 0, reserveBidPrices[slot],
+                OrderAction.of(actions[slot]), uids[slot], timestamps[slot]);
+    }
+
+    // testing only
+    public void validate() {
+        final IntArrayList slots = slotsInTriggeringOrder();
+        if (slots.size() != slotById.size()) {
+            throw new IllegalStateException("found " + slots.size() + " stop orders in trigger levels, but there are " + slotById.size() + " in index");
+        }
+        final long[] hash = {0};
+        slots.forEach(slot -> {
+            if (slotById.getIfAbsent(orderIds[slot], NIL) != slot) {
+                throw new IllegalStateException("stop order " + orderIds[slot] + " is not indexed");
+            }
+            hash[0] += slotHash(slot);
+        });
+        if (hash[0] != ordersHash) {
+            throw new IllegalStateException("incremental stop orders hash " + ordersHash + " differs from calculated " + hash[0]);
+        }
+    }
+
+    /**
+     * Orders are written in triggering order, so reading restores the same sequence within trigger levels
+     */
+    @Override
+    public void writeMarshallable(final BytesOut bytes) {
+        bytes.writeLong(lastTradePrice);
+        final IntArrayList slots = slotsInTriggeringOrder();
+        bytes.writeInt(slots.size());
+        slots.forEach(slot -> {
+            bytes.writeLong(orderIds[slot]);
+            bytes.writeLong(uids[slot]);
+            bytes.writeByte(actions[slot]);
+            bytes.writeByte(orderTypes[slot]);
+            bytes.writeLong(prices[slot]);
+            bytes.writeLong(stopPrices[slot]);
+            bytes.writeLong(sizes[slot]);
+            bytes.writeLong(reserveBidPrices[slot]);
+            bytes.writeLong(timestamps[slot]);
+        });
+    }
+
+    @Override
+    public int stateHash() {
+        return Objects.hash(Long.hashCode(ordersHash), lastTradePrice);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(size(), lastTradePrice);
+    }
+
+    /**
+     * Timestamps are not compared (same as for orders)
+     */
+    @Override
+    public boolean equals(final Object o) {
+        if (o == this) return true;
+        if (!(o instanceof StopOrdersIndex)) return false;
+        final StopOrdersIndex other = (StopOrdersIndex) o;
+        if (lastTradePrice != other.lastTradePrice || size() != other.size()) {
+            return false;
+        }
+        final IntArrayList slots = slotsInTriggeringOrder();
+        final IntArrayList otherSlots = other.slotsInTriggeringOrder();
+        for (int i = 0; i < slots.size(); i++) {
+            final int s1 = slots.get(i);
+            final int s2 = otherSlots.get(i);
+            if (orderIds[s1] != other.orderIds[s2]
+                    || uids[s1] != other.uids[s2]
+                    || actions[s1] != other.actions[s2]
+                    || orderTypes[s1] != other.orderTypes[s2]
+                    || prices[s1] != other.prices[s2]
+                    || stopPrices[s1] != other.stopPrices[s2]
+                    || sizes[s1] != other.sizes[s2]
+                    || reserveBidPrices[s1] != other.reserveBidPrices[s2]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright 2019 Maksim Zheravin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package exchange.core2.core.orderbook;
+
+import exchange.core2.core.common.Order;
+import exchange.core2.core.common.OrderAction;
+import org.eclipse.collections.impl.map.mutable.primitive.LongObjectHashMap;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * uid -> resting orders index.
+ * <p>
+ * Orders of the same user are linked into intrusive doubly-linked list (Order.userPrev/userNext),
+ * so adding and removing order does not produce garbage, and user orders can be found without scanning order book.
+ */
+final class UserOrdersIndex {
+
+    // uid -> most recently added order
+    private final LongObjectHashMap<Order> userHeads = new LongObjectHashMap<>();
+
+    private int ordersNum = 0;
+
+    void add(final Order order) {
+        final Order head = userHeads.get(order.uid);
+        order.userPrev = null;
+        order.userNext = head;
+        if (head != null) {
+            head.userPrev = order;
+        }
+        userHeads.put(order.uid, order);
+        ordersNum++;
+    }
+
+    void remove(final Order order) {
+        final Order prev = order.userPrev;
+        final Order next = order.userNext;
+        if (prev != null) {
+            prev.userNext = next;
+        } else if (next != null) {
+            userHeads.put(order.uid, next);
+        } else {
+            userHeads.remove(order.uid);
+        }
+        if (next != null) {
+            next.userPrev = prev;
+        }
+        order.userPrev = null;
+        order.userNext = null;
+        ordersNum--;
+    }
+
+    /**
+     * Execute action for each resting order of the user.
+     * Consumer is allowed to remove currently processed order from the index.
+     *
+     * @param uid      user id
+     * @param consumer action
+     */
+    void forEachUserOrder(final long uid, final Consumer<Order> consumer) {
+        Order order = userHeads.get(uid);
+        while (order != null) {
+            final Order next = order.userNext;
+            consumer.accept(order);
+            order = next;
+        }
+    }
+
+    /**
+     * Garbage-free
+     *
+     * @param uid        user id
+     * @param side       side of resting orders
+     * @param limitPrice limit price (inclusive)
+     * @return remaining volume of user orders of specified side, having price not worse than limitPrice for a taker
+     * (asks with price not above the limit, bids with price not below the limit)
+     */
+    long remainingVolumeWithinLimit(final long uid, final OrderAction side, final long limitPrice) {
+        long volume = 0;
+        for (Order order = userHeads.get(uid); order != null; order = order.userNext) {
+            if (order.action == side && (side == OrderAction.ASK ? order.price <= limitPrice : order.price >= limitPrice)) {
+                volume += order.size - order.filled;
+            }
+        }
+        return volume;
+    }
+
+    /**
+     * Produces garbage
+     *
+     * @param uid user id
+     * @return list of user orders (most recent first)
+     */
+    List<Order> findUserOrders(final long uid) {
+        final List<Order> list = new ArrayList<>();
+        forEachUserOrder(uid, list::add);
+        return list;
+    }
+
+    boolean hasOrders(final long uid) {
+        return userHeads.containsKey(uid);
+    }
+
+    int getOrdersNum() {
+        return ordersNum;
+    }
+
+    void clear() {
+        userHeads.clear();
+        ordersNum = 0;
+    }
+
+    /**
+     * Testing only
+     *
+     * @param expectedOrdersNum expected total number of resting orders
+     */
+    void validate(final int expectedOrdersNum) {
+        final int[] counter = {0};
+        userHeads.forEachKeyValue((uid, head) -> {
+            if (head.userPrev != null) {
+                throw new IllegalStateException("user " + uid + " head order has previous link");
+            }
+            Order prev = null;
+            for (Order order = head; order != null; order = order.userNext) {
+                if (order.uid != uid || order.userPrev != prev) {
+                    throw new IllegalStateException("broken user orders list for uid=" + uid + " at order " + order.orderId);
+                }
+                prev = order;
+                counter[0]++;
+            }
+        });
+        if (counter[0] != ordersNum || ordersNum != expectedOrdersNum) {
+            throw new IllegalStateException(String.format("user index orders %d (counter %d) != expected %d", counter[0], ordersNum, expectedOrdersNum));
+        }
+    }
+}
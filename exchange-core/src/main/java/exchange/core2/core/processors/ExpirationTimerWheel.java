@@ -0,0 +1,399 @@
+/*
+ * Copyright 2019 Maksim Zheravin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package exchange.core2.core.processors;
+
+import exchange.core2.core.common.StateHash;
+import exchange.core2.core.utils.HashingUtils;
+import lombok.Getter;
+import net.openhft.chronicle.bytes.BytesIn;
+import net.openhft.chronicle.bytes.BytesOut;
+import net.openhft.chronicle.bytes.WriteBytesMarshallable;
+import org.eclipse.collections.impl.map.mutable.primitive.LongIntHashMap;
+
+import java.util.Arrays;
+import java.util.Objects;
+
+/**
+ * Hierarchical timing wheel for GTD orders expiration (one per matching engine shard).
+ * <p>
+ * Time is measured in milliseconds (same as command timestamps), time is only moving forward.
+ * There are 7 levels of 64 slots, level L slot covers 64^L milliseconds,
+ * so the wheel covers 2^42 ms (~139 years), more distant expirations are parked in the last slot.
+ * Entry is placed into the level of the highest 6-bit digit where its expiration time differs from the current time,
+ * and moves to lower levels (cascades) when the current time enters its slot.
+ * Advancing time is not iterating over every millisecond -
+ * only non-empty slots crossed by the new time are visited (occupancy bitmap per level).
+ * <p>
+ * Entries are kept in parallel primitive arrays (recycled through the free list), no garbage is produced.
+ * <p>
+ * Not thread safe.
+ */
+public final class ExpirationTimerWheel implements WriteBytesMarshallable, StateHash {
+
+    private static final int NIL = -1;
+
+    private static final int LEVELS = 7;
+    private static final int SLOT_BITS = 6;
+    private static final int SLOTS = 1 << SLOT_BITS;
+    private static final int SLOT_MASK = SLOTS - 1;
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    @FunctionalInterface
+    public interface ExpirationHandler {
+        void onExpired(long orderId, long uid, int symbol);
+    }
+
+    // entries
+    private long[] orderIds;
+    private long[] uids;
+    private long[] expireTimes;
+    private int[] symbols;
+    private int[] slotOf;
+
+    // links within wheel slot (next is also used for free entries list)
+    private int[] next;
+    private int[] prev;
+
+    private int freeHead = NIL;
+    private int allocated = 0;
+
+    // level * SLOTS + slot -> first entry
+    private final int[] heads = new int[LEVELS * SLOTS];
+
+    // non-empty slots of each level
+    private final long[] occupied = new long[LEVELS];
+
+    // orderId -> entry
+    private final LongIntHashMap entryById = new LongIntHashMap();
+
+    @Getter
+    private long currentTime = 0;
+
+    public ExpirationTimerWheel() {
+        allocateArrays(INITIAL_CAPACITY);
+        Arrays.fill(heads, NIL);
+    }
+
+    public ExpirationTimerWheel(final BytesIn bytes) {
+        this();
+        this.currentTime = bytes.readLong();
+        final int count = bytes.readInt();
+        for (int i = 0; i < count; i++) {
+            schedule(bytes.readLong(), bytes.readLong(), bytes.readInt(), bytes.readLong());
+        }
+    }
+
+    public int size() {
+        return entryById.size();
+    }
+
+    public boolean isEmpty() {
+        return entryById.isEmpty();
+    }
+
+    /**
+     * Schedule order expiration. If there is already an entry for the orderId, it is replaced.
+     *
+     * @return false if expiration time is already reached (nothing is scheduled)
+     */
+    public boolean schedule(final long orderId, final long uid, final int symbol, final long expireTime) {
+
+        if (expireTime <= currentTime) {
+            return false;
+        }
+
+        final int existing = entryById.getIfAbsent(orderId, NIL);
+        if (existing != NIL) {
+            unlink(existing);
+            release(existing);
+        }
+
+        final int entry = allocate();
+        orderIds[entry] = orderId;
+        uids[entry] = uid;
+        symbols[entry] = symbol;
+        expireTimes[entry] = expireTime;
+        entryById.put(orderId, entry);
+        place(entry);
+        return true;
+    }
+
+    /**
+     * Remove scheduled expiration (order was cancelled or filled)
+     *
+     * @return false if there is no entry for the order of the symbol
+     */
+    public boolean cancel(final long orderId, final int symbol) {
+        final int entry = entryById.getIfAbsent(orderId, NIL);
+        if (entry == NIL || symbols[entry] != symbol) {
+            return false;
+        }
+        unlink(entry);
+        release(entry);
+        return true;
+    }
+
+    public void clear() {
+        Arrays.fill(heads, NIL);
+        Arrays.fill(occupied, 0L);
+        entryById.clear();
+        freeHead = NIL;
+        allocated = 0;
+        currentTime = 0;
+    }
+
+    /**
+     * Move current time forward, handler is called for each entry with expiration time not after the new time.
+     * Expired entries are removed before the handler is called.
+     *
+     * @param time    - new current time (ignored if it is not after the current time)
+     * @param handler - expiration handler
+     * @return number of expired entries
+     */
+    public int advance(final long time, final ExpirationHandler handler) {
+
+        if (time <= currentTime) {
+            return 0;
+        }
+
+        if (entryById.isEmpty()) {
+            currentTime = time;
+            return 0;
+        }
+
+        // detach crossed slots (all relative to the old current time)
+        int expired = NIL;
+        int cascade = NIL;
+        for (int level = LEVELS - 1; level >= 0; level--) {
+            final long mask = occupied[level];
+            if (mask == 0) {
+                continue;
+            }
+            final int shift = level * SLOT_BITS;
+            long expireMask;
+            long cascadeMask = 0;
+            if ((currentTime >>> (shift + SLOT_BITS)) != (time >>> (shift + SLOT_BITS))) {
+                // higher digits changed - every entry of this level is before the new time
+                expireMask = mask;
+            } else {
+                final int digit = (int) (time >>> shift) & SLOT_MASK;
+                if (level == 0) {
+                    expireMask = mask & (-1L >>> (SLOTS - 1 - digit));
+                } else {
+                    expireMask = mask & ((1L << digit) - 1);
+                    cascadeMask = mask & (1L << digit);
+                }
+            }
+            while (expireMask != 0) {
+                final int slot = Long.numberOfTrailingZeros(expireMask);
+                expireMask &= expireMask - 1;
+                expired = detachSlot(level, slot, expired);
+            }
+            if (cascadeMask != 0) {
+                cascade = detachSlot(level, Long.numberOfTrailingZeros(cascadeMask), cascade);
+            }
+        }
+
+        currentTime = time;
+
+        // re-distribute entries of the slot entered by the new time
+        while (cascade != NIL) {
+            final int entry = cascade;
+            cascade = next[entry];
+            if (expireTimes[entry] <= time) {
+                next[entry] = expired;
+                expired = entry;
+            } else {
+                place(entry);
+            }
+        }
+
+        int count = 0;
+        while (expired != NIL) {
+            final int entry = expired;
+            expired = next[entry];
+            if (expireTimes[entry] > time) {
+                // parked entry
+                place(entry);
+                continue;
+            }
+            final long orderId = orderIds[entry];
+            final long uid = uids[entry];
+            final int symbol = symbols[entry];
+            release(entry);
+            handler.onExpired(orderId, uid, symbol);
+            count++;
+        }
+        return count;
+    }
+
+    private void place(final int entry) {
+        final long expireTime = expireTimes[entry];
+        int level = (63 - Long.numberOfLeadingZeros(expireTime ^ currentTime)) / SLOT_BITS;
+        final int slot;
+        if (level < LEVELS) {
+            slot = (int) (expireTime >>> (level * SLOT_BITS)) & SLOT_MASK;
+        } else {
+            // beyond the horizon - parked in the last slot, placed again when it is reached
+            level = LEVELS - 1;
+            slot = SLOT_MASK;
+        }
+        final int idx = level * SLOTS + slot;
+
+        final int head = heads[idx];
+        next[entry] = head;
+        prev[entry] = NIL;
+        if (head != NIL) {
+            prev[head] = entry;
+        }
+        heads[idx] = entry;
+        slotOf[entry] = idx;
+        occupied[level] |= 1L << slot;
+    }
+
+    /**
+     * Detach whole slot and prepend its entries to the list (linked through next)
+     *
+     * @return new head of the list
+     */
+    private int detachSlot(final int level, final int slot, final int list) {
+        final int idx = level * SLOTS + slot;
+        int entry = heads[idx];
+        heads[idx] = NIL;
+        occupied[level] &= ~(1L << slot);
+        int result = list;
+        while (entry != NIL) {
+            final int n = next[entry];
+            next[entry] = result;
+            result = entry;
+            entry = n;
+        }
+        return result;
+    }
+
+    private void unlink(final int entry) {
+        final int idx = slotOf[entry];
+        final int p = prev[entry];
+        final int n = next[entry];
+        if (p == NIL) {
+            heads[idx] = n;
+            if (n == NIL) {
+                occupied[idx / SLOTS] &= ~(1L << (idx & SLOT_MASK));
+            }
+        } else {
+            next[p] = n;
+        }
+        if (n != NIL) {
+            prev[n] = p;
+        }
+    }
+
+    private int allocate() {
+        if (freeHead != NIL) {
+            final int entry = freeHead;
+            freeHead = next[entry];
+            return entry;
+        }
+        if (allocated == orderIds.length) {
+            growArrays(allocated * 2);
+        }
+        return allocated++;
+    }
+
+    private void release(final int entry) {
+        entryById.remove(orderIds[entry]);
+        next[entry] = freeHead;
+        freeHead = entry;
+    }
+
+    private void allocateArrays(final int length) {
+        orderIds = new long[length];
+        uids = new long[length];
+        expireTimes = new long[length];
+        symbols = new int[length];
+        slotOf = new int[length];
+        next = new int[length];
+        prev = new int[length];
+    }
+
+    private void growArrays(final int length) {
+        orderIds = Arrays.copyOf(orderIds, length);
+        uids = Arrays.copyOf(uids, length);
+        expireTimes = Arrays.copyOf(expireTimes, length);
+        symbols = Arrays.copyOf(symbols, length);
+        slotOf = Arrays.copyOf(slotOf, length);
+        next = Arrays.copyOf(next, length);
+        prev = Arrays.copyOf(prev, length);
+    }
+
+    @Override
+    public void writeMarshallable(final BytesOut bytes) {
+        bytes.writeLong(currentTime);
+        bytes.writeInt(size());
+        for (int idx = 0; idx < heads.length; idx++) {
+            int last = NIL;
+            for (int entry = heads[idx]; entry != NIL; entry = next[entry]) {
+                last = entry;
+            }
+            // from the last to the first one - reading (head insertion) restores the same order
+            for (int entry = last; entry != NIL; entry = prev[entry]) {
+                bytes.writeLong(orderIds[entry]);
+                bytes.writeLong(uids[entry]);
+                bytes.writeInt(symbols[entry]);
+                bytes.writeLong(expireTimes[entry]);
+            }
+        }
+    }
+
+    // testing only
+    public void validate() {
+        int count = 0;
+        for (int idx = 0; idx < heads.length; idx++) {
+            final int level = idx / SLOTS;
+            final boolean occupiedBit = (occupied[level] & (1L << (idx & SLOT_MASK))) != 0;
+            if (occupiedBit != (heads[idx] != NIL)) {
+                throw new IllegalStateException("wrong occupancy bit for level " + level + " slot " + (idx & SLOT_MASK));
+            }
+            int p = NIL;
+            for (int entry = heads[idx]; entry != NIL; entry = next[entry]) {
+                if (prev[entry] != p || slotOf[entry] != idx || entryById.getIfAbsent(orderIds[entry], NIL) != entry) {
+                    throw new IllegalStateException("broken entry for order " + orderIds[entry]);
+                }
+                if (expireTimes[entry] <= currentTime) {
+                    throw new IllegalStateException("order " + orderIds[entry] + " should be expired");
+                }
+                p = entry;
+                count++;
+            }
+        }
+        if (count != entryById.size()) {
+            throw new IllegalStateException("found " + count + " entries in wheel, but there are " + entryById.size() + " in index");
+        }
+    }
+
+    @Override
+    public int stateHash() {
+        final long[] hash = {0};
+        entryById.forEachKeyValue((orderId, entry) -> {
+            long h = HashingUtils.mix64(orderId);
+            h = HashingUtils.mix64(h ^ uids[entry]);
+            h = HashingUtils.mix64(h ^ symbols[entry]);
+            hash[0] += HashingUtils.mix64(h ^ expireTimes[entry]);
+        });
+        return Objects.hash(Long.hashCode(hash[0]), currentTime);
+    }
+}
@@ -131,9 +131,11 @@ public final class GroupingProcessor implements EventProcessor {
                             cmd.serviceFlags = 1;
                         }
 
-                        // cleaning attached objects
+                        // cleaning attached objects (all handlers already processed previous command in this slot)
                         cmd.marketData = null;
-                        cmd.matcherEvent = null;
+                        cmd.marketDataDelta = null;
+                        cmd.tradesSummary = null;
+                        cmd.recycleMatcherEvents();
 
                         if (cmd.command == OrderCommandType.NOP) {
                             // just set next group and pass
@@ -16,7 +16,13 @@
 package exchange.core2.core.processors;
 
 import exchange.core2.core.common.CoreSymbolSpecification;
+import exchange.core2.core.common.L2MarketData;
+import exchange.core2.core.common.L2MarketDataDelta;
+import exchange.core2.core.common.MatcherEventType;
+import exchange.core2.core.common.MatcherTradeEvent;
 import exchange.core2.core.common.Order;
+import exchange.core2.core.common.OrderAction;
+import exchange.core2.core.common.OrderType;
 import exchange.core2.core.common.StateHash;
 import exchange.core2.core.common.SymbolType;
 import exchange.core2.core.common.api.binary.BatchAddAccountsCommand;
@@ -34,13 +40,15 @@ import exchange.core2.core.utils.UnsafeUtils;
 import lombok.extern.slf4j.Slf4j;
 import net.openhft.chronicle.bytes.BytesOut;
 import net.openhft.chronicle.bytes.WriteBytesMarshallable;
-import org.apache.commons.lang3.tuple.Pair;
+import org.apache.commons.lang3.tuple.Triple;
 import org.eclipse.collections.impl.map.mutable.primitive.IntLongHashMap;
 import org.eclipse.collections.impl.map.mutable.primitive.IntObjectHashMap;
 
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Objects;
 import java.util.Optional;
+import java.util.function.Consumer;
 import java.util.function.Function;
 
 @Slf4j
@@ -59,6 +67,19 @@ public final class MatchingEngineRouter implements WriteBytesMarshallable, State
 
     private final ISerializationProcessor serializationProcessor;
 
+    // symbol->sequence of the last L2 market data change (not persisted - consumers should request new snapshot after restart)
+    private final IntLongHashMap l2Sequences = new IntLongHashMap();
+
+    // GTD orders expiration (orders of this shard only)
+    private final ExpirationTimerWheel expirationWheel;
+
+    // reusable command for collecting events of all-symbols mass cancel
+    private final OrderCommand massCancelCmd = new OrderCommand();
+
+    // reusable command for collecting events of expired GTD orders
+    private final OrderCommand expirationCmd = new OrderCommand();
+    private final ExpirationTimerWheel.ExpirationHandler expirationHandler = this::cancelExpiredOrder;
+
     public MatchingEngineRouter(final int shardId,
                                 final long numShards,
                                 final ISerializationProcessor serializationProcessor,
@@ -74,7 +95,7 @@ public final class MatchingEngineRouter implements WriteBytesMarshallable, State
         this.orderBookFactory = orderBookFactory;
 
         if (loadStateId != null) {
-            final Pair<BinaryCommandsProcessor, IntObjectHashMap<IOrderBook>> deserialized = serializationProcessor.loadData(
+            final Triple<BinaryCommandsProcessor, IntObjectHashMap<IOrderBook>, ExpirationTimerWheel> deserialized = serializationProcessor.loadData(
                     loadStateId,
                     ISerializationProcessor.SerializedModuleType.MATCHING_ENGINE_ROUTER,
                     shardId,
@@ -87,15 +108,18 @@ public final class MatchingEngineRouter implements WriteBytesMarshallable, State
                         }
                         final BinaryCommandsProcessor bcp = new BinaryCommandsProcessor(this::handleBinaryMessage, bytesIn, shardId + 1024);
                         final IntObjectHashMap<IOrderBook> ob = SerializationUtils.readIntHashMap(bytesIn, IOrderBook::create);
-                        return Pair.of(bcp, ob);
+                        final ExpirationTimerWheel wheel = new ExpirationTimerWheel(bytesIn);
+                        return Triple.of(bcp, ob, wheel);
                     });
 
             this.binaryCommandsProcessor = deserialized.getLeft();
-            this.orderBooks = deserialized.getRight();
+            this.orderBooks = deserialized.getMiddle();
+            this.expirationWheel = deserialized.getRight();
 
         } else {
             this.binaryCommandsProcessor = new BinaryCommandsProcessor(this::handleBinaryMessage, shardId + 1024);
             this.orderBooks = new IntObjectHashMap<>();
+            this.expirationWheel = new ExpirationTimerWheel();
         }
     }
 
@@ -103,11 +127,25 @@ public final class MatchingEngineRouter implements WriteBytesMarshallable, State
 
         final OrderCommandType command = cmd.command;
 
-        if (command == OrderCommandType.MOVE_ORDER || command == OrderCommandType.CANCEL_ORDER || command == OrderCommandType.ORDER_BOOK_REQUEST || command == OrderCommandType.PLACE_ORDER) {
+        if (command == OrderCommandType.MOVE_ORDER || command == OrderCommandType.CANCEL_ORDER || command == OrderCommandType.ORDER_BOOK_REQUEST || command == OrderCommandType.PLACE_ORDER || command == OrderCommandType.QUOTE
+                || command == OrderCommandType.START_AUCTION || command == OrderCommandType.UNCROSS) {
             // process specific symbol group only
             if (symbolForThisHandler(cmd.symbol)) {
                 processMatchingCommand(cmd);
+                expireOrders(cmd, false);
+            }
+        } else if (command == OrderCommandType.MASS_CANCEL) {
+            if (cmd.symbol == -1) {
+                // all symbols - each shard processes own order books
+                massCancelAllSymbols(cmd);
+            } else if (symbolForThisHandler(cmd.symbol)) {
+                processMatchingCommand(cmd);
+                expireOrders(cmd, false);
             }
+        } else if (command == OrderCommandType.NOP) {
+            // heartbeat - only moves expiration clock forward
+            expireOrders(cmd, true);
+
         } else if (command == OrderCommandType.BINARY_DATA) {
 
             final boolean isLastFrame = binaryCommandsProcessor.acceptBinaryFrame(cmd);
@@ -118,6 +156,8 @@ public final class MatchingEngineRouter implements WriteBytesMarshallable, State
         } else if (command == OrderCommandType.RESET) {
             // process all symbols groups, only processor 0 writes result
             orderBooks.clear();
+            l2Sequences.clear();
+            expirationWheel.clear();
             binaryCommandsProcessor.reset();
             if (shardId == 0) {
                 cmd.resultCode = CommandResultCode.SUCCESS;
@@ -174,7 +214,13 @@ public final class MatchingEngineRouter implements WriteBytesMarshallable, State
 
     private Optional<SingleUserReportResult> reportSingleUser(final SingleUserReportQuery query) {
         final IntObjectHashMap<List<Order>> orders = new IntObjectHashMap<>();
-        orderBooks.forEach(ob -> orders.put(ob.getSymbolSpec().symbolId, ob.findUserOrders(query.getUid())));
+        orderBooks.forEach(ob -> {
+            // pending stop orders and orders collected by call auction are reported as regular orders
+            final List<Order> userOrders = new ArrayList<>(ob.findUserOrders(query.getUid()));
+            userOrders.addAll(ob.getStopOrders().findUserOrders(query.getUid()));
+            userOrders.addAll(ob.getCallAuction().findUserOrders(query.getUid()));
+            orders.put(ob.getSymbolSpec().symbolId, userOrders);
+        });
 
         //log.debug("orders: {}", orders.size());
         return Optional.of(new SingleUserReportResult(null, orders, SingleUserReportResult.ExecutionStatus.OK));
@@ -196,6 +242,17 @@ public final class MatchingEngineRouter implements WriteBytesMarshallable, State
                     currencyBalance.addToValue(
                             spec.getQuoteCurrency(),
                             ob.bidOrdersStream(false).mapToLong(ord -> CoreArithmeticUtils.calculateAmountBidTakerFee(ord.size - ord.filled, ord.reserveBidPrice, spec)).sum());
+
+                    // pending stop orders and orders collected by call auction are holding funds as well
+                    final Consumer<Order> holdsCollector = ord -> {
+                        if (ord.action == OrderAction.ASK) {
+                            currencyBalance.addToValue(spec.getBaseCurrency(), CoreArithmeticUtils.calculateAmountAsk(ord.size, spec));
+                        } else {
+                            currencyBalance.addToValue(spec.getQuoteCurrency(), CoreArithmeticUtils.calculateAmountBidTakerFee(ord.size, ord.reserveBidPrice, spec));
+                        }
+                    };
+                    ob.getStopOrders().forEachOrder(holdsCollector);
+                    ob.getCallAuction().forEachOrder(holdsCollector);
                 });
 
         return Optional.of(new TotalCurrencyBalanceReportResult(null, null, currencyBalance, null, null));
@@ -226,17 +283,169 @@ public final class MatchingEngineRouter implements WriteBytesMarshallable, State
         if (orderBook == null) {
             cmd.resultCode = CommandResultCode.MATCHING_INVALID_ORDER_BOOK_ID;
         } else {
+            final boolean aggregateTrades = orderBook.getSymbolSpec().aggregateTrades;
+            if (aggregateTrades) {
+                // filled by order book together with trade events
+                cmd.attachTradesSummary();
+            }
+
             cmd.resultCode = IOrderBook.processCommand(orderBook, cmd);
 
+            if (aggregateTrades && cmd.tradesSummary.size == 0) {
+                cmd.tradesSummary = null;
+            }
+
+            trackExpirations(orderBook, cmd);
+
+            // stamp price levels changes with per-symbol sequence
+            final L2MarketDataDelta marketDataDelta = cmd.marketDataDelta;
+            if (marketDataDelta != null) {
+                marketDataDelta.sequence = l2Sequences.addToValue(cmd.symbol, 1);
+            }
+
             // posting market data for risk processor makes sense only if command execution is successful, otherwise it will be ignored (possible garbage from previous cycle)
             // TODO don't need for EXCHANGE mode order books?
-            // TODO doing this for many order books simultaneously can introduce hiccups
+            // top levels are copied from incrementally maintained L2 cache (FAST order book), so it is cheap for many order books
             if ((cmd.serviceFlags & 1) != 0 && cmd.command != OrderCommandType.ORDER_BOOK_REQUEST && cmd.resultCode == CommandResultCode.SUCCESS) {
-                cmd.marketData = orderBook.getL2MarketDataSnapshot(8);
+                final L2MarketData marketData = cmd.getMarketDataBuffer();
+                orderBook.fillL2MarketData(8, marketData);
+                cmd.marketData = marketData;
+            }
+
+            // snapshot reflects all changes up to current sequence
+            if (cmd.marketData != null) {
+                cmd.marketData.referenceSeq = l2Sequences.get(cmd.symbol);
             }
         }
     }
 
+    /**
+     * Cancel user orders in all order books of this shard.
+     * Events are collected into separate chain first, because other shards can attach events to the same command concurrently.
+     * L2 market data delta is not attached for the same reason.
+     *
+     * @param cmd - mass cancel command
+     */
+    private void massCancelAllSymbols(final OrderCommand cmd) {
+        massCancelCmd.command = OrderCommandType.MASS_CANCEL;
+        massCancelCmd.uid = cmd.uid;
+        massCancelCmd.timestamp = cmd.timestamp;
+        massCancelCmd.matcherEvent = null;
+
+        orderBooks.forEach(orderBook -> {
+            // events are marked with order book symbol
+            massCancelCmd.symbol = orderBook.getSymbolSpec().symbolId;
+            massCancelCmd.marketDataDelta = null;
+            orderBook.massCancel(massCancelCmd);
+            orderBook.getStopOrders().cancelUserOrders(massCancelCmd.uid, massCancelCmd);
+            orderBook.getCallAuction().cancelUserOrders(massCancelCmd.uid, massCancelCmd);
+            if (massCancelCmd.marketDataDelta != null) {
+                // price levels changes are not published (command is shared between shards),
+                // but sequence is incremented anyway, so consumers will detect a gap and request new snapshot
+                l2Sequences.addToValue(massCancelCmd.symbol, 1);
+                massCancelCmd.marketDataDelta = null;
+            }
+        });
+
+        if (massCancelCmd.matcherEvent != null) {
+            forgetFinishedOrders(massCancelCmd.matcherEvent);
+            UnsafeUtils.appendEventsVolatile(cmd, massCancelCmd.matcherEvent);
+            massCancelCmd.matcherEvent = null;
+        }
+
+        UnsafeUtils.setResultVolatile(cmd, true, CommandResultCode.SUCCESS, CommandResultCode.MATCHING_UNSUPPORTED_COMMAND);
+    }
+
+    /**
+     * Update expiration timers after order book processed a command:
+     * timers of cancelled or completely filled orders are removed, new resting GTD order is scheduled.
+     * GTD order which is already expired is cancelled immediately (events are attached by {@link #expireOrders}).
+     *
+     * @param orderBook - order book of the command symbol
+     * @param cmd       - processed command
+     */
+    private void trackExpirations(final IOrderBook orderBook, final OrderCommand cmd) {
+
+        if (!expirationWheel.isEmpty()) {
+            forgetFinishedOrders(cmd.matcherEvent);
+        }
+
+        if (cmd.command == OrderCommandType.PLACE_ORDER
+                && cmd.orderType == OrderType.GTD
+                && cmd.resultCode == CommandResultCode.SUCCESS
+                && IOrderBook.containsOrder(orderBook, cmd.orderId)) {
+
+            if (!expirationWheel.schedule(cmd.orderId, cmd.uid, cmd.symbol, cmd.expireTime)) {
+                expirationCmd.timestamp = cmd.timestamp;
+                cancelExpiredOrder(cmd.orderId, cmd.uid, cmd.symbol);
+            }
+        }
+    }
+
+    /**
+     * Move expiration clock to the command timestamp and cancel expired GTD orders of this shard.
+     * Cancel events are attached to the command which moved the clock (no separate commands are published).
+     *
+     * @param cmd    - command driving the clock (own symbol command, or NOP heartbeat)
+     * @param shared - true if command is processed by other shards concurrently (events are attached using CAS)
+     */
+    private void expireOrders(final OrderCommand cmd, final boolean shared) {
+
+        expirationCmd.timestamp = cmd.timestamp;
+        expirationWheel.advance(cmd.timestamp, expirationHandler);
+
+        final MatcherTradeEvent events = expirationCmd.matcherEvent;
+        if (events != null) {
+            expirationCmd.matcherEvent = null;
+            if (shared) {
+                UnsafeUtils.appendEventsVolatile(cmd, events);
+            } else {
+                final MatcherTradeEvent tail = events.findTail();
+                tail.nextEvent = cmd.matcherEvent;
+                cmd.matcherEvent = events;
+            }
+        }
+    }
+
+    private void cancelExpiredOrder(final long orderId, final long uid, final int symbol) {
+
+        final IOrderBook orderBook = orderBooks.get(symbol);
+        if (orderBook == null) {
+            return;
+        }
+
+        expirationCmd.command = OrderCommandType.CANCEL_ORDER;
+        expirationCmd.orderId = orderId;
+        expirationCmd.uid = uid;
+        expirationCmd.symbol = symbol;
+        expirationCmd.marketDataDelta = null;
+
+        final boolean isCancelled = orderBook.cancelOrder(expirationCmd)
+                || orderBook.getCallAuction().cancel(orderId, uid, expirationCmd);
+        if (isCancelled && expirationCmd.marketDataDelta != null) {
+            // same as for all-symbols mass cancel - price levels changes are not published, sequence is incremented
+            l2Sequences.addToValue(symbol, 1);
+        }
+        expirationCmd.marketDataDelta = null;
+    }
+
+    private void forgetFinishedOrders(MatcherTradeEvent event) {
+        while (event != null) {
+            if (event.eventType == MatcherEventType.CANCEL) {
+                expirationWheel.cancel(event.activeOrderId, event.symbol);
+            } else if (event.eventType == MatcherEventType.TRADE) {
+                if (event.matchedOrderCompleted) {
+                    expirationWheel.cancel(event.matchedOrderId, event.symbol);
+                }
+                if (event.activeOrderCompleted) {
+                    // moved order can be filled as taker
+                    expirationWheel.cancel(event.activeOrderId, event.symbol);
+                }
+            }
+            event = event.nextEvent;
+        }
+    }
+
     @Override
     public void writeMarshallable(BytesOut bytes) {
         bytes.writeInt(shardId).writeLong(shardMask);
@@ -244,6 +453,8 @@ public final class MatchingEngineRouter implements WriteBytesMarshallable, State
 
         // write orderBooks
         SerializationUtils.marshallIntHashMap(orderBooks, bytes);
+
+        expirationWheel.writeMarshallable(bytes);
     }
 
     @Override
@@ -252,7 +463,8 @@ public final class MatchingEngineRouter implements WriteBytesMarshallable, State
                 shardId,
                 shardMask,
                 binaryCommandsProcessor.stateHash(),
-                HashingUtils.stateHash(orderBooks));
+                HashingUtils.stateHash(orderBooks),
+                expirationWheel.stateHash());
 
         //log.debug("HASH ME{} : hash={} a={} b={}", shardId, hash, a, b);
     }
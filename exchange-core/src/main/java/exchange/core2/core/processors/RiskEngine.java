@@ -38,8 +38,10 @@ import net.openhft.chronicle.bytes.WriteBytesMarshallable;
 import org.eclipse.collections.impl.map.mutable.primitive.IntLongHashMap;
 import org.eclipse.collections.impl.map.mutable.primitive.IntObjectHashMap;
 
+import java.nio.file.Path;
 import java.util.Objects;
 import java.util.Optional;
+import java.util.function.Supplier;
 
 /**
  * Stateful risk engine
@@ -54,6 +56,10 @@ public final class RiskEngine implements WriteBytesMarshallable, StateHash {
     private final IntObjectHashMap<LastPriceCacheRecord> lastPriceCache;
     private final IntLongHashMap fees;
 
+    // derived state (not serialized): incremented on every last price change,
+    // free margin of positions is re-calculated lazily, when user is checked next time (see refreshFreeMargin)
+    private long lastPriceEpoch = 0;
+
     // configuration
     private final int shardId;
     private final long shardMask;
@@ -61,6 +67,23 @@ public final class RiskEngine implements WriteBytesMarshallable, StateHash {
     private final ISerializationProcessor serializationProcessor;
 
     public RiskEngine(final int shardId, final long numShards, final ISerializationProcessor serializationProcessor, final Long loadStateId) {
+        this(shardId, numShards, serializationProcessor, loadStateId, HashUserAccounts::new, null, 0, 0L);
+    }
+
+    /**
+     * @param userAccountsFactory     - currency accounts implementation
+     * @param userProfilesStoreFolder - folder for off-heap (memory-mapped) cold user profiles store, or null to keep all profiles on heap
+     * @param userProfilesHotLimit    - max number of user profiles kept on heap when cold store is used, 0 - default limit
+     * @param userProfilesIdleTimeout - idle time (ms) after which user profile is moved into cold store, 0 - only when hot profiles limit is reached
+     */
+    public RiskEngine(final int shardId,
+                      final long numShards,
+                      final ISerializationProcessor serializationProcessor,
+                      final Long loadStateId,
+                      final Supplier<IUserAccounts> userAccountsFactory,
+                      final Path userProfilesStoreFolder,
+                      final int userProfilesHotLimit,
+                      final long userProfilesIdleTimeout) {
         if (Long.bitCount(numShards) != 1) {
             throw new IllegalArgumentException("Invalid number of shards " + numShards + " - must be power of 2");
         }
@@ -68,9 +91,16 @@ public final class RiskEngine implements WriteBytesMarshallable, StateHash {
         this.shardMask = numShards - 1;
         this.serializationProcessor = serializationProcessor;
 
+        final UserProfilesMappedStore mappedStore = userProfilesStoreFolder == null
+                ? null
+                : new UserProfilesMappedStore(userProfilesStoreFolder.resolve("user_profiles_" + shardId), userAccountsFactory);
+        final int maxHotProfiles = userProfilesHotLimit != 0 ? userProfilesHotLimit : UserProfileService.DEFAULT_MAX_HOT_PROFILES;
+
         if (loadStateId == null) {
             this.symbolSpecificationProvider = new SymbolSpecificationProvider();
-            this.userProfileService = new UserProfileService();
+            this.userProfileService = mappedStore == null
+                    ? new UserProfileService(userAccountsFactory)
+                    : new UserProfileService(userAccountsFactory, mappedStore, maxHotProfiles, userProfilesIdleTimeout, this::restoreFreeMargin);
             this.binaryCommandsProcessor = new BinaryCommandsProcessor(this::handleBinaryMessage, shardId);
             this.lastPriceCache = new IntObjectHashMap<>();
             this.fees = new IntLongHashMap();
@@ -89,7 +119,9 @@ public final class RiskEngine implements WriteBytesMarshallable, StateHash {
                             throw new IllegalStateException("wrong shardMask");
                         }
                         final SymbolSpecificationProvider symbolSpecificationProvider = new SymbolSpecificationProvider(bytesIn);
-                        final UserProfileService userProfileService = new UserProfileService(bytesIn);
+                        final UserProfileService userProfileService = mappedStore == null
+                                ? new UserProfileService(bytesIn, userAccountsFactory)
+                                : new UserProfileService(bytesIn, userAccountsFactory, mappedStore, maxHotProfiles, userProfilesIdleTimeout, this::restoreFreeMargin);
                         final BinaryCommandsProcessor binaryCommandsProcessor = new BinaryCommandsProcessor(this::handleBinaryMessage, bytesIn, shardId);
                         final IntObjectHashMap<LastPriceCacheRecord> lastPriceCache = SerializationUtils.readIntHashMap(bytesIn, LastPriceCacheRecord::new);
                         final IntLongHashMap fees = SerializationUtils.readIntLongHashMap(bytesIn);
@@ -101,6 +133,8 @@ public final class RiskEngine implements WriteBytesMarshallable, StateHash {
             this.binaryCommandsProcessor = state.binaryCommandsProcessor;
             this.lastPriceCache = state.lastPriceCache;
             this.fees = state.fees;
+
+            rebuildFreeMargin();
         }
     }
 
@@ -109,6 +143,9 @@ public final class RiskEngine implements WriteBytesMarshallable, StateHash {
         public long askPrice = Long.MAX_VALUE;
         public long bidPrice = 0L;
 
+        // derived state (not serialized): last price epoch when price was changed
+        public long changedEpoch = 0L;
+
         public LastPriceCacheRecord() {
         }
 
@@ -146,8 +183,9 @@ public final class RiskEngine implements WriteBytesMarshallable, StateHash {
 
     /**
      * Pre-process command handler
-     * 1. MOVE/CANCEL commands ignored, for specific uid marked as valid for matching engine
-     * 2. PLACE ORDER checked with risk ending for specific uid
+     * 1. MOVE/CANCEL/MASS_CANCEL/START_AUCTION/UNCROSS commands ignored, for specific uid marked as valid for matching engine
+     * (MOVE/CANCEL/MASS_CANCEL - cold user profile is loaded for release step)
+     * 2. PLACE ORDER and QUOTE checked with risk ending for specific uid
      * 3. ADD USER, BALANCE_ADJUSTMENT processed for specific uid, not valid for matching engine
      * 4. BINARY_DATA commands processed for ANY uid and marked as valid for matching engine TODO which handler marks?
      * 5. RESET commands processed for any uid
@@ -156,12 +194,22 @@ public final class RiskEngine implements WriteBytesMarshallable, StateHash {
      */
     public boolean preProcessCommand(final OrderCommand cmd) {
 
+        // safe point - no profile references are kept between commands
+        userProfileService.evictIfRequired(cmd.timestamp);
+
         final OrderCommandType command = cmd.command;
 
-        if (command == OrderCommandType.MOVE_ORDER || command == OrderCommandType.CANCEL_ORDER || command == OrderCommandType.ORDER_BOOK_REQUEST) {
+        if (command == OrderCommandType.MOVE_ORDER || command == OrderCommandType.CANCEL_ORDER || command == OrderCommandType.MASS_CANCEL) {
+            // funds will be released by R2 - load cold profile before command reaches matching engine
+            if (uidForThisHandler(cmd.uid)) {
+                userProfileService.prefetchUserProfile(cmd.uid);
+            }
+            return false;
+
+        } else if (command == OrderCommandType.ORDER_BOOK_REQUEST || command == OrderCommandType.START_AUCTION || command == OrderCommandType.UNCROSS) {
             return false;
 
-        } else if (command == OrderCommandType.PLACE_ORDER) {
+        } else if (command == OrderCommandType.PLACE_ORDER || command == OrderCommandType.QUOTE) {
             if (uidForThisHandler(cmd.uid)) {
                 cmd.resultCode = placeOrderRiskCheck(cmd);
             }
@@ -273,7 +321,7 @@ public final class RiskEngine implements WriteBytesMarshallable, StateHash {
         final IntLongHashMap symbolOpenInterestLong = new IntLongHashMap();
         final IntLongHashMap symbolOpenInterestShort = new IntLongHashMap();
 
-        userProfileService.getUserProfiles().forEach(userProfile -> {
+        userProfileService.forEachUserProfile(false, userProfile -> {
             userProfile.accounts.forEachKeyValue(currencyBalance::addToValue);
             userProfile.positions.forEachKeyValue((symbolId, positionRecord) -> {
                 final CoreSymbolSpecification spec = symbolSpecificationProvider.getSymbolSpecification(symbolId);
@@ -297,10 +345,51 @@ public final class RiskEngine implements WriteBytesMarshallable, StateHash {
      * @param cmd
      */
     public boolean handlerRiskRelease(final OrderCommand cmd) {
-        handlerRiskRelease(cmd.symbol, cmd.marketData, cmd.matcherEvent);
+        if (cmd.command == OrderCommandType.PLACE_ORDER && cmd.orderType == OrderType.IOC_BUDGET) {
+            handleBudgetOrderRelease(cmd);
+        } else {
+            handlerRiskRelease(cmd.symbol, cmd.marketData, cmd.matcherEvent);
+        }
         return false;
     }
 
+    /**
+     * Budget order holds exactly its budget, so trades are paid at trade price (no hold price correction for taker),
+     * and remaining budget is released once, after matching is completed.
+     * Rejection event (unmatched size) is not used for release.
+     * Events of other orders (triggered stop orders, expired GTD orders) are processed as usual.
+     */
+    private void handleBudgetOrderRelease(final OrderCommand cmd) {
+
+        final boolean success = cmd.resultCode == CommandResultCode.SUCCESS;
+        final CoreSymbolSpecification spec = success ? getSymbolSpecificationOrThrow(cmd.symbol) : null;
+        long spent = 0;
+        for (MatcherTradeEvent ev = cmd.matcherEvent; ev != null; ev = ev.nextEvent) {
+            if (ev.activeOrderId != cmd.orderId || ev.activeOrderUid != cmd.uid || ev.symbol != cmd.symbol) {
+                handleForeignMatcherEvent(ev);
+            } else if (success && ev.eventType == MatcherEventType.TRADE) {
+                handleMatcherEventExchange(ev, spec);
+                spent += CoreArithmeticUtils.calculateAmountBidTakerFee(ev.size, ev.price, spec);
+            }
+        }
+
+        if (success && uidForThisHandler(cmd.uid) && spent != cmd.budget) {
+            userProfileService.getUserProfileOrThrowEx(cmd.uid).accounts.addToValue(spec.quoteCurrency, cmd.budget - spent);
+        }
+
+        // market data only
+        handlerRiskRelease(cmd.symbol, cmd.marketData, null);
+    }
+
+    private void handleForeignMatcherEvent(final MatcherTradeEvent ev) {
+        final CoreSymbolSpecification spec = getSymbolSpecificationOrThrow(ev.symbol);
+        if (spec.type == SymbolType.CURRENCY_EXCHANGE_PAIR) {
+            handleMatcherEventExchange(ev, spec);
+        } else {
+            handleMatcherEventMargin(ev, spec);
+        }
+    }
+
     private boolean uidForThisHandler(final long uid) {
         return (shardMask == 0) || ((uid & shardMask) == shardId);
     }
@@ -321,7 +410,10 @@ public final class RiskEngine implements WriteBytesMarshallable, StateHash {
         }
 
         // check if account has enough funds
-        if (!placeOrder(cmd, userProfile, spec)) {
+        final boolean canPlace = (cmd.command == OrderCommandType.QUOTE)
+                ? placeQuote(cmd, userProfile, spec)
+                : placeOrder(cmd, userProfile, spec);
+        if (!canPlace) {
             log.warn("{} NSF uid={}: Can not place {}", cmd.orderId, userProfile.uid, cmd);
             log.warn("{} accounts:{}", cmd.orderId, userProfile.accounts);
             return CommandResultCode.RISK_NSF;
@@ -337,22 +429,34 @@ public final class RiskEngine implements WriteBytesMarshallable, StateHash {
                                final CoreSymbolSpecification spec) {
 
 
+        if (cmd.orderType == OrderType.IOC_BUDGET) {
+
+            if (spec.type != SymbolType.CURRENCY_EXCHANGE_PAIR || cmd.action != OrderAction.BID || cmd.budget <= 0) {
+                log.warn("Budget order is not supported for symbol {} action {} budget {}", cmd.symbol, cmd.action, cmd.budget);
+                return false;
+            }
+            // holding exactly the budget (including taker fee)
+            return holdExchangeAmount(userProfile, spec.quoteCurrency, cmd.budget);
+        }
+
+        if ((cmd.orderType == OrderType.STOP || cmd.orderType == OrderType.STOP_LIMIT) && cmd.stopPrice <= 0) {
+            log.warn("Invalid stop price {} for order {}", cmd.stopPrice, cmd.orderId);
+            return false;
+        }
+
+        if (cmd.orderType == OrderType.GTD && cmd.expireTime <= 0) {
+            log.warn("Invalid expiration time {} for order {}", cmd.expireTime, cmd.orderId);
+            return false;
+        }
+
+        // stop orders are holding funds same way as regular orders (limit price is used)
         if (spec.type == SymbolType.CURRENCY_EXCHANGE_PAIR) {
 
-            return placeExchangeOrder(cmd, userProfile, spec);
+            return placeExchangeOrder(userProfile, spec, cmd.action, cmd.size, cmd.price, cmd.reserveBidPrice);
 
         } else if (spec.type == SymbolType.FUTURES_CONTRACT) {
 
-            final SymbolPositionRecord position = userProfile.getOrCreatePositionRecord(spec);
-            final boolean canPlaceOrder = canPlaceMarginOrder(cmd, userProfile, spec, position);
-            if (canPlaceOrder) {
-                position.pendingHold(cmd.action, cmd.size);
-                return true;
-            } else {
-                // try to cleanup position if refusing to place
-                userProfile.removeRecordIfEmpty(position);
-                return false;
-            }
+            return placeMarginOrder(userProfile, spec, cmd.action, cmd.size);
 
         } else {
             log.error("Symbol {} - unsupported type: {}", cmd.symbol, spec.type);
@@ -360,31 +464,106 @@ public final class RiskEngine implements WriteBytesMarshallable, StateHash {
         }
     }
 
-    private boolean placeExchangeOrder(final OrderCommand cmd,
-                                       final UserProfile userProfile,
-                                       final CoreSymbolSpecification spec) {
+    /**
+     * Both sides of the quote are checked in one go - either both holds are applied, or none of them.
+     * <p>
+     * New quote is always held in full. Holds of the previous quote are released only by cancel events
+     * when matching engine removes its orders (previous quote can still be traded before that),
+     * so at this moment account should cover both previous and new quotes - balance never goes negative.
+     */
+    private boolean placeQuote(final OrderCommand cmd,
+                               final UserProfile userProfile,
+                               final CoreSymbolSpecification spec) {
 
-        final int currency = (cmd.action == OrderAction.BID) ? spec.quoteCurrency : spec.baseCurrency;
+        final long bidSize = cmd.size;
+        final long askSize = cmd.askSize;
+        if (bidSize < 0 || askSize < 0) {
+            return false;
+        }
 
-        // futures positions check for this currency
-        long freeFuturesMargin = 0L;
-        for (final SymbolPositionRecord position : userProfile.positions) {
-            if (position.currency == currency) {
-                final int recSymbol = position.symbol;
-                final CoreSymbolSpecification spec2 = symbolSpecificationProvider.getSymbolSpecification(recSymbol);
-                // add P&L subtract margin
-                freeFuturesMargin += position.estimateProfit(spec2, lastPriceCache.get(recSymbol));
-                freeFuturesMargin -= position.calculateRequiredMarginForFutures(spec2);
+        if (spec.type == SymbolType.CURRENCY_EXCHANGE_PAIR) {
+
+            if (bidSize > 0 && !placeExchangeOrder(userProfile, spec, OrderAction.BID, bidSize, cmd.price, cmd.reserveBidPrice)) {
+                return false;
+            }
+            if (askSize > 0 && !placeExchangeOrder(userProfile, spec, OrderAction.ASK, askSize, cmd.askPrice, 0L)) {
+                if (bidSize > 0) {
+                    // revert bid hold
+                    userProfile.accounts.addToValue(spec.quoteCurrency, CoreArithmeticUtils.calculateHoldAmount(OrderAction.BID, bidSize, cmd.reserveBidPrice, spec));
+                }
+                return false;
+            }
+            return true;
+
+        } else if (spec.type == SymbolType.FUTURES_CONTRACT) {
+
+            if (bidSize > 0 && !placeMarginOrder(userProfile, spec, OrderAction.BID, bidSize)) {
+                return false;
+            }
+            if (askSize > 0 && !placeMarginOrder(userProfile, spec, OrderAction.ASK, askSize)) {
+                if (bidSize > 0) {
+                    // revert bid hold
+                    final SymbolPositionRecord position = userProfile.getPositionRecordOrThrowEx(spec.symbolId);
+                    position.pendingRelease(OrderAction.BID, bidSize);
+                    updatePositionFreeMargin(userProfile, position, spec);
+                }
+                return false;
             }
+            return true;
+
+        } else {
+            log.error("Symbol {} - unsupported type: {}", cmd.symbol, spec.type);
+            return false;
         }
+    }
+
+    private boolean placeMarginOrder(final UserProfile userProfile,
+                                     final CoreSymbolSpecification spec,
+                                     final OrderAction action,
+                                     final long size) {
+
+        refreshFreeMargin(userProfile);
+        final SymbolPositionRecord position = userProfile.getOrCreatePositionRecord(spec);
+        final boolean canPlaceOrder = canPlaceMarginOrder(action, size, userProfile, spec, position);
+        if (canPlaceOrder) {
+            position.pendingHold(action, size);
+        }
+        // also cleanups position if refusing to place
+        updatePositionFreeMargin(userProfile, position, spec);
+        return canPlaceOrder;
+    }
+
+    private boolean placeExchangeOrder(final UserProfile userProfile,
+                                       final CoreSymbolSpecification spec,
+                                       final OrderAction action,
+                                       final long size,
+                                       final long price,
+                                       final long reserveBidPrice) {
 
-        if (cmd.action == OrderAction.BID && cmd.reserveBidPrice < cmd.price) {
+        if (action == OrderAction.BID && reserveBidPrice < price) {
             // TODO refactor
-            log.warn("reserveBidPrice={} less than price={}", cmd.reserveBidPrice, cmd.price);
+            log.warn("reserveBidPrice={} less than price={}", reserveBidPrice, price);
             return false;
         }
 
-        final long orderAmount = CoreArithmeticUtils.calculateHoldAmount(cmd.action, cmd.size, cmd.action == OrderAction.BID ? cmd.reserveBidPrice : cmd.price, spec);
+        final int currency = (action == OrderAction.BID) ? spec.quoteCurrency : spec.baseCurrency;
+        final long orderAmount = CoreArithmeticUtils.calculateHoldAmount(action, size, action == OrderAction.BID ? reserveBidPrice : price, spec);
+
+        return holdExchangeAmount(userProfile, currency, orderAmount);
+    }
+
+    /**
+     * Speculatively subtracts amount from account, taking futures positions P&L and margin of the same currency into account
+     *
+     * @return false if there are not enough funds (account is not changed)
+     */
+    private boolean holdExchangeAmount(final UserProfile userProfile,
+                                       final int currency,
+                                       final long orderAmount) {
+
+        // futures positions P&L minus margin for this currency (maintained incrementally)
+        refreshFreeMargin(userProfile);
+        final long freeFuturesMargin = userProfile.freeFuturesMargin.get(currency);
 
 //        log.debug("--------- {} -----------", cmd.orderId);
 //        log.debug("serProfile.accounts.get(currency)={}", userProfile.accounts.get(currency));
@@ -414,12 +593,13 @@ public final class RiskEngine implements WriteBytesMarshallable, StateHash {
      * <p>
      * NOTE: Current implementation does not care about accounts and positions quoted in different currencies
      */
-    private boolean canPlaceMarginOrder(final OrderCommand cmd,
+    private boolean canPlaceMarginOrder(final OrderAction action,
+                                        final long size,
                                         final UserProfile userProfile,
                                         final CoreSymbolSpecification spec,
                                         final SymbolPositionRecord position) {
 
-        final long newRequiredMarginForSymbol = position.calculateRequiredMarginForOrder(spec, cmd.action, cmd.size);
+        final long newRequiredMarginForSymbol = position.calculateRequiredMarginForOrder(spec, action, size);
         if (newRequiredMarginForSymbol == -1) {
             // always allow placing a new order if it would not increase exposure
             return true;
@@ -427,22 +607,10 @@ public final class RiskEngine implements WriteBytesMarshallable, StateHash {
 
         // extra margin is required
 
-        final int symbol = cmd.symbol;
-        // calculate free margin for all positions same currency
-        long freeMargin = 0L;
-        for (final SymbolPositionRecord positionRecord : userProfile.positions) {
-            final int recSymbol = positionRecord.symbol;
-            if (recSymbol != symbol) {
-                if (positionRecord.currency == spec.quoteCurrency) {
-                    final CoreSymbolSpecification spec2 = symbolSpecificationProvider.getSymbolSpecification(recSymbol);
-                    // add P&L subtract margin
-                    freeMargin += positionRecord.estimateProfit(spec2, lastPriceCache.get(recSymbol));
-                    freeMargin -= positionRecord.calculateRequiredMarginForFutures(spec2);
-                }
-            } else {
-                freeMargin = position.estimateProfit(spec, lastPriceCache.get(spec.symbolId));
-            }
-        }
+        // free margin of all other positions same currency (maintained incrementally), plus P&L of this position
+        final long freeMargin = userProfile.freeFuturesMargin.get(spec.quoteCurrency)
+                - position.cachedFreeMargin
+                + position.estimateProfit(spec, lastPriceCache.get(spec.symbolId));
 
 //        log.debug("newMargin={} <= account({})={} + free {}",
 //                newRequiredMarginForSymbol, position.currency, userProfile.accounts.get(position.currency), freeMargin);
@@ -460,14 +628,15 @@ public final class RiskEngine implements WriteBytesMarshallable, StateHash {
             return;
         }
 
-        final CoreSymbolSpecification spec = symbolSpecificationProvider.getSymbolSpecification(symbol);
-        if (spec == null) {
-            throw new IllegalStateException("Symbol not found: " + symbol);
-        }
-
         if (mte != null && mte.eventType != MatcherEventType.BINARY_EVENT) {
+            // events can belong to different symbols (all-symbols mass cancel, expired GTD orders),
+            // so specification is resolved by event symbol
+            CoreSymbolSpecification spec = null;
             // TODO ?? check if processing order is not reversed
             do {
+                if (spec == null || spec.symbolId != mte.symbol) {
+                    spec = getSymbolSpecificationOrThrow(mte.symbol);
+                }
                 if (spec.type == SymbolType.CURRENCY_EXCHANGE_PAIR) {
                     handleMatcherEventExchange(mte, spec);
                 } else {
@@ -480,11 +649,101 @@ public final class RiskEngine implements WriteBytesMarshallable, StateHash {
         // Process marked data
         if (marketData != null) {
             final RiskEngine.LastPriceCacheRecord record = lastPriceCache.getIfAbsentPut(symbol, RiskEngine.LastPriceCacheRecord::new);
-            record.askPrice = (marketData.askSize != 0) ? marketData.askPrices[0] : Long.MAX_VALUE;
-            record.bidPrice = (marketData.bidSize != 0) ? marketData.bidPrices[0] : 0;
+            final long askPrice = (marketData.askSize != 0) ? marketData.askPrices[0] : Long.MAX_VALUE;
+            final long bidPrice = (marketData.bidSize != 0) ? marketData.bidPrices[0] : 0;
+            if (record.askPrice != askPrice || record.bidPrice != bidPrice) {
+                record.askPrice = askPrice;
+                record.bidPrice = bidPrice;
+                // O(1) - positions of the symbol are re-calculated lazily (see refreshFreeMargin)
+                record.changedEpoch = ++lastPriceEpoch;
+            }
+        }
+    }
+
+    /**
+     * Should be called before reading free margin of the user.
+     * Re-calculates positions having last price changed after their free margin was cached,
+     * so cost of price change is paid by users which are placing orders, not by all holders on each tick.
+     * Nothing is done if there were no price changes since previous refresh, otherwise O(number of user positions).
+     */
+    private void refreshFreeMargin(final UserProfile userProfile) {
+        if (userProfile.freeMarginEpoch == lastPriceEpoch) {
+            return;
+        }
+        userProfile.freeMarginEpoch = lastPriceEpoch;
+        userProfile.positions.forEachValue(position -> {
+            final LastPriceCacheRecord record = lastPriceCache.get(position.symbol);
+            if (record != null && record.changedEpoch > position.cachedPriceEpoch) {
+                cachePositionFreeMargin(userProfile, position, getSymbolSpecificationOrThrow(position.symbol));
+            }
+        });
+    }
+
+    /**
+     * Should be called after position (or last price of its symbol) was changed:
+     * re-calculates position free margin (estimated profit minus required margin)
+     * and applies the difference to per-currency aggregate of user profile, so checks are not iterating over all positions.
+     * Empty position is removed (profit is moved into account balance).
+     */
+    private void updatePositionFreeMargin(final UserProfile userProfile,
+                                          final SymbolPositionRecord position,
+                                          final CoreSymbolSpecification spec) {
+
+        if (position.isEmpty()) {
+            userProfile.removeRecordIfEmpty(position);
+            applyFreeMargin(userProfile, position, 0L);
+        } else {
+            cachePositionFreeMargin(userProfile, position, spec);
         }
     }
 
+    private void cachePositionFreeMargin(final UserProfile userProfile,
+                                         final SymbolPositionRecord position,
+                                         final CoreSymbolSpecification spec) {
+        position.cachedPriceEpoch = lastPriceEpoch;
+        applyFreeMargin(userProfile, position, position.estimateProfit(spec, lastPriceCache.get(position.symbol))
+                - position.calculateRequiredMarginForFutures(spec));
+    }
+
+    private static void applyFreeMargin(final UserProfile userProfile, final SymbolPositionRecord position, final long newFreeMargin) {
+        final long diff = newFreeMargin - position.cachedFreeMargin;
+        if (diff != 0) {
+            position.cachedFreeMargin = newFreeMargin;
+            userProfile.freeFuturesMargin.addToValue(position.currency, diff);
+        }
+    }
+
+    /**
+     * Re-build derived free margin state for all positions (after loading snapshot).
+     * Tiered mode: free margin of cold profiles is restored when they are loaded.
+     */
+    private void rebuildFreeMargin() {
+        userProfileService.forEachHotUserProfile(true, this::restoreFreeMargin);
+    }
+
+    /**
+     * Re-calculate derived free margin state of single profile (after it was loaded)
+     */
+    private void restoreFreeMargin(final UserProfile userProfile) {
+        userProfile.freeFuturesMargin.clear();
+        userProfile.freeMarginEpoch = lastPriceEpoch;
+        userProfile.positions.forEachValue(position -> {
+            final CoreSymbolSpecification spec = getSymbolSpecificationOrThrow(position.symbol);
+            position.cachedPriceEpoch = lastPriceEpoch;
+            position.cachedFreeMargin = position.estimateProfit(spec, lastPriceCache.get(position.symbol))
+                    - position.calculateRequiredMarginForFutures(spec);
+            userProfile.freeFuturesMargin.addToValue(position.currency, position.cachedFreeMargin);
+        });
+    }
+
+    private CoreSymbolSpecification getSymbolSpecificationOrThrow(final int symbol) {
+        final CoreSymbolSpecification spec = symbolSpecificationProvider.getSymbolSpecification(symbol);
+        if (spec == null) {
+            throw new IllegalStateException("Symbol not found: " + symbol);
+        }
+        return spec;
+    }
+
     private void handleMatcherEventMargin(final MatcherTradeEvent ev, final CoreSymbolSpecification spec) {
 
         final long size = ev.size;
@@ -501,7 +760,7 @@ public final class RiskEngine implements WriteBytesMarshallable, StateHash {
                 final long fee = spec.takerFee * sizeOpen;
                 taker.accounts.addToValue(quoteCurrency, -fee);
                 fees.addToValue(quoteCurrency, fee);
-                taker.removeRecordIfEmpty(takerSpr);
+                updatePositionFreeMargin(taker, takerSpr, spec);
             }
 
             if (uidForThisHandler(ev.matchedOrderUid)) {
@@ -512,7 +771,7 @@ public final class RiskEngine implements WriteBytesMarshallable, StateHash {
                 final long fee = spec.makerFee * sizeOpen;
                 maker.accounts.addToValue(quoteCurrency, -fee);
                 fees.addToValue(quoteCurrency, fee);
-                maker.removeRecordIfEmpty(makerSpr);
+                updatePositionFreeMargin(maker, makerSpr, spec);
             }
 
         } else if (ev.eventType == MatcherEventType.REJECTION || ev.eventType == MatcherEventType.CANCEL) {
@@ -522,7 +781,7 @@ public final class RiskEngine implements WriteBytesMarshallable, StateHash {
                 final UserProfile up = userProfileService.getUserProfileOrThrowEx(ev.activeOrderUid);
                 final SymbolPositionRecord spr = up.getPositionRecordOrThrowEx(ev.symbol);
                 spr.pendingRelease(ev.activeOrderAction, size);
-                up.removeRecordIfEmpty(spr);
+                updatePositionFreeMargin(up, spr, spec);
             }
 
         } else {
@@ -588,7 +847,10 @@ public final class RiskEngine implements WriteBytesMarshallable, StateHash {
 
             // buying, use bidderHoldPrice to calculate released amount based on price difference
             final long amountDiffToReleaseInQuoteCurrency = CoreArithmeticUtils.calculateAmountBidReleaseCorr(size, ev.bidderHoldPrice - ev.price, spec, isTaker);
-            up.accounts.addToValue(spec.quoteCurrency, amountDiffToReleaseInQuoteCurrency);
+            if (amountDiffToReleaseInQuoteCurrency != 0) {
+                // nothing to release if order was held exactly at trade price (e.g. budget orders)
+                up.accounts.addToValue(spec.quoteCurrency, amountDiffToReleaseInQuoteCurrency);
+            }
 
             final long obtainedAmountInBaseCurrency = CoreArithmeticUtils.calculateAmountAsk(size, spec);
             up.accounts.addToValue(spec.baseCurrency, obtainedAmountInBaseCurrency);
@@ -620,6 +882,13 @@ public final class RiskEngine implements WriteBytesMarshallable, StateHash {
         fees.clear();
     }
 
+    /**
+     * Release off-heap resources, can be called only after processing is stopped
+     */
+    public void close() {
+        userProfileService.close();
+    }
+
     @Override
     public int stateHash() {
 
@@ -15,6 +15,8 @@
  */
 package exchange.core2.core.processors;
 
+import exchange.core2.core.common.HashUserAccounts;
+import exchange.core2.core.common.IUserAccounts;
 import exchange.core2.core.common.StateHash;
 import exchange.core2.core.common.UserProfile;
 import exchange.core2.core.common.cmd.CommandResultCode;
@@ -27,51 +29,345 @@ import net.openhft.chronicle.bytes.BytesOut;
 import net.openhft.chronicle.bytes.WriteBytesMarshallable;
 import org.eclipse.collections.impl.map.mutable.primitive.LongObjectHashMap;
 
-import java.util.Objects;
+import java.util.ArrayList;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
 
 /**
  * Stateful (!) User profile service
  * <p>
+ * Two storage modes:
+ * - on-heap (default): all profiles are kept in hash map and written into snapshot;
+ * - tiered: hot profiles are kept on heap, cold ones - in off-heap memory-mapped store.
+ * In tiered mode hot profiles are kept in access order (LRU list). Least recently accessed profiles are moved into the store
+ * when number of hot profiles is above the limit, or when they were not accessed for configured idle time (see evictIfRequired).
+ * Time is taken from command timestamps, so eviction does not depend on wall clock.
+ * Cold profile is loaded back on first access. Eviction and loading do not change the state (and state hash),
+ * only the place where profile is kept.
+ * Snapshot contains hot profiles and committed store state (file, generation and end offset),
+ * so loading is re-mapping the file plus reading hot profiles. Store keeps files of last committed states, so recent snapshots stay loadable.
+ * <p>
  * TODO make multi instance
  */
 @Slf4j
 public final class UserProfileService implements WriteBytesMarshallable, StateHash {
 
     /**
-     * State: uid -> user profile
+     * State: uid -> user profile (off-heap mode: working set only)
      */
     @Getter
     private final LongObjectHashMap<UserProfile> userProfiles;
 
+    /**
+     * Incremental state hash: sum of mixed hashes of all profiles.
+     * Profiles returned for modification are collected as dirty, their contributions are re-calculated on stateHash request,
+     * so the cost of request depends on number of profiles touched since previous request, not on total number of profiles.
+     */
+    private long profilesHash = 0L;
+    private final ArrayList<UserProfile> dirtyProfiles = new ArrayList<>();
+
+    /**
+     * Configuration: creates currency accounts for new and loaded profiles
+     */
+    private final Supplier<IUserAccounts> accountsFactory;
+
+    /**
+     * Tiered mode: cold profiles store (null for on-heap mode), hot profiles limit, idle time before moving profile into the store (0 - unlimited),
+     * and handler restoring derived (not serialized) state of profiles loaded from the store
+     */
+    private final UserProfilesMappedStore mappedStore;
+    private final int maxHotProfiles;
+    private final long idleTimeout;
+    private final Consumer<UserProfile> loadedProfileHandler;
+
+    /**
+     * Tiered mode: hot profiles in access order (from least recently accessed) and latest known time
+     */
+    private UserProfile lruHead = null;
+    private UserProfile lruTail = null;
+    private long currentTime = 0L;
+
+    public static final int DEFAULT_MAX_HOT_PROFILES = 1 << 20;
+
+    // limits latency of processing single command
+    private static final int MAX_IDLE_EVICTIONS_PER_CALL = 16;
+
+    private static final long MAPPED_SNAPSHOT_MAGIC = 0x4D41505045445550L;
+
     public UserProfileService() {
+        this(HashUserAccounts::new);
+    }
+
+    public UserProfileService(Supplier<IUserAccounts> accountsFactory) {
+        this.accountsFactory = accountsFactory;
+        this.userProfiles = new LongObjectHashMap<>(1024);
+        this.mappedStore = null;
+        this.maxHotProfiles = Integer.MAX_VALUE;
+        this.idleTimeout = 0L;
+        this.loadedProfileHandler = null;
+    }
+
+    /**
+     * Create empty tiered service (existing store content is removed)
+     */
+    public UserProfileService(Supplier<IUserAccounts> accountsFactory,
+                              UserProfilesMappedStore mappedStore,
+                              int maxHotProfiles,
+                              long idleTimeout,
+                              Consumer<UserProfile> loadedProfileHandler) {
+        this.accountsFactory = accountsFactory;
+        this.userProfiles = new LongObjectHashMap<>(1024);
+        this.mappedStore = mappedStore;
+        this.maxHotProfiles = maxHotProfiles;
+        this.idleTimeout = idleTimeout;
+        this.loadedProfileHandler = loadedProfileHandler;
+        if (mappedStore.size() != 0) {
+            mappedStore.clear();
+        }
+    }
+
+    /**
+     * Load tiered service from snapshot - store is restored to the state committed by snapshot
+     */
+    public UserProfileService(BytesIn bytes,
+                              Supplier<IUserAccounts> accountsFactory,
+                              UserProfilesMappedStore mappedStore,
+                              int maxHotProfiles,
+                              long idleTimeout,
+                              Consumer<UserProfile> loadedProfileHandler) {
+        this.accountsFactory = accountsFactory;
         this.userProfiles = new LongObjectHashMap<>(1024);
+        this.mappedStore = mappedStore;
+        this.maxHotProfiles = maxHotProfiles;
+        this.idleTimeout = idleTimeout;
+        this.loadedProfileHandler = loadedProfileHandler;
+
+        if (bytes.readLong() != MAPPED_SNAPSHOT_MAGIC) {
+            throw new IllegalStateException("Snapshot does not contain mapped user profiles state");
+        }
+        final long generation = bytes.readLong();
+        final long fileId = bytes.readLong();
+        final long committedOffset = bytes.readLong();
+        mappedStore.restore(fileId, generation, committedOffset);
+        // hash of cold profiles, contributions of hot profiles are re-calculated
+        this.profilesHash = bytes.readLong();
+        this.currentTime = bytes.readLong();
+
+        // hot profiles in access order
+        final int hotProfilesNum = bytes.readInt();
+        for (int i = 0; i < hotProfilesNum; i++) {
+            final long lastAccessTime = bytes.readLong();
+            final UserProfile userProfile = new UserProfile(bytes, accountsFactory);
+            userProfiles.put(userProfile.uid, userProfile);
+            userProfile.lastAccessTime = lastAccessTime;
+            lruAppend(userProfile);
+            markDirty(userProfile);
+        }
     }
 
     public UserProfileService(BytesIn bytes) {
-        this.userProfiles = SerializationUtils.readLongHashMap(bytes, UserProfile::new);
+        this(bytes, HashUserAccounts::new);
+    }
+
+    public UserProfileService(BytesIn bytes, Supplier<IUserAccounts> accountsFactory) {
+        this.accountsFactory = accountsFactory;
+        this.userProfiles = SerializationUtils.readLongHashMap(bytes, b -> new UserProfile(b, accountsFactory));
+        this.mappedStore = null;
+        this.maxHotProfiles = Integer.MAX_VALUE;
+        this.idleTimeout = 0L;
+        this.loadedProfileHandler = null;
+        userProfiles.forEachValue(this::markDirty);
     }
 
     /**
-     * Find user profile
+     * Find user profile.
+     * Profile is considered as modified (its state hash will be re-calculated).
      *
      * @param uid
      * @return
      */
     public UserProfile getUserProfile(long uid) {
+        final UserProfile userProfile = findUserProfile(uid);
+        if (userProfile != null) {
+            markDirty(userProfile);
+        }
+        return userProfile;
+    }
+
+    /**
+     * Find user profile without marking it as modified.
+     * Can be used only for reading, or for updating derived state which is not included into state hash.
+     * Tiered mode: cold profile is not loaded (null is returned), its derived state is restored on load anyway.
+     * Access order is not updated.
+     *
+     * @param uid
+     * @return
+     */
+    public UserProfile peekUserProfile(final long uid) {
         return userProfiles.get(uid);
     }
 
     public UserProfile getUserProfileOrThrowEx(long uid) {
 
-        final UserProfile userProfile = userProfiles.get(uid);
+        final UserProfile userProfile = findUserProfile(uid);
 
         if (userProfile == null) {
             throw new IllegalStateException("User profile not found, uid=" + uid);
         }
 
+        markDirty(userProfile);
         return userProfile;
     }
 
+    private UserProfile findUserProfile(final long uid) {
+        final UserProfile userProfile = userProfiles.get(uid);
+        if (mappedStore == null) {
+            return userProfile;
+        }
+        if (userProfile != null) {
+            touch(userProfile);
+            return userProfile;
+        }
+        final UserProfile loaded = mappedStore.load(uid);
+        if (loaded != null) {
+            userProfiles.put(uid, loaded);
+            loaded.lastAccessTime = currentTime;
+            lruAppend(loaded);
+            loadedProfileHandler.accept(loaded);
+        }
+        return loaded;
+    }
+
+    /**
+     * Tiered mode: make sure profile is hot (load it from the store if required).
+     * Allows to load profile before its command reaches matching engine.
+     *
+     * @param uid - user id
+     */
+    public void prefetchUserProfile(final long uid) {
+        if (mappedStore != null) {
+            findUserProfile(uid);
+        }
+    }
+
+    /**
+     * Iterate over all profiles (off-heap mode: profiles which are not in working set are loaded as temporary instances).
+     *
+     * @param withPositionsOnly - only profiles having margin positions are required
+     * @param consumer          - profiles consumer
+     */
+    public void forEachUserProfile(final boolean withPositionsOnly, final Consumer<UserProfile> consumer) {
+        userProfiles.forEachValue(userProfile -> {
+            if (!withPositionsOnly || !userProfile.positions.isEmpty()) {
+                consumer.accept(userProfile);
+            }
+        });
+        if (mappedStore != null) {
+            mappedStore.forEach(withPositionsOnly, userProfile -> {
+                if (!userProfiles.containsKey(userProfile.uid)) {
+                    consumer.accept(userProfile);
+                }
+            });
+        }
+    }
+
+    /**
+     * Iterate over hot profiles only (on-heap mode: all profiles).
+     * Cold profiles are not loaded, so derived state of them should be restored by load handler.
+     *
+     * @param withPositionsOnly - only profiles having margin positions are required
+     * @param consumer          - profiles consumer
+     */
+    public void forEachHotUserProfile(final boolean withPositionsOnly, final Consumer<UserProfile> consumer) {
+        userProfiles.forEachValue(userProfile -> {
+            if (!withPositionsOnly || !userProfile.positions.isEmpty()) {
+                consumer.accept(userProfile);
+            }
+        });
+    }
+
+    /**
+     * Tiered mode: move least recently accessed profiles into the store while number of hot profiles is above the limit,
+     * and (limited number of) profiles which were not accessed for idle time.
+     * Should be called only when no profile references are kept by caller (e.g. before processing next command).
+     *
+     * @param timestamp - current command timestamp
+     */
+    public void evictIfRequired(final long timestamp) {
+        if (mappedStore == null) {
+            return;
+        }
+        if (timestamp > currentTime) {
+            currentTime = timestamp;
+        }
+        while (lruHead != null && userProfiles.size() > maxHotProfiles) {
+            evict(lruHead);
+        }
+        if (idleTimeout != 0) {
+            final long idleThreshold = currentTime - idleTimeout;
+            for (int i = 0; i < MAX_IDLE_EVICTIONS_PER_CALL && lruHead != null && lruHead.lastAccessTime <= idleThreshold; i++) {
+                evict(lruHead);
+            }
+        }
+    }
+
+    private void evict(final UserProfile userProfile) {
+        if (userProfile.stateHashDirty) {
+            // contribution is stored together with profile
+            updateStateHash();
+        }
+        mappedStore.store(userProfile);
+        userProfiles.remove(userProfile.uid);
+        lruRemove(userProfile);
+    }
+
+    private void touch(final UserProfile userProfile) {
+        userProfile.lastAccessTime = currentTime;
+        if (userProfile != lruTail) {
+            lruRemove(userProfile);
+            lruAppend(userProfile);
+        }
+    }
+
+    private void lruAppend(final UserProfile userProfile) {
+        userProfile.lruPrev = lruTail;
+        userProfile.lruNext = null;
+        if (lruTail == null) {
+            lruHead = userProfile;
+        } else {
+            lruTail.lruNext = userProfile;
+        }
+        lruTail = userProfile;
+    }
+
+    private void lruRemove(final UserProfile userProfile) {
+        final UserProfile prev = userProfile.lruPrev;
+        final UserProfile next = userProfile.lruNext;
+        if (prev == null) {
+            lruHead = next;
+        } else {
+            prev.lruNext = next;
+        }
+        if (next == null) {
+            lruTail = prev;
+        } else {
+            next.lruPrev = prev;
+        }
+        userProfile.lruPrev = null;
+        userProfile.lruNext = null;
+    }
+
+    public int getHotProfilesNum() {
+        return userProfiles.size();
+    }
+
+    private void markDirty(final UserProfile userProfile) {
+        if (!userProfile.stateHashDirty) {
+            userProfile.stateHashDirty = true;
+            dirtyProfiles.add(userProfile);
+        }
+    }
+
 
     /**
      * Perform balance adjustment for specific user
@@ -118,8 +414,15 @@ public final class UserProfileService implements WriteBytesMarshallable, StateHa
      * @return
      */
     public boolean addEmptyUserProfile(long uid) {
-        if (userProfiles.get(uid) == null) {
-            userProfiles.put(uid, new UserProfile(uid));
+        // tiered mode: existing cold profile is loaded
+        if (findUserProfile(uid) == null) {
+            final UserProfile userProfile = new UserProfile(uid, accountsFactory);
+            userProfiles.put(uid, userProfile);
+            if (mappedStore != null) {
+                userProfile.lastAccessTime = currentTime;
+                lruAppend(userProfile);
+            }
+            markDirty(userProfile);
             return true;
         } else {
             log.debug("Can not add user, already exists: {}", uid);
@@ -129,18 +432,66 @@ public final class UserProfileService implements WriteBytesMarshallable, StateHa
 
     public void reset() {
         userProfiles.clear();
+        dirtyProfiles.clear();
+        profilesHash = 0L;
+        if (mappedStore != null) {
+            mappedStore.clear();
+            lruHead = null;
+            lruTail = null;
+        }
+    }
+
+    /**
+     * Tiered mode: close cold profiles store (unmaps store file)
+     */
+    public void close() {
+        if (mappedStore != null) {
+            mappedStore.close();
+        }
     }
 
     @Override
     public void writeMarshallable(BytesOut bytes) {
 
-        // write symbolSpecs
-        SerializationUtils.marshallLongHashMap(userProfiles, bytes);
+        if (mappedStore == null) {
+            // write symbolSpecs
+            SerializationUtils.marshallLongHashMap(userProfiles, bytes);
+        } else {
+            updateStateHash();
+            long hotProfilesHash = 0L;
+            for (UserProfile p = lruHead; p != null; p = p.lruNext) {
+                hotProfilesHash += p.stateHashContribution;
+            }
+
+            bytes.writeLong(MAPPED_SNAPSHOT_MAGIC);
+            bytes.writeLong(mappedStore.commit());
+            bytes.writeLong(mappedStore.getFileId());
+            bytes.writeLong(mappedStore.getCommittedOffset());
+            bytes.writeLong(profilesHash - hotProfilesHash);
+            bytes.writeLong(currentTime);
+
+            bytes.writeInt(userProfiles.size());
+            for (UserProfile p = lruHead; p != null; p = p.lruNext) {
+                bytes.writeLong(p.lastAccessTime);
+                p.writeMarshallable(bytes);
+            }
+        }
     }
 
     @Override
     public int stateHash() {
-        return Objects.hash(HashingUtils.stateHash(userProfiles));
+        updateStateHash();
+        return Long.hashCode(profilesHash);
+    }
+
+    private void updateStateHash() {
+        for (final UserProfile userProfile : dirtyProfiles) {
+            profilesHash -= userProfile.stateHashContribution;
+            userProfile.stateHashContribution = HashingUtils.mix64(userProfile.stateHash());
+            profilesHash += userProfile.stateHashContribution;
+            userProfile.stateHashDirty = false;
+        }
+        dirtyProfiles.clear();
     }
 
 }
\ No newline at end of file
@@ -0,0 +1,558 @@
+/*
+ * Copyright 2019 Maksim Zheravin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package exchange.core2.core.processors;
+
+import exchange.core2.core.common.IUserAccounts;
+import exchange.core2.core.common.UserProfile;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import net.openhft.chronicle.bytes.Bytes;
+import net.openhft.chronicle.core.io.IOTools;
+import org.eclipse.collections.impl.list.mutable.primitive.LongArrayList;
+import org.eclipse.collections.impl.map.mutable.primitive.LongLongHashMap;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+
+/**
+ * Off-heap user profiles storage - log-structured memory-mapped file with primitive uid index.
+ * <p>
+ * Every stored version of profile is appended as a fixed-layout record:
+ * [length:int][positionsNum:int][uid:long][stateHashContribution:long][serialized profile], aligned to 8 bytes.
+ * Index (uid -> offset) references the latest version, previous versions are garbage.
+ * File is split into fixed-size segments mapped separately (records never cross segment boundary),
+ * so the file can be larger than 2GiB. Index has only primitive arrays, so it is cheap for GC.
+ * <p>
+ * File header contains generation and end offset of last commit.
+ * On restart the file is re-mapped and only record headers are scanned to rebuild the index
+ * (profiles are not de-serialized until requested). Records appended after last commit are ignored.
+ * <p>
+ * Records are never overwritten below committed end offset, so every committed generation is a prefix of the file,
+ * and it can be restored using file id, generation and end offset (see {@link #restore}).
+ * Compaction and clearing are starting a new file ({@code <name>.<fileId>}), the old file is kept,
+ * so older snapshots stay loadable. Store remembers files of last N commits (each snapshot is a commit, restored state counts as one),
+ * and deletes files older than the oldest of them, so only last N snapshots stay loadable (0 - files are never deleted).
+ * Segments of closed files are unmapped immediately, not when buffers are garbage collected.
+ * <p>
+ * Not thread safe.
+ */
+@Slf4j
+public final class UserProfilesMappedStore implements AutoCloseable {
+
+    public static final int DEFAULT_SEGMENT_SIZE = 1 << 30;
+    public static final int DEFAULT_RETAINED_COMMITS = 2;
+
+    private static final long MAGIC = 0x5550524F46494C45L; // "UPROFILE"
+
+    private static final int FILE_HEADER_SIZE = 64;
+    private static final int HEADER_OFFSET_MAGIC = 0;
+    private static final int HEADER_OFFSET_GENERATION = 8;
+    private static final int HEADER_OFFSET_SEGMENT_SIZE = 16;
+    private static final int HEADER_OFFSET_END = 24;
+
+    private static final int RECORD_HEADER_SIZE = 24;
+    private static final int RECORD_OFFSET_POSITIONS = 4;
+    private static final int RECORD_OFFSET_UID = 8;
+    private static final int RECORD_OFFSET_HASH = 16;
+
+    // length marker: rest of segment is not used
+    private static final int PADDING = -1;
+
+    private static final long COMPACTION_MIN_GARBAGE = 1 << 20;
+
+    private final Path baseFile;
+    private final int segmentSize;
+    private final Supplier<IUserAccounts> accountsFactory;
+    private final int retainedCommits;
+
+    // file ids of last commits (from oldest)
+    private final LongArrayList committedFileIds = new LongArrayList();
+
+    // current file
+    @Getter
+    private long fileId;
+    private Path file;
+
+    private FileChannel channel;
+    private final ArrayList<MappedByteBuffer> segments = new ArrayList<>();
+
+    // uid -> offset of the latest record
+    private final LongLongHashMap index = new LongLongHashMap();
+
+    // committed state version, incremented on every commit
+    @Getter
+    private long generation;
+
+    // end offset of committed state
+    @Getter
+    private long committedOffset;
+
+    // append position
+    private long endOffset;
+
+    // total size of records referenced by index
+    private long liveBytes;
+
+    // buffers for (de)serialization
+    private final Bytes<ByteBuffer> ioBytes = Bytes.elasticHeapByteBuffer(256);
+    private byte[] ioArray = new byte[256];
+
+    public UserProfilesMappedStore(final Path baseFile, final Supplier<IUserAccounts> accountsFactory) {
+        this(baseFile, DEFAULT_SEGMENT_SIZE, DEFAULT_RETAINED_COMMITS, accountsFactory);
+    }
+
+    public UserProfilesMappedStore(final Path baseFile, final int segmentSize, final Supplier<IUserAccounts> accountsFactory) {
+        this(baseFile, segmentSize, DEFAULT_RETAINED_COMMITS, accountsFactory);
+    }
+
+    /**
+     * Open latest file of the store (or create new one)
+     *
+     * @param baseFile        - base file path, store files are named {@code <baseFile>.<fileId>}
+     * @param segmentSize     - mapped segment size
+     * @param retainedCommits - number of last commits (snapshots) which files are kept, 0 - never delete files
+     * @param accountsFactory - currency accounts implementation for loaded profiles
+     */
+    public UserProfilesMappedStore(final Path baseFile, final int segmentSize, final int retainedCommits, final Supplier<IUserAccounts> accountsFactory) {
+        this(baseFile, segmentSize, retainedCommits, accountsFactory, Math.max(0L, latestFileId(baseFile)));
+    }
+
+    private UserProfilesMappedStore(final Path baseFile,
+                                    final int segmentSize,
+                                    final int retainedCommits,
+                                    final Supplier<IUserAccounts> accountsFactory,
+                                    final long fileId) {
+        if (segmentSize % 8 != 0 || segmentSize < FILE_HEADER_SIZE + RECORD_HEADER_SIZE) {
+            throw new IllegalArgumentException("Invalid segment size " + segmentSize);
+        }
+        if (retainedCommits < 0) {
+            throw new IllegalArgumentException("Invalid retained commits number " + retainedCommits);
+        }
+        this.baseFile = baseFile;
+        this.segmentSize = segmentSize;
+        this.retainedCommits = retainedCommits;
+        this.accountsFactory = accountsFactory;
+        try {
+            Files.createDirectories(baseFile.toAbsolutePath().getParent());
+        } catch (final IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+        open(fileId, 0L);
+        scan();
+    }
+
+    /**
+     * Map existing file (or create new one with specified generation), index is not rebuilt
+     */
+    private void open(final long fileId, final long newGeneration) {
+        this.fileId = fileId;
+        this.file = fileName(baseFile, fileId);
+        try {
+            final boolean exists = Files.exists(file) && Files.size(file) >= FILE_HEADER_SIZE;
+            channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            segments.clear();
+            index.clear();
+            liveBytes = 0;
+
+            final MappedByteBuffer header = segment(0);
+            if (exists) {
+                if (header.getLong(HEADER_OFFSET_MAGIC) != MAGIC) {
+                    throw new IllegalStateException("Not a user profiles store: " + file);
+                }
+                if (header.getLong(HEADER_OFFSET_SEGMENT_SIZE) != segmentSize) {
+                    throw new IllegalStateException("Store " + file + " has segment size " + header.getLong(HEADER_OFFSET_SEGMENT_SIZE));
+                }
+                generation = header.getLong(HEADER_OFFSET_GENERATION);
+                committedOffset = header.getLong(HEADER_OFFSET_END);
+            } else {
+                generation = newGeneration;
+                committedOffset = FILE_HEADER_SIZE;
+                header.putLong(HEADER_OFFSET_MAGIC, MAGIC);
+                header.putLong(HEADER_OFFSET_SEGMENT_SIZE, segmentSize);
+                writeHeader();
+            }
+            endOffset = committedOffset;
+        } catch (final IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    private void scan() {
+        long pos = FILE_HEADER_SIZE;
+        while (pos < endOffset) {
+            final MappedByteBuffer seg = segment(segmentIdx(pos));
+            final int p = segmentPos(pos);
+            final int length;
+            if (p + RECORD_HEADER_SIZE > segmentSize || (length = seg.getInt(p)) == PADDING) {
+                pos = nextSegmentStart(pos);
+                continue;
+            }
+            addToIndex(seg.getLong(p + RECORD_OFFSET_UID), pos, recordSize(length));
+            pos += recordSize(length);
+        }
+        log.debug("Mapped {}: generation={} profiles={} live={}KB size={}KB", file, generation, index.size(), liveBytes >> 10, endOffset >> 10);
+    }
+
+    /**
+     * Restore committed state (e.g. recorded in snapshot).
+     * If the file has newer commits, state is restored into a copy of the file prefix,
+     * so newer states also stay loadable.
+     *
+     * @param fileId          - file id of committed state
+     * @param generation      - generation of committed state
+     * @param committedOffset - end offset of committed state
+     */
+    public void restore(final long fileId, final long generation, final long committedOffset) {
+        closeChannel();
+        if (!Files.exists(fileName(baseFile, fileId))) {
+            throw new IllegalStateException("User profiles store file " + fileName(baseFile, fileId) + " not found (generation " + generation + ")");
+        }
+        open(fileId, 0L);
+        if (this.generation < generation || this.committedOffset < committedOffset) {
+            throw new IllegalStateException("User profiles store " + file + " has generation " + this.generation
+                    + " which is older than required generation " + generation);
+        }
+        // restored snapshot references this file
+        retainFile(fileId);
+
+        if (this.generation != generation || this.committedOffset != committedOffset) {
+            // newer state was committed into this file - continue in a copy
+            final long newFileId = nextFileId();
+            final Path newFile = fileName(baseFile, newFileId);
+            log.debug("Restoring generation {} of {} into {}", generation, file, newFile);
+            try (final FileChannel out = FileChannel.open(newFile, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+                long copied = 0;
+                while (copied < committedOffset) {
+                    copied += channel.transferTo(copied, committedOffset - copied, out);
+                }
+            } catch (final IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+            closeChannel();
+            open(newFileId, 0L);
+            this.generation = generation;
+            this.committedOffset = committedOffset;
+            this.endOffset = committedOffset;
+            writeHeader();
+        }
+        scan();
+    }
+
+    public int size() {
+        return index.size();
+    }
+
+    public boolean contains(final long uid) {
+        return index.containsKey(uid);
+    }
+
+    /**
+     * Load latest stored version of profile (including state hash contribution).
+     *
+     * @param uid - user id
+     * @return new profile instance, or null if not stored
+     */
+    public UserProfile load(final long uid) {
+        final long offset = index.getIfAbsent(uid, -1L);
+        return offset == -1L ? null : loadRecord(offset);
+    }
+
+    /**
+     * Store profile (as new version)
+     *
+     * @param profile - profile to store
+     */
+    public void store(final UserProfile profile) {
+        ioBytes.clear();
+        profile.writeMarshallable(ioBytes);
+        final int length = (int) ioBytes.writePosition();
+        ensureIoArray(length);
+        ioBytes.read(ioArray, 0, length);
+
+        final long offset = append(profile.uid, profile.positions.size(), profile.stateHashContribution, ioArray, length);
+        addToIndex(profile.uid, offset, recordSize(length));
+    }
+
+    /**
+     * Iterate over all stored profiles (each profile is loaded as new instance).
+     * Store should not be modified by consumer.
+     *
+     * @param withPositionsOnly - skip profiles without margin positions (without de-serializing them)
+     * @param consumer          - profiles consumer
+     */
+    public void forEach(final boolean withPositionsOnly, final Consumer<UserProfile> consumer) {
+        index.forEachValue(offset -> {
+            if (!withPositionsOnly || positionsNumAt(offset) != 0) {
+                consumer.accept(loadRecord(offset));
+            }
+        });
+    }
+
+    /**
+     * Make current state persistent: flush mapped data, then update header with new generation.
+     * Compacts live records into a new file if current file has too much garbage.
+     * Deletes files which are older than files of retained commits.
+     *
+     * @return new generation
+     */
+    public long commit() {
+        final long garbage = endOffset - FILE_HEADER_SIZE - liveBytes;
+        if (garbage > liveBytes && garbage > COMPACTION_MIN_GARBAGE) {
+            compact();
+        } else {
+            segments.forEach(MappedByteBuffer::force);
+            generation++;
+            committedOffset = endOffset;
+            writeHeader();
+        }
+        retainFile(fileId);
+        return generation;
+    }
+
+    private void retainFile(final long committedFileId) {
+        if (retainedCommits == 0) {
+            return;
+        }
+        committedFileIds.add(committedFileId);
+        if (committedFileIds.size() > retainedCommits) {
+            committedFileIds.removeAtIndex(0);
+        }
+        // older commits are not known until enough commits are done (e.g. after restart)
+        if (committedFileIds.size() == retainedCommits) {
+            deleteFilesBefore(Math.min(committedFileIds.min(), fileId));
+        }
+    }
+
+    /**
+     * Delete store files with id below specified one (current file is never deleted)
+     *
+     * @param minFileId - oldest file id which should be kept
+     * @return number of deleted files
+     */
+    public int deleteFilesBefore(final long minFileId) {
+        final long keepFrom = Math.min(minFileId, fileId);
+        final String prefix = baseFile.getFileName() + ".";
+        int deleted = 0;
+        for (final long id : fileIds(baseFile)) {
+            if (id < keepFrom) {
+                final Path f = fileName(baseFile, id);
+                try {
+                    if (Files.deleteIfExists(f)) {
+                        deleted++;
+                    }
+                } catch (final IOException ex) {
+                    throw new UncheckedIOException(ex);
+                }
+            }
+        }
+        if (deleted != 0) {
+            log.debug("Deleted {} files {}* older than {}", deleted, prefix, keepFrom);
+        }
+        return deleted;
+    }
+
+    /**
+     * Remove all profiles (new empty file is created and committed, previous file is kept)
+     */
+    public void clear() {
+        final long newGeneration = generation + 1;
+        final long newFileId = nextFileId();
+        closeChannel();
+        open(newFileId, newGeneration);
+    }
+
+    /**
+     * Copy live records into new file, then switch to it (previous file is kept)
+     */
+    private void compact() {
+        final long newFileId = nextFileId();
+        log.debug("Compacting {}: profiles={} live={}KB size={}KB", file, index.size(), liveBytes >> 10, endOffset >> 10);
+        try (final UserProfilesMappedStore compacted = new UserProfilesMappedStore(baseFile, segmentSize, 0, accountsFactory, newFileId)) {
+            index.forEachValue(offset -> {
+                final MappedByteBuffer seg = segment(segmentIdx(offset));
+                final int p = segmentPos(offset);
+                final int length = seg.getInt(p);
+                ensureIoArray(length);
+                seg.position(p + RECORD_HEADER_SIZE);
+                seg.get(ioArray, 0, length);
+                compacted.append(seg.getLong(p + RECORD_OFFSET_UID), seg.getInt(p + RECORD_OFFSET_POSITIONS), seg.getLong(p + RECORD_OFFSET_HASH), ioArray, length);
+            });
+            compacted.generation = generation;
+            compacted.commit();
+        }
+        closeChannel();
+        open(newFileId, 0L);
+        scan();
+    }
+
+    private UserProfile loadRecord(final long offset) {
+        final MappedByteBuffer seg = segment(segmentIdx(offset));
+        final int p = segmentPos(offset);
+        final int length = seg.getInt(p);
+        ensureIoArray(length);
+        seg.position(p + RECORD_HEADER_SIZE);
+        seg.get(ioArray, 0, length);
+
+        ioBytes.clear();
+        ioBytes.write(ioArray, 0, length);
+        final UserProfile profile = new UserProfile(ioBytes, accountsFactory);
+        profile.stateHashContribution = seg.getLong(p + RECORD_OFFSET_HASH);
+        return profile;
+    }
+
+    private long append(final long uid, final int positionsNum, final long hashContribution, final byte[] data, final int length) {
+        final int size = recordSize(length);
+        if (size > segmentSize - FILE_HEADER_SIZE) {
+            throw new IllegalStateException("Profile uid=" + uid + " is too large for store segment: " + size);
+        }
+
+        long offset = endOffset;
+        if (segmentPos(offset) + size > segmentSize) {
+            // not enough space in current segment
+            if (segmentPos(offset) + RECORD_HEADER_SIZE <= segmentSize) {
+                segment(segmentIdx(offset)).putInt(segmentPos(offset), PADDING);
+            }
+            offset = nextSegmentStart(offset);
+        }
+
+        final MappedByteBuffer seg = segment(segmentIdx(offset));
+        final int p = segmentPos(offset);
+        seg.putInt(p, length);
+        seg.putInt(p + RECORD_OFFSET_POSITIONS, positionsNum);
+        seg.putLong(p + RECORD_OFFSET_UID, uid);
+        seg.putLong(p + RECORD_OFFSET_HASH, hashContribution);
+        seg.position(p + RECORD_HEADER_SIZE);
+        seg.put(data, 0, length);
+
+        endOffset = offset + size;
+        return offset;
+    }
+
+    private void addToIndex(final long uid, final long offset, final int size) {
+        final long prevOffset = index.getIfAbsent(uid, -1L);
+        if (prevOffset != -1L) {
+            liveBytes -= recordSize(segment(segmentIdx(prevOffset)).getInt(segmentPos(prevOffset)));
+        }
+        index.put(uid, offset);
+        liveBytes += size;
+    }
+
+    private int positionsNumAt(final long offset) {
+        return segment(segmentIdx(offset)).getInt(segmentPos(offset) + RECORD_OFFSET_POSITIONS);
+    }
+
+    private void writeHeader() {
+        final MappedByteBuffer header = segment(0);
+        header.putLong(HEADER_OFFSET_GENERATION, generation);
+        header.putLong(HEADER_OFFSET_END, committedOffset);
+        header.force();
+    }
+
+    private MappedByteBuffer segment(final int idx) {
+        while (segments.size() <= idx) {
+            try {
+                segments.add(channel.map(FileChannel.MapMode.READ_WRITE, (long) segments.size() * segmentSize, segmentSize));
+            } catch (final IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+        }
+        return segments.get(idx);
+    }
+
+    private int segmentIdx(final long offset) {
+        return (int) (offset / segmentSize);
+    }
+
+    private int segmentPos(final long offset) {
+        return (int) (offset % segmentSize);
+    }
+
+    private long nextSegmentStart(final long offset) {
+        return (offset / segmentSize + 1) * segmentSize;
+    }
+
+    private static int recordSize(final int length) {
+        return (RECORD_HEADER_SIZE + length + 7) & ~7;
+    }
+
+    private void ensureIoArray(final int length) {
+        if (ioArray.length < length) {
+            ioArray = new byte[Integer.highestOneBit(length) << 1];
+        }
+    }
+
+    private long nextFileId() {
+        return Math.max(fileId, latestFileId(baseFile)) + 1;
+    }
+
+    private static Path fileName(final Path baseFile, final long fileId) {
+        return baseFile.resolveSibling(baseFile.getFileName() + "." + fileId);
+    }
+
+    /**
+     * @return highest id of existing store files, or -1 if there are no files
+     */
+    private static long latestFileId(final Path baseFile) {
+        return Arrays.stream(fileIds(baseFile)).max().orElse(-1L);
+    }
+
+    private static long[] fileIds(final Path baseFile) {
+        final Path folder = baseFile.toAbsolutePath().getParent();
+        if (!Files.isDirectory(folder)) {
+            return new long[0];
+        }
+        final String prefix = baseFile.getFileName() + ".";
+        try (final Stream<Path> files = Files.list(folder)) {
+            return files
+                    .map(f -> f.getFileName().toString())
+                    .filter(name -> name.startsWith(prefix) && name.length() > prefix.length()
+                            && name.substring(prefix.length()).chars().allMatch(Character::isDigit))
+                    .mapToLong(name -> Long.parseLong(name.substring(prefix.length())))
+                    .toArray();
+        } catch (final IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    private void closeChannel() {
+        segments.forEach(MappedByteBuffer::force);
+        // unmap now - otherwise mapping (and the file) is kept until buffer is garbage collected
+        segments.forEach(IOTools::clean);
+        segments.clear();
+        try {
+            channel.close();
+        } catch (final IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    @Override
+    public void close() {
+        closeChannel();
+        ioBytes.release();
+    }
+}
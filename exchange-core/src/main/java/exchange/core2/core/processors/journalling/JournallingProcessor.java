@@ -15,6 +15,7 @@
  */
 package exchange.core2.core.processors.journalling;
 
+import exchange.core2.core.common.OrderType;
 import exchange.core2.core.common.cmd.OrderCommand;
 import exchange.core2.core.common.cmd.OrderCommandType;
 import lombok.extern.slf4j.Slf4j;
@@ -67,15 +68,29 @@ public class JournallingProcessor {
         buffer.putLong(cmd.uid); // 8 bytes can be compressed as dictionary
 
         // 12 bytes
-        if (cmd.command == OrderCommandType.MOVE_ORDER || cmd.command == OrderCommandType.PLACE_ORDER) {
+        if (cmd.command == OrderCommandType.MOVE_ORDER || cmd.command == OrderCommandType.PLACE_ORDER || cmd.command == OrderCommandType.QUOTE) {
             buffer.putLong(cmd.price); // 8 bytes - can be compressed as delta
             buffer.putLong(cmd.size); // 8 bytes - can be compressed
         }
 
+        // 24 bytes
+        if (cmd.command == OrderCommandType.QUOTE) {
+            buffer.putLong(cmd.askOrderId); // 8 bytes
+            buffer.putLong(cmd.askPrice); // 8 bytes
+            buffer.putLong(cmd.askSize); // 8 bytes
+        }
+
         // 1 byte
         if (cmd.command == OrderCommandType.PLACE_ORDER) {
             int actionAndType = (cmd.action.getCode() << 2) & cmd.orderType.getCode();
             buffer.put((byte) actionAndType); // 1 byte
+            if (cmd.orderType == OrderType.IOC_BUDGET) {
+                buffer.putLong(cmd.budget); // 8 bytes
+            } else if (cmd.orderType == OrderType.STOP || cmd.orderType == OrderType.STOP_LIMIT) {
+                buffer.putLong(cmd.stopPrice); // 8 bytes
+            } else if (cmd.orderType == OrderType.GTD) {
+                buffer.putLong(cmd.expireTime); // 8 bytes
+            }
         }
 
         if (eob || buffer.position() >= BUFFER_FLUSH_TRIGER) {
@@ -36,6 +36,13 @@ public class CoreArithmeticUtils {
         return size * (price * spec.quoteScaleK + spec.takerFee);
     }
 
+    /**
+     * @return number of lots that can be bought at specified price for the budget (including taker fee)
+     */
+    public static long calculateBudgetSize(long budget, long price, CoreSymbolSpecification spec) {
+        return budget / (price * spec.quoteScaleK + spec.takerFee);
+    }
+
     public static long calculateAmountBidReleaseCorr(long size, long priceDiff, CoreSymbolSpecification spec, boolean isTaker) {
         return size * (priceDiff * spec.quoteScaleK + (isTaker ? 0 : (spec.takerFee - spec.makerFee)));
     }
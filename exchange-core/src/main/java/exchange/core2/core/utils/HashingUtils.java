@@ -23,6 +23,22 @@ import java.util.*;
 
 public class HashingUtils {
 
+    /**
+     * Finalization step of MurmurHash3 (64 bit) - spreads bits of the value,
+     * used for building order-independent (additive) hashes of large collections.
+     *
+     * @param value - value
+     * @return mixed value
+     */
+    public static long mix64(long value) {
+        value ^= value >>> 33;
+        value *= 0xff51afd7ed558ccdL;
+        value ^= value >>> 33;
+        value *= 0xc4ceb9fe1a85ec53L;
+        value ^= value >>> 33;
+        return value;
+    }
+
     public static int stateHash(final BitSet bitSet) {
         return Arrays.hashCode(bitSet.toLongArray());
     }
@@ -0,0 +1,492 @@
+/*
+ * Copyright 2019 Maksim Zheravin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package exchange.core2.core.utils;
+
+import org.eclipse.collections.api.block.procedure.primitive.LongObjectProcedure;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Sorted map with primitive long keys (ascending order), implemented as AVL tree over primitive arrays.
+ * <p>
+ * Nodes are referenced by int index, removed nodes are recycled through the free list,
+ * so there is no garbage produced by put/remove/search operations (arrays only grow when capacity is exceeded).
+ * <p>
+ * Not thread safe.
+ *
+ * @param <V> value type
+ */
+public final class LongAvlTreeMap<V> {
+
+    private static final int NIL = 0;
+
+    private static final int DEFAULT_CAPACITY = 64;
+
+    // node 0 is a sentinel (NIL) with height 0
+    private long[] keys;
+    private Object[] values;
+    private int[] left;
+    private int[] right;
+    private byte[] heights;
+
+    private int root = NIL;
+    private int size = 0;
+
+    // head of free nodes list (linked through left[])
+    private int freeHead = NIL;
+    // first never-used node index
+    private int allocated = 1;
+
+    // result holder for recursive put/remove operations
+    private Object lastFound;
+
+    public LongAvlTreeMap() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public LongAvlTreeMap(final int initialCapacity) {
+        final int capacity = Math.max(initialCapacity, 1) + 1;
+        this.keys = new long[capacity];
+        this.values = new Object[capacity];
+        this.left = new int[capacity];
+        this.right = new int[capacity];
+        this.heights = new byte[capacity];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public boolean containsKey(final long key) {
+        return findNode(key) != NIL;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V get(final long key) {
+        return (V) values[findNode(key)];
+    }
+
+    /**
+     * Associates value with the key
+     *
+     * @param key   - key
+     * @param value - value (not null)
+     * @return previous value or null if there was no mapping for the key
+     */
+    @SuppressWarnings("unchecked")
+    public V put(final long key, final V value) {
+        lastFound = null;
+        root = insert(root, key, value);
+        final V prev = (V) lastFound;
+        lastFound = null;
+        return prev;
+    }
+
+    /**
+     * Removes mapping for the key
+     *
+     * @param key - key
+     * @return removed value or null if there was no mapping for the key
+     */
+    @SuppressWarnings("unchecked")
+    public V remove(final long key) {
+        lastFound = null;
+        root = delete(root, key);
+        final V removed = (V) lastFound;
+        lastFound = null;
+        return removed;
+    }
+
+    public void clear() {
+        Arrays.fill(values, null);
+        root = NIL;
+        size = 0;
+        freeHead = NIL;
+        allocated = 1;
+    }
+
+    public long firstKey() {
+        if (root == NIL) {
+            throw new NoSuchElementException();
+        }
+        return keys[minNode(root)];
+    }
+
+    public long lastKey() {
+        if (root == NIL) {
+            throw new NoSuchElementException();
+        }
+        return keys[maxNode(root)];
+    }
+
+    @SuppressWarnings("unchecked")
+    public V firstValue() {
+        return root == NIL ? null : (V) values[minNode(root)];
+    }
+
+    @SuppressWarnings("unchecked")
+    public V lastValue() {
+        return root == NIL ? null : (V) values[maxNode(root)];
+    }
+
+    public V pollFirstValue() {
+        return root == NIL ? null : remove(keys[minNode(root)]);
+    }
+
+    public V pollLastValue() {
+        return root == NIL ? null : remove(keys[maxNode(root)]);
+    }
+
+    /**
+     * @param key - key
+     * @return value with the least key greater than or equal to the given key, or null if there is no such key
+     */
+    @SuppressWarnings("unchecked")
+    public V ceilingValue(final long key) {
+        int node = root;
+        int found = NIL;
+        while (node != NIL) {
+            final long k = keys[node];
+            if (key < k) {
+                found = node;
+                node = left[node];
+            } else if (key > k) {
+                node = right[node];
+            } else {
+                return (V) values[node];
+            }
+        }
+        return (V) values[found];
+    }
+
+    /**
+     * @param key - key
+     * @return value with the least key strictly greater than the given key, or null if there is no such key
+     */
+    @SuppressWarnings("unchecked")
+    public V higherValue(final long key) {
+        int node = root;
+        int found = NIL;
+        while (node != NIL) {
+            if (key < keys[node]) {
+                found = node;
+                node = left[node];
+            } else {
+                node = right[node];
+            }
+        }
+        return (V) values[found];
+    }
+
+    /**
+     * @param key - key
+     * @return value with the greatest key less than or equal to the given key, or null if there is no such key
+     */
+    @SuppressWarnings("unchecked")
+    public V floorValue(final long key) {
+        int node = root;
+        int found = NIL;
+        while (node != NIL) {
+            final long k = keys[node];
+            if (key > k) {
+                found = node;
+                node = right[node];
+            } else if (key < k) {
+                node = left[node];
+            } else {
+                return (V) values[node];
+            }
+        }
+        return (V) values[found];
+    }
+
+    /**
+     * @param key - key
+     * @return value with the greatest key strictly less than the given key, or null if there is no such key
+     */
+    @SuppressWarnings("unchecked")
+    public V lowerValue(final long key) {
+        int node = root;
+        int found = NIL;
+        while (node != NIL) {
+            if (key > keys[node]) {
+                found = node;
+                node = right[node];
+            } else {
+                node = left[node];
+            }
+        }
+        return (V) values[found];
+    }
+
+    /**
+     * Iterates over all entries in ascending keys order
+     *
+     * @param procedure - entry consumer
+     */
+    public void forEach(final LongObjectProcedure<V> procedure) {
+        forEachAsc(root, procedure);
+    }
+
+    /**
+     * Iterates over all entries in descending keys order
+     *
+     * @param procedure - entry consumer
+     */
+    public void forEachDescending(final LongObjectProcedure<V> procedure) {
+        forEachDesc(root, procedure);
+    }
+
+    /**
+     * Slow, produces garbage
+     *
+     * @return values in ascending keys order
+     */
+    public List<V> values() {
+        final List<V> list = new ArrayList<>(size);
+        forEach((k, v) -> list.add(v));
+        return list;
+    }
+
+    /**
+     * Slow, produces garbage
+     *
+     * @return values in descending keys order
+     */
+    public List<V> descendingValues() {
+        final List<V> list = new ArrayList<>(size);
+        forEachDescending((k, v) -> list.add(v));
+        return list;
+    }
+
+    /**
+     * Checks AVL tree invariants - testing only
+     */
+    public void validate() {
+        final int count = validateNode(root, Long.MIN_VALUE, Long.MAX_VALUE);
+        if (count != size) {
+            throw new IllegalStateException("size=" + size + " but found " + count + " nodes");
+        }
+    }
+
+    private int validateNode(final int node, final long minKey, final long maxKey) {
+        if (node == NIL) {
+            return 0;
+        }
+        final long k = keys[node];
+        if (k < minKey || k > maxKey) {
+            throw new IllegalStateException("key " + k + " is out of order");
+        }
+        if (values[node] == null) {
+            throw new IllegalStateException("null value for key " + k);
+        }
+        final int hl = heights[left[node]];
+        final int hr = heights[right[node]];
+        if (Math.abs(hl - hr) > 1 || heights[node] != Math.max(hl, hr) + 1) {
+            throw new IllegalStateException("unbalanced node " + k);
+        }
+        return 1 + validateNode(left[node], minKey, k - 1) + validateNode(right[node], k + 1, maxKey);
+    }
+
+    @SuppressWarnings("unchecked")
+    private void forEachAsc(final int node, final LongObjectProcedure<V> procedure) {
+        if (node != NIL) {
+            forEachAsc(left[node], procedure);
+            procedure.value(keys[node], (V) values[node]);
+            forEachAsc(right[node], procedure);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void forEachDesc(final int node, final LongObjectProcedure<V> procedure) {
+        if (node != NIL) {
+            forEachDesc(right[node], procedure);
+            procedure.value(keys[node], (V) values[node]);
+            forEachDesc(left[node], procedure);
+        }
+    }
+
+    private int findNode(final long key) {
+        int node = root;
+        while (node != NIL) {
+            final long k = keys[node];
+            if (key < k) {
+                node = left[node];
+            } else if (key > k) {
+                node = right[node];
+            } else {
+                return node;
+            }
+        }
+        return NIL;
+    }
+
+    private int minNode(int node) {
+        while (left[node] != NIL) {
+            node = left[node];
+        }
+        return node;
+    }
+
+    private int maxNode(int node) {
+        while (right[node] != NIL) {
+            node = right[node];
+        }
+        return node;
+    }
+
+    private int insert(final int node, final long key, final Object value) {
+        if (node == NIL) {
+            return allocateNode(key, value);
+        }
+        // note: arrays can be re-allocated while inserting, so do not dereference them before recursive call
+        final long k = keys[node];
+        if (key < k) {
+            final int child = insert(left[node], key, value);
+            left[node] = child;
+        } else if (key > k) {
+            final int child = insert(right[node], key, value);
+            right[node] = child;
+        } else {
+            lastFound = values[node];
+            values[node] = value;
+            return node;
+        }
+        return balance(node);
+    }
+
+    private int delete(final int node, final long key) {
+        if (node == NIL) {
+            return NIL;
+        }
+        final long k = keys[node];
+        if (key < k) {
+            left[node] = delete(left[node], key);
+        } else if (key > k) {
+            right[node] = delete(right[node], key);
+        } else {
+            lastFound = values[node];
+            if (left[node] == NIL || right[node] == NIL) {
+                final int child = left[node] != NIL ? left[node] : right[node];
+                releaseNode(node);
+                return child;
+            }
+            // replace by the successor, then remove successor node from the right subtree
+            final int successor = minNode(right[node]);
+            keys[node] = keys[successor];
+            values[node] = values[successor];
+            right[node] = deleteMin(right[node]);
+        }
+        return balance(node);
+    }
+
+    private int deleteMin(final int node) {
+        if (left[node] == NIL) {
+            final int child = right[node];
+            releaseNode(node);
+            return child;
+        }
+        left[node] = deleteMin(left[node]);
+        return balance(node);
+    }
+
+    private int balance(final int node) {
+        final int hl = heights[left[node]];
+        final int hr = heights[right[node]];
+        if (hl - hr > 1) {
+            final int l = left[node];
+            if (heights[left[l]] < heights[right[l]]) {
+                left[node] = rotateLeft(l);
+            }
+            return rotateRight(node);
+        } else if (hr - hl > 1) {
+            final int r = right[node];
+            if (heights[right[r]] < heights[left[r]]) {
+                right[node] = rotateRight(r);
+            }
+            return rotateLeft(node);
+        }
+        updateHeight(node);
+        return node;
+    }
+
+    private int rotateRight(final int node) {
+        final int l = left[node];
+        left[node] = right[l];
+        right[l] = node;
+        updateHeight(node);
+        updateHeight(l);
+        return l;
+    }
+
+    private int rotateLeft(final int node) {
+        final int r = right[node];
+        right[node] = left[r];
+        left[r] = node;
+        updateHeight(node);
+        updateHeight(r);
+        return r;
+    }
+
+    private void updateHeight(final int node) {
+        heights[node] = (byte) (Math.max(heights[left[node]], heights[right[node]]) + 1);
+    }
+
+    private int allocateNode(final long key, final Object value) {
+        final int node;
+        if (freeHead != NIL) {
+            node = freeHead;
+            freeHead = left[node];
+        } else {
+            if (allocated == keys.length) {
+                grow();
+            }
+            node = allocated++;
+        }
+        keys[node] = key;
+        values[node] = value;
+        left[node] = NIL;
+        right[node] = NIL;
+        heights[node] = 1;
+        size++;
+        return node;
+    }
+
+    private void releaseNode(final int node) {
+        values[node] = null;
+        right[node] = NIL;
+        left[node] = freeHead;
+        freeHead = node;
+        size--;
+    }
+
+    private void grow() {
+        final int newCapacity = keys.length << 1;
+        keys = Arrays.copyOf(keys, newCapacity);
+        values = Arrays.copyOf(values, newCapacity);
+        left = Arrays.copyOf(left, newCapacity);
+        right = Arrays.copyOf(right, newCapacity);
+        heights = Arrays.copyOf(heights, newCapacity);
+    }
+
+}
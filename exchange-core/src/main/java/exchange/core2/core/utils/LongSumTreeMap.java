@@ -0,0 +1,343 @@
+/*
+ * Copyright 2019 Maksim Zheravin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package exchange.core2.core.utils;
+
+import java.util.Arrays;
+
+/**
+ * Sorted map with primitive long keys and long values, answering range sum queries in O(log n).
+ * Implemented as AVL tree over primitive arrays (same layout as {@link LongAvlTreeMap}),
+ * each node additionally keeps sum of values of its subtree.
+ * <p>
+ * Zero values are not stored: setting zero value removes the key.
+ * No garbage is produced (arrays only grow when capacity is exceeded).
+ * <p>
+ * Not thread safe.
+ */
+public final class LongSumTreeMap {
+
+    private static final int NIL = 0;
+
+    private static final int DEFAULT_CAPACITY = 64;
+
+    // node 0 is a sentinel (NIL) with height 0 and sum 0
+    private long[] keys;
+    private long[] values;
+    private long[] sums;
+    private int[] left;
+    private int[] right;
+    private byte[] heights;
+
+    private int root = NIL;
+    private int size = 0;
+
+    // head of free nodes list (linked through left[])
+    private int freeHead = NIL;
+    // first never-used node index
+    private int allocated = 1;
+
+    public LongSumTreeMap() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public LongSumTreeMap(final int initialCapacity) {
+        final int capacity = Math.max(initialCapacity, 1) + 1;
+        this.keys = new long[capacity];
+        this.values = new long[capacity];
+        this.sums = new long[capacity];
+        this.left = new int[capacity];
+        this.right = new int[capacity];
+        this.heights = new byte[capacity];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * @return value for the key, or 0 if there is no mapping for the key
+     */
+    public long get(final long key) {
+        return values[findNode(key)];
+    }
+
+    /**
+     * @return sum of all values
+     */
+    public long total() {
+        return sums[root];
+    }
+
+    /**
+     * Sets value for the key, zero value removes the key
+     *
+     * @param key   - key
+     * @param value - new value
+     */
+    public void put(final long key, final long value) {
+        final int node = findNode(key);
+        if (node == NIL) {
+            if (value != 0) {
+                root = insert(root, key, value);
+            }
+        } else if (value == 0) {
+            root = delete(root, key);
+        } else {
+            // same structure - only sums on the path to the node are changing
+            final long delta = value - values[node];
+            values[node] = value;
+            int n = root;
+            while (n != node) {
+                sums[n] += delta;
+                n = key < keys[n] ? left[n] : right[n];
+            }
+            sums[node] += delta;
+        }
+    }
+
+    /**
+     * @param key - upper bound (inclusive)
+     * @return sum of values for keys less than or equal to the key
+     */
+    public long sumUpTo(final long key) {
+        long sum = 0;
+        int node = root;
+        while (node != NIL) {
+            if (key < keys[node]) {
+                node = left[node];
+            } else {
+                sum += sums[left[node]] + values[node];
+                node = right[node];
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * @param key - lower bound (inclusive)
+     * @return sum of values for keys greater than or equal to the key
+     */
+    public long sumFrom(final long key) {
+        long sum = 0;
+        int node = root;
+        while (node != NIL) {
+            if (key > keys[node]) {
+                node = right[node];
+            } else {
+                sum += sums[right[node]] + values[node];
+                node = left[node];
+            }
+        }
+        return sum;
+    }
+
+    public void clear() {
+        root = NIL;
+        size = 0;
+        freeHead = NIL;
+        allocated = 1;
+    }
+
+    /**
+     * Checks AVL tree invariants and subtree sums - testing only
+     */
+    public void validate() {
+        final int count = validateNode(root, Long.MIN_VALUE, Long.MAX_VALUE);
+        if (count != size) {
+            throw new IllegalStateException("size=" + size + " but found " + count + " nodes");
+        }
+    }
+
+    private int validateNode(final int node, final long minKey, final long maxKey) {
+        if (node == NIL) {
+            return 0;
+        }
+        final long k = keys[node];
+        if (k < minKey || k > maxKey) {
+            throw new IllegalStateException("key " + k + " is out of order");
+        }
+        if (values[node] == 0) {
+            throw new IllegalStateException("zero value for key " + k);
+        }
+        if (sums[node] != sums[left[node]] + sums[right[node]] + values[node]) {
+            throw new IllegalStateException("inconsistent sum for key " + k);
+        }
+        final int hl = heights[left[node]];
+        final int hr = heights[right[node]];
+        if (Math.abs(hl - hr) > 1 || heights[node] != Math.max(hl, hr) + 1) {
+            throw new IllegalStateException("unbalanced node " + k);
+        }
+        return 1 + validateNode(left[node], minKey, k - 1) + validateNode(right[node], k + 1, maxKey);
+    }
+
+    private int findNode(final long key) {
+        int node = root;
+        while (node != NIL) {
+            final long k = keys[node];
+            if (key < k) {
+                node = left[node];
+            } else if (key > k) {
+                node = right[node];
+            } else {
+                return node;
+            }
+        }
+        return NIL;
+    }
+
+    private int minNode(int node) {
+        while (left[node] != NIL) {
+            node = left[node];
+        }
+        return node;
+    }
+
+    // key is known to be absent
+    private int insert(final int node, final long key, final long value) {
+        if (node == NIL) {
+            return allocateNode(key, value);
+        }
+        // note: arrays can be re-allocated while inserting, so do not dereference them before recursive call
+        if (key < keys[node]) {
+            final int child = insert(left[node], key, value);
+            left[node] = child;
+        } else {
+            final int child = insert(right[node], key, value);
+            right[node] = child;
+        }
+        return balance(node);
+    }
+
+    // key is known to be present
+    private int delete(final int node, final long key) {
+        final long k = keys[node];
+        if (key < k) {
+            left[node] = delete(left[node], key);
+        } else if (key > k) {
+            right[node] = delete(right[node], key);
+        } else {
+            if (left[node] == NIL || right[node] == NIL) {
+                final int child = left[node] != NIL ? left[node] : right[node];
+                releaseNode(node);
+                return child;
+            }
+            // replace by the successor, then remove successor node from the right subtree
+            final int successor = minNode(right[node]);
+            keys[node] = keys[successor];
+            values[node] = values[successor];
+            right[node] = deleteMin(right[node]);
+        }
+        return balance(node);
+    }
+
+    private int deleteMin(final int node) {
+        if (left[node] == NIL) {
+            final int child = right[node];
+            releaseNode(node);
+            return child;
+        }
+        left[node] = deleteMin(left[node]);
+        return balance(node);
+    }
+
+    private int balance(final int node) {
+        final int hl = heights[left[node]];
+        final int hr = heights[right[node]];
+        if (hl - hr > 1) {
+            final int l = left[node];
+            if (heights[left[l]] < heights[right[l]]) {
+                left[node] = rotateLeft(l);
+            }
+            return rotateRight(node);
+        } else if (hr - hl > 1) {
+            final int r = right[node];
+            if (heights[right[r]] < heights[left[r]]) {
+                right[node] = rotateRight(r);
+            }
+            return rotateLeft(node);
+        }
+        update(node);
+        return node;
+    }
+
+    private int rotateRight(final int node) {
+        final int l = left[node];
+        left[node] = right[l];
+        right[l] = node;
+        update(node);
+        update(l);
+        return l;
+    }
+
+    private int rotateLeft(final int node) {
+        final int r = right[node];
+        right[node] = left[r];
+        left[r] = node;
+        update(node);
+        update(r);
+        return r;
+    }
+
+    private void update(final int node) {
+        heights[node] = (byte) (Math.max(heights[left[node]], heights[right[node]]) + 1);
+        sums[node] = sums[left[node]] + sums[right[node]] + values[node];
+    }
+
+    private int allocateNode(final long key, final long value) {
+        final int node;
+        if (freeHead != NIL) {
+            node = freeHead;
+            freeHead = left[node];
+        } else {
+            if (allocated == keys.length) {
+                grow();
+            }
+            node = allocated++;
+        }
+        keys[node] = key;
+        values[node] = value;
+        sums[node] = value;
+        left[node] = NIL;
+        right[node] = NIL;
+        heights[node] = 1;
+        size++;
+        return node;
+    }
+
+    private void releaseNode(final int node) {
+        values[node] = 0;
+        sums[node] = 0;
+        right[node] = NIL;
+        left[node] = freeHead;
+        freeHead = node;
+        size--;
+    }
+
+    private void grow() {
+        final int newCapacity = keys.length << 1;
+        keys = Arrays.copyOf(keys, newCapacity);
+        values = Arrays.copyOf(values, newCapacity);
+        sums = Arrays.copyOf(sums, newCapacity);
+        left = Arrays.copyOf(left, newCapacity);
+        right = Arrays.copyOf(right, newCapacity);
+        heights = Arrays.copyOf(heights, newCapacity);
+    }
+
+}
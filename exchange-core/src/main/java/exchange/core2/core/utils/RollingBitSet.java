@@ -0,0 +1,238 @@
+/*
+ * Copyright 2019 Maksim Zheravin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package exchange.core2.core.utils;
+
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/**
+ * Fixed size bit set with movable origin (circular buffer of 64-bit words).
+ * <p>
+ * Shifting whole content by N bits (N must be multiple of 64) only moves the origin and clears N/64 words,
+ * so re-centering does not allocate or copy remaining bits.
+ * <p>
+ * Logical index 0 is the lowest bit, (size-1) is the highest one. Not thread safe.
+ */
+public final class RollingBitSet {
+
+    private final int size;
+    private final int wordsNum;
+    private final long[] words;
+
+    // physical index of the word containing logical bits 0..63
+    private int origin = 0;
+
+    public RollingBitSet(final int size) {
+        if ((size & 63) != 0 || size <= 0) {
+            throw new IllegalArgumentException("size must be positive and aligned by 64: " + size);
+        }
+        this.size = size;
+        this.wordsNum = size >> 6;
+        this.words = new long[wordsNum];
+    }
+
+    /**
+     * Create bit set from words (logical order, same as BitSet.toLongArray)
+     *
+     * @param size  - number of bits
+     * @param longs - words, can be shorter than size/64
+     */
+    public RollingBitSet(final int size, final long[] longs) {
+        this(size);
+        if (longs.length > wordsNum) {
+            throw new IllegalArgumentException("too many words: " + longs.length + " (expected max " + wordsNum + ")");
+        }
+        System.arraycopy(longs, 0, words, 0, longs.length);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean get(final int idx) {
+        return (words[phys(idx >> 6)] & (1L << idx)) != 0;
+    }
+
+    public void set(final int idx) {
+        words[phys(idx >> 6)] |= (1L << idx);
+    }
+
+    public void clear(final int idx) {
+        words[phys(idx >> 6)] &= ~(1L << idx);
+    }
+
+    public void clear() {
+        Arrays.fill(words, 0L);
+        origin = 0;
+    }
+
+    public boolean isEmpty() {
+        for (long word : words) {
+            if (word != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public int cardinality() {
+        int sum = 0;
+        for (long word : words) {
+            sum += Long.bitCount(word);
+        }
+        return sum;
+    }
+
+    /**
+     * @param fromIndex - index to start from (inclusive), negative value is treated as 0
+     * @return index of the first set bit at or above fromIndex, or -1 if not found
+     */
+    public int nextSetBit(int fromIndex) {
+        if (fromIndex < 0) {
+            fromIndex = 0;
+        } else if (fromIndex >= size) {
+            return -1;
+        }
+
+        int wordIdx = fromIndex >> 6;
+        long word = words[phys(wordIdx)] & (-1L << fromIndex);
+        while (true) {
+            if (word != 0) {
+                return (wordIdx << 6) + Long.numberOfTrailingZeros(word);
+            }
+            if (++wordIdx == wordsNum) {
+                return -1;
+            }
+            word = words[phys(wordIdx)];
+        }
+    }
+
+    /**
+     * @param fromIndex - index to start from (inclusive), values above the size are treated as (size - 1)
+     * @return index of the last set bit at or below fromIndex, or -1 if not found
+     */
+    public int previousSetBit(int fromIndex) {
+        if (fromIndex < 0) {
+            return -1;
+        } else if (fromIndex >= size) {
+            fromIndex = size - 1;
+        }
+
+        int wordIdx = fromIndex >> 6;
+        long word = words[phys(wordIdx)] & (-1L >>> (63 - (fromIndex & 63)));
+        while (true) {
+            if (word != 0) {
+                return (wordIdx << 6) + 63 - Long.numberOfLeadingZeros(word);
+            }
+            if (wordIdx-- == 0) {
+                return -1;
+            }
+            word = words[phys(wordIdx)];
+        }
+    }
+
+    /**
+     * Shift all bits towards lower indexes (bit N becomes bit N-shift), lowest bits are discarded.
+     * Complexity is O(shift/64).
+     *
+     * @param shift - number of bits, must be multiple of 64
+     */
+    public void shiftDown(final int shift) {
+        final int shiftWords = checkShift(shift);
+        if (shiftWords >= wordsNum) {
+            clear();
+            return;
+        }
+        for (int i = 0; i < shiftWords; i++) {
+            words[phys(i)] = 0L;
+        }
+        origin = phys(shiftWords);
+    }
+
+    /**
+     * Shift all bits towards higher indexes (bit N becomes bit N+shift), highest bits are discarded.
+     * Complexity is O(shift/64).
+     *
+     * @param shift - number of bits, must be multiple of 64
+     */
+    public void shiftUp(final int shift) {
+        final int shiftWords = checkShift(shift);
+        if (shiftWords >= wordsNum) {
+            clear();
+            return;
+        }
+        for (int i = wordsNum - shiftWords; i < wordsNum; i++) {
+            words[phys(i)] = 0L;
+        }
+        origin = phys(wordsNum - shiftWords);
+    }
+
+    /**
+     * @return set bits indexes in ascending order
+     */
+    public IntStream stream() {
+        final IntStream.Builder builder = IntStream.builder();
+        for (int i = nextSetBit(0); i != -1; i = nextSetBit(i + 1)) {
+            builder.add(i);
+        }
+        return builder.build();
+    }
+
+    /**
+     * @return words in logical order, trailing zero words are trimmed (same as BitSet.toLongArray)
+     */
+    public long[] toLongArray() {
+        int len = wordsNum;
+        while (len > 0 && words[phys(len - 1)] == 0) {
+            len--;
+        }
+        final long[] res = new long[len];
+        for (int i = 0; i < len; i++) {
+            res[i] = words[phys(i)];
+        }
+        return res;
+    }
+
+    private int checkShift(final int shift) {
+        if (shift < 0 || (shift & 63) != 0) {
+            throw new IllegalArgumentException("shift must be non-negative and aligned by 64: " + shift);
+        }
+        return shift >> 6;
+    }
+
+    private int phys(final int wordIdx) {
+        final int p = wordIdx + origin;
+        return p >= wordsNum ? p - wordsNum : p;
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(toLongArray());
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof RollingBitSet)) return false;
+        final RollingBitSet other = (RollingBitSet) o;
+        return size == other.size && Arrays.equals(toLongArray(), other.toLongArray());
+    }
+
+    @Override
+    public String toString() {
+        return "RollingBitSet{size=" + size + ", bits=" + Arrays.toString(stream().toArray()) + '}';
+    }
+}
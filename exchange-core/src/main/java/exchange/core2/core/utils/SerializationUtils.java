@@ -15,6 +15,7 @@
  */
 package exchange.core2.core.utils;
 
+import exchange.core2.core.common.IUserAccounts;
 import net.openhft.chronicle.bytes.*;
 import net.openhft.chronicle.wire.Wire;
 import net.openhft.chronicle.wire.WireType;
@@ -111,6 +112,14 @@ public class SerializationUtils {
         return BitSet.valueOf(readLongArray(bytes));
     }
 
+    public static void marshallRollingBitSet(final RollingBitSet bitSet, final BytesOut bytes) {
+        marshallLongArray(bitSet.toLongArray(), bytes);
+    }
+
+    public static RollingBitSet readRollingBitSet(final BytesIn bytes, final int size) {
+        return new RollingBitSet(size, readLongArray(bytes));
+    }
+
 
     public static void marshallLongArray(final long[] longs, final BytesOut bytes) {
         bytes.writeInt(longs.length);
@@ -174,6 +183,27 @@ public class SerializationUtils {
     }
 
 
+    public static void marshallUserAccounts(final IUserAccounts accounts, final BytesOut bytes) {
+
+        bytes.writeInt(accounts.size());
+
+        accounts.forEachKeyValue((k, v) -> {
+            bytes.writeInt(k);
+            bytes.writeLong(v);
+        });
+    }
+
+    public static IUserAccounts readUserAccounts(final BytesIn bytes, final Supplier<IUserAccounts> accountsFactory) {
+        int length = bytes.readInt();
+        final IUserAccounts accounts = accountsFactory.get();
+        for (int i = 0; i < length; i++) {
+            int k = bytes.readInt();
+            long v = bytes.readLong();
+            accounts.addToValue(k, v);
+        }
+        return accounts;
+    }
+
     public static void marshallLongHashSet(final LongHashSet set, final BytesOut bytes) {
         bytes.writeInt(set.size());
         set.forEach(bytes::writeLong);
@@ -266,6 +296,24 @@ public class SerializationUtils {
         return map;
     }
 
+    public static <T extends WriteBytesMarshallable> void marshallLongAvlTreeMap(final LongAvlTreeMap<T> map, final BytesOut bytes) {
+        bytes.writeInt(map.size());
+
+        map.forEach((k, v) -> {
+            bytes.writeLong(k);
+            v.writeMarshallable(bytes);
+        });
+    }
+
+    public static <T> LongAvlTreeMap<T> readLongAvlTreeMap(final BytesIn bytes, final Function<BytesIn, T> creator) {
+        int length = bytes.readInt();
+        final LongAvlTreeMap<T> map = new LongAvlTreeMap<>(length);
+        for (int i = 0; i < length; i++) {
+            map.put(bytes.readLong(), creator.apply(bytes));
+        }
+        return map;
+    }
+
     public static <T extends WriteBytesMarshallable> void marshallList(final List<T> list, final BytesOut bytes) {
         bytes.writeInt(list.size());
         list.forEach(v -> v.writeMarshallable(bytes));
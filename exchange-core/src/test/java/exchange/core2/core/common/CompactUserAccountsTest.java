@@ -0,0 +1,80 @@
+/*
+ * Copyright 2019 Maksim Zheravin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package exchange.core2.core.common;
+
+import exchange.core2.core.utils.SerializationUtils;
+import net.openhft.chronicle.bytes.Bytes;
+import net.openhft.chronicle.bytes.NativeBytes;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+public class CompactUserAccountsTest {
+
+    @Test
+    public void shouldKeepSortedAccounts() {
+        final CompactUserAccounts accounts = new CompactUserAccounts();
+        assertThat(accounts.size(), is(0));
+        assertThat(accounts.get(840), is(0L));
+
+        assertThat(accounts.addToValue(840, 100L), is(100L));
+        assertThat(accounts.addToValue(978, 5L), is(5L));
+        assertThat(accounts.addToValue(36, -7L), is(-7L));
+        assertThat(accounts.addToValue(840, 20L), is(120L));
+
+        assertThat(accounts.size(), is(3));
+        assertThat(accounts.get(36), is(-7L));
+        assertThat(accounts.get(840), is(120L));
+        assertThat(accounts.get(978), is(5L));
+        assertThat(accounts.get(392), is(0L));
+        assertThat(accounts.toString(), is("{36=-7, 840=120, 978=5}"));
+
+        accounts.clear();
+        assertThat(accounts.size(), is(0));
+        assertThat(accounts.get(840), is(0L));
+    }
+
+    @Test
+    public void shouldBehaveAsHashAccounts() {
+        final Random rnd = new Random(1L);
+        final CompactUserAccounts compact = new CompactUserAccounts();
+        final HashUserAccounts hash = new HashUserAccounts();
+
+        for (int i = 0; i < 10_000; i++) {
+            final int currency = rnd.nextInt(20);
+            final long amount = rnd.nextLong() >> 8;
+            assertThat(compact.addToValue(currency, amount), is(hash.addToValue(currency, amount)));
+
+            final int probe = rnd.nextInt(25);
+            assertThat(compact.get(probe), is(hash.get(probe)));
+            assertThat(compact.size(), is(hash.size()));
+            assertThat(compact.hashCode(), is(hash.hashCode()));
+        }
+
+        // serialized form is the same, so snapshots can be loaded with any implementation
+        final NativeBytes<Void> bytes = Bytes.allocateElasticDirect(128);
+        SerializationUtils.marshallUserAccounts(compact, bytes);
+        final IUserAccounts restored = SerializationUtils.readUserAccounts(bytes, HashUserAccounts::new);
+        assertThat(restored, is(hash));
+
+        SerializationUtils.marshallUserAccounts(hash, bytes);
+        assertThat(SerializationUtils.readUserAccounts(bytes, CompactUserAccounts::new), is(compact));
+        bytes.release();
+    }
+}
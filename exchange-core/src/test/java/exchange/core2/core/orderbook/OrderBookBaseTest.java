@@ -18,25 +18,47 @@ package exchange.core2.core.orderbook;
 import exchange.core2.tests.util.L2MarketDataHelper;
 import exchange.core2.tests.util.TestOrdersGenerator;
 import lombok.extern.slf4j.Slf4j;
+import net.openhft.chronicle.bytes.Bytes;
+import net.openhft.chronicle.bytes.NativeBytes;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
+import exchange.core2.core.common.CoreSymbolSpecification;
 import exchange.core2.core.common.L2MarketData;
+import exchange.core2.core.common.L2MarketDataDelta;
 import exchange.core2.core.common.MatcherEventType;
 import exchange.core2.core.common.MatcherTradeEvent;
+import exchange.core2.core.common.Order;
 import exchange.core2.core.common.OrderAction;
+import exchange.core2.core.common.OrderType;
+import exchange.core2.core.common.TradesSummary;
 import exchange.core2.core.common.cmd.CommandResultCode;
 import exchange.core2.core.common.cmd.OrderCommand;
+import exchange.core2.core.common.cmd.OrderCommandType;
+import exchange.core2.core.utils.CoreArithmeticUtils;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.stream.Collectors;
 
 import static org.hamcrest.Matchers.is;
 import static org.junit.Assert.*;
 import static exchange.core2.core.common.OrderAction.ASK;
 import static exchange.core2.core.common.OrderAction.BID;
+import static exchange.core2.core.common.OrderType.FOK;
 import static exchange.core2.core.common.OrderType.GTC;
+import static exchange.core2.core.common.OrderType.GTD;
 import static exchange.core2.core.common.OrderType.IOC;
+import static exchange.core2.core.common.OrderType.IOC_BUDGET;
+import static exchange.core2.core.common.OrderType.STOP;
+import static exchange.core2.core.common.OrderType.STOP_LIMIT;
+import static exchange.core2.core.common.cmd.CommandResultCode.MATCHING_DUPLICATE_ORDER_ID;
+import static exchange.core2.core.common.cmd.CommandResultCode.MATCHING_INVALID_ORDER_SIZE;
 import static exchange.core2.core.common.cmd.CommandResultCode.MATCHING_UNKNOWN_ORDER_ID;
 import static exchange.core2.core.common.cmd.CommandResultCode.SUCCESS;
 
@@ -173,6 +195,295 @@ public abstract class OrderBookBaseTest {
         //        log.debug("{}", dumpOrderBook(snapshot));
     }
 
+    /**
+     * Find user orders using uid index, index updated on place/cancel/move/fill
+     */
+    @Test
+    public void shouldFindUserOrders() {
+
+        assertThat(orderBook.findUserOrders(UID_1).size(), is(13));
+        assertTrue(orderBook.findUserOrders(UID_2).isEmpty());
+
+        IOrderBook.processCommand(orderBook, OrderCommand.newOrder(GTC, 93, UID_2, 81598, 0, 1, ASK));
+        IOrderBook.processCommand(orderBook, OrderCommand.newOrder(GTC, 94, UID_2, 81594, MAX_PRICE, 7, BID));
+        processAndValidate(OrderCommand.cancel(5, UID_1), SUCCESS);
+        processAndValidate(OrderCommand.update(94, UID_2, 81595), SUCCESS);
+
+        // fully match moved order 94 and order 4
+        processAndValidate(OrderCommand.newOrder(IOC, 123, UID_1 + 100, 81593, 0, 47, ASK), SUCCESS);
+
+        assertThat(orderBook.findUserOrders(UID_1).stream().mapToLong(ord -> ord.orderId).sorted().toArray(),
+                is(new long[]{1, 2, 3, 6, 7, 8, 9, 10, 11, 12, 13}));
+        assertThat(orderBook.findUserOrders(UID_2).stream().mapToLong(ord -> ord.orderId).sorted().toArray(),
+                is(new long[]{93}));
+        assertTrue(orderBook.findUserOrders(UID_1 + 100).isEmpty());
+    }
+
+    /**
+     * Cancel all orders of one user, orders of other users remain
+     */
+    @Test
+    public void shouldMassCancelUserOrders() {
+
+        IOrderBook.processCommand(orderBook, OrderCommand.newOrder(GTC, 93, UID_2, 81598, 0, 1, ASK));
+        IOrderBook.processCommand(orderBook, OrderCommand.newOrder(GTC, 94, UID_2, 10000, 12000, 7, BID));
+
+        final OrderCommand cmd = OrderCommand.massCancel(UID_1);
+        processAndValidate(cmd, SUCCESS);
+
+        final List<MatcherTradeEvent> events = cmd.extractEvents();
+        assertThat(events.size(), is(13));
+        events.forEach(evt -> assertThat(evt.activeOrderUid, is((long) UID_1)));
+        assertThat(events.stream().mapToLong(evt -> evt.activeOrderId).sorted().toArray(),
+                is(new long[]{1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13}));
+        events.stream().filter(evt -> evt.activeOrderId == 5).forEach(evt -> checkEventCancel(evt, 5L, BID, 20L, UID_1));
+
+        assertTrue(orderBook.findUserOrders(UID_1).isEmpty());
+        assertThat(orderBook.findUserOrders(UID_2).size(), is(2));
+
+        final L2MarketData expected = new L2MarketData(new long[]{81598}, new long[]{1}, new long[]{10000}, new long[]{7});
+        assertEquals(expected, orderBook.getL2MarketDataSnapshot(25));
+
+        // nothing left to cancel
+        final OrderCommand cmd2 = OrderCommand.massCancel(UID_1);
+        processAndValidate(cmd2, SUCCESS);
+        assertNull(cmd2.matcherEvent);
+    }
+
+    /**
+     * Place two-sided quote, then replace it twice (second time - marketable ask only)
+     */
+    @Test
+    public void shouldReplaceQuote() {
+
+        OrderCommand cmd = OrderCommand.quote(201, 81594, 82000, 5, 202, 81598, 7, UID_2);
+        processAndValidate(cmd, SUCCESS);
+        assertNull(cmd.matcherEvent);
+        assertThat(cmd.orderId, is(201L));
+        assertThat(cmd.price, is(81594L));
+
+        expectedState.insertAsk(0, 81598, 7);
+        expectedState.insertBid(0, 81594, 5);
+        assertEquals(expectedState.build(), orderBook.getL2MarketDataSnapshot(25));
+
+        // move both sides - previous orders cancelled
+        cmd = OrderCommand.quote(201, 81595, 82000, 3, 202, 81597, 4, UID_2);
+        processAndValidate(cmd, SUCCESS);
+        List<MatcherTradeEvent> events = cmd.extractEvents();
+        assertThat(events.size(), is(2));
+        checkEventCancel(events.get(0), 201L, BID, 5L, UID_2);
+        checkEventCancel(events.get(1), 202L, ASK, 7L, UID_2);
+
+        expectedState.setAskPriceVolume(0, 81597, 4);
+        expectedState.setBidPriceVolume(0, 81595, 3);
+        assertEquals(expectedState.build(), orderBook.getL2MarketDataSnapshot(25));
+
+        // withdraw bid, marketable ask matches 81593 bid and remaining volume is placed
+        cmd = OrderCommand.quote(201, 0, 0, 0, 202, 81593, 50, UID_2);
+        processAndValidate(cmd, SUCCESS);
+        events = cmd.extractEvents();
+        assertThat(events.size(), is(3));
+        checkEventCancel(events.get(0), 201L, BID, 3L, UID_2);
+        checkEventCancel(events.get(1), 202L, ASK, 4L, UID_2);
+        checkEventTrade(events.get(2), 202L, 4L, 81593, 40L);
+
+        assertThat(orderBook.findUserOrders(UID_2).size(), is(1));
+        assertThat(orderBook.getOrderById(202L).size - orderBook.getOrderById(202L).filled, is(10L));
+
+        expectedState.setAskPriceVolume(0, 81593, 10);
+        expectedState.removeBid(0);
+        expectedState.removeBid(0);
+        assertEquals(expectedState.build(), orderBook.getL2MarketDataSnapshot(25));
+    }
+
+    /**
+     * Quote with new order ids cancels previous quote of the same user
+     */
+    @Test
+    public void shouldReplaceQuoteWithNewOrderIds() {
+
+        OrderCommand cmd = OrderCommand.quote(201, 81594, 82000, 5, 202, 81598, 7, UID_2);
+        processAndValidate(cmd, SUCCESS);
+
+        cmd = OrderCommand.quote(203, 81595, 82000, 3, 204, 81597, 4, UID_2);
+        processAndValidate(cmd, SUCCESS);
+        final List<MatcherTradeEvent> events = cmd.extractEvents();
+        assertThat(events.size(), is(2));
+        checkEventCancel(events.get(0), 201L, BID, 5L, UID_2);
+        checkEventCancel(events.get(1), 202L, ASK, 7L, UID_2);
+
+        assertNull(orderBook.getOrderById(201L));
+        assertNull(orderBook.getOrderById(202L));
+        assertThat(orderBook.getOrderById(203L).size, is(3L));
+        assertThat(orderBook.getOrderById(204L).size, is(4L));
+        assertThat(orderBook.findUserOrders(UID_2).size(), is(2));
+
+        expectedState.insertAsk(0, 81597, 4);
+        expectedState.insertBid(0, 81595, 3);
+        assertEquals(expectedState.build(), orderBook.getL2MarketDataSnapshot(25));
+
+        // empty quote withdraws both sides
+        cmd = OrderCommand.quote(0, 0, 0, 0, 0, 0, 0, UID_2);
+        processAndValidate(cmd, SUCCESS);
+        assertThat(cmd.extractEvents().size(), is(2));
+        assertTrue(orderBook.findUserOrders(UID_2).isEmpty());
+    }
+
+    /**
+     * Completed or cancelled quote orders are not tracked anymore - regular orders re-using their ids survive the next quote
+     */
+    @Test
+    public void shouldNotCancelRegularOrderReusingQuoteOrderId() {
+
+        OrderCommand cmd = OrderCommand.quote(201, 81594, 82000, 5, 202, 81598, 7, UID_2);
+        processAndValidate(cmd, SUCCESS);
+
+        // bid side of the quote is completely filled
+        cmd = OrderCommand.newOrder(IOC, 301, UID_1, 81594, 0, 5, ASK);
+        processAndValidate(cmd, SUCCESS);
+        checkEventTrade(cmd.extractEvents().get(0), 301L, 201L, 81594, 5L);
+        assertNull(orderBook.getOrderById(201L));
+        assertThat(orderBook.getQuotes().getBidOrderId(UID_2), is(0L));
+
+        // ask side of the quote is cancelled by regular cancel command
+        processAndValidate(OrderCommand.cancel(202, UID_2), SUCCESS);
+        assertTrue(orderBook.getQuotes().isEmpty());
+
+        // same ids are re-used by regular orders
+        processAndValidate(OrderCommand.newOrder(GTC, 201, UID_2, 80000, 80000, 1, BID), SUCCESS);
+        processAndValidate(OrderCommand.newOrder(GTC, 202, UID_2, 83000, 0, 2, ASK), SUCCESS);
+
+        // next quote does not cancel them
+        cmd = OrderCommand.quote(203, 81595, 82000, 3, 204, 81597, 4, UID_2);
+        processAndValidate(cmd, SUCCESS);
+        assertNull(cmd.matcherEvent);
+        assertThat(orderBook.getOrderById(201L).size, is(1L));
+        assertThat(orderBook.getOrderById(202L).size, is(2L));
+        assertThat(orderBook.findUserOrders(UID_2).size(), is(4));
+    }
+
+    /**
+     * Invalid quote is rejected as a whole, previous quote stays in the book
+     */
+    @Test
+    public void shouldRejectInvalidQuoteAtomically() {
+
+        OrderCommand cmd = OrderCommand.quote(201, 81594, 82000, 5, 202, 81598, 7, UID_2);
+        processAndValidate(cmd, SUCCESS);
+        expectedState.insertAsk(0, 81598, 7);
+        expectedState.insertBid(0, 81594, 5);
+        final L2MarketData snapshot = expectedState.build();
+
+        // ask id is used by order of another user
+        cmd = OrderCommand.quote(203, 81595, 82000, 3, 1, 81597, 4, UID_2);
+        processAndValidate(cmd, MATCHING_DUPLICATE_ORDER_ID);
+        List<MatcherTradeEvent> events = cmd.extractEvents();
+        assertThat(events.size(), is(2));
+        checkEventRejection(events.get(0), 203L, 3L);
+        checkEventRejection(events.get(1), 1L, 4L);
+        assertEquals(snapshot, orderBook.getL2MarketDataSnapshot(25));
+
+        // same id for both sides
+        cmd = OrderCommand.quote(203, 81595, 82000, 3, 203, 81597, 4, UID_2);
+        processAndValidate(cmd, MATCHING_DUPLICATE_ORDER_ID);
+        assertThat(cmd.extractEvents().size(), is(2));
+        assertEquals(snapshot, orderBook.getL2MarketDataSnapshot(25));
+
+        // negative size
+        cmd = OrderCommand.quote(203, 81595, 82000, 3, 204, 81597, -4, UID_2);
+        processAndValidate(cmd, MATCHING_INVALID_ORDER_SIZE);
+        events = cmd.extractEvents();
+        assertThat(events.size(), is(1));
+        checkEventRejection(events.get(0), 203L, 3L);
+        assertEquals(snapshot, orderBook.getL2MarketDataSnapshot(25));
+
+        // previous quote is still tracked and replaced by the next valid quote
+        cmd = OrderCommand.quote(203, 81595, 82000, 3, 204, 81597, 4, UID_2);
+        processAndValidate(cmd, SUCCESS);
+        events = cmd.extractEvents();
+        assertThat(events.size(), is(2));
+        checkEventCancel(events.get(0), 201L, BID, 5L, UID_2);
+        checkEventCancel(events.get(1), 202L, ASK, 7L, UID_2);
+    }
+
+    /**
+     * Events chain is recycled into the command pool and re-used by next command in the same slot
+     */
+    @Test
+    public void shouldReuseRecycledEvents() {
+
+        final OrderCommand cmd = OrderCommand.cancel(5, UID_1);
+        processAndValidate(cmd, SUCCESS);
+        final MatcherTradeEvent cancelEvent = cmd.matcherEvent;
+        checkEventCancel(cancelEvent, 5L, BID, 20L, UID_1);
+
+        cmd.recycleMatcherEvents();
+        assertNull(cmd.matcherEvent);
+
+        // marketable IOC order in the same slot - trade event is taken from the pool, rejection event is new
+        OrderCommand.newOrder(IOC, 123, UID_2, 81599, 0, 200, BID).writeTo(cmd);
+        cmd.resultCode = CommandResultCode.VALID_FOR_MATCHING_ENGINE;
+        processAndValidate(cmd, SUCCESS);
+
+        final List<MatcherTradeEvent> events = cmd.extractEvents();
+        assertThat(events.size(), is(3));
+        assertSame(cancelEvent, events.get(0));
+        checkEventTrade(events.get(0), 123L, 2L, 81599, 50L);
+        checkEventTrade(events.get(1), 123L, 3L, 81599, 25L);
+        checkEventRejection(events.get(2), 123L, 125L);
+        assertThat(events.get(2).matchedOrderUid, is(0L));
+
+        expectedState.removeAsk(0);
+        expectedState.setBidVolume(1, 1);
+        assertEquals(expectedState.build(), orderBook.getL2MarketDataSnapshot(25));
+    }
+
+    /**
+     * Order book request fills reusable market data object of the command slot
+     */
+    @Test
+    public void shouldFillReusableMarketData() {
+
+        final OrderCommand cmd = OrderCommand.builder().command(OrderCommandType.ORDER_BOOK_REQUEST).size(25).build();
+        processAndValidate(cmd, SUCCESS);
+        final L2MarketData marketData = cmd.marketData;
+        assertSame(cmd.getMarketDataBuffer(), marketData);
+        assertEquals(expectedState.build(), marketData);
+
+        // smaller depth - same object, arrays are not re-allocated
+        final long[] askPrices = marketData.askPrices;
+        cmd.size = 2;
+        processAndValidate(cmd, SUCCESS);
+        assertSame(marketData, cmd.marketData);
+        assertSame(askPrices, marketData.askPrices);
+        assertEquals(orderBook.getL2MarketDataSnapshot(2), marketData);
+
+        // copy is not affected by next request
+        final L2MarketData copy = marketData.copy();
+        IOrderBook.processCommand(orderBook, OrderCommand.cancel(4, UID_1));
+        processAndValidate(cmd, SUCCESS);
+        assertThat(copy.bidPrices[0], is(81593L));
+        assertThat(marketData.bidPrices[0], is(81590L));
+    }
+
+    /**
+     * Cancel all orders in the order book (uid=0)
+     */
+    @Test
+    public void shouldMassCancelAllOrders() {
+
+        IOrderBook.processCommand(orderBook, OrderCommand.newOrder(GTC, 93, UID_2, 81598, 0, 1, ASK));
+
+        final OrderCommand cmd = OrderCommand.massCancel(0);
+        processAndValidate(cmd, SUCCESS);
+
+        assertThat(cmd.extractEvents().size(), is(14));
+        assertTrue(orderBook.findUserOrders(UID_1).isEmpty());
+        assertTrue(orderBook.findUserOrders(UID_2).isEmpty());
+        assertThat(orderBook.getL2MarketDataSnapshot(-1).askSize, is(0));
+        assertThat(orderBook.getL2MarketDataSnapshot(-1).bidSize, is(0));
+    }
+
     /**
      * Remove existing order
      */
@@ -389,6 +700,358 @@ public abstract class OrderBookBaseTest {
         checkEventRejection(events.get(6), 123L, 25L);
     }
 
+    // FOK ORDERS
+
+    @Test
+    public void shouldRejectFokOrderWithoutTrades() {
+
+        // size=76, only 75 available at 81599
+        OrderCommand cmd = OrderCommand.newOrder(FOK, 123, UID_2, 81599, 81599, 76, BID);
+        processAndValidate(cmd, SUCCESS);
+
+        // nothing changed
+        assertEquals(expectedState.build(), orderBook.getL2MarketDataSnapshot(25));
+
+        List<MatcherTradeEvent> events = cmd.extractEvents();
+        assertThat(events.size(), is(1));
+        checkEventRejection(events.get(0), 123L, 76L);
+        assertNull(cmd.marketDataDelta);
+    }
+
+    @Test
+    public void shouldFullyMatchFokOrder() {
+
+        // size=175, all liquidity up to 81600
+        OrderCommand cmd = OrderCommand.newOrder(FOK, 123, UID_2, 81600, 81600, 175, BID);
+        processAndValidate(cmd, SUCCESS);
+
+        L2MarketData expected = expectedState.removeAsk(0).removeAsk(0).build();
+        assertEquals(expected, orderBook.getL2MarketDataSnapshot(25));
+
+        List<MatcherTradeEvent> events = cmd.extractEvents();
+        assertThat(events.size(), is(3));
+        checkEventTrade(events.get(0), 123L, 2L, 81599, 50L);
+        checkEventTrade(events.get(1), 123L, 3L, 81599, 25L);
+        checkEventTrade(events.get(2), 123L, 1L, 81600, 100L);
+    }
+
+    @Test
+    public void shouldNotCountOwnOrdersForFokOrder() {
+
+        processAndValidate(OrderCommand.newOrder(GTC, 123, UID_2, 81594, 82000, 5, BID), SUCCESS);
+
+        // 61 of other user + 5 own within limit price
+        OrderCommand cmd = OrderCommand.newOrder(FOK, 124, UID_2, 81590, 0, 62, ASK);
+        processAndValidate(cmd, SUCCESS);
+
+        List<MatcherTradeEvent> events = cmd.extractEvents();
+        assertThat(events.size(), is(1));
+        checkEventRejection(events.get(0), 124L, 62L);
+
+        cmd = OrderCommand.newOrder(FOK, 125, UID_2, 81590, 0, 61, ASK);
+        processAndValidate(cmd, SUCCESS);
+
+        events = cmd.extractEvents();
+        assertThat(events.size(), is(3));
+        checkEventTrade(events.get(0), 125L, 4L, 81593, 40L);
+        checkEventTrade(events.get(1), 125L, 5L, 81590, 20L);
+        checkEventTrade(events.get(2), 125L, 6L, 81590, 1L);
+        assertNotNull(orderBook.getOrderById(123L));
+    }
+
+    // BUDGET ORDERS
+
+    @Test
+    public void shouldMatchBudgetOrderUntilBudgetIsSpent() {
+
+        final CoreSymbolSpecification spec = orderBook.getSymbolSpec();
+        // enough for 75 lots at 81599 and 10 lots at 81600 (but not for 11)
+        final long budget = CoreArithmeticUtils.calculateAmountBidTakerFee(75, 81599, spec)
+                + CoreArithmeticUtils.calculateAmountBidTakerFee(11, 81600, spec) - 1;
+
+        OrderCommand cmd = OrderCommand.newOrder(IOC_BUDGET, 123, UID_2, MAX_PRICE, 0, 1000, BID);
+        cmd.budget = budget;
+        processAndValidate(cmd, SUCCESS);
+
+        L2MarketData expected = expectedState.removeAsk(0).setAskVolume(0, 90).build();
+        assertEquals(expected, orderBook.getL2MarketDataSnapshot(25));
+
+        // no rejection - budget is spent
+        List<MatcherTradeEvent> events = cmd.extractEvents();
+        assertThat(events.size(), is(3));
+        checkEventTrade(events.get(0), 123L, 2L, 81599, 50L);
+        checkEventTrade(events.get(1), 123L, 3L, 81599, 25L);
+        checkEventTrade(events.get(2), 123L, 1L, 81600, 10L);
+        events.forEach(ev -> assertThat(ev.bidderHoldPrice, is(ev.price)));
+        assertFalse(events.get(1).activeOrderCompleted);
+        assertTrue(events.get(2).activeOrderCompleted);
+    }
+
+    @Test
+    public void shouldRejectBudgetOrderRemainderWhenNoLiquidity() {
+
+        OrderCommand cmd = OrderCommand.newOrder(IOC_BUDGET, 123, UID_2, 81599, 0, 1000, BID);
+        cmd.budget = Long.MAX_VALUE / 2;
+        processAndValidate(cmd, SUCCESS);
+
+        L2MarketData expected = expectedState.removeAsk(0).build();
+        assertEquals(expected, orderBook.getL2MarketDataSnapshot(25));
+
+        List<MatcherTradeEvent> events = cmd.extractEvents();
+        assertThat(events.size(), is(3));
+        checkEventTrade(events.get(0), 123L, 2L, 81599, 50L);
+        checkEventTrade(events.get(1), 123L, 3L, 81599, 25L);
+        checkEventRejection(events.get(2), 123L, 925L);
+        assertFalse(events.get(1).activeOrderCompleted);
+    }
+
+    // STOP ORDERS
+
+    private static OrderCommand stopOrder(OrderType orderType, long orderId, long uid, long stopPrice, long price, long reserveBidPrice, long size, OrderAction action) {
+        final OrderCommand cmd = OrderCommand.newOrder(orderType, orderId, (int) uid, price, reserveBidPrice, size, action);
+        cmd.stopPrice = stopPrice;
+        return cmd;
+    }
+
+    @Test
+    public void shouldTriggerStopLimitOrderByTrade() {
+
+        OrderCommand cmd = stopOrder(STOP_LIMIT, 123, UID_2, 81600, 81600, 81600, 120, BID);
+        processAndValidate(cmd, SUCCESS);
+        assertNull(cmd.matcherEvent);
+        assertNull(orderBook.getOrderById(123L));
+        assertThat(orderBook.getStopOrders().size(), is(1));
+        assertEquals(expectedState.build(), orderBook.getL2MarketDataSnapshot(25));
+
+        // trades at 81599 and 81600 - stop price is reached
+        cmd = OrderCommand.newOrder(IOC, 124, UID_2, 81600, 81600, 80, BID);
+        processAndValidate(cmd, SUCCESS);
+
+        List<MatcherTradeEvent> events = cmd.extractEvents();
+        assertThat(events.size(), is(4));
+        checkEventTrade(events.get(0), 124L, 2L, 81599, 50L);
+        checkEventTrade(events.get(1), 124L, 3L, 81599, 25L);
+        checkEventTrade(events.get(2), 124L, 1L, 81600, 5L);
+        checkEventTrade(events.get(3), 123L, 1L, 81600, 95L);
+        assertThat(events.get(3).activeOrderUid, is((long) UID_2));
+
+        // command fields are restored
+        assertThat(cmd.orderId, is(124L));
+        assertThat(cmd.orderType, is(IOC));
+
+        // remaining part is placed as limit order
+        assertTrue(orderBook.getStopOrders().isEmpty());
+        assertThat(orderBook.getOrderById(123L).filled, is(95L));
+        L2MarketData expected = expectedState.removeAsk(0).removeAsk(0).insertBid(0, 81600, 25).build();
+        assertEquals(expected, orderBook.getL2MarketDataSnapshot(25));
+    }
+
+    @Test
+    public void shouldCascadeStopOrders() {
+
+        processAndValidate(stopOrder(STOP, 123, UID_2, 81593, 81590, 0, 45, ASK), SUCCESS);
+        processAndValidate(stopOrder(STOP_LIMIT, 124, UID_2, 81590, 81200, 0, 30, ASK), SUCCESS);
+        processAndValidate(stopOrder(STOP_LIMIT, 125, UID_2, 9000, 9000, 0, 1, ASK), SUCCESS);
+        assertThat(orderBook.getStopOrders().size(), is(3));
+
+        // trade at 81593 triggers STOP order 123, its trade at 81590 triggers STOP_LIMIT order 124
+        OrderCommand cmd = OrderCommand.newOrder(IOC, 126, UID_2, 81593, 0, 40, ASK);
+        processAndValidate(cmd, SUCCESS);
+
+        List<MatcherTradeEvent> events = cmd.extractEvents();
+        assertThat(events.size(), is(5));
+        checkEventTrade(events.get(0), 126L, 4L, 81593, 40L);
+        checkEventTrade(events.get(1), 123L, 5L, 81590, 20L);
+        checkEventTrade(events.get(2), 123L, 6L, 81590, 1L);
+        checkEventRejection(events.get(3), 123L, 24L);
+        checkEventTrade(events.get(4), 124L, 7L, 81200, 20L);
+
+        L2MarketData expected = expectedState.removeBid(0).removeBid(0).removeBid(0).insertAsk(0, 81200, 10).build();
+        assertEquals(expected, orderBook.getL2MarketDataSnapshot(25));
+        assertThat(orderBook.getStopOrders().getLastTradePrice(), is(81200L));
+
+        // other user can not cancel stop order
+        processAndValidate(OrderCommand.cancel(125, UID_1), MATCHING_UNKNOWN_ORDER_ID);
+
+        cmd = OrderCommand.cancel(125, UID_2);
+        processAndValidate(cmd, SUCCESS);
+        events = cmd.extractEvents();
+        assertThat(events.size(), is(1));
+        checkEventCancel(events.get(0), 125L, ASK, 1L, UID_2);
+        assertTrue(orderBook.getStopOrders().isEmpty());
+    }
+
+    @Test
+    public void shouldActivateStopOrderImmediatelyIfStopPriceReached() {
+
+        processAndValidate(OrderCommand.newOrder(IOC, 123, UID_2, 81599, 81599, 10, BID), SUCCESS);
+
+        OrderCommand cmd = stopOrder(STOP, 124, UID_2, 81599, 81599, 81599, 5, BID);
+        processAndValidate(cmd, SUCCESS);
+
+        List<MatcherTradeEvent> events = cmd.extractEvents();
+        assertThat(events.size(), is(1));
+        checkEventTrade(events.get(0), 124L, 2L, 81599, 5L);
+        assertTrue(orderBook.getStopOrders().isEmpty());
+
+        // duplicate order id
+        cmd = stopOrder(STOP_LIMIT, 1, UID_2, 90000, 90000, 90000, 5, BID);
+        processAndValidate(cmd, MATCHING_DUPLICATE_ORDER_ID);
+        checkEventRejection(cmd.matcherEvent, 1L, 5L);
+        assertTrue(orderBook.getStopOrders().isEmpty());
+    }
+
+    @Test
+    public void shouldPlaceRemainderOfGtdOrder() {
+
+        final OrderCommand cmd = OrderCommand.newOrder(GTD, 123, UID_2, 81599, 81599, 80, BID);
+        cmd.expireTime = 1_000_000L;
+        processAndValidate(cmd, SUCCESS);
+
+        final List<MatcherTradeEvent> events = cmd.extractEvents();
+        assertThat(events.size(), is(2));
+        assertTrue(events.stream().allMatch(evt -> evt.eventType == MatcherEventType.TRADE));
+
+        // expiration is handled outside of order book - remaining part is placed as regular limit order
+        final Order order = orderBook.getOrderById(123);
+        assertThat(order.size, is(80L));
+        assertThat(order.filled, is(75L));
+
+        expectedState.removeAsk(0);
+        expectedState.insertBid(0, 81599, 5);
+        assertEquals(expectedState.build(), orderBook.getL2MarketDataSnapshot(25));
+    }
+
+    @Test
+    public void shouldSerializeAndMassCancelStopOrders() {
+
+        processAndValidate(stopOrder(STOP_LIMIT, 123, UID_2, 90000, 90000, 90000, 5, BID), SUCCESS);
+        processAndValidate(stopOrder(STOP, 124, UID_2, 80000, 79000, 0, 7, ASK), SUCCESS);
+        processAndValidate(stopOrder(STOP, 125, UID_1, 80000, 79000, 0, 3, ASK), SUCCESS);
+
+        assertThat(orderBook.getStopOrders().findUserOrders(UID_2).size(), is(2));
+
+        final NativeBytes<Void> bytes = Bytes.allocateElasticDirect(128);
+        orderBook.writeMarshallable(bytes);
+        final IOrderBook restored = IOrderBook.create(bytes);
+        bytes.release();
+        restored.validateInternalState();
+
+        assertEquals(orderBook, restored);
+        assertThat(restored.stateHash(), is(orderBook.stateHash()));
+        assertThat(restored.getStopOrders().size(), is(3));
+
+        OrderCommand cmd = OrderCommand.massCancel(UID_2);
+        processAndValidate(cmd, SUCCESS);
+        assertThat(cmd.extractEvents().stream().filter(ev -> ev.eventType == MatcherEventType.CANCEL).count(), is(2L));
+        assertThat(orderBook.getStopOrders().size(), is(1));
+        assertNotEquals(orderBook, restored);
+
+        processAndValidate(OrderCommand.cancel(125, UID_1), SUCCESS);
+    }
+
+    @Test
+    public void shouldUncrossCollectedOrders() {
+
+        OrderCommand cmd = auctionCommand(OrderCommandType.START_AUCTION);
+        processAndValidate(cmd, SUCCESS);
+        assertThat(cmd.extractEvents().size(), is(0));
+        assertTrue(orderBook.getCallAuction().isActive());
+        assertThat(orderBook.getCallAuction().size(), is(13));
+
+        // resting orders are collected by auction
+        L2MarketData snapshot = orderBook.getL2MarketDataSnapshot(25);
+        assertThat(snapshot.askSize, is(0));
+        assertThat(snapshot.bidSize, is(0));
+
+        // crossing order is not matched during call phase
+        cmd = OrderCommand.newOrder(GTC, 123, UID_2, 81600, 81600, 150, BID);
+        processAndValidate(cmd, SUCCESS);
+        assertThat(cmd.extractEvents().size(), is(0));
+
+        // immediate orders can not be executed
+        cmd = OrderCommand.newOrder(IOC, 124, UID_2, 81600, 81600, 10, BID);
+        processAndValidate(cmd, SUCCESS);
+        List<MatcherTradeEvent> events = cmd.extractEvents();
+        assertThat(events.size(), is(1));
+        checkEventRejection(events.get(0), 124L, 10L);
+
+        processAndValidate(OrderCommand.newOrder(GTC, 125, UID_1, 90000, 90000, 3, BID), SUCCESS);
+        processAndValidate(OrderCommand.newOrder(GTC, 125, UID_1, 90000, 90000, 3, BID), MATCHING_DUPLICATE_ORDER_ID);
+        cmd = OrderCommand.cancel(125, UID_1);
+        processAndValidate(cmd, SUCCESS);
+        assertThat(cmd.extractEvents().get(0).eventType, is(MatcherEventType.CANCEL));
+
+        // auction state is serialized
+        final NativeBytes<Void> bytes = Bytes.allocateElasticDirect(128);
+        orderBook.writeMarshallable(bytes);
+        final IOrderBook restored = IOrderBook.create(bytes);
+        bytes.release();
+        restored.validateInternalState();
+        assertEquals(orderBook, restored);
+        assertThat(restored.stateHash(), is(orderBook.stateHash()));
+
+        // single price for all trades, maximum executable volume
+        cmd = auctionCommand(OrderCommandType.UNCROSS);
+        processAndValidate(cmd, SUCCESS);
+        events = cmd.extractEvents();
+        assertThat(events.size(), is(3));
+        checkEventTrade(events.get(0), 123L, 2L, 81600, 50L);
+        checkEventTrade(events.get(1), 123L, 3L, 81600, 25L);
+        checkEventTrade(events.get(2), 123L, 1L, 81600, 75L);
+
+        assertFalse(orderBook.getCallAuction().isActive());
+        assertTrue(orderBook.getCallAuction().isEmpty());
+
+        // remaining orders are back in continuous trading
+        expectedState.removeAsk(0);
+        expectedState.setAskVolume(0, 25);
+        assertEquals(expectedState.build(), orderBook.getL2MarketDataSnapshot(25));
+        assertThat(orderBook.getOrderById(1L).size, is(25L));
+
+        processAndValidate(OrderCommand.cancel(123, UID_2), MATCHING_UNKNOWN_ORDER_ID);
+    }
+
+    @Test
+    public void shouldNotUncrossOwnOrders() {
+
+        processAndValidate(auctionCommand(OrderCommandType.START_AUCTION), SUCCESS);
+
+        // UID_2 bid is crossed by later placed own ask
+        processAndValidate(OrderCommand.newOrder(GTC, 126, UID_2, 81600, 81600, 30, BID), SUCCESS);
+        processAndValidate(OrderCommand.newOrder(GTC, 128, UID_2, 81550, 0, 5, ASK), SUCCESS);
+        // later placed UID_1 bid crosses own asks only
+        processAndValidate(OrderCommand.newOrder(GTC, 125, UID_1, 81600, 81600, 100, BID), SUCCESS);
+
+        // later placed crossing own orders are cancelled, own volume is not counted for equilibrium price
+        final OrderCommand cmd = auctionCommand(OrderCommandType.UNCROSS);
+        processAndValidate(cmd, SUCCESS);
+        final List<MatcherTradeEvent> events = cmd.extractEvents();
+        assertThat(events.size(), is(3));
+        checkEventCancel(events.get(0), 128L, ASK, 5L, UID_2);
+        checkEventCancel(events.get(1), 125L, BID, 100L, UID_1);
+        checkEventTrade(events.get(2), 126L, 2L, 81599, 30L);
+        assertThat(events.get(2).activeOrderUid, is((long) UID_2));
+        assertThat(events.get(2).matchedOrderUid, is((long) UID_1));
+
+        assertFalse(orderBook.getCallAuction().isActive());
+        assertNull(orderBook.getOrderById(125L));
+        assertNull(orderBook.getOrderById(128L));
+        assertThat(orderBook.getOrderById(2L).size, is(20L));
+
+        expectedState.setAskVolume(0, 45);
+        assertEquals(expectedState.build(), orderBook.getL2MarketDataSnapshot(25));
+    }
+
+    private static OrderCommand auctionCommand(OrderCommandType type) {
+        final OrderCommand cmd = new OrderCommand();
+        cmd.command = type;
+        cmd.orderId = -1;
+        cmd.uid = -1;
+        cmd.resultCode = CommandResultCode.VALID_FOR_MATCHING_ENGINE;
+        return cmd;
+    }
+
     // MARKETABLE GTC ORDERS
 
     @Test
@@ -557,6 +1220,183 @@ public abstract class OrderBookBaseTest {
     }
 
 
+    /**
+     * Changed price levels are attached to the command in order of changes
+     */
+    @Test
+    public void shouldAttachL2Delta() {
+
+        // matching two ask levels - first level is removed
+        OrderCommand cmd = OrderCommand.newOrder(IOC, 123, UID_2, 81600, 0, 90, BID);
+        processAndValidate(cmd, SUCCESS);
+        L2MarketDataDelta delta = cmd.marketDataDelta;
+        assertThat(delta.size, is(2));
+        checkLevel(delta, 0, ASK, 81599, 0);
+        checkLevel(delta, 1, ASK, 81600, 85);
+
+        // move order to new price level
+        cmd = OrderCommand.update(5, UID_1, 81591);
+        processAndValidate(cmd, SUCCESS);
+        delta = cmd.marketDataDelta;
+        assertThat(delta.size, is(2));
+        checkLevel(delta, 0, BID, 81590, 1);
+        checkLevel(delta, 1, BID, 81591, 20);
+
+        // cancel one of two orders of far level
+        cmd = OrderCommand.cancel(8, UID_1);
+        processAndValidate(cmd, SUCCESS);
+        delta = cmd.marketDataDelta;
+        assertThat(delta.size, is(1));
+        checkLevel(delta, 0, ASK, 201000, 32);
+
+        // order book request does not change levels
+        cmd = OrderCommand.builder().command(OrderCommandType.ORDER_BOOK_REQUEST).size(25).build();
+        processAndValidate(cmd, SUCCESS);
+        assertNull(cmd.marketDataDelta);
+    }
+
+    @Test
+    public void shouldAggregateTakerFillsPerPriceLevel() {
+
+        // sweeping two ask levels, first level has two orders
+        OrderCommand cmd = OrderCommand.newOrder(IOC, 123, UID_2, 81600, 0, 90, BID);
+        final TradesSummary summary = cmd.attachTradesSummary();
+        processAndValidate(cmd, SUCCESS);
+
+        // individual trades are still reported
+        assertThat(cmd.extractEvents().size(), is(3));
+
+        assertThat(summary.size, is(2));
+        assertThat(summary.takerOrderIds[0], is(123L));
+        assertThat(summary.takerUids[1], is((long) UID_2));
+        assertThat(summary.takerActions[1], is(BID));
+        assertThat(summary.prices[0], is(81599L));
+        assertThat(summary.volumes[0], is(75L));
+        assertThat(summary.makersNum[0], is(2));
+        assertThat(summary.prices[1], is(81600L));
+        assertThat(summary.volumes[1], is(15L));
+        assertThat(summary.makersNum[1], is(1));
+        assertThat(summary.totalVolume(), is(90L));
+
+        // summary is not attached by order book itself
+        cmd = OrderCommand.newOrder(IOC, 124, UID_2, 81593, 0, 10, ASK);
+        processAndValidate(cmd, SUCCESS);
+        assertNull(cmd.tradesSummary);
+    }
+
+    /**
+     * Full order book can be rebuilt from the initial snapshot and deltas
+     */
+    @Test
+    public void shouldRebuildOrderBookFromL2Deltas() {
+
+        final int tranNum = 10000;
+
+        final IOrderBook localOrderBook = createNewOrderBook();
+        final NavigableMap<Long, Long> asks = new TreeMap<>();
+        final NavigableMap<Long, Long> bids = new TreeMap<>(Collections.reverseOrder());
+
+        final TestOrdersGenerator.GenResult genResult = TestOrdersGenerator.generateCommands(
+                tranNum,
+                200,
+                6,
+                TestOrdersGenerator.UID_PLAIN_MAPPER,
+                0,
+                false,
+                TestOrdersGenerator.createAsyncProgressLogger(tranNum));
+
+        int i = 0;
+        for (OrderCommand cmd : genResult.getCommands()) {
+            cmd.orderId += 100;
+            assertThat(IOrderBook.processCommand(localOrderBook, cmd), is(SUCCESS));
+
+            final L2MarketDataDelta delta = cmd.marketDataDelta;
+            for (int j = 0; delta != null && j < delta.size; j++) {
+                final NavigableMap<Long, Long> levels = delta.actions[j] == ASK ? asks : bids;
+                if (delta.volumes[j] == 0) {
+                    levels.remove(delta.prices[j]);
+                } else {
+                    levels.put(delta.prices[j], delta.volumes[j]);
+                }
+            }
+
+            if (++i % 100 == 0) {
+                final L2MarketData snapshot = localOrderBook.getL2MarketDataSnapshot(-1);
+                assertEquals(snapshot, new L2MarketData(
+                        asks.keySet().stream().mapToLong(p -> p).toArray(),
+                        asks.values().stream().mapToLong(v -> v).toArray(),
+                        bids.keySet().stream().mapToLong(p -> p).toArray(),
+                        bids.values().stream().mapToLong(v -> v).toArray()));
+            }
+        }
+    }
+
+    /**
+     * Incrementally maintained state hash does not depend on history and survives serialization
+     */
+    @Test
+    public void shouldMaintainStateHashIncrementally() {
+
+        final int initialHash = orderBook.stateHash();
+
+        // partial match, place and cancel
+        processAndValidate(OrderCommand.newOrder(GTC, 123, UID_2, 81599, 81599, 30, BID), SUCCESS);
+        final int afterMatchHash = orderBook.stateHash();
+        assertNotEquals(initialHash, afterMatchHash);
+
+        processAndValidate(OrderCommand.newOrder(GTC, 124, UID_2, 81594, 81594, 5, BID), SUCCESS);
+        assertNotEquals(afterMatchHash, orderBook.stateHash());
+
+        processAndValidate(OrderCommand.cancel(124, UID_2), SUCCESS);
+        assertThat(orderBook.stateHash(), is(afterMatchHash));
+
+        // move there and back
+        processAndValidate(OrderCommand.update(5, UID_1, 81591), SUCCESS);
+        processAndValidate(OrderCommand.update(5, UID_1, 81590), SUCCESS);
+        processAndValidate(OrderCommand.update(6, UID_1, 81591), SUCCESS);
+        processAndValidate(OrderCommand.update(6, UID_1, 81590), SUCCESS);
+        assertThat(orderBook.stateHash(), is(afterMatchHash));
+
+        final NativeBytes<Void> bytes = Bytes.allocateElasticDirect(128);
+        orderBook.writeMarshallable(bytes);
+        final IOrderBook restored = IOrderBook.create(bytes);
+        assertThat(restored.stateHash(), is(afterMatchHash));
+        bytes.release();
+    }
+
+    @Test
+    public void shouldVisitOrdersInPriceOrder() {
+
+        processAndValidate(OrderCommand.newOrder(GTC, 123, UID_2, 81200, 81200, 5, BID), SUCCESS);
+        processAndValidate(OrderCommand.newOrder(GTC, 124, UID_2, 202000, 0, 5, ASK), SUCCESS);
+        processAndValidate(OrderCommand.newOrder(GTC, 125, UID_1, 81200, 81200, 3, BID), SUCCESS);
+        processAndValidate(OrderCommand.newOrder(GTC, 126, UID_1, 202000, 0, 3, ASK), SUCCESS);
+
+        for (OrderAction side : OrderAction.values()) {
+            final List<Order> sortedOrders = new ArrayList<>();
+            orderBook.forEachOrder(side, true, order -> sortedOrders.add(copyOf(order)));
+
+            final List<Order> streamOrders = (side == ASK ? orderBook.askOrdersStream(true) : orderBook.bidOrdersStream(true))
+                    .collect(Collectors.toList());
+            assertEquals(streamOrders, sortedOrders);
+
+            for (int i = 1; i < sortedOrders.size(); i++) {
+                final long prev = sortedOrders.get(i - 1).price, price = sortedOrders.get(i).price;
+                assertTrue(side == ASK ? prev <= price : prev >= price);
+            }
+
+            final List<Order> unsortedOrders = new ArrayList<>();
+            orderBook.forEachOrder(side, false, order -> unsortedOrders.add(copyOf(order)));
+            assertThat(unsortedOrders.size(), is(sortedOrders.size()));
+            assertThat(new HashSet<>(unsortedOrders), is(new HashSet<>(sortedOrders)));
+        }
+    }
+
+    // forEachOrder can pass same object for each order
+    private static Order copyOf(final Order order) {
+        return new Order(order.orderId, order.price, order.size, order.filled, order.reserveBidPrice, order.action, order.uid, order.timestamp);
+    }
+
     @Test
     public void multipleCommandsTest() {
 
@@ -602,6 +1442,12 @@ public abstract class OrderBookBaseTest {
         // TODO add more checks for MatcherTradeEvent
     }
 
+    public void checkLevel(L2MarketDataDelta delta, int idx, OrderAction action, long price, long volume) {
+        assertThat(delta.actions[idx], is(action));
+        assertThat(delta.prices[idx], is(price));
+        assertThat(delta.volumes[idx], is(volume));
+    }
+
     public void checkEventRejection(MatcherTradeEvent event, long activeId, long size) {
 
         assertThat(event.eventType, is(MatcherEventType.REJECTION));
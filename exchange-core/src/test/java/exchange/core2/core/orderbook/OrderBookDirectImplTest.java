@@ -0,0 +1,98 @@
+/*
+ * Copyright 2019 Maksim Zheravin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package exchange.core2.core.orderbook;
+
+import exchange.core2.core.common.cmd.CommandResultCode;
+import exchange.core2.core.common.cmd.OrderCommand;
+import exchange.core2.tests.util.TestConstants;
+import exchange.core2.tests.util.TestOrdersGenerator;
+import lombok.extern.slf4j.Slf4j;
+import net.openhft.chronicle.bytes.Bytes;
+import net.openhft.chronicle.bytes.NativeBytes;
+import org.junit.Test;
+
+import static exchange.core2.core.common.cmd.CommandResultCode.SUCCESS;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThat;
+
+@Slf4j
+public class OrderBookDirectImplTest extends OrderBookBaseTest {
+
+    private static final int L2_DEPTH = 16;
+
+    @Override
+    protected IOrderBook createNewOrderBook() {
+        // small initial capacity - checking off-heap storage growth
+        return new OrderBookDirectImpl(TestConstants.SYMBOLSPEC_ETH_XBT, 4);
+    }
+
+    @Test
+    public void multipleCommandsCompareTest() {
+
+        final int tranNum = 50_000;
+
+        final IOrderBook orderBook = new OrderBookDirectImpl(TestConstants.SYMBOLSPEC_EUR_USD, 16);
+        final IOrderBook orderBookRef = new OrderBookNaiveImpl(TestConstants.SYMBOLSPEC_EUR_USD);
+
+        final TestOrdersGenerator.GenResult genResult = TestOrdersGenerator.generateCommands(
+                tranNum,
+                500,
+                500,
+                TestOrdersGenerator.UID_PLAIN_MAPPER,
+                0,
+                true,
+                TestOrdersGenerator.createAsyncProgressLogger(tranNum));
+
+        int i = 0;
+        for (OrderCommand cmd : genResult.getCommands()) {
+            cmd.orderId += 100;
+
+            cmd.resultCode = CommandResultCode.VALID_FOR_MATCHING_ENGINE;
+            assertThat(IOrderBook.processCommand(orderBook, cmd), is(SUCCESS));
+
+            cmd.resultCode = CommandResultCode.VALID_FOR_MATCHING_ENGINE;
+            assertThat(IOrderBook.processCommand(orderBookRef, cmd), is(SUCCESS));
+
+            assertEquals(orderBookRef, orderBook);
+            assertEquals(orderBookRef.stateHash(), orderBook.stateHash());
+            assertEquals(orderBookRef.getL2MarketDataSnapshot(L2_DEPTH), orderBook.getL2MarketDataSnapshot(L2_DEPTH));
+
+            if (++i % 1000 == 0) {
+                orderBook.validateInternalState();
+                assertEquals(orderBookRef.hashCode(), orderBook.hashCode());
+            }
+        }
+    }
+
+    @Test
+    public void shouldSerializeAndDeserialize() {
+
+        final NativeBytes<Void> bytes = Bytes.allocateElasticDirect(128);
+        orderBook.writeMarshallable(bytes);
+
+        final IOrderBook restored = IOrderBook.create(bytes);
+        restored.validateInternalState();
+
+        assertThat(restored.getImplementationType(), is(IOrderBook.OrderBookImplType.DIRECT));
+        assertEquals(orderBook, restored);
+        assertEquals(orderBook.hashCode(), restored.hashCode());
+        assertEquals(orderBook.getL2MarketDataSnapshot(-1), restored.getL2MarketDataSnapshot(-1));
+        assertEquals(orderBook.findUserOrders(UID_1).size(), restored.findUserOrders(UID_1).size());
+
+        bytes.release();
+    }
+}
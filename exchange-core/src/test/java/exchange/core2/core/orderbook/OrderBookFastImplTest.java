@@ -18,13 +18,20 @@ package exchange.core2.core.orderbook;
 import exchange.core2.tests.util.TestConstants;
 import exchange.core2.tests.util.TestOrdersGenerator;
 import lombok.extern.slf4j.Slf4j;
+import net.openhft.chronicle.bytes.Bytes;
+import net.openhft.chronicle.bytes.NativeBytes;
 import org.junit.Test;
 import exchange.core2.core.common.L2MarketData;
+import exchange.core2.core.common.Order;
+import exchange.core2.core.common.OrderAction;
 import exchange.core2.core.common.cmd.CommandResultCode;
 import exchange.core2.core.common.cmd.OrderCommand;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.stream.Collectors;
 
 import static org.hamcrest.Matchers.is;
 import static org.hamcrest.Matchers.notNullValue;
@@ -33,6 +40,7 @@ import static org.junit.Assert.assertThat;
 import static exchange.core2.core.common.OrderAction.ASK;
 import static exchange.core2.core.common.OrderAction.BID;
 import static exchange.core2.core.common.OrderType.GTC;
+import static exchange.core2.core.common.OrderType.IOC;
 import static exchange.core2.core.common.cmd.CommandResultCode.SUCCESS;
 
 @Slf4j
@@ -104,9 +112,12 @@ public class OrderBookFastImplTest extends OrderBookBaseTest {
 
 //            assertEquals(orderBook.hashCode(), orderBookRef.hashCode());
             assertEquals(orderBook, orderBookRef);
+            assertEquals(orderBookRef.stateHash(), orderBook.stateHash());
 
             // TODO compare events!
-            // TODO compare L2 marketdata
+
+            // fast order book serves top levels from incrementally maintained cache
+            assertEquals(orderBook.getL2MarketDataSnapshot(OrderBookFastImpl.L2_CACHE_DEPTH), orderBookRef.getL2MarketDataSnapshot(OrderBookFastImpl.L2_CACHE_DEPTH));
 
             if (System.currentTimeMillis() > nextUpdateTime) {
                 log.debug("{}% done ({})", (i * 10000 / genResult.getCommands().size()) / 100f, i);
@@ -239,4 +250,233 @@ public class OrderBookFastImplTest extends OrderBookBaseTest {
         assertThat(snapshot.askSize, is(0));
     }
 
-}
\ No newline at end of file
+    @Test
+    public void shouldWidenHotWindowForWideSpreadOrders() {
+
+        final OrderBookFastImpl book = new OrderBookFastImpl(1024, 1024, 8192, TestConstants.SYMBOLSPEC_EUR_USD);
+
+        // resting asks are spread far beyond initial hot window
+        final int numOrders = OrderBookFastImpl.HOT_WINDOW_ADAPT_PERIOD * 3;
+        for (int i = 0; i < numOrders; i++) {
+            final OrderCommand cmd = OrderCommand.newOrder(GTC, 1000 + i, UID_1, INITIAL_PRICE + i % 6000, 0, 1, ASK);
+            assertThat(IOrderBook.processCommand(book, cmd), is(SUCCESS));
+        }
+        book.validateInternalState();
+
+        final HotWindowStats stats = book.getHotWindowStats();
+        assertThat(stats.getHotPricesRange() > 1024, is(true));
+        assertThat(stats.getResizes() > 0, is(true));
+        assertThat(stats.getHotLookups() + stats.getFarLookups(), is((long) numOrders));
+
+        // matching everything through both sections
+        final OrderCommand bid = OrderCommand.newOrder(GTC, 1, UID_2, INITIAL_PRICE + 6000, INITIAL_PRICE + 6000, numOrders, BID);
+        assertThat(IOrderBook.processCommand(book, bid), is(SUCCESS));
+        book.validateInternalState();
+        assertThat(book.getOrdersNum(), is(0));
+    }
+
+    @Test
+    public void shouldIterateHotAndFarSectionsInPriceOrder() {
+
+        // fixed hot window, orders placed on both sides of it
+        final OrderBookFastImpl book = new OrderBookFastImpl(1024, 1024, 1024, TestConstants.SYMBOLSPEC_EUR_USD);
+        final OrderBookNaiveImpl bookRef = new OrderBookNaiveImpl(TestConstants.SYMBOLSPEC_EUR_USD);
+
+        long orderId = 1000;
+        for (int i = 0; i < 3000; i++) {
+            final long askPrice = INITIAL_PRICE + 1 + (i * 7919L) % 5000;
+            final long bidPrice = INITIAL_PRICE - (i * 7919L) % 5000;
+            final OrderCommand ask = OrderCommand.newOrder(GTC, orderId++, UID_1, askPrice, 0, 1 + i % 3, ASK);
+            final OrderCommand bid = OrderCommand.newOrder(GTC, orderId++, UID_2, bidPrice, bidPrice, 1 + i % 5, BID);
+            for (IOrderBook ob : new IOrderBook[]{book, bookRef}) {
+                assertThat(IOrderBook.processCommand(ob, ask.copy()), is(SUCCESS));
+                assertThat(IOrderBook.processCommand(ob, bid.copy()), is(SUCCESS));
+            }
+        }
+        book.validateInternalState();
+
+        final HotWindowStats stats = book.getHotWindowStats();
+        assertThat(stats.getHotBuckets() > 0 && stats.getFarBuckets() > 0, is(true));
+
+        assertEquals(bookRef.askOrdersStream(true).collect(Collectors.toList()), book.askOrdersStream(true).collect(Collectors.toList()));
+        assertEquals(bookRef.bidOrdersStream(true).collect(Collectors.toList()), book.bidOrdersStream(true).collect(Collectors.toList()));
+
+        for (OrderAction side : OrderAction.values()) {
+            final List<Order> expected = new ArrayList<>();
+            bookRef.forEachOrder(side, true, expected::add);
+            final List<Order> actual = new ArrayList<>();
+            book.forEachOrder(side, true, actual::add);
+            assertEquals(expected, actual);
+        }
+        assertEquals(bookRef, book);
+    }
+
+    @Test
+    public void shouldNarrowHotWindowForTightBook() {
+
+        final OrderBookFastImpl book = new OrderBookFastImpl(1024, 16384, 65536, TestConstants.SYMBOLSPEC_EUR_USD);
+        final OrderBookNaiveImpl bookRef = new OrderBookNaiveImpl(TestConstants.SYMBOLSPEC_EUR_USD);
+
+        // orders placed and cancelled around the same prices
+        for (int i = 0; i < OrderBookFastImpl.HOT_WINDOW_ADAPT_PERIOD * 4; i++) {
+            final OrderCommand place = OrderCommand.newOrder(GTC, 1000 + i, UID_1, INITIAL_PRICE + 1 + i % 10, 0, 1, ASK);
+            assertThat(IOrderBook.processCommand(book, place), is(SUCCESS));
+            assertThat(IOrderBook.processCommand(bookRef, place), is(SUCCESS));
+            if (i % 2 == 0) {
+                final OrderCommand cancel = OrderCommand.cancel(1000 + i, UID_1);
+                assertThat(IOrderBook.processCommand(book, cancel), is(SUCCESS));
+                assertThat(IOrderBook.processCommand(bookRef, cancel), is(SUCCESS));
+            }
+        }
+        book.validateInternalState();
+
+        final HotWindowStats stats = book.getHotWindowStats();
+        assertThat(stats.getHotPricesRange() < 16384, is(true));
+        assertThat(stats.getFarLookups(), is(0L));
+        assertThat(stats.getHotHitRatio(), is(1.0));
+        assertEquals(bookRef, book);
+        assertEquals(bookRef.getL2MarketDataSnapshot(-1), book.getL2MarketDataSnapshot(-1));
+
+        // window width is preserved in snapshot
+        final NativeBytes<Void> bytes = Bytes.allocateElasticDirect(128);
+        book.writeMarshallable(bytes);
+        final OrderBookFastImpl restored = (OrderBookFastImpl) IOrderBook.create(bytes);
+        restored.validateInternalState();
+        assertThat(restored.getHotWindowStats().getHotPricesRange(), is(stats.getHotPricesRange()));
+        assertEquals(book, restored);
+        bytes.release();
+    }
+
+    @Test
+    public void shouldReportAndReleaseSparseBuckets() {
+
+        final OrderBookFastImpl book = new OrderBookFastImpl(1024, TestConstants.SYMBOLSPEC_EUR_USD);
+
+        // spike at single price level, most orders are cancelled afterwards
+        for (int i = 0; i < 2000; i++) {
+            final OrderCommand cmd = OrderCommand.newOrder(GTC, 1000 + i, UID_1, INITIAL_PRICE, 0, 1, ASK);
+            assertThat(IOrderBook.processCommand(book, cmd), is(SUCCESS));
+        }
+        for (int i = 0; i < 2000; i++) {
+            if (i % 10 != 0) {
+                assertThat(IOrderBook.processCommand(book, OrderCommand.cancel(1000 + i, UID_1)), is(SUCCESS));
+            }
+        }
+        book.validateInternalState();
+
+        BucketsStats stats = book.getBucketsStats();
+        assertThat(stats.getBuckets(), is(1));
+        assertThat(stats.getOrders(), is(200));
+        assertThat(stats.getHoleRatio() <= 0.5, is(true));
+        assertThat(stats.getCompactions() > 0, is(true));
+        assertThat(stats.getQueueCapacity() < 2048, is(true));
+
+        // emptied level returns its bucket into the pool, oversized buffer is released
+        final OrderCommand bid = OrderCommand.newOrder(IOC, 1, UID_2, INITIAL_PRICE, INITIAL_PRICE, 200, BID);
+        assertThat(IOrderBook.processCommand(book, bid), is(SUCCESS));
+        book.validateInternalState();
+
+        stats = book.getBucketsStats();
+        assertThat(stats.getBuckets(), is(0));
+        assertThat(stats.getPooledBuckets(), is(1));
+        assertThat(stats.getShrinks(), is(1));
+        assertThat(stats.getHoleRatio(), is(0.0));
+    }
+
+    @Test
+    public void shouldMatchWithSoaBuckets() {
+
+        final OrderBookFastImpl book = new OrderBookFastImpl(1024, 1024, 1024, TestConstants.SYMBOLSPEC_EUR_USD,
+                IOrdersBucket.OrderBucketImplType.SOA);
+        final OrderBookNaiveImpl bookRef = new OrderBookNaiveImpl(TestConstants.SYMBOLSPEC_EUR_USD);
+
+        // resting asks at hot and far prices, matched partially by series of bids
+        long orderId = 1000;
+        for (int i = 0; i < 3000; i++) {
+            final long price = INITIAL_PRICE + 1 + (i * 7919L) % 2000;
+            final OrderCommand ask = OrderCommand.newOrder(GTC, orderId++, UID_1, price, 0, 3 + i % 7, ASK);
+            assertThat(IOrderBook.processCommand(book, ask), is(SUCCESS));
+            assertThat(IOrderBook.processCommand(bookRef, ask.copy()), is(SUCCESS));
+            if (i % 10 == 0) {
+                final OrderCommand bid = OrderCommand.newOrder(IOC, orderId++, UID_2, price, price, 1 + i % 17, BID);
+                assertThat(IOrderBook.processCommand(book, bid), is(SUCCESS));
+                assertThat(IOrderBook.processCommand(bookRef, bid.copy()), is(SUCCESS));
+            }
+        }
+        book.validateInternalState();
+        assertEquals(bookRef, book);
+
+        // order objects are in sync with bucket arrays, implementation type is preserved in snapshot
+        final NativeBytes<Void> bytes = Bytes.allocateElasticDirect(128);
+        book.writeMarshallable(bytes);
+        final OrderBookFastImpl restored = (OrderBookFastImpl) IOrderBook.create(bytes);
+        restored.validateInternalState();
+        assertEquals(book, restored);
+        bytes.release();
+
+        final OrderCommand bid = OrderCommand.newOrder(GTC, orderId, UID_2, INITIAL_PRICE + 5000, INITIAL_PRICE + 5000, 1_000_000, BID);
+        assertThat(IOrderBook.processCommand(restored, bid), is(SUCCESS));
+        restored.validateInternalState();
+        assertThat(restored.getOrdersNum(), is(1));
+    }
+
+    @Test
+    public void shouldKeepFixedHotWindowByDefault() {
+
+        final OrderBookFastImpl fixed = new OrderBookFastImpl(1024, TestConstants.SYMBOLSPEC_EUR_USD);
+        final OrderBookFastImpl adaptive = OrderBookFastImpl.adaptive(1024, TestConstants.SYMBOLSPEC_EUR_USD);
+
+        final int numOrders = OrderBookFastImpl.HOT_WINDOW_ADAPT_PERIOD * 3 + 100;
+        for (int i = 0; i < numOrders; i++) {
+            final OrderCommand cmd = OrderCommand.newOrder(GTC, 1000 + i, UID_1, INITIAL_PRICE + i % 6000, 0, 1, ASK);
+            assertThat(IOrderBook.processCommand(fixed, cmd), is(SUCCESS));
+            assertThat(IOrderBook.processCommand(adaptive, cmd.copy()), is(SUCCESS));
+        }
+        fixed.validateInternalState();
+        adaptive.validateInternalState();
+
+        assertThat(fixed.getHotWindowStats().getHotPricesRange(), is(1024));
+        assertThat(fixed.getHotWindowStats().getResizes(), is(0));
+        assertThat(adaptive.getHotWindowStats().getHotPricesRange() > 1024, is(true));
+        assertEquals(fixed, adaptive);
+
+        // lookups statistics is preserved in snapshot, so restored book adapts at the same point
+        final NativeBytes<Void> bytes = Bytes.allocateElasticDirect(128);
+        adaptive.writeMarshallable(bytes);
+        final OrderBookFastImpl restored = (OrderBookFastImpl) IOrderBook.create(bytes);
+        bytes.release();
+        restored.validateInternalState();
+        assertEquals(adaptive.getHotWindowStats(), restored.getHotWindowStats());
+
+        for (int i = 0; i < OrderBookFastImpl.HOT_WINDOW_ADAPT_PERIOD; i++) {
+            final OrderCommand cmd = OrderCommand.newOrder(GTC, 100_000 + i, UID_1, INITIAL_PRICE + 20_000 + i % 9000, 0, 1, ASK);
+            assertThat(IOrderBook.processCommand(adaptive, cmd), is(SUCCESS));
+            assertThat(IOrderBook.processCommand(restored, cmd.copy()), is(SUCCESS));
+        }
+        restored.validateInternalState();
+        assertEquals(adaptive.getHotWindowStats(), restored.getHotWindowStats());
+        assertEquals(adaptive, restored);
+    }
+
+    @Test
+    public void shouldNotCountFarLookupsBeyondLimitPrice() {
+
+        final OrderBookFastImpl book = new OrderBookFastImpl(1024, TestConstants.SYMBOLSPEC_EUR_USD);
+
+        // hot ask level and a far ask level
+        assertThat(IOrderBook.processCommand(book, OrderCommand.newOrder(GTC, 1, UID_1, INITIAL_PRICE, 0, 100, ASK)), is(SUCCESS));
+        assertThat(IOrderBook.processCommand(book, OrderCommand.newOrder(GTC, 2, UID_1, INITIAL_PRICE + 100_000, 0, 100, ASK)), is(SUCCESS));
+        final long farBefore = book.getHotWindowStats().getFarLookups();
+
+        // bid limited by hot level price exhausts hot level, far level is out of limit
+        final OrderCommand bid = OrderCommand.newOrder(IOC, 3, UID_2, INITIAL_PRICE, INITIAL_PRICE, 150, BID);
+        assertThat(IOrderBook.processCommand(book, bid), is(SUCCESS));
+        assertThat(book.getHotWindowStats().getFarLookups(), is(farBefore));
+
+        // unlimited bid reaches far level
+        final OrderCommand bid2 = OrderCommand.newOrder(IOC, 4, UID_2, INITIAL_PRICE + 100_000, INITIAL_PRICE + 100_000, 10, BID);
+        assertThat(IOrderBook.processCommand(book, bid2), is(SUCCESS));
+        assertThat(book.getHotWindowStats().getFarLookups(), is(farBefore + 1));
+        book.validateInternalState();
+    }
+}
@@ -270,4 +270,48 @@ public abstract class OrdersBucketBaseTest {
     }
 
 
+    @Test
+    public void shouldKeepQueueDenseAfterSpike() {
+        final IOrdersBucket spikeBucket = createNewBucket();
+
+        final int numOrders = 5000;
+        for (int i = 0; i < numOrders; i++) {
+            spikeBucket.put(Order.builder().orderId(i).uid(UID_2).size(1).build());
+        }
+        final int spikeCapacity = spikeBucket.getQueueCapacity();
+
+        // cancel everything except every 100th order
+        final List<Order> expectedOrders = new ArrayList<>();
+        for (int i = 0; i < numOrders; i++) {
+            if (i % 100 == 0) {
+                expectedOrders.add(spikeBucket.findOrder(i));
+            } else {
+                assertNotNull(spikeBucket.remove(i, UID_2));
+            }
+            assertThat(spikeBucket.getHolesNum() <= Math.max(spikeBucket.getNumOrders(), OrdersBucketFastImpl.COMPACTION_MIN_QUEUE_SIZE), is(true));
+        }
+        spikeBucket.validate();
+
+        assertThat(spikeBucket.getNumOrders(), is(50));
+        assertThat(spikeBucket.getAllOrders(), is(expectedOrders));
+        assertThat(spikeBucket.getQueueCapacity() <= Math.max(spikeCapacity / 16, 256), is(true));
+
+        // matching still in time priority
+        final OrderCommand triggerOrd = OrderCommand.update(119283900, UID_9, 1000);
+        assertThat(spikeBucket.match(3, triggerOrd, triggerOrd, IGNORE_CMD_CONSUMER), is(3L));
+        assertThat(triggerOrd.extractEvents().get(2).matchedOrderId, is(200L));
+        spikeBucket.validate();
+
+        // empty bucket releases its buffer when recycled
+        expectedOrders.subList(3, expectedOrders.size()).forEach(order -> spikeBucket.remove(order.orderId, UID_2));
+        assertThat(spikeBucket.getNumOrders(), is(0));
+        spikeBucket.recycle();
+        spikeBucket.validate();
+        assertThat(spikeBucket.getQueueCapacity() <= OrdersBucketFastImpl.RECYCLE_MAX_QUEUE_LENGTH, is(true));
+
+        spikeBucket.put(Order.builder().orderId(7).uid(UID_1).size(10).build());
+        spikeBucket.validate();
+        assertThat(spikeBucket.getTotalVolume(), is(10L));
+    }
+
 }
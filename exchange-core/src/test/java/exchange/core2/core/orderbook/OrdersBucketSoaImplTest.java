@@ -0,0 +1,193 @@
+/*
+ * Copyright 2019 Maksim Zheravin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package exchange.core2.core.orderbook;
+
+
+import lombok.extern.slf4j.Slf4j;
+import org.hamcrest.MatcherAssert;
+import org.junit.Test;
+import exchange.core2.core.common.MatcherTradeEvent;
+import exchange.core2.core.common.Order;
+import exchange.core2.core.common.OrderAction;
+import exchange.core2.core.common.cmd.OrderCommand;
+import net.openhft.chronicle.bytes.Bytes;
+import net.openhft.chronicle.bytes.NativeBytes;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.hamcrest.Matchers.is;
+
+@Slf4j
+public class OrdersBucketSoaImplTest extends OrdersBucketBaseTest {
+
+    @Override
+    protected IOrdersBucket createNewBucket() {
+        IOrdersBucket bucket = new OrdersBucketSoaImpl();
+        bucket.setPrice(PRICE);
+        return bucket;
+    }
+
+    private static final int UID_2 = 413;
+    private static final int UID_9 = 419;
+
+    @Test
+    public void compareBucketScenario() {
+
+        Random rnd = new Random(1);
+
+        int numOrdersToAdd = 1000;
+        long expectedVolume = 0;
+
+        IOrdersBucket bucketRef = new OrdersBucketNaiveImpl();
+        IOrdersBucket bucket = new OrdersBucketSoaImpl();
+
+        int orderId = 0;
+
+        for (int j = 0; j < 100; j++) {
+
+            List<Order> orders = new ArrayList<>(numOrdersToAdd);
+            for (int i = 0; i < numOrdersToAdd; i++) {
+
+                int size = rnd.nextInt(Integer.MAX_VALUE);
+                orderId++;
+                Order order1 = Order.builder().price(1).orderId(orderId).uid(UID_2).size(size).build();
+                Order order2 = Order.builder().price(1).orderId(orderId).uid(UID_2).size(size).build();
+                orders.add(order1);
+
+                bucket.put(order1);
+                bucketRef.put(order2);
+
+                expectedVolume += size;
+
+                //log.debug("{}-{}: orderId:{}", j, i, orderId);
+
+                MatcherAssert.assertThat(bucket, is(bucketRef));
+            }
+
+            Collections.shuffle(orders, rnd);
+
+            List<Order> ordersToRemove = orders.subList(0, 900);
+            for (Order order : ordersToRemove) {
+                bucket.remove(order.orderId, UID_2);
+                bucketRef.remove(order.orderId, UID_2);
+                expectedVolume -= order.size;
+                MatcherAssert.assertThat(bucket, is(bucketRef));
+            }
+
+//            TradeEventCallback.TradeEventCollector events = new TradeEventCallback.TradeEventCollector();
+//            TradeEventCallback.TradeEventCollector eventsRef = new TradeEventCallback.TradeEventCollector();
+            long toMatch = expectedVolume / 2;
+
+            OrderCommand trig = OrderCommand.update(1238729387, UID_9, 1000);
+            OrderCommand trigRef = OrderCommand.update(1238729387, UID_9, 1000);
+
+            long totalVolume = bucket.match(toMatch, trig, trig,IGNORE_CMD_CONSUMER);
+            bucketRef.match(toMatch, trigRef, trigRef, IGNORE_CMD_CONSUMER);
+            expectedVolume -= totalVolume;
+            MatcherAssert.assertThat(bucket, is(bucketRef));
+            bucket.validate();
+//            MatcherAssert.assertThat(events, is(eventsRef));
+        }
+
+//        TradeEventCallback.TradeEventCollector events = new TradeEventCallback.TradeEventCollector();
+//        TradeEventCallback.TradeEventCollector eventsRef = new TradeEventCallback.TradeEventCollector();
+        OrderCommand trig = OrderCommand.update(1238729387, UID_9, 1000);
+        OrderCommand trigRef = OrderCommand.update(1238729387, UID_9, 1000);
+        bucket.match(expectedVolume, trig, trig, IGNORE_CMD_CONSUMER);
+        bucketRef.match(expectedVolume, trigRef, trigRef, IGNORE_CMD_CONSUMER);
+        MatcherAssert.assertThat(bucket, is(bucketRef));
+//        MatcherAssert.assertThat(events, is(eventsRef));
+    }
+
+    @Test
+    public void shouldIgnoreOwnOrders() {
+
+        final IOrdersBucket bucketRef = new OrdersBucketNaiveImpl();
+        bucketRef.setPrice(PRICE);
+        bucketRef.put(Order.builder().orderId(1).uid(UID_1).size(100).build());
+        bucketRef.put(Order.builder().orderId(3).uid(UID_1).size(1).build());
+        bucketRef.put(Order.builder().orderId(4).uid(UID_1).size(200).build());
+
+        // own orders of UID_1 are at the head of the queue
+        bucket.put(Order.builder().orderId(5).uid(UID_2).size(50).build());
+        bucket.put(Order.builder().orderId(6).uid(UID_1).size(10).build());
+        bucket.put(Order.builder().orderId(7).uid(UID_2).size(40).build());
+        bucketRef.put(Order.builder().orderId(5).uid(UID_2).size(50).build());
+        bucketRef.put(Order.builder().orderId(6).uid(UID_1).size(10).build());
+        bucketRef.put(Order.builder().orderId(7).uid(UID_2).size(40).build());
+
+        final OrderCommand trig = OrderCommand.update(1238729387, UID_1, 1000);
+        final OrderCommand trigRef = OrderCommand.update(1238729387, UID_1, 1000);
+        MatcherAssert.assertThat(bucket.match(70, trig, trig, IGNORE_CMD_CONSUMER), is(70L));
+        bucketRef.match(70, trigRef, trigRef, IGNORE_CMD_CONSUMER);
+        bucket.validate();
+
+        // only orders of UID_2 are matched, own orders are left in their places
+        for (MatcherTradeEvent event = trig.matcherEvent; event != null; event = event.nextEvent) {
+            MatcherAssert.assertThat(event.matchedOrderUid, is((long) UID_2));
+        }
+        MatcherAssert.assertThat(bucket.getNumOrders(), is(5));
+        MatcherAssert.assertThat(bucket.getTotalVolume(), is(331L));
+        MatcherAssert.assertThat(bucket, is(bucketRef));
+
+        // own orders are skipped again, no other orders left
+        final OrderCommand trig2 = OrderCommand.update(1238729388, UID_1, 1000);
+        final OrderCommand trig2Ref = OrderCommand.update(1238729388, UID_1, 1000);
+        MatcherAssert.assertThat(bucket.match(100, trig2, trig2, IGNORE_CMD_CONSUMER), is(20L));
+        bucketRef.match(100, trig2Ref, trig2Ref, IGNORE_CMD_CONSUMER);
+        MatcherAssert.assertThat(bucket.getNumOrders(), is(4));
+        MatcherAssert.assertThat(bucket, is(bucketRef));
+
+        // other user matches orders in time priority, starting from the skipped head
+        final OrderCommand trig3 = OrderCommand.update(1238729389, UID_9, 1000);
+        final OrderCommand trig3Ref = OrderCommand.update(1238729389, UID_9, 1000);
+        MatcherAssert.assertThat(bucket.match(105, trig3, trig3, IGNORE_CMD_CONSUMER), is(105L));
+        bucketRef.match(105, trig3Ref, trig3Ref, IGNORE_CMD_CONSUMER);
+        bucket.validate();
+        MatcherAssert.assertThat(bucket.getNumOrders(), is(2));
+        MatcherAssert.assertThat(bucket.getAllOrders().get(0).orderId, is(4L));
+        MatcherAssert.assertThat(bucket.getAllOrders().get(0).filled, is(4L));
+        MatcherAssert.assertThat(bucket, is(bucketRef));
+    }
+
+    @Test
+    public void shouldSerializeAndDeserialize() {
+
+        final IOrdersBucket bucket = createNewBucket();
+        for (int i = 0; i < 10; i++) {
+            bucket.put(Order.builder().orderId(100 + i).uid(UID_2).price(PRICE).action(OrderAction.ASK).size(10 + i).timestamp(i).build());
+        }
+        bucket.remove(103, UID_2);
+        final OrderCommand trig = OrderCommand.update(1238729387, UID_9, 1000);
+        bucket.match(25, trig, trig, IGNORE_CMD_CONSUMER);
+
+        final NativeBytes<Void> bytes = Bytes.allocateElasticDirect(128);
+        bucket.writeMarshallable(bytes);
+
+        final IOrdersBucket restored = IOrdersBucket.create(bytes);
+        restored.validate();
+
+        MatcherAssert.assertThat(restored.getImplementationType(), is(IOrdersBucket.OrderBucketImplType.SOA));
+        MatcherAssert.assertThat(restored, is(bucket));
+        MatcherAssert.assertThat(restored.hashCode(), is(bucket.hashCode()));
+        MatcherAssert.assertThat(restored.getTotalVolume(), is(bucket.getTotalVolume()));
+
+        bytes.release();
+    }
+}
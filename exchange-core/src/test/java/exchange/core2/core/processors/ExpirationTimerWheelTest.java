@@ -0,0 +1,200 @@
+/*
+ * Copyright 2019 Maksim Zheravin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package exchange.core2.core.processors;
+
+import net.openhft.chronicle.bytes.Bytes;
+import net.openhft.chronicle.bytes.NativeBytes;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.stream.Collectors;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.is;
+
+public class ExpirationTimerWheelTest {
+
+    @Test
+    public void expireInTime() {
+        final ExpirationTimerWheel wheel = new ExpirationTimerWheel();
+        final List<Long> expired = new ArrayList<>();
+
+        assertThat(wheel.advance(1_000_000L, (orderId, uid, symbol) -> expired.add(orderId)), is(0));
+
+        assertThat(wheel.schedule(1L, 10L, 5, 1_000_001L), is(true));
+        assertThat(wheel.schedule(2L, 10L, 5, 1_000_100L), is(true));
+        assertThat(wheel.schedule(3L, 11L, 6, 1_300_000L), is(true));
+        assertThat(wheel.schedule(4L, 11L, 6, 1_000_000L), is(false));
+        wheel.validate();
+
+        assertThat(wheel.advance(1_000_000L, (orderId, uid, symbol) -> expired.add(orderId)), is(0));
+        assertThat(wheel.advance(1_000_099L, (orderId, uid, symbol) -> expired.add(orderId)), is(1));
+        assertThat(expired, contains(1L));
+        wheel.validate();
+
+        // time is not moving backward
+        assertThat(wheel.advance(5L, (orderId, uid, symbol) -> expired.add(orderId)), is(0));
+        assertThat(wheel.getCurrentTime(), is(1_000_099L));
+
+        assertThat(wheel.advance(1_000_100L, (orderId, uid, symbol) -> expired.add(orderId)), is(1));
+        assertThat(wheel.advance(1_299_999L, (orderId, uid, symbol) -> expired.add(orderId)), is(0));
+        assertThat(wheel.advance(1_300_000L, (orderId, uid, symbol) -> {
+            assertThat(uid, is(11L));
+            assertThat(symbol, is(6));
+            expired.add(orderId);
+        }), is(1));
+        assertThat(expired, contains(1L, 2L, 3L));
+        assertThat(wheel.isEmpty(), is(true));
+        wheel.validate();
+    }
+
+    @Test
+    public void cancelAndReschedule() {
+        final ExpirationTimerWheel wheel = new ExpirationTimerWheel();
+        final List<Long> expired = new ArrayList<>();
+
+        wheel.schedule(1L, 10L, 5, 100L);
+        wheel.schedule(2L, 10L, 5, 200L);
+        wheel.schedule(3L, 10L, 5, 100L);
+
+        // symbol should match
+        assertThat(wheel.cancel(1L, 6), is(false));
+        assertThat(wheel.cancel(1L, 5), is(true));
+        assertThat(wheel.cancel(1L, 5), is(false));
+
+        // replacing existing entry
+        wheel.schedule(2L, 10L, 5, 50L);
+        assertThat(wheel.size(), is(2));
+        wheel.validate();
+
+        wheel.advance(150L, (orderId, uid, symbol) -> expired.add(orderId));
+        assertThat(expired, containsInAnyOrder(2L, 3L));
+        assertThat(wheel.isEmpty(), is(true));
+
+        wheel.schedule(4L, 10L, 5, Long.MAX_VALUE);
+        wheel.clear();
+        assertThat(wheel.isEmpty(), is(true));
+        assertThat(wheel.getCurrentTime(), is(0L));
+        wheel.validate();
+    }
+
+    @Test
+    public void farExpirationIsParked() {
+        final ExpirationTimerWheel wheel = new ExpirationTimerWheel();
+        final List<Long> expired = new ArrayList<>();
+
+        final long start = 1_600_000_000_000L;
+        wheel.advance(start, (orderId, uid, symbol) -> expired.add(orderId));
+
+        wheel.schedule(1L, 10L, 5, Long.MAX_VALUE);
+        wheel.schedule(2L, 10L, 5, start + (1L << 43));
+        wheel.validate();
+
+        wheel.advance(start + (1L << 42), (orderId, uid, symbol) -> expired.add(orderId));
+        assertThat(expired, empty());
+        wheel.validate();
+
+        wheel.advance(start + (1L << 43), (orderId, uid, symbol) -> expired.add(orderId));
+        assertThat(expired, contains(2L));
+        assertThat(wheel.size(), is(1));
+        wheel.validate();
+    }
+
+    @Test
+    public void compareWithReference() {
+        final Random rnd = new Random(1L);
+        final ExpirationTimerWheel wheel = new ExpirationTimerWheel();
+        final Map<Long, Long> ref = new HashMap<>();
+
+        long time = 1_600_000_000_000L;
+        wheel.advance(time, (orderId, uid, symbol) -> {
+        });
+
+        long nextOrderId = 1;
+        final List<Long> expired = new ArrayList<>();
+
+        for (int i = 0; i < 100_000; i++) {
+            final int op = rnd.nextInt(10);
+            if (op < 5) {
+                // different ranges: milliseconds to days
+                final long delay = 1 + (long) (rnd.nextDouble() * (1L << (rnd.nextInt(36) + 1)));
+                final long orderId = nextOrderId++;
+                wheel.schedule(orderId, orderId * 3, (int) (orderId % 7), time + delay);
+                ref.put(orderId, time + delay);
+            } else if (op < 7 && !ref.isEmpty()) {
+                final long orderId = nextOrderId - 1 - rnd.nextInt((int) Math.min(nextOrderId - 1, 100));
+                assertThat(wheel.cancel(orderId, (int) (orderId % 7)), is(ref.remove(orderId) != null));
+            } else {
+                time += (long) (rnd.nextDouble() * (1L << rnd.nextInt(30)));
+                final long now = time;
+                expired.clear();
+                wheel.advance(now, (orderId, uid, symbol) -> {
+                    assertThat(uid, is(orderId * 3));
+                    assertThat(symbol, is((int) (orderId % 7)));
+                    expired.add(orderId);
+                });
+
+                final List<Long> expectedExpired = ref.entrySet().stream()
+                        .filter(e -> e.getValue() <= now)
+                        .map(Map.Entry::getKey)
+                        .collect(Collectors.toList());
+                assertThat(expired.size(), is(expectedExpired.size()));
+                assertThat(expired, containsInAnyOrder(expectedExpired.toArray()));
+                expectedExpired.forEach(ref::remove);
+            }
+            assertThat(wheel.size(), is(ref.size()));
+
+            if (i % 1000 == 0) {
+                wheel.validate();
+            }
+        }
+    }
+
+    @Test
+    public void shouldSerializeAndDeserialize() {
+        final ExpirationTimerWheel wheel = new ExpirationTimerWheel();
+        wheel.advance(1_000L, (orderId, uid, symbol) -> {
+        });
+        for (long orderId = 1; orderId <= 1000; orderId++) {
+            wheel.schedule(orderId, orderId + 100, (int) orderId % 3, 1_000L + orderId * orderId);
+        }
+
+        final NativeBytes<Void> bytes = Bytes.allocateElasticDirect(128);
+        wheel.writeMarshallable(bytes);
+        final ExpirationTimerWheel restored = new ExpirationTimerWheel(bytes);
+        restored.validate();
+
+        assertThat(restored.size(), is(wheel.size()));
+        assertThat(restored.getCurrentTime(), is(wheel.getCurrentTime()));
+        assertThat(restored.stateHash(), is(wheel.stateHash()));
+
+        final List<Long> expected = new ArrayList<>();
+        final List<Long> actual = new ArrayList<>();
+        wheel.advance(300_000L, (orderId, uid, symbol) -> expected.add(orderId));
+        restored.advance(300_000L, (orderId, uid, symbol) -> actual.add(orderId));
+        assertThat(actual, is(expected));
+        assertThat(actual.size(), is(546));
+
+        bytes.release();
+    }
+}
@@ -0,0 +1,254 @@
+/*
+ * Copyright 2019 Maksim Zheravin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package exchange.core2.core.processors;
+
+import exchange.core2.core.common.CompactUserAccounts;
+import exchange.core2.core.common.SymbolPositionRecord;
+import exchange.core2.core.common.UserProfile;
+import exchange.core2.core.common.cmd.CommandResultCode;
+import net.openhft.chronicle.bytes.Bytes;
+import net.openhft.chronicle.bytes.NativeBytes;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertThat;
+
+public class UserProfileServiceTest {
+
+    private static final int CURRENCY = 840;
+
+    @Test
+    public void shouldMaintainStateHashIncrementally() {
+
+        final UserProfileService service = new UserProfileService();
+        final UserProfileService serviceRef = new UserProfileService();
+
+        for (long uid = 1; uid <= 100; uid++) {
+            service.addEmptyUserProfile(uid);
+            assertThat(service.balanceAdjustment(uid, CURRENCY, 1000 + uid, uid), is(CommandResultCode.SUCCESS));
+        }
+        final int hash = service.stateHash();
+
+        // same state produced in different order
+        for (long uid = 100; uid >= 1; uid--) {
+            serviceRef.addEmptyUserProfile(uid);
+            serviceRef.balanceAdjustment(uid, CURRENCY, 1000 + uid, uid);
+        }
+        assertThat(serviceRef.stateHash(), is(hash));
+
+        // modification of one profile changes hash
+        service.getUserProfile(42).accounts.addToValue(CURRENCY, -1);
+        final int modifiedHash = service.stateHash();
+        assertNotEquals(hash, modifiedHash);
+
+        service.getUserProfileOrThrowEx(42).accounts.addToValue(CURRENCY, 1);
+        assertThat(service.stateHash(), is(hash));
+
+        // hash is the same after serialization
+        final NativeBytes<Void> bytes = Bytes.allocateElasticDirect(128);
+        service.writeMarshallable(bytes);
+        assertThat(new UserProfileService(bytes).stateHash(), is(hash));
+        bytes.release();
+
+        service.reset();
+        assertThat(service.stateHash(), is(new UserProfileService().stateHash()));
+    }
+
+    @Test
+    public void shouldProduceSameStateHashWithCompactAccounts() {
+
+        final UserProfileService service = new UserProfileService();
+        final UserProfileService compactService = new UserProfileService(CompactUserAccounts::new);
+
+        for (long uid = 1; uid <= 100; uid++) {
+            for (UserProfileService s : new UserProfileService[]{service, compactService}) {
+                s.addEmptyUserProfile(uid);
+                assertThat(s.balanceAdjustment(uid, CURRENCY, 1000 + uid, uid), is(CommandResultCode.SUCCESS));
+                assertThat(s.balanceAdjustment(uid, (int) uid % 7, -uid, uid + 1000), is(CommandResultCode.USER_MGMT_ACCOUNT_BALANCE_ADJUSTMENT_NSF));
+                assertThat(s.balanceAdjustment(uid, (int) uid % 7, uid, uid + 2000), is(CommandResultCode.SUCCESS));
+            }
+        }
+        final int hash = service.stateHash();
+        assertThat(compactService.stateHash(), is(hash));
+
+        // snapshot made by one implementation can be loaded by another one
+        final NativeBytes<Void> bytes = Bytes.allocateElasticDirect(128);
+        service.writeMarshallable(bytes);
+        final UserProfileService restored = new UserProfileService(bytes, CompactUserAccounts::new);
+        assertThat(restored.stateHash(), is(hash));
+        assertThat(restored.getUserProfile(42).accounts, is(compactService.getUserProfile(42).accounts));
+        bytes.release();
+    }
+
+    @Test
+    public void shouldKeepColdProfilesInMappedStore() throws IOException {
+
+        final Path folder = Files.createTempDirectory("profiles");
+        final Path file = folder.resolve("user_profiles_0");
+        final List<Long> loaded = new ArrayList<>();
+
+        final UserProfileService service = new UserProfileService();
+        final NativeBytes<Void> bytes = Bytes.allocateElasticDirect(128);
+        final int hash;
+
+        try (final UserProfilesMappedStore store = new UserProfilesMappedStore(file, 4096, CompactUserAccounts::new)) {
+
+            // hot profiles limited to 10
+            final UserProfileService tieredService = new UserProfileService(CompactUserAccounts::new, store, 10, 0L, p -> loaded.add(p.uid));
+
+            for (long uid = 1; uid <= 100; uid++) {
+                for (UserProfileService s : new UserProfileService[]{service, tieredService}) {
+                    assertThat(s.addEmptyUserProfile(uid), is(true));
+                    assertThat(s.balanceAdjustment(uid, CURRENCY, 1000 + uid, uid), is(CommandResultCode.SUCCESS));
+                }
+                tieredService.evictIfRequired(uid);
+            }
+            assertThat(tieredService.getHotProfilesNum(), is(10));
+            assertThat(store.size(), is(90));
+
+            // cold profile is loaded back
+            assertThat(tieredService.peekUserProfile(42), nullValue());
+            assertThat(tieredService.addEmptyUserProfile(42), is(false));
+            assertThat(tieredService.peekUserProfile(42).accounts.get(CURRENCY), is(1042L));
+            assertThat(loaded, contains(42L));
+            assertThat(tieredService.balanceAdjustment(42, CURRENCY, -42, 10_042), is(CommandResultCode.SUCCESS));
+            assertThat(service.balanceAdjustment(42, CURRENCY, -42, 10_042), is(CommandResultCode.SUCCESS));
+
+            // least recently accessed profile (91) is moved into the store
+            tieredService.evictIfRequired(101);
+            assertThat(tieredService.peekUserProfile(91), nullValue());
+            assertThat(tieredService.peekUserProfile(42), notNullValue());
+
+            hash = service.stateHash();
+            assertThat(tieredService.stateHash(), is(hash));
+
+            tieredService.writeMarshallable(bytes);
+        }
+
+        try (final UserProfilesMappedStore store = new UserProfilesMappedStore(file, 4096, CompactUserAccounts::new)) {
+            final UserProfileService restored = new UserProfileService(bytes, CompactUserAccounts::new, store, 10, 0L, p -> {
+            });
+            assertThat(restored.stateHash(), is(hash));
+            assertThat(restored.getHotProfilesNum(), is(10));
+            assertThat(restored.peekUserProfile(42).accounts.get(CURRENCY), is(1000L));
+
+            final List<Long> uids = new ArrayList<>();
+            restored.forEachUserProfile(false, p -> uids.add(p.uid));
+            assertThat(uids.size(), is(100));
+
+            // access order is restored
+            restored.getUserProfile(91);
+            restored.evictIfRequired(102);
+            assertThat(restored.peekUserProfile(92), nullValue());
+            assertThat(restored.stateHash(), is(hash));
+
+            // store was changed and committed after snapshot - snapshot is still loadable
+            final UserProfile profile92 = restored.getUserProfile(92);
+            profile92.accounts.addToValue(CURRENCY, 1);
+            profile92.positions.put(5, new SymbolPositionRecord(92, 5, CURRENCY));
+            restored.evictIfRequired(103);
+            final NativeBytes<Void> bytes2 = Bytes.allocateElasticDirect(128);
+            restored.writeMarshallable(bytes2);
+            final int hash2 = restored.stateHash();
+            assertNotEquals(hash, hash2);
+
+            bytes.readPosition(0);
+            final UserProfileService restoredOld = new UserProfileService(bytes, CompactUserAccounts::new, store, 10, 0L, p -> {
+            });
+            assertThat(restoredOld.stateHash(), is(hash));
+            assertThat(restoredOld.getUserProfile(92).accounts.get(CURRENCY), is(1092L));
+
+            final UserProfileService restoredNew = new UserProfileService(bytes2, CompactUserAccounts::new, store, 10, 0L, p -> {
+            });
+            assertThat(restoredNew.stateHash(), is(hash2));
+            assertThat(restoredNew.getUserProfile(92).accounts.get(CURRENCY), is(1093L));
+            bytes2.release();
+
+            restoredNew.reset();
+            assertThat(store.size(), is(0));
+        } finally {
+            bytes.release();
+            deleteFolder(folder);
+        }
+    }
+
+    @Test
+    public void shouldEvictIdleProfiles() throws IOException {
+
+        final Path folder = Files.createTempDirectory("profiles");
+        final Path file = folder.resolve("user_profiles_0");
+
+        try (final UserProfilesMappedStore store = new UserProfilesMappedStore(file, 4096, CompactUserAccounts::new)) {
+
+            final UserProfileService service = new UserProfileService(CompactUserAccounts::new, store, 1000, 60_000L, p -> {
+            });
+
+            // 100 users registered at t=1000...1099
+            for (long uid = 1; uid <= 100; uid++) {
+                service.evictIfRequired(999 + uid);
+                service.addEmptyUserProfile(uid);
+            }
+            final int hash = service.stateHash();
+
+            // user 5 was active later
+            service.evictIfRequired(30_000L);
+            service.getUserProfile(5);
+
+            // nothing is idle yet
+            service.evictIfRequired(60_999L);
+            assertThat(service.getHotProfilesNum(), is(100));
+
+            // limited number of profiles moved per call, time is not moving backward
+            service.evictIfRequired(70_000L);
+            assertThat(service.getHotProfilesNum(), is(84));
+            service.evictIfRequired(100L);
+            assertThat(service.getHotProfilesNum(), is(68));
+            for (int i = 0; i < 10; i++) {
+                service.evictIfRequired(70_000L);
+            }
+            assertThat(service.getHotProfilesNum(), is(1));
+            assertThat(service.peekUserProfile(5), notNullValue());
+            assertThat(service.stateHash(), is(hash));
+
+            service.evictIfRequired(90_001L);
+            assertThat(service.getHotProfilesNum(), is(0));
+            assertThat(store.size(), is(100));
+            assertThat(service.stateHash(), is(hash));
+        } finally {
+            deleteFolder(folder);
+        }
+    }
+
+    private static void deleteFolder(Path folder) throws IOException {
+        try (Stream<Path> files = Files.list(folder)) {
+            for (Path f : (Iterable<Path>) files::iterator) {
+                Files.delete(f);
+            }
+        }
+        Files.delete(folder);
+    }
+}
@@ -0,0 +1,313 @@
+/*
+ * Copyright 2019 Maksim Zheravin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package exchange.core2.core.processors;
+
+import exchange.core2.core.common.CompactUserAccounts;
+import exchange.core2.core.common.SymbolPositionRecord;
+import exchange.core2.core.common.UserProfile;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.nullValue;
+
+public class UserProfilesMappedStoreTest {
+
+    private static final int SEGMENT_SIZE = 4096;
+
+    private Path folder;
+    private Path file;
+
+    @Before
+    public void before() throws IOException {
+        folder = Files.createTempDirectory("profiles");
+        file = folder.resolve("user_profiles_0");
+    }
+
+    @After
+    public void after() throws IOException {
+        deleteFolder(folder);
+    }
+
+    @Test
+    public void shouldStoreAndReloadProfiles() {
+        final Map<Long, Integer> expectedHashes = new HashMap<>();
+
+        try (final UserProfilesMappedStore store = new UserProfilesMappedStore(file, SEGMENT_SIZE, CompactUserAccounts::new)) {
+            assertThat(store.size(), is(0));
+            assertThat(store.load(1L), nullValue());
+
+            // enough profiles to fill several segments
+            for (long uid = 1; uid <= 300; uid++) {
+                final UserProfile profile = createProfile(uid);
+                store.store(profile);
+                expectedHashes.put(uid, profile.stateHash());
+            }
+
+            // new version replaces old one
+            final UserProfile profile = store.load(7L);
+            profile.accounts.addToValue(978, 500L);
+            profile.stateHashContribution = 77L;
+            store.store(profile);
+            expectedHashes.put(7L, profile.stateHash());
+
+            assertThat(store.size(), is(300));
+            assertThat(store.load(7L).accounts.get(978), is(500L));
+            assertThat(store.load(7L).stateHashContribution, is(77L));
+            verify(store, expectedHashes);
+
+            assertThat(store.commit(), is(1L));
+
+            // not committed change
+            store.store(createProfile(1000L));
+            assertThat(store.size(), is(301));
+        }
+
+        try (final UserProfilesMappedStore store = new UserProfilesMappedStore(file, SEGMENT_SIZE, CompactUserAccounts::new)) {
+            assertThat(store.getGeneration(), is(1L));
+            assertThat(store.size(), is(300));
+            assertThat(store.contains(1000L), is(false));
+            verify(store, expectedHashes);
+
+            // only profiles with positions
+            final List<Long> uids = new ArrayList<>();
+            store.forEach(true, p -> uids.add(p.uid));
+            assertThat(uids, containsInAnyOrder(10L, 20L, 30L, 40L, 50L, 60L, 70L, 80L, 90L, 100L,
+                    110L, 120L, 130L, 140L, 150L, 160L, 170L, 180L, 190L, 200L,
+                    210L, 220L, 230L, 240L, 250L, 260L, 270L, 280L, 290L, 300L));
+
+            store.clear();
+            assertThat(store.size(), is(0));
+            assertThat(store.getGeneration(), is(2L));
+        }
+
+        try (final UserProfilesMappedStore store = new UserProfilesMappedStore(file, SEGMENT_SIZE, CompactUserAccounts::new)) {
+            assertThat(store.size(), is(0));
+            assertThat(store.getGeneration(), is(2L));
+        }
+    }
+
+    @Test
+    public void shouldCompactGarbage() throws IOException {
+        final Random rnd = new Random(1L);
+        final Map<Long, Integer> expectedHashes = new HashMap<>();
+
+        try (final UserProfilesMappedStore store = new UserProfilesMappedStore(file, SEGMENT_SIZE, CompactUserAccounts::new)) {
+            for (long uid = 1; uid <= 100; uid++) {
+                final UserProfile profile = createProfile(uid);
+                store.store(profile);
+                expectedHashes.put(uid, profile.stateHash());
+            }
+
+            // many versions of the same profiles
+            for (int i = 0; i < 30_000; i++) {
+                final long uid = 1 + rnd.nextInt(100);
+                final UserProfile profile = store.load(uid);
+                profile.accounts.addToValue(840, rnd.nextInt(1000));
+                store.store(profile);
+                expectedHashes.put(uid, profile.stateHash());
+            }
+
+            final Path oldFile = folder.resolve("user_profiles_0.0");
+            assertThat(Files.size(oldFile), greaterThan(1L << 20));
+
+            store.commit();
+            assertThat(store.getFileId(), is(1L));
+            assertThat(Files.size(folder.resolve("user_profiles_0.1")), lessThan((long) SEGMENT_SIZE * 8));
+            verify(store, expectedHashes);
+
+            // previous file is kept
+            assertThat(Files.exists(oldFile), is(true));
+        }
+
+        try (final UserProfilesMappedStore store = new UserProfilesMappedStore(file, SEGMENT_SIZE, CompactUserAccounts::new)) {
+            assertThat(store.size(), is(100));
+            verify(store, expectedHashes);
+        }
+    }
+
+    @Test
+    public void shouldRestoreOlderCommits() {
+
+        final Map<Long, Integer> hashesGen1 = new HashMap<>();
+        final Map<Long, Integer> hashesGen2 = new HashMap<>();
+        final long fileId1, offset1, fileId2, offset2;
+
+        try (final UserProfilesMappedStore store = new UserProfilesMappedStore(file, SEGMENT_SIZE, CompactUserAccounts::new)) {
+            for (long uid = 1; uid <= 50; uid++) {
+                final UserProfile profile = createProfile(uid);
+                store.store(profile);
+                hashesGen1.put(uid, profile.stateHash());
+            }
+            assertThat(store.commit(), is(1L));
+            fileId1 = store.getFileId();
+            offset1 = store.getCommittedOffset();
+
+            hashesGen2.putAll(hashesGen1);
+            for (long uid = 1; uid <= 60; uid += 3) {
+                final UserProfile profile = createProfile(uid);
+                profile.accounts.addToValue(840, 7L);
+                store.store(profile);
+                hashesGen2.put(uid, profile.stateHash());
+            }
+            assertThat(store.commit(), is(2L));
+            fileId2 = store.getFileId();
+            offset2 = store.getCommittedOffset();
+
+            // not committed change
+            store.store(createProfile(1000L));
+
+            // older state is restored into a copy of the file
+            store.restore(fileId1, 1L, offset1);
+            assertThat(store.getGeneration(), is(1L));
+            assertThat(store.getFileId(), not(fileId1));
+            assertThat(store.size(), is(50));
+            verify(store, hashesGen1);
+
+            // changes after restoring are not affecting newer state
+            store.store(createProfile(2000L));
+            assertThat(store.commit(), is(2L));
+            assertThat(store.size(), is(51));
+        }
+
+        try (final UserProfilesMappedStore store = new UserProfilesMappedStore(file, SEGMENT_SIZE, CompactUserAccounts::new)) {
+            store.restore(fileId2, 2L, offset2);
+            assertThat(store.getFileId(), is(fileId2));
+            assertThat(store.size(), is(53));
+            assertThat(store.contains(1000L), is(false));
+            assertThat(store.contains(2000L), is(false));
+            verify(store, hashesGen2);
+
+            store.restore(fileId1, 1L, offset1);
+            verify(store, hashesGen1);
+        }
+    }
+
+    @Test
+    public void shouldDeleteFilesNotReferencedByRetainedCommits() throws IOException {
+        final Random rnd = new Random(1L);
+        final Map<Long, Integer> expectedHashes = new HashMap<>();
+        final Map<Long, Integer> prevHashes = new HashMap<>();
+        long prevFileId = -1, prevGeneration = -1, prevOffset = -1;
+
+        try (final UserProfilesMappedStore store = new UserProfilesMappedStore(file, SEGMENT_SIZE, 2, CompactUserAccounts::new)) {
+            for (long uid = 1; uid <= 100; uid++) {
+                final UserProfile profile = createProfile(uid);
+                store.store(profile);
+                expectedHashes.put(uid, profile.stateHash());
+            }
+
+            for (int round = 0; round < 10; round++) {
+                // enough garbage to compact on every commit
+                for (int i = 0; i < 30_000; i++) {
+                    final long uid = 1 + rnd.nextInt(100);
+                    final UserProfile profile = store.load(uid);
+                    profile.accounts.addToValue(840, rnd.nextInt(1000));
+                    store.store(profile);
+                    expectedHashes.put(uid, profile.stateHash());
+                }
+                if (round == 5) {
+                    store.clear();
+                    for (long uid = 1; uid <= 100; uid++) {
+                        final UserProfile profile = createProfile(uid);
+                        store.store(profile);
+                        expectedHashes.put(uid, profile.stateHash());
+                    }
+                }
+
+                prevHashes.clear();
+                prevHashes.putAll(expectedHashes);
+                prevGeneration = store.commit();
+                prevFileId = store.getFileId();
+                prevOffset = store.getCommittedOffset();
+
+                // files of two last commits
+                assertThat(countFiles(), lessThanOrEqualTo(2L));
+            }
+            assertThat(store.getFileId(), is(10L));
+
+            // one more commit without compaction, previous commit is still restorable
+            store.store(createProfile(1000L));
+            store.commit();
+            store.restore(prevFileId, prevGeneration, prevOffset);
+            verify(store, prevHashes);
+            assertThat(store.contains(1000L), is(false));
+        }
+
+        // files are never deleted if not configured
+        try (final UserProfilesMappedStore store = new UserProfilesMappedStore(file, SEGMENT_SIZE, 0, CompactUserAccounts::new)) {
+            final long files = countFiles();
+            for (int i = 0; i < 3; i++) {
+                store.clear();
+                store.commit();
+            }
+            assertThat(countFiles(), is(files + 3));
+        }
+    }
+
+    private long countFiles() throws IOException {
+        try (Stream<Path> files = Files.list(folder)) {
+            return files.count();
+        }
+    }
+
+    private static UserProfile createProfile(long uid) {
+        final UserProfile profile = new UserProfile(uid, CompactUserAccounts::new);
+        profile.accounts.addToValue(840, uid * 1000);
+        profile.externalTransactions.add(uid);
+        if (uid % 10 == 0) {
+            final SymbolPositionRecord position = new SymbolPositionRecord(uid, 5, 840);
+            position.pendingBuySize = uid;
+            profile.positions.put(5, position);
+        }
+        profile.stateHashContribution = uid;
+        return profile;
+    }
+
+    private static void deleteFolder(Path folder) throws IOException {
+        try (Stream<Path> files = Files.list(folder)) {
+            for (Path f : (Iterable<Path>) files::iterator) {
+                Files.delete(f);
+            }
+        }
+        Files.delete(folder);
+    }
+
+    private static void verify(UserProfilesMappedStore store, Map<Long, Integer> expectedHashes) {
+        expectedHashes.forEach((uid, hash) -> {
+            final UserProfile profile = store.load(uid);
+            assertThat(profile.uid, is(uid));
+            assertThat(profile.stateHash(), is(hash));
+        });
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright 2019 Maksim Zheravin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package exchange.core2.core.utils;
+
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+
+public class LongAvlTreeMapTest {
+
+    @Test
+    public void emptyMap() {
+        final LongAvlTreeMap<String> map = new LongAvlTreeMap<>();
+        assertThat(map.isEmpty(), is(true));
+        assertThat(map.get(1L), nullValue());
+        assertThat(map.ceilingValue(1L), nullValue());
+        assertThat(map.floorValue(1L), nullValue());
+        assertThat(map.firstValue(), nullValue());
+        assertThat(map.pollLastValue(), nullValue());
+        assertThat(map.remove(1L), nullValue());
+    }
+
+    @Test
+    public void compareWithTreeMap() {
+        final Random rnd = new Random(1L);
+        final LongAvlTreeMap<Long> map = new LongAvlTreeMap<>(4);
+        final TreeMap<Long, Long> ref = new TreeMap<>();
+
+        for (int i = 0; i < 200_000; i++) {
+            final long key = rnd.nextInt(2000);
+            final int op = rnd.nextInt(10);
+            if (op < 5) {
+                assertThat(map.put(key, key * 3), is(ref.put(key, key * 3)));
+            } else if (op < 8) {
+                assertThat(map.remove(key), is(ref.remove(key)));
+            } else if (op == 8) {
+                assertThat(map.pollFirstValue(), is(valueOrNull(ref.pollFirstEntry())));
+            } else {
+                assertThat(map.pollLastValue(), is(valueOrNull(ref.pollLastEntry())));
+            }
+
+            assertThat(map.size(), is(ref.size()));
+            assertThat(map.get(key), is(ref.get(key)));
+            assertThat(map.ceilingValue(key), is(valueOrNull(ref.ceilingEntry(key))));
+            assertThat(map.higherValue(key), is(valueOrNull(ref.higherEntry(key))));
+            assertThat(map.floorValue(key), is(valueOrNull(ref.floorEntry(key))));
+            assertThat(map.lowerValue(key), is(valueOrNull(ref.lowerEntry(key))));
+
+            if (i % 1000 == 0) {
+                map.validate();
+                assertThat(map.values(), is(new ArrayList<>(ref.values())));
+                assertThat(map.descendingValues(), is(new ArrayList<>(ref.descendingMap().values())));
+                if (!ref.isEmpty()) {
+                    assertThat(map.firstKey(), is(ref.firstKey()));
+                    assertThat(map.lastKey(), is(ref.lastKey()));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void extremeKeys() {
+        final LongAvlTreeMap<String> map = new LongAvlTreeMap<>();
+        map.put(Long.MAX_VALUE, "max");
+        map.put(Long.MIN_VALUE, "min");
+        map.put(0L, "zero");
+        map.validate();
+
+        assertThat(map.ceilingValue(Long.MIN_VALUE), is("min"));
+        assertThat(map.higherValue(0L), is("max"));
+        assertThat(map.lowerValue(0L), is("min"));
+        assertThat(map.floorValue(Long.MAX_VALUE), is("max"));
+        assertThat(map.higherValue(Long.MAX_VALUE), nullValue());
+        assertThat(map.lowerValue(Long.MIN_VALUE), nullValue());
+    }
+
+    private static <V> V valueOrNull(final Map.Entry<Long, V> entry) {
+        return entry == null ? null : entry.getValue();
+    }
+}
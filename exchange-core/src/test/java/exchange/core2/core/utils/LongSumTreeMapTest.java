@@ -0,0 +1,97 @@
+/*
+ * Copyright 2019 Maksim Zheravin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package exchange.core2.core.utils;
+
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.TreeMap;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+public class LongSumTreeMapTest {
+
+    @Test
+    public void emptyMap() {
+        final LongSumTreeMap map = new LongSumTreeMap();
+        assertThat(map.isEmpty(), is(true));
+        assertThat(map.get(1L), is(0L));
+        assertThat(map.total(), is(0L));
+        assertThat(map.sumUpTo(Long.MAX_VALUE), is(0L));
+        assertThat(map.sumFrom(Long.MIN_VALUE), is(0L));
+        map.put(1L, 0L);
+        assertThat(map.isEmpty(), is(true));
+    }
+
+    @Test
+    public void compareWithTreeMap() {
+        final Random rnd = new Random(1L);
+        final LongSumTreeMap map = new LongSumTreeMap(4);
+        final TreeMap<Long, Long> ref = new TreeMap<>();
+
+        for (int i = 0; i < 200_000; i++) {
+            final long key = rnd.nextInt(2000);
+            final long value = rnd.nextInt(3) == 0 ? 0 : rnd.nextInt(1000) + 1;
+            map.put(key, value);
+            if (value == 0) {
+                ref.remove(key);
+            } else {
+                ref.put(key, value);
+            }
+
+            final long queryKey = rnd.nextInt(2100) - 50;
+            assertThat(map.size(), is(ref.size()));
+            assertThat(map.get(key), is(value));
+            assertThat(map.sumUpTo(queryKey), is(sum(ref.headMap(queryKey, true).values())));
+            assertThat(map.sumFrom(queryKey), is(sum(ref.tailMap(queryKey, true).values())));
+
+            if (i % 1000 == 0) {
+                map.validate();
+                assertThat(map.total(), is(sum(ref.values())));
+            }
+        }
+    }
+
+    @Test
+    public void clearAndReuse() {
+        final LongSumTreeMap map = new LongSumTreeMap(2);
+        for (long k = 1; k <= 100; k++) {
+            map.put(k, k);
+        }
+        assertThat(map.total(), is(5050L));
+        assertThat(map.sumUpTo(10), is(55L));
+        assertThat(map.sumFrom(91), is(955L));
+
+        map.clear();
+        map.validate();
+        assertThat(map.isEmpty(), is(true));
+        assertThat(map.total(), is(0L));
+
+        map.put(5, 7);
+        map.put(5, 3);
+        map.validate();
+        assertThat(map.total(), is(3L));
+    }
+
+    private static long sum(Iterable<Long> values) {
+        long s = 0;
+        for (long v : values) {
+            s += v;
+        }
+        return s;
+    }
+}
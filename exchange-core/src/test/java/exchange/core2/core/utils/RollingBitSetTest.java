@@ -0,0 +1,101 @@
+/*
+ * Copyright 2019 Maksim Zheravin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package exchange.core2.core.utils;
+
+import org.junit.Test;
+
+import java.util.BitSet;
+import java.util.Random;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+public class RollingBitSetTest {
+
+    private static final int SIZE = 1024;
+
+    @Test
+    public void compareWithBitSet() {
+        final Random rnd = new Random(1L);
+        final RollingBitSet bitSet = new RollingBitSet(SIZE);
+        BitSet ref = new BitSet(SIZE);
+
+        for (int i = 0; i < 100_000; i++) {
+            final int idx = rnd.nextInt(SIZE);
+            final int op = rnd.nextInt(100);
+            if (op < 50) {
+                bitSet.set(idx);
+                ref.set(idx);
+            } else if (op < 96) {
+                bitSet.clear(idx);
+                ref.clear(idx);
+            } else {
+                final int shift = rnd.nextInt(SIZE / 64 + 2) * 64;
+                if (op < 98) {
+                    bitSet.shiftUp(shift);
+                    ref = shiftUp(ref, shift);
+                } else {
+                    bitSet.shiftDown(shift);
+                    ref = shiftDown(ref, shift);
+                }
+            }
+
+            assertThat(bitSet.get(idx), is(ref.get(idx)));
+            assertThat(bitSet.nextSetBit(idx), is(ref.nextSetBit(idx)));
+            assertThat(bitSet.previousSetBit(idx), is(ref.previousSetBit(idx)));
+
+            if (i % 100 == 0) {
+                assertThat(bitSet.toLongArray(), is(ref.toLongArray()));
+                assertThat(bitSet.stream().toArray(), is(ref.stream().toArray()));
+                assertThat(bitSet.cardinality(), is(ref.cardinality()));
+            }
+        }
+    }
+
+    @Test
+    public void boundaries() {
+        final RollingBitSet bitSet = new RollingBitSet(SIZE);
+        bitSet.set(0);
+        bitSet.set(SIZE - 1);
+        assertThat(bitSet.nextSetBit(-5), is(0));
+        assertThat(bitSet.nextSetBit(1), is(SIZE - 1));
+        assertThat(bitSet.nextSetBit(SIZE), is(-1));
+        assertThat(bitSet.previousSetBit(Integer.MAX_VALUE), is(SIZE - 1));
+        assertThat(bitSet.previousSetBit(SIZE - 2), is(0));
+        assertThat(bitSet.previousSetBit(-1), is(-1));
+
+        bitSet.shiftDown(64);
+        assertThat(bitSet.nextSetBit(0), is(SIZE - 65));
+        bitSet.shiftUp(128);
+        assertThat(bitSet.nextSetBit(0), is(-1));
+        assertThat(bitSet.isEmpty(), is(true));
+
+        final RollingBitSet copy = new RollingBitSet(SIZE, new long[]{5L});
+        assertThat(copy.stream().toArray(), is(new int[]{0, 2}));
+    }
+
+    private static BitSet shiftUp(final BitSet bitSet, final int shift) {
+        final BitSet res = new BitSet(SIZE);
+        bitSet.stream().filter(i -> i + shift < SIZE).forEach(i -> res.set(i + shift));
+        return res;
+    }
+
+    private static BitSet shiftDown(final BitSet bitSet, final int shift) {
+        final BitSet res = new BitSet(SIZE);
+        bitSet.stream().filter(i -> i - shift >= 0).forEach(i -> res.set(i - shift));
+        return res;
+    }
+}
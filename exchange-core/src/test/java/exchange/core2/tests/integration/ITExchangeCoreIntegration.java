@@ -20,13 +20,19 @@ import exchange.core2.core.common.api.*;
 import exchange.core2.core.common.cmd.CommandResultCode;
 import exchange.core2.core.common.cmd.OrderCommandType;
 import exchange.core2.tests.util.ExchangeTestContainer;
+import exchange.core2.tests.util.ExchangeTestContainer.CoreMode;
 import exchange.core2.tests.util.L2MarketDataHelper;
 import exchange.core2.tests.util.TestOrdersGenerator;
 import lombok.extern.slf4j.Slf4j;
 import org.eclipse.collections.impl.map.mutable.primitive.IntLongHashMap;
 import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
 
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.CountDownLatch;
 import java.util.function.Consumer;
@@ -42,8 +48,17 @@ import static org.hamcrest.number.OrderingComparison.greaterThan;
 import static org.junit.Assert.*;
 
 @Slf4j
+@RunWith(Parameterized.class)
 public final class ITExchangeCoreIntegration {
 
+    @Parameterized.Parameters(name = "{0}")
+    public static CoreMode[] modes() {
+        return CoreMode.values();
+    }
+
+    @Parameterized.Parameter
+    public CoreMode mode;
+
     @Test(timeout = 10_000)
     public void basicFullCycleTestMargin() throws Exception {
         basicFullCycleTest(SYMBOLSPEC_EUR_USD);
@@ -57,23 +72,95 @@ public final class ITExchangeCoreIntegration {
 
     @Test(timeout = 5_000)
     public void shouldInitSymbols() {
-        try (final ExchangeTestContainer container = new ExchangeTestContainer()) {
+        try (final ExchangeTestContainer container = new ExchangeTestContainer(mode)) {
             container.initBasicSymbols();
         }
     }
 
     @Test(timeout = 5_000)
     public void shouldInitUsers() throws Exception {
-        try (final ExchangeTestContainer container = new ExchangeTestContainer()) {
+        try (final ExchangeTestContainer container = new ExchangeTestContainer(mode)) {
             container.initBasicUsers();
         }
     }
 
+    @Test(timeout = 20_000)
+    public void basicPersistAndRestore() throws Exception {
+
+        final long stateId = System.nanoTime();
+        final int stateHash;
+        final IntLongHashMap balances;
+        final Map<Long, Integer> profileHashes = new HashMap<>();
+
+        try (final ExchangeTestContainer container = new ExchangeTestContainer(mode)) {
+            container.initBasicSymbols();
+            container.initBasicUsers();
+            container.createUserWithMoney(UID_3, CURRENECY_USD, 1_000_00L);
+
+            // positions of first and second user, pending orders of second and third user
+            container.submitCommandSync(ApiPlaceOrder.builder().uid(UID_1).id(101).price(1600).size(7)
+                    .action(ASK).orderType(GTC).symbol(SYMBOL_MARGIN).build(), CHECK_SUCCESS);
+            container.submitCommandSync(ApiPlaceOrder.builder().uid(UID_2).id(201).price(1700).size(2)
+                    .action(OrderAction.BID).orderType(OrderType.IOC).symbol(SYMBOL_MARGIN).build(), CHECK_SUCCESS);
+            container.submitCommandSync(ApiPlaceOrder.builder().uid(UID_2).id(202).price(1550).reservePrice(1550).size(4)
+                    .action(OrderAction.BID).orderType(GTC).symbol(SYMBOL_EXCHANGE).build(), CHECK_SUCCESS);
+            container.submitCommandSync(ApiPlaceOrder.builder().uid(UID_3).id(301).price(1550).size(3)
+                    .action(OrderAction.BID).orderType(GTC).symbol(SYMBOL_MARGIN).build(), CHECK_SUCCESS);
+
+            // in COLD_PROFILES mode all profiles except the last accessed one are in the store
+            container.submitMultiCommandSync(ApiPersistState.builder().dumpId(stateId).build());
+
+            stateHash = container.requestStateHash();
+            balances = container.totalBalanceReport().getSum();
+            for (long uid : new long[]{UID_1, UID_2, UID_3}) {
+                container.validateUserState(uid, profile -> profileHashes.put(uid, profile.stateHash()), orders -> {
+                });
+            }
+        }
+
+        try (final ExchangeTestContainer container = new ExchangeTestContainer(stateId, mode)) {
+            assertThat(container.requestStateHash(), is(stateHash));
+            assertThat(container.totalBalanceReport().getSum(), is(balances));
+            for (long uid : new long[]{UID_1, UID_2, UID_3}) {
+                container.validateUserState(uid, profile -> assertThat(profile.stateHash(), is(profileHashes.get(uid))), orders -> {
+                });
+            }
+
+            // restored profiles are updated by trade
+            container.submitCommandSync(ApiPlaceOrder.builder().uid(UID_1).id(102).price(1500).size(3)
+                    .action(ASK).orderType(OrderType.IOC).symbol(SYMBOL_MARGIN).build(), cmd -> {
+                assertThat(cmd.resultCode, is(CommandResultCode.SUCCESS));
+                final List<MatcherTradeEvent> events = cmd.extractEvents();
+                assertThat(events.size(), is(1));
+                assertThat(events.get(0).matchedOrderUid, is(UID_3));
+                assertThat(events.get(0).price, is(1550L));
+                assertThat(events.get(0).size, is(3L));
+            });
+
+            container.validateUserState(
+                    UID_1,
+                    profile -> {
+                        assertThat(profile.positions.get(SYMBOL_MARGIN).direction, is(PositionDirection.SHORT));
+                        assertThat(profile.positions.get(SYMBOL_MARGIN).openVolume, is(5L));
+                    },
+                    orders -> assertThat(orders.keySet(), is(Collections.singleton(101L))));
+
+            container.validateUserState(
+                    UID_3,
+                    profile -> {
+                        assertThat(profile.positions.get(SYMBOL_MARGIN).direction, is(PositionDirection.LONG));
+                        assertThat(profile.positions.get(SYMBOL_MARGIN).openVolume, is(3L));
+                    },
+                    orders -> assertTrue(orders.isEmpty()));
+
+            assertThat(container.totalBalanceReport().getSum(), is(balances));
+        }
+    }
 
     // TODO count/verify number of commands and events
     private void basicFullCycleTest(final CoreSymbolSpecification symbolSpec) throws Exception {
 
-        try (final ExchangeTestContainer container = new ExchangeTestContainer()) {
+        try (final ExchangeTestContainer container = new ExchangeTestContainer(mode)) {
             container.initBasicSymbols();
             container.initBasicUsers();
 
@@ -180,7 +267,7 @@ public final class ITExchangeCoreIntegration {
     @Test(timeout = 30_000)
     public void exchangeRiskBasicTest() throws Exception {
 
-        try (final ExchangeTestContainer container = new ExchangeTestContainer()) {
+        try (final ExchangeTestContainer container = new ExchangeTestContainer(mode)) {
             container.initBasicSymbols();
             container.createUserWithMoney(UID_1, CURRENECY_XBT, 2_000_000); // 2M satoshi (0.02 BTC)
 
@@ -273,7 +360,7 @@ public final class ITExchangeCoreIntegration {
     @Test(timeout = 30_000)
     public void exchangeRiskMoveTest() throws Exception {
 
-        try (final ExchangeTestContainer container = new ExchangeTestContainer()) {
+        try (final ExchangeTestContainer container = new ExchangeTestContainer(mode)) {
             container.initBasicSymbols();
             container.createUserWithMoney(UID_1, CURRENECY_ETH, 100_000_000); // 100M szabo (100 ETH)
 
@@ -523,7 +610,7 @@ public final class ITExchangeCoreIntegration {
     @Test(timeout = 10_000)
     public void exchangeCancelBid() throws Exception {
 
-        try (final ExchangeTestContainer container = new ExchangeTestContainer()) {
+        try (final ExchangeTestContainer container = new ExchangeTestContainer(mode)) {
             container.initBasicSymbols();
 
             // create user
@@ -569,6 +656,606 @@ public final class ITExchangeCoreIntegration {
         }
     }
 
+    @Test(timeout = 10_000)
+    public void exchangeMassCancel() throws Exception {
+
+        try (final ExchangeTestContainer container = new ExchangeTestContainer(mode)) {
+            container.initBasicSymbols();
+
+            container.createUserWithMoney(UID_2, CURRENECY_XBT, 94_000_000); // 94M satoshi (0.94 BTC)
+            container.submitCommandSync(ApiAdjustUserBalance.builder().uid(UID_2).currency(CURRENECY_ETH).amount(100_000_000).transactionId(2L).build(), CHECK_SUCCESS);
+
+            container.submitCommandSync(
+                    ApiPlaceOrder.builder().uid(UID_2).id(203).price(18_000).reservePrice(18_500).size(500).action(OrderAction.BID).orderType(GTC).symbol(SYMBOL_EXCHANGE).build(),
+                    CHECK_SUCCESS);
+            container.submitCommandSync(
+                    ApiPlaceOrder.builder().uid(UID_2).id(204).price(20_000).size(300).action(ASK).orderType(GTC).symbol(SYMBOL_EXCHANGE).build(),
+                    CHECK_SUCCESS);
+
+            container.validateUserState(
+                    UID_2,
+                    userProfile -> {
+                        assertThat(userProfile.accounts.get(CURRENECY_XBT), is(94_000_000L - 18_500 * 500 * SYMBOLSPEC_ETH_XBT.getQuoteScaleK()));
+                        assertThat(userProfile.accounts.get(CURRENECY_ETH), is(100_000_000L - 300 * SYMBOLSPEC_ETH_XBT.getBaseScaleK()));
+                    },
+                    orders -> assertThat(orders.size(), is(2)));
+
+            // cancel all orders of the user in all symbols
+            container.submitCommandSync(
+                    ApiMassCancel.builder().uid(UID_2).symbol(-1).build(),
+                    cmd -> {
+                        assertThat(cmd.resultCode, is(CommandResultCode.SUCCESS));
+                        assertThat(cmd.command, is(OrderCommandType.MASS_CANCEL));
+                        assertThat(cmd.extractEvents().size(), is(2));
+                    });
+
+            // verify that all funds were returned back
+            container.validateUserState(
+                    UID_2,
+                    userProfile -> {
+                        assertThat(userProfile.accounts.get(CURRENECY_XBT), is(94_000_000L));
+                        assertThat(userProfile.accounts.get(CURRENECY_ETH), is(100_000_000L));
+                    },
+                    orders -> assertTrue(orders.isEmpty()));
+        }
+    }
+
+    @Test(timeout = 10_000)
+    public void exchangeQuote() throws Exception {
+
+        try (final ExchangeTestContainer container = new ExchangeTestContainer(mode)) {
+            container.initBasicSymbols();
+
+            container.createUserWithMoney(UID_2, CURRENECY_XBT, 200_000_000); // 200M satoshi (2 BTC)
+            container.submitCommandSync(ApiAdjustUserBalance.builder().uid(UID_2).currency(CURRENECY_ETH).amount(100_000_000).transactionId(2L).build(), CHECK_SUCCESS);
+
+            final long quoteScale = SYMBOLSPEC_ETH_XBT.getQuoteScaleK();
+            final long baseScale = SYMBOLSPEC_ETH_XBT.getBaseScaleK();
+
+            container.submitCommandSync(
+                    ApiQuote.builder().uid(UID_2).symbol(SYMBOL_EXCHANGE)
+                            .bidId(301).bidPrice(18_000).bidReservePrice(18_500).bidSize(500)
+                            .askId(302).askPrice(20_000).askSize(300).build(),
+                    cmd -> {
+                        assertThat(cmd.resultCode, is(CommandResultCode.SUCCESS));
+                        assertThat(cmd.command, is(OrderCommandType.QUOTE));
+                        assertNull(cmd.matcherEvent);
+                    });
+
+            container.validateUserState(
+                    UID_2,
+                    userProfile -> {
+                        assertThat(userProfile.accounts.get(CURRENECY_XBT), is(200_000_000L - 18_500 * 500 * quoteScale));
+                        assertThat(userProfile.accounts.get(CURRENECY_ETH), is(100_000_000L - 300 * baseScale));
+                    },
+                    orders -> {
+                        assertThat(orders.size(), is(2));
+                        assertThat(orders.get(301L).action, is(OrderAction.BID));
+                        assertThat(orders.get(302L).action, is(ASK));
+                    });
+
+            // replace quote - previous holds are released
+            container.submitCommandSync(
+                    ApiQuote.builder().uid(UID_2).symbol(SYMBOL_EXCHANGE)
+                            .bidId(301).bidPrice(18_100).bidReservePrice(18_100).bidSize(400)
+                            .askId(302).askPrice(19_900).askSize(200).build(),
+                    cmd -> {
+                        assertThat(cmd.resultCode, is(CommandResultCode.SUCCESS));
+                        assertThat(cmd.extractEvents().size(), is(2));
+                    });
+
+            container.validateUserState(
+                    UID_2,
+                    userProfile -> {
+                        assertThat(userProfile.accounts.get(CURRENECY_XBT), is(200_000_000L - 18_100 * 400 * quoteScale));
+                        assertThat(userProfile.accounts.get(CURRENECY_ETH), is(100_000_000L - 200 * baseScale));
+                    },
+                    orders -> {
+                        assertThat(orders.get(301L).price, is(18_100L));
+                        assertThat(orders.get(302L).price, is(19_900L));
+                    });
+
+            // not enough funds for bid side - whole quote is rejected, previous quote remains
+            container.submitCommandSync(
+                    ApiQuote.builder().uid(UID_2).symbol(SYMBOL_EXCHANGE)
+                            .bidId(301).bidPrice(18_500).bidReservePrice(18_500).bidSize(2000)
+                            .askId(302).askPrice(19_800).askSize(200).build(),
+                    cmd -> assertThat(cmd.resultCode, is(CommandResultCode.RISK_NSF)));
+
+            container.validateUserState(
+                    UID_2,
+                    userProfile -> {
+                        assertThat(userProfile.accounts.get(CURRENECY_XBT), is(200_000_000L - 18_100 * 400 * quoteScale));
+                        assertThat(userProfile.accounts.get(CURRENECY_ETH), is(100_000_000L - 200 * baseScale));
+                    },
+                    orders -> assertThat(orders.get(302L).price, is(19_900L)));
+
+            // previous quote hold is not netted (previous quote can be traded before it is cancelled),
+            // so account should cover both previous and new quotes
+            container.submitCommandSync(
+                    ApiQuote.builder().uid(UID_2).symbol(SYMBOL_EXCHANGE)
+                            .bidId(303).bidPrice(18_000).bidReservePrice(18_000).bidSize(1000)
+                            .askId(304).askPrice(19_700).askSize(900).build(),
+                    cmd -> assertThat(cmd.resultCode, is(CommandResultCode.RISK_NSF)));
+
+            // replace quote using new order ids - previous orders are cancelled and their holds are released
+            container.submitCommandSync(
+                    ApiQuote.builder().uid(UID_2).symbol(SYMBOL_EXCHANGE)
+                            .bidId(303).bidPrice(18_000).bidReservePrice(18_000).bidSize(600)
+                            .askId(304).askPrice(19_700).askSize(500).build(),
+                    cmd -> {
+                        assertThat(cmd.resultCode, is(CommandResultCode.SUCCESS));
+                        assertThat(cmd.extractEvents().size(), is(2));
+                    });
+
+            container.validateUserState(
+                    UID_2,
+                    userProfile -> {
+                        assertThat(userProfile.accounts.get(CURRENECY_XBT), is(200_000_000L - 18_000 * 600 * quoteScale));
+                        assertThat(userProfile.accounts.get(CURRENECY_ETH), is(100_000_000L - 500 * baseScale));
+                    },
+                    orders -> {
+                        assertThat(orders.size(), is(2));
+                        assertThat(orders.get(303L).size, is(600L));
+                        assertThat(orders.get(304L).size, is(500L));
+                    });
+        }
+    }
+
+    @Test(timeout = 10_000)
+    public void exchangeStopOrders() throws Exception {
+
+        try (final ExchangeTestContainer container = new ExchangeTestContainer(mode)) {
+            container.initBasicSymbols();
+
+            final long quoteScale = SYMBOLSPEC_ETH_XBT.getQuoteScaleK();
+            final long baseScale = SYMBOLSPEC_ETH_XBT.getBaseScaleK();
+
+            container.createUserWithMoney(UID_1, CURRENECY_ETH, 100_000_000);
+            container.createUserWithMoney(UID_2, CURRENECY_XBT, 94_000_000);
+
+            // stop-limit order holds funds same way as regular limit order
+            container.submitCommandSync(
+                    ApiPlaceOrder.builder().uid(UID_2).id(301).price(20_100).reservePrice(20_100).stopPrice(20_000).size(200)
+                            .action(OrderAction.BID).orderType(OrderType.STOP_LIMIT).symbol(SYMBOL_EXCHANGE).build(),
+                    cmd -> {
+                        assertThat(cmd.resultCode, is(CommandResultCode.SUCCESS));
+                        assertNull(cmd.matcherEvent);
+                    });
+
+            container.validateUserState(
+                    UID_2,
+                    userProfile -> assertThat(userProfile.accounts.get(CURRENECY_XBT), is(94_000_000L - 20_100 * 200 * quoteScale)),
+                    orders -> assertThat(orders.get(301L).price, is(20_100L)));
+
+            container.submitCommandSync(
+                    ApiPlaceOrder.builder().uid(UID_1).id(101).price(20_000).size(300).action(ASK).orderType(GTC).symbol(SYMBOL_EXCHANGE).build(),
+                    CHECK_SUCCESS);
+
+            // trade at 20,000 triggers stop order within the same command
+            container.submitCommandSync(
+                    ApiPlaceOrder.builder().uid(UID_2).id(302).price(20_000).reservePrice(20_000).size(50)
+                            .action(OrderAction.BID).orderType(OrderType.IOC).symbol(SYMBOL_EXCHANGE).build(),
+                    cmd -> {
+                        assertThat(cmd.resultCode, is(CommandResultCode.SUCCESS));
+                        final List<MatcherTradeEvent> events = cmd.extractEvents();
+                        assertThat(events.size(), is(2));
+                        assertThat(events.get(0).activeOrderId, is(302L));
+                        assertThat(events.get(1).activeOrderId, is(301L));
+                        assertThat(events.get(1).size, is(200L));
+                        assertThat(events.get(1).bidderHoldPrice, is(20_100L));
+                    });
+
+            // stop order is matched at 20,000 - difference is released
+            container.validateUserState(
+                    UID_2,
+                    userProfile -> {
+                        assertThat(userProfile.accounts.get(CURRENECY_XBT), is(94_000_000L - 20_000 * 250 * quoteScale));
+                        assertThat(userProfile.accounts.get(CURRENECY_ETH), is(250 * baseScale));
+                    },
+                    orders -> assertTrue(orders.isEmpty()));
+
+            container.validateUserState(
+                    UID_1,
+                    userProfile -> assertThat(userProfile.accounts.get(CURRENECY_XBT), is(20_000 * 250 * quoteScale)),
+                    orders -> assertThat(orders.get(101L).filled, is(250L)));
+
+            // pending stop order is cancelled with hold release
+            container.submitCommandSync(
+                    ApiPlaceOrder.builder().uid(UID_2).id(303).price(25_000).reservePrice(25_000).stopPrice(25_000).size(10)
+                            .action(OrderAction.BID).orderType(OrderType.STOP).symbol(SYMBOL_EXCHANGE).build(),
+                    CHECK_SUCCESS);
+
+            assertThat(container.totalBalanceReport().getSum().get(CURRENECY_XBT), is(94_000_000L));
+
+            container.submitCommandSync(
+                    ApiCancelOrder.builder().id(303).uid(UID_2).symbol(SYMBOL_EXCHANGE).build(),
+                    cmd -> {
+                        assertThat(cmd.resultCode, is(CommandResultCode.SUCCESS));
+                        assertThat(cmd.matcherEvent.eventType, is(MatcherEventType.CANCEL));
+                        assertThat(cmd.matcherEvent.bidderHoldPrice, is(25_000L));
+                    });
+
+            container.validateUserState(
+                    UID_2,
+                    userProfile -> assertThat(userProfile.accounts.get(CURRENECY_XBT), is(94_000_000L - 20_000 * 250 * quoteScale)),
+                    orders -> assertTrue(orders.isEmpty()));
+        }
+    }
+
+    @Test(timeout = 10_000)
+    public void marginCheckIncludesAllPositionsOfCurrency() throws Exception {
+
+        try (final ExchangeTestContainer container = new ExchangeTestContainer(mode)) {
+            container.initBasicSymbols();
+
+            // second futures contract quoted in USD
+            final int symbolGbpUsd = SYMBOL_MARGIN + 1;
+            container.addSymbol(CoreSymbolSpecification.builder()
+                    .symbolId(symbolGbpUsd)
+                    .type(SymbolType.FUTURES_CONTRACT)
+                    .baseCurrency(CURRENECY_GBP)
+                    .quoteCurrency(CURRENECY_USD)
+                    .baseScaleK(1)
+                    .quoteScaleK(1)
+                    .marginBuy(1000)
+                    .marginSell(1000)
+                    .build());
+
+            container.createUserWithMoney(UID_1, CURRENECY_USD, 100_000);
+
+            // EUR/USD margin 30 * 2200 = 66000
+            container.submitCommandSync(ApiPlaceOrder.builder().uid(UID_1).id(101).price(1_500).size(30)
+                    .action(OrderAction.BID).orderType(GTC).symbol(SYMBOL_MARGIN).build(), CHECK_SUCCESS);
+
+            // GBP/USD 40 * 1000 = 40000 is more than 100000 - 66000
+            container.submitCommandSync(ApiPlaceOrder.builder().uid(UID_1).id(102).price(1_300).size(40)
+                    .action(OrderAction.BID).orderType(GTC).symbol(symbolGbpUsd).build(), cmd -> {
+                assertThat(cmd.resultCode, is(CommandResultCode.RISK_NSF));
+            });
+
+            container.submitCommandSync(ApiPlaceOrder.builder().uid(UID_1).id(103).price(1_300).size(30)
+                    .action(OrderAction.BID).orderType(GTC).symbol(symbolGbpUsd).build(), CHECK_SUCCESS);
+
+            // margin of other symbol is released after cancel
+            container.submitCommandSync(ApiCancelOrder.builder().id(101).uid(UID_1).symbol(SYMBOL_MARGIN).build(), CHECK_SUCCESS);
+
+            container.submitCommandSync(ApiPlaceOrder.builder().uid(UID_1).id(104).price(1_300).size(40)
+                    .action(OrderAction.BID).orderType(GTC).symbol(symbolGbpUsd).build(), CHECK_SUCCESS);
+
+            // EUR/USD 20 * 2200 = 44000 is more than 100000 - 70000
+            container.submitCommandSync(ApiPlaceOrder.builder().uid(UID_1).id(105).price(1_500).size(20)
+                    .action(OrderAction.BID).orderType(GTC).symbol(SYMBOL_MARGIN).build(), cmd -> {
+                assertThat(cmd.resultCode, is(CommandResultCode.RISK_NSF));
+            });
+
+            // reducing exposure is always allowed
+            container.submitCommandSync(ApiPlaceOrder.builder().uid(UID_1).id(106).price(1_400).size(10)
+                    .action(ASK).orderType(GTC).symbol(symbolGbpUsd).build(), CHECK_SUCCESS);
+
+            container.validateUserState(
+                    UID_1,
+                    userProfile -> {
+                        assertThat(userProfile.accounts.get(CURRENECY_USD), is(100_000L));
+                        assertThat(userProfile.positions.get(symbolGbpUsd).pendingBuySize, is(70L));
+                        assertNull(userProfile.positions.get(SYMBOL_MARGIN));
+                    },
+                    orders -> assertThat(orders.size(), is(3)));
+        }
+    }
+
+    @Test(timeout = 10_000)
+    public void marginCheckUsesLastPriceOfOtherPositions() throws Exception {
+
+        try (final ExchangeTestContainer container = new ExchangeTestContainer(mode)) {
+            container.initBasicSymbols();
+
+            final int symbolGbpUsd = SYMBOL_MARGIN + 1;
+            container.addSymbol(CoreSymbolSpecification.builder()
+                    .symbolId(symbolGbpUsd)
+                    .type(SymbolType.FUTURES_CONTRACT)
+                    .baseCurrency(CURRENECY_GBP)
+                    .quoteCurrency(CURRENECY_USD)
+                    .baseScaleK(1)
+                    .quoteScaleK(1)
+                    .marginBuy(1000)
+                    .marginSell(1000)
+                    .build());
+
+            container.createUserWithMoney(UID_1, CURRENECY_USD, 100_000);
+            container.createUserWithMoney(UID_2, CURRENECY_USD, 10_000_000);
+
+            // UID_1 opens GBP/USD long position 10 @ 1300 (margin 10000)
+            container.submitCommandSync(ApiPlaceOrder.builder().uid(UID_2).id(201).price(1_300).size(10)
+                    .action(ASK).orderType(GTC).symbol(symbolGbpUsd).build(), CHECK_SUCCESS);
+            container.submitCommandSync(ApiPlaceOrder.builder().uid(UID_1).id(101).price(1_300).reservePrice(1_300).size(10)
+                    .action(OrderAction.BID).orderType(OrderType.IOC).symbol(symbolGbpUsd).build(), CHECK_SUCCESS);
+
+            // GBP/USD bid 1290: P&L -100, free margin -10100
+            setGbpUsdBid(container, symbolGbpUsd, 202, 1_290);
+
+            // EUR/USD 41 * 2200 = 90200 is more than 100000 - 10100
+            container.submitCommandSync(ApiPlaceOrder.builder().uid(UID_1).id(102).price(1_500).size(41)
+                    .action(OrderAction.BID).orderType(GTC).symbol(SYMBOL_MARGIN).build(), cmd -> {
+                assertThat(cmd.resultCode, is(CommandResultCode.RISK_NSF));
+            });
+
+            // GBP/USD bid 1000: P&L -3000, free margin -13000 - EUR/USD 40 * 2200 = 88000 is more than 100000 - 13000
+            container.submitCommandSync(ApiCancelOrder.builder().id(202).uid(UID_2).symbol(symbolGbpUsd).build(), CHECK_SUCCESS);
+            setGbpUsdBid(container, symbolGbpUsd, 203, 1_000);
+            container.submitCommandSync(ApiPlaceOrder.builder().uid(UID_1).id(103).price(1_500).size(40)
+                    .action(OrderAction.BID).orderType(GTC).symbol(SYMBOL_MARGIN).build(), cmd -> {
+                assertThat(cmd.resultCode, is(CommandResultCode.RISK_NSF));
+            });
+
+            // GBP/USD bid 1400: P&L +1000, free margin -9000 - EUR/USD 41 * 2200 = 90200 fits into 100000 - 9000
+            container.submitCommandSync(ApiCancelOrder.builder().id(203).uid(UID_2).symbol(symbolGbpUsd).build(), CHECK_SUCCESS);
+            setGbpUsdBid(container, symbolGbpUsd, 204, 1_400);
+            container.submitCommandSync(ApiPlaceOrder.builder().uid(UID_1).id(104).price(1_500).size(41)
+                    .action(OrderAction.BID).orderType(GTC).symbol(SYMBOL_MARGIN).build(), CHECK_SUCCESS);
+
+            container.validateUserState(
+                    UID_1,
+                    userProfile -> {
+                        assertThat(userProfile.accounts.get(CURRENECY_USD), is(100_000L));
+                        assertThat(userProfile.positions.get(symbolGbpUsd).openVolume, is(10L));
+                        assertThat(userProfile.positions.get(SYMBOL_MARGIN).pendingBuySize, is(41L));
+                    },
+                    orders -> assertThat(orders.size(), is(1)));
+        }
+    }
+
+    // last price is published to risk engine periodically, with the first command after L2 publishing interval
+    private static void setGbpUsdBid(final ExchangeTestContainer container, final int symbol, final long orderId, final long price) throws InterruptedException {
+        Thread.sleep(20);
+        container.submitCommandSync(ApiPlaceOrder.builder().uid(UID_2).id(orderId).price(price).size(5)
+                .action(OrderAction.BID).orderType(GTC).symbol(symbol).build(), CHECK_SUCCESS);
+    }
+
+    @Test(timeout = 10_000)
+    public void exchangeTradesSummary() throws Exception {
+
+        try (final ExchangeTestContainer container = new ExchangeTestContainer(mode)) {
+            container.addSymbol(CoreSymbolSpecification.builder()
+                    .symbolId(SYMBOL_EXCHANGE)
+                    .type(SymbolType.CURRENCY_EXCHANGE_PAIR)
+                    .baseCurrency(CURRENECY_ETH)
+                    .quoteCurrency(CURRENECY_XBT)
+                    .baseScaleK(100_000)
+                    .quoteScaleK(10)
+                    .aggregateTrades(true)
+                    .build());
+
+            container.createUserWithMoney(UID_1, CURRENECY_ETH, 100_000_000);
+            container.createUserWithMoney(UID_2, CURRENECY_XBT, 94_000_000);
+
+            for (int i = 0; i < 10; i++) {
+                container.submitCommandSync(ApiPlaceOrder.builder().uid(UID_1).id(101 + i).price(20_000 + (i / 5) * 100).size(3)
+                        .action(ASK).orderType(GTC).symbol(SYMBOL_EXCHANGE).build(), cmd -> {
+                    assertThat(cmd.resultCode, is(CommandResultCode.SUCCESS));
+                    assertNull(cmd.tradesSummary);
+                });
+            }
+
+            container.submitCommandSync(ApiPlaceOrder.builder().uid(UID_2).id(401).price(20_100).reservePrice(20_100).size(25)
+                    .action(OrderAction.BID).orderType(GTC).symbol(SYMBOL_EXCHANGE).build(), cmd -> {
+                assertThat(cmd.resultCode, is(CommandResultCode.SUCCESS));
+                assertThat(cmd.extractEvents().size(), is(9));
+                final TradesSummary summary = cmd.tradesSummary;
+                assertThat(summary.size, is(2));
+                assertThat(summary.prices[0], is(20_000L));
+                assertThat(summary.volumes[0], is(15L));
+                assertThat(summary.makersNum[0], is(5));
+                assertThat(summary.prices[1], is(20_100L));
+                assertThat(summary.volumes[1], is(10L));
+                assertThat(summary.makersNum[1], is(4));
+            });
+        }
+    }
+
+    @Test(timeout = 10_000)
+    public void exchangeCallAuction() throws Exception {
+
+        try (final ExchangeTestContainer container = new ExchangeTestContainer(mode)) {
+            container.initBasicSymbols();
+
+            final long quoteScale = SYMBOLSPEC_ETH_XBT.getQuoteScaleK();
+            final long baseScale = SYMBOLSPEC_ETH_XBT.getBaseScaleK();
+
+            container.createUserWithMoney(UID_1, CURRENECY_ETH, 100_000_000);
+            container.createUserWithMoney(UID_2, CURRENECY_XBT, 94_000_000);
+
+            container.submitCommandSync(ApiStartAuction.builder().symbol(SYMBOL_EXCHANGE).build(), CHECK_SUCCESS);
+
+            // crossing orders are collected without matching
+            container.submitCommandSync(ApiPlaceOrder.builder().uid(UID_2).id(401).price(20_000).reservePrice(21_000).size(30)
+                    .action(OrderAction.BID).orderType(GTC).symbol(SYMBOL_EXCHANGE).build(), cmd -> {
+                assertThat(cmd.resultCode, is(CommandResultCode.SUCCESS));
+                assertNull(cmd.matcherEvent);
+            });
+            container.submitCommandSync(ApiPlaceOrder.builder().uid(UID_1).id(101).price(19_500).size(10)
+                    .action(ASK).orderType(GTC).symbol(SYMBOL_EXCHANGE).build(), cmd -> {
+                assertThat(cmd.resultCode, is(CommandResultCode.SUCCESS));
+                assertNull(cmd.matcherEvent);
+            });
+            container.submitCommandSync(ApiPlaceOrder.builder().uid(UID_1).id(102).price(20_000).size(20)
+                    .action(ASK).orderType(GTC).symbol(SYMBOL_EXCHANGE).build(), CHECK_SUCCESS);
+
+            container.validateUserState(
+                    UID_2,
+                    userProfile -> assertThat(userProfile.accounts.get(CURRENECY_XBT), is(94_000_000L - 21_000 * 30 * quoteScale)),
+                    orders -> assertThat(orders.size(), is(1)));
+
+            // all orders are executed at equilibrium price
+            container.submitCommandSync(ApiUncross.builder().symbol(SYMBOL_EXCHANGE).build(), cmd -> {
+                assertThat(cmd.resultCode, is(CommandResultCode.SUCCESS));
+                final List<MatcherTradeEvent> events = cmd.extractEvents();
+                assertThat(events.size(), is(2));
+                assertTrue(events.stream().allMatch(evt -> evt.eventType == MatcherEventType.TRADE && evt.price == 20_000));
+                assertThat(events.stream().mapToLong(evt -> evt.size).sum(), is(30L));
+            });
+
+            container.validateUserState(
+                    UID_2,
+                    userProfile -> {
+                        assertThat(userProfile.accounts.get(CURRENECY_XBT), is(94_000_000L - 20_000 * 30 * quoteScale));
+                        assertThat(userProfile.accounts.get(CURRENECY_ETH), is(30 * baseScale));
+                    },
+                    orders -> assertTrue(orders.isEmpty()));
+
+            container.validateUserState(
+                    UID_1,
+                    userProfile -> assertThat(userProfile.accounts.get(CURRENECY_XBT), is(20_000 * 30 * quoteScale)),
+                    orders -> assertTrue(orders.isEmpty()));
+
+            // continuous trading again
+            container.submitCommandSync(ApiPlaceOrder.builder().uid(UID_1).id(103).price(20_000).size(5)
+                    .action(ASK).orderType(GTC).symbol(SYMBOL_EXCHANGE).build(), CHECK_SUCCESS);
+            container.submitCommandSync(ApiPlaceOrder.builder().uid(UID_2).id(402).price(20_000).reservePrice(20_000).size(5)
+                    .action(OrderAction.BID).orderType(OrderType.IOC).symbol(SYMBOL_EXCHANGE).build(), cmd -> {
+                assertThat(cmd.resultCode, is(CommandResultCode.SUCCESS));
+                assertThat(cmd.matcherEvent.eventType, is(MatcherEventType.TRADE));
+            });
+        }
+    }
+
+    @Test(timeout = 10_000)
+    public void exchangeGtdOrders() throws Exception {
+
+        try (final ExchangeTestContainer container = new ExchangeTestContainer(mode)) {
+            container.initBasicSymbols();
+
+            final long quoteScale = SYMBOLSPEC_ETH_XBT.getQuoteScaleK();
+
+            container.createUserWithMoney(UID_1, CURRENECY_ETH, 100_000_000);
+            container.createUserWithMoney(UID_2, CURRENECY_XBT, 94_000_000);
+
+            final ApiPlaceOrder gtdOrder = ApiPlaceOrder.builder().uid(UID_2).id(401).price(20_000).reservePrice(20_000).size(100)
+                    .action(OrderAction.BID).orderType(OrderType.GTD).expireTime(5_000).symbol(SYMBOL_EXCHANGE).build();
+            gtdOrder.timestamp = 1_000;
+            container.submitCommandSync(gtdOrder, CHECK_SUCCESS);
+
+            final ApiPlaceOrder askOrder = ApiPlaceOrder.builder().uid(UID_1).id(101).price(20_000).size(30)
+                    .action(ASK).orderType(GTC).symbol(SYMBOL_EXCHANGE).build();
+            askOrder.timestamp = 2_000;
+            container.submitCommandSync(askOrder, cmd -> {
+                assertThat(cmd.resultCode, is(CommandResultCode.SUCCESS));
+                assertThat(cmd.matcherEvent.eventType, is(MatcherEventType.TRADE));
+                assertThat(cmd.matcherEvent.matchedOrderId, is(401L));
+            });
+
+            // heartbeat before expiration time
+            final ApiNoOp heartbeat1 = ApiNoOp.builder().build();
+            heartbeat1.timestamp = 4_999;
+            container.submitCommandSync(heartbeat1, cmd -> {
+                assertThat(cmd.resultCode, is(CommandResultCode.SUCCESS));
+                assertNull(cmd.matcherEvent);
+            });
+
+            container.validateUserState(
+                    UID_2,
+                    userProfile -> assertThat(userProfile.accounts.get(CURRENECY_XBT), is(94_000_000L - 20_000 * 100 * quoteScale)),
+                    orders -> assertThat(orders.get(401L).filled, is(30L)));
+
+            // heartbeat reaching expiration time - remaining part is cancelled, hold released
+            final ApiNoOp heartbeat2 = ApiNoOp.builder().build();
+            heartbeat2.timestamp = 5_000;
+            container.submitCommandSync(heartbeat2, cmd -> {
+                assertThat(cmd.resultCode, is(CommandResultCode.SUCCESS));
+                final List<MatcherTradeEvent> events = cmd.extractEvents();
+                assertThat(events.size(), is(1));
+                assertThat(events.get(0).eventType, is(MatcherEventType.CANCEL));
+                assertThat(events.get(0).activeOrderId, is(401L));
+                assertThat(events.get(0).size, is(70L));
+            });
+
+            container.validateUserState(
+                    UID_2,
+                    userProfile -> assertThat(userProfile.accounts.get(CURRENECY_XBT), is(94_000_000L - 20_000 * 30 * quoteScale)),
+                    orders -> assertTrue(orders.isEmpty()));
+
+            // already expired order is cancelled by the same command
+            final ApiPlaceOrder expiredOrder = ApiPlaceOrder.builder().uid(UID_2).id(402).price(19_000).reservePrice(19_000).size(10)
+                    .action(OrderAction.BID).orderType(OrderType.GTD).expireTime(5_500).symbol(SYMBOL_EXCHANGE).build();
+            expiredOrder.timestamp = 6_000;
+            container.submitCommandSync(expiredOrder, cmd -> {
+                assertThat(cmd.resultCode, is(CommandResultCode.SUCCESS));
+                assertThat(cmd.matcherEvent.eventType, is(MatcherEventType.CANCEL));
+                assertThat(cmd.matcherEvent.activeOrderId, is(402L));
+                assertNull(cmd.matcherEvent.nextEvent);
+            });
+
+            // cancelled order is not expired later
+            final ApiPlaceOrder cancelledOrder = ApiPlaceOrder.builder().uid(UID_2).id(403).price(19_000).reservePrice(19_000).size(10)
+                    .action(OrderAction.BID).orderType(OrderType.GTD).expireTime(8_000).symbol(SYMBOL_EXCHANGE).build();
+            cancelledOrder.timestamp = 7_000;
+            container.submitCommandSync(cancelledOrder, CHECK_SUCCESS);
+            container.submitCommandSync(ApiCancelOrder.builder().id(403).uid(UID_2).symbol(SYMBOL_EXCHANGE).build(), CHECK_SUCCESS);
+
+            final ApiNoOp heartbeat3 = ApiNoOp.builder().build();
+            heartbeat3.timestamp = 9_000;
+            container.submitCommandSync(heartbeat3, cmd -> assertNull(cmd.matcherEvent));
+
+            container.validateUserState(
+                    UID_2,
+                    userProfile -> assertThat(userProfile.accounts.get(CURRENECY_XBT), is(94_000_000L - 20_000 * 30 * quoteScale)),
+                    orders -> assertTrue(orders.isEmpty()));
+
+            assertThat(container.totalBalanceReport().getSum().get(CURRENECY_XBT), is(94_000_000L));
+        }
+    }
+
+    @Test(timeout = 10_000)
+    public void exchangeL2DeltaFeed() throws Exception {
+
+        try (final ExchangeTestContainer container = new ExchangeTestContainer(mode)) {
+            container.initBasicSymbols();
+
+            container.createUserWithMoney(UID_2, CURRENECY_XBT, 200_000_000); // 200M satoshi (2 BTC)
+            container.submitCommandSync(ApiAdjustUserBalance.builder().uid(UID_2).currency(CURRENECY_ETH).amount(100_000_000).transactionId(2L).build(), CHECK_SUCCESS);
+
+            // both quote sides are published with the same sequence
+            container.submitCommandSync(
+                    ApiQuote.builder().uid(UID_2).symbol(SYMBOL_EXCHANGE)
+                            .bidId(301).bidPrice(18_000).bidReservePrice(18_500).bidSize(500)
+                            .askId(302).askPrice(20_000).askSize(300).build(),
+                    cmd -> {
+                        assertThat(cmd.resultCode, is(CommandResultCode.SUCCESS));
+                        final L2MarketDataDelta delta = cmd.marketDataDelta;
+                        assertThat(delta.sequence, is(1L));
+                        assertThat(delta.size, is(2));
+                        assertThat(delta.actions[0], is(ASK));
+                        assertThat(delta.prices[0], is(20_000L));
+                        assertThat(delta.volumes[0], is(300L));
+                        assertThat(delta.actions[1], is(OrderAction.BID));
+                        assertThat(delta.prices[1], is(18_000L));
+                        assertThat(delta.volumes[1], is(500L));
+                    });
+
+            // snapshot refers to the last applied change
+            assertThat(container.requestCurrentOrderBook(SYMBOL_EXCHANGE).referenceSeq, is(1L));
+
+            // rejected command does not change the order book
+            container.submitCommandSync(
+                    ApiCancelOrder.builder().id(999).uid(UID_2).symbol(SYMBOL_EXCHANGE).build(),
+                    cmd -> {
+                        assertThat(cmd.resultCode, is(CommandResultCode.MATCHING_UNKNOWN_ORDER_ID));
+                        assertNull(cmd.marketDataDelta);
+                    });
+
+            container.submitCommandSync(
+                    ApiCancelOrder.builder().id(302).uid(UID_2).symbol(SYMBOL_EXCHANGE).build(),
+                    cmd -> {
+                        assertThat(cmd.resultCode, is(CommandResultCode.SUCCESS));
+                        assertThat(cmd.marketDataDelta.sequence, is(2L));
+                        assertThat(cmd.marketDataDelta.size, is(1));
+                        assertThat(cmd.marketDataDelta.volumes[0], is(0L));
+                    });
+
+            assertThat(container.requestCurrentOrderBook(SYMBOL_EXCHANGE).referenceSeq, is(2L));
+        }
+    }
+
     @Test(timeout = 60_000)
     public void manyOperationsMargin() throws Exception {
 
@@ -582,7 +1269,7 @@ public final class ITExchangeCoreIntegration {
     }
 
     public void manyOperations(final CoreSymbolSpecification symbolSpec) throws Exception {
-        try (final ExchangeTestContainer container = new ExchangeTestContainer()) {
+        try (final ExchangeTestContainer container = new ExchangeTestContainer(mode)) {
             container.initBasicSymbols();
             //container.initBasicUsers();
 
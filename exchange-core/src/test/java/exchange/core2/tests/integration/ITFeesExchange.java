@@ -351,6 +351,71 @@ public final class ITFeesExchange {
 
     }
 
+    @Test(timeout = 10_000)
+    public void shouldProcessFees_AskGtcMaker_BidBudgetTaker() throws Exception {
+
+        try (final ExchangeTestContainer container = new ExchangeTestContainer()) {
+            container.initFeeSymbols();
+
+            final long btcAmount = 3_000_000_000L;
+            container.createUserWithMoney(UID_1, CURRENECY_XBT, btcAmount);
+
+            // two ASK GtC orders, 2,000 lots at 11,500 and 1,000 lots at 11,510
+            container.submitCommandSync(
+                    ApiPlaceOrder.builder().uid(UID_1).id(101L).price(11_500L).size(2000L).action(OrderAction.ASK).orderType(GTC).symbol(SYMBOL_EXCHANGE_FEE).build(),
+                    CommandResultCode.SUCCESS);
+            container.submitCommandSync(
+                    ApiPlaceOrder.builder().uid(UID_1).id(102L).price(11_510L).size(1000L).action(OrderAction.ASK).orderType(GTC).symbol(SYMBOL_EXCHANGE_FEE).build(),
+                    CommandResultCode.SUCCESS);
+
+            final long ltcAmount = 300_000_000_000L;
+            container.createUserWithMoney(UID_2, CURRENECY_LTC, ltcAmount);
+
+            // budget is enough for 2,000 lots at 11,500 plus 300 lots at 11,510 (and some change)
+            final long spent = (11_500L * step + takerFee) * 2000L + (11_510L * step + takerFee) * 300L;
+            final ApiPlaceOrder.ApiPlaceOrderBuilder budgetOrder = ApiPlaceOrder.builder()
+                    .uid(UID_2)
+                    .id(201L)
+                    .price(11_600L)
+                    .size(1_000_000L)
+                    .action(OrderAction.BID)
+                    .orderType(OrderType.IOC_BUDGET)
+                    .symbol(SYMBOL_EXCHANGE_FEE);
+
+            // budget exceeds account balance
+            container.submitCommandSync(budgetOrder.budget(ltcAmount + 1).build(), CommandResultCode.RISK_NSF);
+
+            container.submitCommandSync(budgetOrder.budget(spent + 1234L).build(), cmd -> {
+                assertThat(cmd.resultCode, is(CommandResultCode.SUCCESS));
+                // budget is spent - no rejection
+                assertThat(cmd.extractEvents().size(), is(2));
+            });
+
+            // maker
+            container.validateUserState(
+                    UID_1,
+                    userProfile -> {
+                        assertThat(userProfile.accounts.get(CURRENECY_XBT), is(0L));
+                        assertThat(userProfile.accounts.get(CURRENECY_LTC), is((11_500L * step - makerFee) * 2000L + (11_510L * step - makerFee) * 300L));
+                    },
+                    orders -> assertThat(orders.get(102L).filled, is(300L)));
+
+            // taker - exactly spent amount is taken, change is returned
+            container.validateUserState(
+                    UID_2,
+                    userProfile -> {
+                        assertThat(userProfile.accounts.get(CURRENECY_XBT), is(SYMBOLSPECFEE_XBT_LTC.baseScaleK * 2300L));
+                        assertThat(userProfile.accounts.get(CURRENECY_LTC), is(ltcAmount - spent));
+                    },
+                    orders -> assertTrue(orders.isEmpty()));
+
+            final TotalCurrencyBalanceReportResult totalBal = container.totalBalanceReport();
+            assertThat(totalBal.getSum().get(CURRENECY_LTC), is(ltcAmount));
+            assertThat(totalBal.getSum().get(CURRENECY_XBT), is(btcAmount));
+            assertThat(totalBal.getFees().get(CURRENECY_LTC), is((makerFee + takerFee) * 2300L));
+        }
+    }
+
     @Test(timeout = 10_000)
     public void shouldProcessFees_AskGtcMakerPartial_BidIocTaker() throws Exception {
 
@@ -17,6 +17,8 @@ package exchange.core2.tests.integration;
 
 import lombok.extern.slf4j.Slf4j;
 import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
 import exchange.core2.core.common.OrderAction;
 import exchange.core2.core.common.OrderType;
 import exchange.core2.core.common.PositionDirection;
@@ -25,6 +27,7 @@ import exchange.core2.core.common.api.ApiPlaceOrder;
 import exchange.core2.core.common.api.reports.TotalCurrencyBalanceReportResult;
 import exchange.core2.core.common.cmd.CommandResultCode;
 import exchange.core2.tests.util.ExchangeTestContainer;
+import exchange.core2.tests.util.ExchangeTestContainer.CoreMode;
 
 import static org.hamcrest.core.Is.is;
 import static org.junit.Assert.*;
@@ -36,8 +39,17 @@ import static exchange.core2.tests.util.TestConstants.*;
  */
 
 @Slf4j
+@RunWith(Parameterized.class)
 public final class ITFeesMargin {
 
+    @Parameterized.Parameters(name = "{0}")
+    public static CoreMode[] modes() {
+        return CoreMode.values();
+    }
+
+    @Parameterized.Parameter
+    public CoreMode mode;
+
     private final long makerFee = SYMBOLSPECFEE_USD_JPY.makerFee;
     private final long takerFee = SYMBOLSPECFEE_USD_JPY.takerFee;
     private final int symbolId = SYMBOLSPECFEE_USD_JPY.symbolId;
@@ -45,7 +57,7 @@ public final class ITFeesMargin {
     @Test(timeout = 10_000)
     public void shouldProcessFees_AskGtcMakerPartial_BidIocTaker() throws Exception {
 
-        try (final ExchangeTestContainer container = new ExchangeTestContainer()) {
+        try (final ExchangeTestContainer container = new ExchangeTestContainer(mode)) {
             container.addSymbol(SYMBOLSPECFEE_USD_JPY);
 
             final long jpyAmount1 = 240_000L;
@@ -133,7 +145,7 @@ public final class ITFeesMargin {
     @Test(timeout = 10_000)
     public void shouldProcessFees_BidGtcMakerPartial_AskIocTaker() throws Exception {
 
-        try (final ExchangeTestContainer container = new ExchangeTestContainer()) {
+        try (final ExchangeTestContainer container = new ExchangeTestContainer(mode)) {
             container.addSymbol(SYMBOLSPECFEE_USD_JPY);
 
             final long jpyAmount1 = 250_000L;
@@ -222,7 +234,7 @@ public final class ITFeesMargin {
     @Test(timeout = 10_000)
     public void shouldNotTakeFeesForCancelAsk() throws Exception {
 
-        try (final ExchangeTestContainer container = new ExchangeTestContainer()) {
+        try (final ExchangeTestContainer container = new ExchangeTestContainer(mode)) {
             container.addSymbol(SYMBOLSPECFEE_USD_JPY);
 
             final long jpyAmount1 = 240_000L;
@@ -0,0 +1,86 @@
+/*
+ * Copyright 2019 Maksim Zheravin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package exchange.core2.tests.perf;
+
+import exchange.core2.core.common.CompactUserAccounts;
+import exchange.core2.core.common.HashUserAccounts;
+import exchange.core2.core.common.IUserAccounts;
+import exchange.core2.core.common.cmd.CommandResultCode;
+import exchange.core2.core.processors.UserProfileService;
+import exchange.core2.tests.util.TestConstants;
+import lombok.extern.slf4j.Slf4j;
+import org.junit.Test;
+
+import java.util.function.Supplier;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+
+@Slf4j
+public final class PerfUserProfilesMemory {
+
+    /**
+     * Memory footprint of user profiles with different currency accounts implementations
+     * - 1M users
+     * - 2 currency accounts per user (USD, EUR), one funding transaction per account
+     * Run with -Xmx4g or more
+     */
+    @Test
+    public void testMemoryPerUser() {
+        final int usersNum = 1_000_000;
+
+        final long hashBytesPerUser = measureBytesPerUser(usersNum, HashUserAccounts::new);
+        final long compactBytesPerUser = measureBytesPerUser(usersNum, CompactUserAccounts::new);
+
+        log.info("Hash accounts: {} bytes/user, compact accounts: {} bytes/user (saving {}%)",
+                hashBytesPerUser, compactBytesPerUser, 100 - compactBytesPerUser * 100 / hashBytesPerUser);
+
+        assertThat(compactBytesPerUser, lessThan(hashBytesPerUser));
+    }
+
+    private static long measureBytesPerUser(final int usersNum, final Supplier<IUserAccounts> accountsFactory) {
+        final long before = usedMemory();
+
+        final UserProfileService service = new UserProfileService(accountsFactory);
+        for (long uid = 1; uid <= usersNum; uid++) {
+            service.addEmptyUserProfile(uid);
+            assertThat(service.balanceAdjustment(uid, TestConstants.CURRENECY_USD, 1_000_000L, uid * 2), is(CommandResultCode.SUCCESS));
+            assertThat(service.balanceAdjustment(uid, TestConstants.CURRENECY_EUR, 1_000_000L, uid * 2 + 1), is(CommandResultCode.SUCCESS));
+        }
+        service.stateHash();
+
+        final long used = usedMemory() - before;
+        log.debug("{} users: {} MiB", usersNum, used >> 20);
+
+        // keep service reachable until measured
+        assertThat(service.getUserProfiles().size(), is(usersNum));
+        return used / usersNum;
+    }
+
+    private static long usedMemory() {
+        final Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 5; i++) {
+            System.gc();
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
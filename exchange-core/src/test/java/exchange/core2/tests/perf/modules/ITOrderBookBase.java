@@ -119,6 +119,7 @@ public abstract class ITOrderBookBase {
                 OrderCommand workCmd = new OrderCommand();
                 for (OrderCommand cmd : orderCommands) {
                     cmd.writeTo(workCmd);
+                    workCmd.recycleMatcherEvents();
                     workCmd.resultCode = CommandResultCode.VALID_FOR_MATCHING_ENGINE;
                     IOrderBook.processCommand(orderBook, workCmd);
                 }
@@ -26,8 +26,12 @@ import exchange.core2.core.common.api.reports.*;
 import exchange.core2.core.common.cmd.CommandResultCode;
 import exchange.core2.core.common.cmd.OrderCommand;
 import exchange.core2.core.common.cmd.OrderCommandType;
+import exchange.core2.core.orderbook.IOrdersBucket.OrderBucketImplType;
+import exchange.core2.core.orderbook.OrderBookDirectImpl;
 import exchange.core2.core.orderbook.OrderBookFastImpl;
+import exchange.core2.core.orderbook.OrderBookNaiveImpl;
 import exchange.core2.core.processors.journalling.DiskSerializationProcessor;
+import lombok.AllArgsConstructor;
 import lombok.Setter;
 import lombok.extern.slf4j.Slf4j;
 import org.eclipse.collections.impl.map.mutable.primitive.IntLongHashMap;
@@ -56,6 +60,8 @@ public final class ExchangeTestContainer implements AutoCloseable {
     static final int MATCHING_ENGINES_ONE = 1;
     static final int MGS_IN_GROUP_LIMIT_DEFAULT = 128;
 
+    private static final String DUMPS_FOLDER = "./dumps";
+
 
     public final ExchangeCore exchangeCore;
     public final ExchangeApi api;
@@ -66,8 +72,35 @@ public final class ExchangeTestContainer implements AutoCloseable {
 
     public static final Consumer<OrderCommand> CHECK_SUCCESS = cmd -> assertEquals(CommandResultCode.SUCCESS, cmd.resultCode);
 
+    /**
+     * Core configurations covered by integration tests (applied over default configuration)
+     */
+    @AllArgsConstructor
+    public enum CoreMode {
+        DEFAULT(builder -> {
+        }),
+        SOA_BUCKETS(builder -> builder.orderBookFactory(symbolSpec -> new OrderBookFastImpl(OrderBookFastImpl.DEFAULT_HOT_WIDTH, symbolSpec, OrderBucketImplType.SOA))),
+        NAIVE_ORDER_BOOK(builder -> builder.orderBookFactory(OrderBookNaiveImpl::new)),
+        DIRECT_ORDER_BOOK(builder -> builder.orderBookFactory(OrderBookDirectImpl::new)),
+        COMPACT_ACCOUNTS(builder -> builder.userAccountsFactory(CompactUserAccounts::new)),
+        // user profiles snapshot is backed by memory-mapped store
+        PROFILES_STORE(builder -> builder.userProfilesStoreFolder(DUMPS_FOLDER)),
+        // only last accessed user profile is kept on heap, others are loaded from memory-mapped store
+        COLD_PROFILES(builder -> builder.userProfilesStoreFolder(DUMPS_FOLDER).userProfilesHotLimit(1));
+
+        private final Consumer<ExchangeCore.ExchangeCoreBuilder> configurer;
+    }
+
     public ExchangeTestContainer() {
-        this(RING_BUFFER_SIZE_DEFAULT, MATCHING_ENGINES_ONE, RISK_ENGINES_ONE, MGS_IN_GROUP_LIMIT_DEFAULT, null);
+        this(CoreMode.DEFAULT);
+    }
+
+    public ExchangeTestContainer(final CoreMode mode) {
+        this(RING_BUFFER_SIZE_DEFAULT, MATCHING_ENGINES_ONE, RISK_ENGINES_ONE, MGS_IN_GROUP_LIMIT_DEFAULT, null, mode);
+    }
+
+    public ExchangeTestContainer(final Long stateId, final CoreMode mode) {
+        this(RING_BUFFER_SIZE_DEFAULT, MATCHING_ENGINES_ONE, RISK_ENGINES_ONE, MGS_IN_GROUP_LIMIT_DEFAULT, stateId, mode);
     }
 
     public ExchangeTestContainer(final int bufferSize,
@@ -75,10 +108,19 @@ public final class ExchangeTestContainer implements AutoCloseable {
                                  final int riskEnginesNum,
                                  final int msgsInGroupLimit,
                                  final Long stateId) {
+        this(bufferSize, matchingEnginesNum, riskEnginesNum, msgsInGroupLimit, stateId, CoreMode.DEFAULT);
+    }
 
-        this.exchangeCore = ExchangeCore.builder()
+    public ExchangeTestContainer(final int bufferSize,
+                                 final int matchingEnginesNum,
+                                 final int riskEnginesNum,
+                                 final int msgsInGroupLimit,
+                                 final Long stateId,
+                                 final CoreMode mode) {
+
+        final ExchangeCore.ExchangeCoreBuilder builder = ExchangeCore.builder()
                 .resultsConsumer((cmd, seq) -> consumer.accept(cmd))
-                .serializationProcessor(new DiskSerializationProcessor("./dumps"))
+                .serializationProcessor(new DiskSerializationProcessor(DUMPS_FOLDER))
                 .ringBufferSize(bufferSize)
                 .matchingEnginesNum(matchingEnginesNum)
                 .riskEnginesNum(riskEnginesNum)
@@ -86,9 +128,11 @@ public final class ExchangeTestContainer implements AutoCloseable {
                 .threadAffinityMode(THREAD_AFFINITY_ENABLE_PER_LOGICAL_CORE)
                 .waitStrategy(CoreWaitStrategy.BUSY_SPIN)
                 .orderBookFactory(symbolType -> new OrderBookFastImpl(OrderBookFastImpl.DEFAULT_HOT_WIDTH, symbolType))
-//                .orderBookFactory(OrderBookNaiveImpl::new)
-                .loadStateId(stateId) // Loading from persisted state
-                .build();
+                .userAccountsFactory(HashUserAccounts::new)
+                .loadStateId(stateId); // Loading from persisted state
+        mode.configurer.accept(builder);
+
+        this.exchangeCore = builder.build();
 
         this.exchangeCore.startup();
         api = this.exchangeCore.getApi();
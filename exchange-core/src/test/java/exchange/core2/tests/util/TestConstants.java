@@ -30,6 +30,7 @@ public final class TestConstants {
 
     public static final long UID_1 = 1440001;
     public static final long UID_2 = 1440002;
+    public static final long UID_3 = 1440003;
 
     public static final int SYMBOL_AUTOGENERATED_RANGE_START = 40000;
 
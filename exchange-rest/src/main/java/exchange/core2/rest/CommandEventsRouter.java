@@ -18,6 +18,7 @@ package exchange.core2.rest;
 import exchange.core2.core.common.L2MarketData;
 import exchange.core2.core.common.MatcherEventType;
 import exchange.core2.core.common.MatcherTradeEvent;
+import exchange.core2.core.common.TradesSummary;
 import exchange.core2.core.common.cmd.CommandResultCode;
 import exchange.core2.core.common.cmd.OrderCommand;
 import exchange.core2.core.common.cmd.OrderCommandType;
@@ -111,6 +112,14 @@ public class CommandEventsRouter implements ObjLongConsumer<OrderCommand> {
 
         List<TickRecord> ticks = new ArrayList<>();
 
+        final TradesSummary tradesSummary = cmd.tradesSummary;
+        if (tradesSummary != null) {
+            for (int i = 0; i < tradesSummary.size; i++) {
+                final BigDecimal tradePrice = ArithmeticHelper.fromLongPrice(tradesSummary.prices[i], symbolSpec);
+                ticks.add(new TickRecord(tradePrice, tradesSummary.volumes[i], cmd.timestamp, tradesSummary.takerActions[i]));
+            }
+        }
+
         for (MatcherTradeEvent evt : matcherTradeEvents) {
             log.debug("INTERNAL EVENT: " + evt);
             if (evt.eventType == MatcherEventType.TRADE) {
@@ -142,7 +151,10 @@ public class CommandEventsRouter implements ObjLongConsumer<OrderCommand> {
                         evt.activeOrderUid,
                         order -> sendOrderUpdate(evt.matchedOrderUid, order));
 
-                ticks.add(new TickRecord(tradePrice, evt.size, evt.timestamp, evt.activeOrderAction));
+                // single tick per taker order per price level, if matching engine already aggregated trades
+                if (tradesSummary == null) {
+                    ticks.add(new TickRecord(tradePrice, evt.size, evt.timestamp, evt.activeOrderAction));
+                }
 
             } else if (evt.eventType == MatcherEventType.REJECTION) {
                 final GatewayUserProfile profile = gatewayState.getOrCreateUserProfile(evt.activeOrderUid);
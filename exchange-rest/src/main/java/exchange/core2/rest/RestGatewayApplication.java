@@ -58,6 +58,7 @@ public class RestGatewayApplication {
                 .waitStrategy(CoreWaitStrategy.SLEEPING)
                 .orderBookFactory(symbolType -> new OrderBookFastImpl(OrderBookFastImpl.DEFAULT_HOT_WIDTH, symbolType))
 //                .orderBookFactory(OrderBookNaiveImpl::new)
+//                .orderBookFactory(OrderBookDirectImpl::new)
 //                .loadStateId(stateId) // Loading from persisted state
                 .build();
 
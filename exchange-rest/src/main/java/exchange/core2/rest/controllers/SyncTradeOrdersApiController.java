@@ -77,10 +77,10 @@ public class SyncTradeOrdersApiController {
                     orderCommand,
                     () -> RestApiOrderBook.builder()
                             .symbol(symbol)
-                            .askPrices(Arrays.stream(marketData.askPrices).mapToObj(p -> ArithmeticHelper.fromLongPrice(p, symbolSpec)).collect(Collectors.toList()))
-                            .bidPrices(Arrays.stream(marketData.bidPrices).mapToObj(p -> ArithmeticHelper.fromLongPrice(p, symbolSpec)).collect(Collectors.toList()))
-                            .askVolumes(Arrays.stream(marketData.askVolumes).boxed().collect(Collectors.toList()))
-                            .bidVolumes(Arrays.stream(marketData.bidVolumes).boxed().collect(Collectors.toList()))
+                            .askPrices(Arrays.stream(marketData.getAskPricesCopy()).mapToObj(p -> ArithmeticHelper.fromLongPrice(p, symbolSpec)).collect(Collectors.toList()))
+                            .bidPrices(Arrays.stream(marketData.getBidPricesCopy()).mapToObj(p -> ArithmeticHelper.fromLongPrice(p, symbolSpec)).collect(Collectors.toList()))
+                            .askVolumes(Arrays.stream(marketData.getAskVolumesCopy()).boxed().collect(Collectors.toList()))
+                            .bidVolumes(Arrays.stream(marketData.getBidVolumesCopy()).boxed().collect(Collectors.toList()))
                             .build(),
                     HttpStatus.OK));
         });